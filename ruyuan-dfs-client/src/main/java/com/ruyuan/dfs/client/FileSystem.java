@@ -78,6 +78,16 @@ public interface FileSystem {
      */
     void put(String filename, File file, int numOfReplica, Map<String, String> attr, OnProgressListener listener) throws Exception;
 
+    /**
+     * 批量上传文件，所有文件在NameNode中一次创建，然后逐个上传到DataNode
+     *
+     * @param files        服务器文件路径 -> 本地文件
+     * @param numOfReplica 文件副本数量
+     * @return 上传失败的文件和失败原因，全部成功时为空
+     * @throws Exception 网络异常
+     */
+    Map<String, String> put(Map<String, File> files, int numOfReplica) throws Exception;
+
 
     /**
      * 下载文件
@@ -106,6 +116,15 @@ public interface FileSystem {
      */
     void remove(String filename) throws Exception;
 
+    /**
+     * 批量删除文件
+     *
+     * @param filenames 文件名
+     * @return 删除失败的文件和失败原因，全部成功时为空
+     * @throws Exception 网络异常
+     */
+    Map<String, String> remove(List<String> filenames) throws Exception;
+
     /**
      * 读取文件属性
      *
@@ -115,6 +134,15 @@ public interface FileSystem {
      */
     Map<String, String> readAttr(String filename) throws Exception;
 
+    /**
+     * 批量读取文件属性
+     *
+     * @param filenames 文件名
+     * @return 文件名 -> 文件属性，不存在的文件不会返回
+     * @throws Exception 网络异常
+     */
+    Map<String, Map<String, String>> readAttr(List<String> filenames) throws Exception;
+
     /**
      * 关闭
      */
@@ -129,6 +157,17 @@ public interface FileSystem {
      */
     List<FsFile> listFile(String path) throws Exception;
 
+    /**
+     * 分页列出某个目录的文件列表，按照文件名排序
+     *
+     * @param path       文件目录
+     * @param startAfter 上一页最后一个文件的文件名，为空时从第一个文件开始
+     * @param pageSize   每页最多返回的数量，返回的数量小于pageSize说明已经是最后一页
+     * @return 文件信息
+     * @throws Exception 异常
+     */
+    List<FsFile> listFile(String path, String startAfter, int pageSize) throws Exception;
+
     /**
      * 获取NameNode的基本信息
      *
@@ -226,6 +226,15 @@ public class FileSystemImpl implements FileSystem {
         NettyPacket nettyPacket = NettyPacket.buildPacket(request.toByteArray(), PacketType.CREATE_FILE);
         NettyPacket resp = safeSendSync(nettyPacket);
         CreateFileResponse response = CreateFileResponse.parseFrom(resp.getBody());
+        upload(filename, file, response, listener);
+        confirm(request);
+    }
+
+    /**
+     * 上传文件到NameNode分配的每个DataNode
+     */
+    private void upload(String filename, File file, CreateFileResponse response, OnProgressListener listener)
+            throws Exception {
         OnMultiFileProgressListener onMultiFileProgressListener =
                 new OnMultiFileProgressListener(listener, response.getDataNodesList().size());
         for (int i = 0; i < response.getDataNodesList().size(); i++) {
@@ -245,6 +254,9 @@ public class FileSystemImpl implements FileSystem {
                 log.debug("完成上传文件到：[node={}:{}, filename={}]", hostname, port, filename);
             }
         }
+    }
+
+    private void confirm(CreateFileRequest request) throws Exception {
         /*
          * 文件上传是上传到DataNode节点，客户端上传到DataNode之后，DataNode再上报给NameNode节点中间有一个时间差
          * 为了达到强一致性，保证文件上传后，立马是可以读取文件的，需要等待NameNode收到DataNode上报的信息，才认为是上传成功的。
@@ -266,6 +278,51 @@ public class FileSystemImpl implements FileSystem {
         safeSendSync(confirmRequest);
     }
 
+    /**
+     * <pre>
+     *      1. 一次请求在NameNode中创建所有文件，每个文件分别返回DataNode列表或者失败原因
+     *      2. 逐个上传创建成功的文件到DataNode，然后向NameNode确认
+     * </pre>
+     */
+    @Override
+    public Map<String, String> put(Map<String, File> files, int numOfReplica) throws Exception {
+        if (numOfReplica > Constants.MAX_REPLICA_NUM) {
+            throw new DfsClientException("不合法的副本数量：" + numOfReplica);
+        }
+        BatchCreateFileRequest.Builder builder = BatchCreateFileRequest.newBuilder();
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            validate(entry.getKey());
+            CreateFileRequest.Builder file = CreateFileRequest.newBuilder()
+                    .setFilename(entry.getKey())
+                    .setFileSize(entry.getValue().length());
+            if (numOfReplica > 0) {
+                file.putAttr(Constants.ATTR_REPLICA_NUM, String.valueOf(numOfReplica));
+            }
+            builder.addFiles(file.build());
+        }
+        NettyPacket nettyPacket = NettyPacket.buildPacket(builder.build().toByteArray(), PacketType.BATCH_CREATE_FILE);
+        NettyPacket resp = safeSendSync(nettyPacket);
+        BatchCreateFileResponse response = BatchCreateFileResponse.parseFrom(resp.getBody());
+        Map<String, String> failed = new HashMap<>(PrettyCodes.trimMapSize());
+        for (int i = 0; i < response.getResultsCount(); i++) {
+            BatchCreateFileResult result = response.getResults(i);
+            String filename = result.getFilename();
+            if (!result.getError().isEmpty()) {
+                failed.put(filename, result.getError());
+                continue;
+            }
+            try {
+                upload(filename, files.get(filename), result.getResponse(), null);
+                confirm(builder.getFiles(i));
+            } catch (Exception e) {
+                log.error("上传文件失败：[filename={}]", filename, e);
+                failed.put(filename, e.getMessage() == null ? e.toString() : e.getMessage());
+            }
+        }
+        log.info("批量上传文件完成：[total={}, failed={}]", files.size(), failed.size());
+        return failed;
+    }
+
     @Override
     public void get(String filename, String absolutePath) throws Exception {
         get(filename, absolutePath, null);
@@ -313,6 +370,25 @@ public class FileSystemImpl implements FileSystem {
         safeSendSync(nettyPacket);
     }
 
+    @Override
+    public Map<String, String> remove(List<String> filenames) throws Exception {
+        for (String filename : filenames) {
+            validate(filename);
+        }
+        BatchRemoveFileRequest request = BatchRemoveFileRequest.newBuilder()
+                .addAllFilenames(filenames)
+                .build();
+        NettyPacket nettyPacket = NettyPacket.buildPacket(request.toByteArray(), PacketType.BATCH_REMOVE_FILE);
+        NettyPacket resp = safeSendSync(nettyPacket);
+        Map<String, String> failed = new HashMap<>(PrettyCodes.trimMapSize());
+        for (BatchRemoveFileResult result : BatchRemoveFileResponse.parseFrom(resp.getBody()).getResultsList()) {
+            if (!result.getError().isEmpty()) {
+                failed.put(result.getFilename(), result.getError());
+            }
+        }
+        return failed;
+    }
+
     @Override
     public Map<String, String> readAttr(String filename) throws Exception {
         validate(filename);
@@ -325,6 +401,25 @@ public class FileSystemImpl implements FileSystem {
         return response.getAttrMap();
     }
 
+    @Override
+    public Map<String, Map<String, String>> readAttr(List<String> filenames) throws Exception {
+        for (String filename : filenames) {
+            validate(filename);
+        }
+        BatchReadAttrRequest request = BatchReadAttrRequest.newBuilder()
+                .addAllFilenames(filenames)
+                .build();
+        NettyPacket nettyPacket = NettyPacket.buildPacket(request.toByteArray(), PacketType.BATCH_READ_ATTR);
+        NettyPacket resp = safeSendSync(nettyPacket);
+        Map<String, Map<String, String>> ret = new HashMap<>(PrettyCodes.trimMapSize());
+        for (BatchReadAttrResult result : BatchReadAttrResponse.parseFrom(resp.getBody()).getResultsList()) {
+            if (result.getError().isEmpty()) {
+                ret.put(result.getFilename(), result.getAttrMap());
+            }
+        }
+        return ret;
+    }
+
     @Override
     public void close() {
         this.defaultScheduler.shutdown();
@@ -343,6 +438,23 @@ public class FileSystemImpl implements FileSystem {
         return FsFile.parse(node);
     }
 
+    @Override
+    public List<FsFile> listFile(String path, String startAfter, int pageSize) throws Exception {
+        validate(path);
+        if (pageSize <= 0) {
+            throw new DfsClientException("不合法的分页大小：" + pageSize);
+        }
+        ListFileRequest listFileRequest = ListFileRequest.newBuilder()
+                .setPath(path)
+                .setStartAfter(startAfter == null ? "" : startAfter)
+                .setPageSize(pageSize)
+                .build();
+        NettyPacket nettyPacket = NettyPacket.buildPacket(listFileRequest.toByteArray(), PacketType.CLIENT_LIST_FILES);
+        NettyPacket responsePackage = safeSendSync(nettyPacket);
+        INode node = INode.parseFrom(responsePackage.getBody());
+        return FsFile.parse(node);
+    }
+
     @Override
     public ClientNameNodeInfo nameNodeInfo() throws Exception {
         NettyPacket nettyPacket = NettyPacket.buildPacket(new byte[0], PacketType.CLIENT_READ_NAME_NODE_INFO);
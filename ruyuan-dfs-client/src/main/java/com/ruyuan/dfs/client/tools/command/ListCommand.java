@@ -16,6 +16,8 @@ import java.util.List;
  */
 public class ListCommand extends AbstractCommand {
 
+    private static final int PAGE_SIZE = 1000;
+
     private String currentPath;
 
     public ListCommand(String currentPath, String command) {
@@ -25,7 +27,17 @@ public class ListCommand extends AbstractCommand {
 
     @Override
     public void execute(FileSystem fileSystem, LineReader lineReader) throws Exception {
-        List<FsFile> fsFiles = fileSystem.listFile(currentPath);
+        // 分页读取，避免大目录一次性返回所有文件
+        List<FsFile> fsFiles = new ArrayList<>();
+        List<FsFile> page;
+        String startAfter = null;
+        do {
+            page = fileSystem.listFile(currentPath, startAfter, PAGE_SIZE);
+            fsFiles.addAll(page);
+            if (!page.isEmpty()) {
+                startAfter = page.get(page.size() - 1).getPath();
+            }
+        } while (page.size() >= PAGE_SIZE);
         List<ConsoleTable.Cell> header = new ArrayList<ConsoleTable.Cell>() {{
             add(new ConsoleTable.Cell("name"));
             add(new ConsoleTable.Cell("type"));
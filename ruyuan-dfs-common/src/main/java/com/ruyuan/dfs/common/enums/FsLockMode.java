@@ -0,0 +1,36 @@
+package com.ruyuan.dfs.common.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 内存目录树的加锁模式
+ *
+ * @author Sun Dasheng
+ */
+@Getter
+@AllArgsConstructor
+public enum FsLockMode {
+
+    /**
+     * 整棵目录树共用一把读写锁
+     */
+    GLOBAL(1, "global", "全局锁模式"),
+    /**
+     * 沿着路径逐层对目录加锁，不相交的子树可以并行修改
+     */
+    HIERARCHICAL(2, "hierarchical", "分层锁模式");
+
+    private int value;
+    private String mode;
+    private String desc;
+
+    public static FsLockMode getEnum(String mode) {
+        for (FsLockMode lockMode : values()) {
+            if (lockMode.mode.equals(mode)) {
+                return lockMode;
+            }
+        }
+        return GLOBAL;
+    }
+}
@@ -25,6 +25,16 @@ public enum FsOpType {
      * 删除文件或者文件夹
      */
     DELETE(3),
+
+    /**
+     * 把文件移动到垃圾箱，path是原来的文件名，attr中带有删除时间
+     */
+    MOVE_TO_TRASH(4),
+
+    /**
+     * 重命名文件或者文件夹，path是原来的路径，dstPath是新的路径
+     */
+    RENAME(5),
     ;
 
 
@@ -62,6 +62,13 @@ public enum PacketType {
     CLIENT_READ_STORAGE_INFO(45, "客户端获取文件存储信息"),
     CLIENT_PRE_CALCULATE(46, "客户端导出文件/文件夹前计算文件数量的请求"),
     CLIENT_GET_ALL_FILENAME(47, "客户端获取文件/文件夹包含的所有文件全路径"),
+    SUBSCRIBE_EDIT_LOG(48, "BackupNode往NameNode订阅EditLog推送"),
+    EDIT_LOG_PUSH(49, "NameNode往BackupNode推送EditLog"),
+    EDIT_LOG_PUSH_ACK(50, "BackupNode往NameNode确认已经回放的EditLog"),
+    BATCH_CREATE_FILE(51, "客户端批量创建文件请求"),
+    BATCH_READ_ATTR(52, "客户端批量读取文件属性请求"),
+    BATCH_REMOVE_FILE(53, "客户端批量删除文件请求"),
+    DATA_NODE_LIVENESS_GOSSIP(54, "NameNode之间批量同步DataNode心跳"),
     ;
 
     public int value;
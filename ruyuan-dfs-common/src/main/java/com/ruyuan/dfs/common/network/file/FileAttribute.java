@@ -36,7 +36,7 @@ public class FileAttribute {
     }
 
     public long getSize() {
-        return Integer.parseInt(attr.get("size"));
+        return Long.parseLong(attr.get("size"));
     }
 
     public void setSize(long size) {
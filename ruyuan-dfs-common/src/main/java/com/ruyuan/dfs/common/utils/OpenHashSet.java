@@ -0,0 +1,150 @@
+package com.ruyuan.dfs.common.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于线性探测的开放寻址哈希集合
+ *
+ * <pre>
+ * 元素直接放在数组中，没有 HashMap.Node 这样的包装对象，每个元素只占用一到两个数组元素，适合保存大量元素的引用。
+ * 负载因子超过3/4的时候扩容一倍，删除的时候把后面探测链上的元素往前移，不需要墓碑标记。
+ *
+ * 支持两种判断相同的方式：按照 equals / hashCode，或者按照引用和 identityHashCode。
+ * 所有方法都在集合自己的monitor中执行。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class OpenHashSet<E> {
+
+    private static final Object[] EMPTY = new Object[0];
+    private static final int MIN_CAPACITY = 4;
+
+    private final boolean identity;
+    private Object[] table = EMPTY;
+    private int size;
+
+    /**
+     * 按照 equals / hashCode 判断元素是否相同
+     */
+    public OpenHashSet() {
+        this(false);
+    }
+
+    /**
+     * @param identity true表示按照引用判断元素是否相同
+     */
+    public OpenHashSet(boolean identity) {
+        this.identity = identity;
+    }
+
+    /**
+     * 添加元素，已经存在时不做任何修改
+     *
+     * @param element 元素，不能为null
+     * @return 是否添加成功
+     */
+    public synchronized boolean add(E element) {
+        if ((size + 1) * 4 > table.length * 3) {
+            resize(Math.max(MIN_CAPACITY, table.length * 2));
+        }
+        int mask = table.length - 1;
+        int i = hash(element) & mask;
+        while (table[i] != null) {
+            if (same(table[i], element)) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = element;
+        size++;
+        return true;
+    }
+
+    /**
+     * 删除元素
+     *
+     * @param element 元素
+     * @return 元素是否存在
+     */
+    public synchronized boolean remove(E element) {
+        if (size == 0) {
+            return false;
+        }
+        int mask = table.length - 1;
+        int i = hash(element) & mask;
+        while (!same(table[i], element)) {
+            if (table[i] == null) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = null;
+        size--;
+        if (size == 0) {
+            table = EMPTY;
+            return true;
+        }
+        // 把后面探测链上的元素往前移，保证查找的时候不会因为中间的空位提前结束
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            Object next = table[j];
+            if (next == null) {
+                break;
+            }
+            int k = hash(next) & mask;
+            boolean reachable = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+            if (!reachable) {
+                table[i] = next;
+                table[j] = null;
+                i = j;
+            }
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return 所有元素的拷贝，顺序不固定
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<E> toList() {
+        List<E> ret = new ArrayList<>(size);
+        for (Object element : table) {
+            if (element != null) {
+                ret.add((E) element);
+            }
+        }
+        return ret;
+    }
+
+    private void resize(int capacity) {
+        Object[] old = table;
+        table = new Object[capacity];
+        int mask = capacity - 1;
+        for (Object element : old) {
+            if (element == null) {
+                continue;
+            }
+            int i = hash(element) & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = element;
+        }
+    }
+
+    private boolean same(Object existing, Object element) {
+        return identity ? existing == element : element.equals(existing);
+    }
+
+    private int hash(Object element) {
+        int h = (identity ? System.identityHashCode(element) : element.hashCode()) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -23,6 +23,7 @@ public class DataNodeConfig {
     private int dataNodeId;
     private String fileLocatorType;
     private int dataNodeWorkerThreads;
+    private String rack;
 
     public static DataNodeConfig parse(Properties properties) {
         String baseDir = (String) properties.get("base.dir");
@@ -33,6 +34,7 @@ public class DataNodeConfig {
         int dataNodeId = Integer.parseInt((String) properties.get("datanode.id"));
         String fileLocatorType = (String) properties.get("file.locator.type");
         int dataNodeWorkerThreads = Integer.parseInt((String) properties.get("datanode.worker.threads"));
+        String rack = properties.getProperty("datanode.rack", "/default-rack");
         return DataNodeConfig.builder()
                 .baseDir(baseDir)
                 .nameNodeServers(nameNodeServers)
@@ -42,6 +44,7 @@ public class DataNodeConfig {
                 .dataNodeId(dataNodeId)
                 .fileLocatorType(fileLocatorType)
                 .dataNodeWorkerThreads(dataNodeWorkerThreads)
+                .rack(rack)
                 .build();
     }
 
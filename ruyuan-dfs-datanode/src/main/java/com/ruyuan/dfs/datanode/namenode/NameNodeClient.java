@@ -32,6 +32,11 @@ import java.util.stream.Collectors;
 @Slf4j
 public class NameNodeClient {
 
+    /**
+     * 全量上报每次最多上传多少个文件信息
+     */
+    private static final int REPORT_BATCH_SIZE = 1000;
+
     private final ReplicateManager replicateManager;
     private final DefaultScheduler defaultScheduler;
     private final BackupNodeManager backupNodeManager;
@@ -39,6 +44,8 @@ public class NameNodeClient {
     private NetClient netClient;
     private final DataNodeConfig datanodeConfig;
     private ScheduledFuture<?> scheduledFuture;
+    private ScheduledFuture<?> reportFuture;
+    private final StorageReportTracker storageReportTracker = new StorageReportTracker();
 
     public NameNodeClient(StorageManager storageManager, DataNodeConfig datanodeConfig, DefaultScheduler defaultScheduler,
                           PeerDataNodes peerDataNodes) {
@@ -65,6 +72,11 @@ public class NameNodeClient {
                     scheduledFuture.cancel(true);
                     scheduledFuture = null;
                 }
+                if (reportFuture != null) {
+                    reportFuture.cancel(true);
+                    reportFuture = null;
+                }
+                storageReportTracker.reset();
             }
         });
         this.netClient.addNetClientFailListener(() -> {
@@ -86,6 +98,7 @@ public class NameNodeClient {
                 .setStoredDataSize(storageInfo.getStorageSize())
                 .setFreeSpace(storageInfo.getFreeSpace())
                 .setNodeId(datanodeConfig.getDataNodeId())
+                .setRack(datanodeConfig.getRack())
                 .build();
         NettyPacket nettyPacket = NettyPacket.buildPacket(request.toByteArray(),
                 PacketType.DATA_NODE_REGISTER);
@@ -105,6 +118,9 @@ public class NameNodeClient {
             case HEART_BRET:
                 handleDataNodeHeartbeatResponse(requestWrapper);
                 break;
+            case REPORT_STORAGE_INFO:
+                handleReportStorageInfoResponse(requestWrapper);
+                break;
             default:
                 break;
         }
@@ -127,12 +143,16 @@ public class NameNodeClient {
             scheduledFuture = ctx.executor().scheduleAtFixedRate(new HeartbeatTask(ctx, datanodeConfig),
                     0, datanodeConfig.getHeartbeatInterval(), TimeUnit.MILLISECONDS);
         }
+        if (reportFuture == null) {
+            reportFuture = ctx.executor().scheduleAtFixedRate(() -> reportIncrementalStorageInfo(ctx, false),
+                    datanodeConfig.getHeartbeatInterval(), datanodeConfig.getHeartbeatInterval(), TimeUnit.MILLISECONDS);
+        }
         if (requestWrapper.getRequest().isSuccess()) {
-            StorageInfo storageInfo = storageManager.getStorageInfo();
-            log.info("注册成功，发送请求到NameNode进行全量上报存储信息。[size={}]", storageInfo.getFiles().size());
-            reportStorageInfo(ctx, storageInfo);
+            log.info("注册成功，发送请求到NameNode进行全量上报存储信息。");
+            reportStorageInfo(ctx);
         } else {
-            log.info("DataNode重启，不需要全量上报存储信息。");
+            log.info("DataNode已经注册过，增量上报上次确认之后的存储变化。");
+            reportIncrementalStorageInfo(ctx, true);
         }
     }
 
@@ -175,6 +195,7 @@ public class NameNodeClient {
      * @param fileSize 文件大小
      */
     public void informReplicaReceived(String fileName, long fileSize) throws InterruptedException {
+        storageReportTracker.onReceived(fileName, fileSize);
         InformReplicaReceivedRequest replicaReceivedRequest = InformReplicaReceivedRequest.newBuilder()
                 .setFilename(fileName)
                 .setHostname(datanodeConfig.getDataNodeTransportAddr())
@@ -191,6 +212,7 @@ public class NameNodeClient {
      * @param fileSize 文件大小
      */
     public void informReplicaRemoved(String fileName, long fileSize) throws InterruptedException {
+        storageReportTracker.onRemoved(fileName);
         InformReplicaReceivedRequest replicaReceivedRequest = InformReplicaReceivedRequest.newBuilder()
                 .setFilename(fileName)
                 .setHostname(datanodeConfig.getDataNodeTransportAddr())
@@ -200,18 +222,24 @@ public class NameNodeClient {
         netClient.send(nettyPacket);
     }
 
-    private void reportStorageInfo(ChannelHandlerContext ctx, StorageInfo storageInfo) {
+    /**
+     * 全量上报存储信息
+     */
+    private void reportStorageInfo(ChannelHandlerContext ctx) {
+        long generation = storageReportTracker.beginFullReport();
+        StorageInfo storageInfo = storageManager.getStorageInfo();
+        log.info("全量上报存储信息：[size={}, generation={}]", storageInfo.getFiles().size(), generation);
         List<FileInfo> files = storageInfo.getFiles();
-        // 每次最多上传100个文件信息
         if (files.isEmpty()) {
             ReportCompleteStorageInfoRequest request = ReportCompleteStorageInfoRequest.newBuilder()
                     .setHostname(datanodeConfig.getDataNodeTransportAddr())
                     .setFinished(true)
+                    .setGeneration(generation)
                     .build();
             NettyPacket nettyPacket = NettyPacket.buildPacket(request.toByteArray(), PacketType.REPORT_STORAGE_INFO);
             ctx.writeAndFlush(nettyPacket);
         } else {
-            List<List<FileInfo>> partition = Lists.partition(files, 100);
+            List<List<FileInfo>> partition = Lists.partition(files, REPORT_BATCH_SIZE);
             for (int i = 0; i < partition.size(); i++) {
                 List<FileInfo> fileInfos = partition.get(i);
                 List<FileMetaInfo> fileMetaInfos = fileInfos.stream()
@@ -224,7 +252,9 @@ public class NameNodeClient {
                 ReportCompleteStorageInfoRequest.Builder builder = ReportCompleteStorageInfoRequest.newBuilder()
                         .setHostname(datanodeConfig.getDataNodeTransportAddr())
                         .addAllFileInfos(fileMetaInfos)
-                        .setFinished(isFinish);
+                        .setFinished(isFinish)
+                        .setGeneration(generation)
+                        .setTotalFiles(files.size());
                 ReportCompleteStorageInfoRequest request = builder.build();
                 NettyPacket nettyPacket = NettyPacket.buildPacket(request.toByteArray(), PacketType.REPORT_STORAGE_INFO);
                 ctx.writeAndFlush(nettyPacket);
@@ -232,6 +262,40 @@ public class NameNodeClient {
         }
     }
 
+    /**
+     * 增量上报上次NameNode确认之后新增和删除的文件
+     *
+     * @param force 没有变化的时候也上报，用来确认NameNode记录的代数是否一致
+     */
+    private void reportIncrementalStorageInfo(ChannelHandlerContext ctx, boolean force) {
+        ReportCompleteStorageInfoRequest request = storageReportTracker.nextIncrementalReport(
+                datanodeConfig.getDataNodeTransportAddr(), force);
+        if (request == null) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("增量上报存储信息：[baseGeneration={}, generation={}, files={}, removedFiles={}]",
+                    request.getBaseGeneration(), request.getGeneration(), request.getFileInfosCount(),
+                    request.getRemovedFilesCount());
+        }
+        NettyPacket nettyPacket = NettyPacket.buildPacket(request.toByteArray(), PacketType.REPORT_STORAGE_INFO);
+        ctx.writeAndFlush(nettyPacket);
+    }
+
+    private void handleReportStorageInfoResponse(RequestWrapper requestWrapper) throws InvalidProtocolBufferException {
+        if (requestWrapper.getRequest().isError()) {
+            log.warn("存储信息上报失败，下次重新上报：[error={}]", requestWrapper.getRequest().getError());
+            storageReportTracker.reset();
+            return;
+        }
+        ReportStorageInfoResponse response = ReportStorageInfoResponse.parseFrom(requestWrapper.getRequest().getBody());
+        storageReportTracker.onReportResponse(response.getAccepted(), response.getGeneration());
+        if (!response.getAccepted()) {
+            log.info("NameNode记录的存储代数不一致，重新全量上报：[generation={}]", response.getGeneration());
+            reportStorageInfo(requestWrapper.getCtx());
+        }
+    }
+
     /**
      * 停止服务
      */
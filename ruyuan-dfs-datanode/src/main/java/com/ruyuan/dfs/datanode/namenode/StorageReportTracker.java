@@ -0,0 +1,127 @@
+package com.ruyuan.dfs.datanode.namenode;
+
+import com.ruyuan.dfs.model.datanode.FileMetaInfo;
+import com.ruyuan.dfs.model.datanode.ReportCompleteStorageInfoRequest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 记录DataNode存储的变化，用来做增量的存储上报
+ *
+ * <pre>
+ * 每次新增或者删除文件，代数加一，并记录下文件最后一次变化和变化时的代数。NameNode确认某个代数的上报之后，
+ * 这个代数之前的变化就不需要再上报了，下一次增量上报只包含之后的变化，并带上已经确认的代数。
+ * NameNode记录的代数和增量上报基于的代数不一致的时候（NameNode重启、DataNode重启），拒绝增量上报，DataNode重新全量上报。
+ *
+ * 代数从启动时间开始，DataNode重启之后不会和之前确认过的代数重复。
+ * 同一时间只有一个上报在途，避免两个基于同一个代数的增量上报先后到达，后一个被拒绝导致不必要的全量上报。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+class StorageReportTracker {
+
+    private static final long REMOVED = -1;
+
+    /**
+     * 变化太多的时候直接全量上报，避免单个请求太大
+     */
+    private static final int MAX_INCREMENTAL_CHANGES = 10000;
+
+    private final Map<String, Change> changes = new LinkedHashMap<>();
+    private long generation = System.currentTimeMillis();
+    private long ackedGeneration = -1;
+    private boolean reporting;
+
+    /**
+     * 收到了文件
+     */
+    synchronized void onReceived(String filename, long fileSize) {
+        changes.put(filename, new Change(fileSize, ++generation));
+    }
+
+    /**
+     * 删除了文件
+     */
+    synchronized void onRemoved(String filename) {
+        changes.put(filename, new Change(REMOVED, ++generation));
+    }
+
+    /**
+     * 开始全量上报，全量上报的文件列表需要在这之后读取，读取期间的变化会在之后的增量上报中重复上报
+     *
+     * @return 全量上报对应的代数
+     */
+    synchronized long beginFullReport() {
+        reporting = true;
+        return generation;
+    }
+
+    /**
+     * 生成增量上报
+     *
+     * @param hostname DataNode
+     * @param force    没有变化的时候也上报，用来确认NameNode记录的代数是否一致
+     * @return 增量上报，有上报在途或者没有需要上报的变化时返回null
+     */
+    synchronized ReportCompleteStorageInfoRequest nextIncrementalReport(String hostname, boolean force) {
+        if (reporting || (changes.isEmpty() && !force)) {
+            return null;
+        }
+        // 变化太多的时候不带文件，基于一个不存在的代数，NameNode拒绝之后走全量上报
+        boolean tooMany = changes.size() > MAX_INCREMENTAL_CHANGES;
+        ReportCompleteStorageInfoRequest.Builder builder = ReportCompleteStorageInfoRequest.newBuilder()
+                .setHostname(hostname)
+                .setIncremental(true)
+                .setFinished(true)
+                .setBaseGeneration(tooMany ? -1 : ackedGeneration)
+                .setGeneration(generation);
+        if (!tooMany) {
+            for (Map.Entry<String, Change> entry : changes.entrySet()) {
+                if (entry.getValue().fileSize == REMOVED) {
+                    builder.addRemovedFiles(entry.getKey());
+                } else {
+                    builder.addFileInfos(FileMetaInfo.newBuilder()
+                            .setFilename(entry.getKey())
+                            .setFileSize(entry.getValue().fileSize)
+                            .build());
+                }
+            }
+        }
+        reporting = true;
+        return builder.build();
+    }
+
+    /**
+     * 收到NameNode对上报的响应
+     *
+     * @param accepted   是否接受
+     * @param generation NameNode确认的代数
+     */
+    synchronized void onReportResponse(boolean accepted, long generation) {
+        reporting = false;
+        if (!accepted) {
+            return;
+        }
+        ackedGeneration = generation;
+        changes.values().removeIf(change -> change.generation <= generation);
+    }
+
+    /**
+     * 和NameNode的连接断开之后，在途的上报不会再有响应
+     */
+    synchronized void reset() {
+        reporting = false;
+    }
+
+    private static class Change {
+        private final long fileSize;
+        private final long generation;
+
+        private Change(long fileSize, long generation) {
+            this.fileSize = fileSize;
+            this.generation = generation;
+        }
+    }
+}
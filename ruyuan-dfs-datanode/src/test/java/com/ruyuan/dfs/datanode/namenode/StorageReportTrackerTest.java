@@ -0,0 +1,174 @@
+package com.ruyuan.dfs.datanode.namenode;
+
+import com.ruyuan.dfs.model.datanode.FileMetaInfo;
+import com.ruyuan.dfs.model.datanode.ReportCompleteStorageInfoRequest;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Sun Dasheng
+ */
+public class StorageReportTrackerTest {
+
+    private static final String HOSTNAME = "dn1";
+
+    @Test
+    public void testAckPrunesChanges() {
+        StorageReportTracker tracker = new StorageReportTracker();
+        long fullGeneration = fullReport(tracker);
+
+        tracker.onReceived("/a", 10);
+        tracker.onRemoved("/b");
+        ReportCompleteStorageInfoRequest report = tracker.nextIncrementalReport(HOSTNAME, false);
+        assertNotNull(report);
+        assertTrue(report.getIncremental());
+        assertEquals(fullGeneration, report.getBaseGeneration());
+        assertEquals(fullGeneration + 2, report.getGeneration());
+        assertEquals(Collections.singletonList("/a"), filenames(report));
+        assertEquals(Collections.singletonList("/b"), report.getRemovedFilesList());
+
+        // 上报在途期间的变化代数更大，确认之后仍然保留
+        tracker.onReceived("/c", 30);
+        tracker.onReportResponse(true, report.getGeneration());
+        report = tracker.nextIncrementalReport(HOSTNAME, false);
+        assertNotNull(report);
+        assertEquals(fullGeneration + 2, report.getBaseGeneration());
+        assertEquals(fullGeneration + 3, report.getGeneration());
+        assertEquals(Collections.singletonList("/c"), filenames(report));
+        assertEquals(0, report.getRemovedFilesCount());
+
+        // 全部确认之后没有需要上报的变化
+        tracker.onReportResponse(true, report.getGeneration());
+        assertNull(tracker.nextIncrementalReport(HOSTNAME, false));
+        report = tracker.nextIncrementalReport(HOSTNAME, true);
+        assertNotNull(report);
+        assertEquals(fullGeneration + 3, report.getBaseGeneration());
+        assertEquals(0, report.getFileInfosCount() + report.getRemovedFilesCount());
+    }
+
+    @Test
+    public void testRejectFallbackToFullReport() {
+        StorageReportTracker tracker = new StorageReportTracker();
+
+        // 还没有全量上报过，增量上报基于 -1，NameNode拒绝之后变化保留
+        tracker.onReceived("/a", 10);
+        ReportCompleteStorageInfoRequest report = tracker.nextIncrementalReport(HOSTNAME, false);
+        assertNotNull(report);
+        assertEquals(-1, report.getBaseGeneration());
+        tracker.onReportResponse(false, -1);
+        report = tracker.nextIncrementalReport(HOSTNAME, false);
+        assertEquals(Collections.singletonList("/a"), filenames(report));
+        tracker.onReportResponse(false, -1);
+
+        // 全量上报期间不会生成增量上报，完成之后之前的变化已经包含在全量上报中
+        long fullGeneration = tracker.beginFullReport();
+        assertNull(tracker.nextIncrementalReport(HOSTNAME, true));
+        tracker.onReportResponse(true, fullGeneration);
+        assertNull(tracker.nextIncrementalReport(HOSTNAME, false));
+
+        // NameNode重启之后记录的代数不一致，拒绝增量上报，重新全量上报
+        tracker.onRemoved("/a");
+        report = tracker.nextIncrementalReport(HOSTNAME, false);
+        assertEquals(fullGeneration, report.getBaseGeneration());
+        tracker.onReportResponse(false, -1);
+        report = tracker.nextIncrementalReport(HOSTNAME, false);
+        assertEquals(fullGeneration, report.getBaseGeneration());
+        assertEquals(Collections.singletonList("/a"), report.getRemovedFilesList());
+        tracker.onReportResponse(false, -1);
+
+        long nextFullGeneration = tracker.beginFullReport();
+        assertTrue(nextFullGeneration > fullGeneration);
+        tracker.onReportResponse(true, nextFullGeneration);
+        assertNull(tracker.nextIncrementalReport(HOSTNAME, false));
+        assertEquals(nextFullGeneration, tracker.nextIncrementalReport(HOSTNAME, true).getBaseGeneration());
+    }
+
+    @Test
+    public void testTooManyChanges() {
+        StorageReportTracker tracker = new StorageReportTracker();
+        long fullGeneration = fullReport(tracker);
+        int count = 10001;
+        for (int i = 0; i < count; i++) {
+            tracker.onReceived("/file-" + i, i);
+        }
+
+        // 变化太多的时候不带文件，基于不存在的代数，NameNode一定会拒绝
+        ReportCompleteStorageInfoRequest report = tracker.nextIncrementalReport(HOSTNAME, false);
+        assertNotNull(report);
+        assertEquals(-1, report.getBaseGeneration());
+        assertEquals(fullGeneration + count, report.getGeneration());
+        assertEquals(0, report.getFileInfosCount());
+        assertEquals(0, report.getRemovedFilesCount());
+
+        tracker.onReportResponse(false, fullGeneration);
+        long nextFullGeneration = tracker.beginFullReport();
+        tracker.onReportResponse(true, nextFullGeneration);
+        assertNull(tracker.nextIncrementalReport(HOSTNAME, false));
+    }
+
+    @Test
+    public void testReset() {
+        StorageReportTracker tracker = new StorageReportTracker();
+        long fullGeneration = fullReport(tracker);
+        tracker.onReceived("/a", 10);
+        ReportCompleteStorageInfoRequest report = tracker.nextIncrementalReport(HOSTNAME, false);
+        assertNotNull(report);
+
+        // 同一时间只有一个上报在途
+        tracker.onReceived("/b", 20);
+        assertNull(tracker.nextIncrementalReport(HOSTNAME, true));
+
+        // 连接断开之后在途的上报不会有响应，重新上报所有没有确认的变化
+        tracker.reset();
+        report = tracker.nextIncrementalReport(HOSTNAME, false);
+        assertNotNull(report);
+        assertEquals(fullGeneration, report.getBaseGeneration());
+        assertEquals(Arrays.asList("/a", "/b"), filenames(report));
+
+        // 全量上报在途的时候断开连接同样可以重新上报
+        tracker.reset();
+        tracker.beginFullReport();
+        assertNull(tracker.nextIncrementalReport(HOSTNAME, true));
+        tracker.reset();
+        assertNotNull(tracker.nextIncrementalReport(HOSTNAME, true));
+    }
+
+    @Test
+    public void testChangesDuringFullReport() {
+        StorageReportTracker tracker = new StorageReportTracker();
+        tracker.onReceived("/a", 10);
+        long fullGeneration = tracker.beginFullReport();
+
+        // 读取全量文件列表期间的变化，全量上报中可能有也可能没有，之后在增量上报中重复上报
+        tracker.onReceived("/b", 20);
+        tracker.onRemoved("/a");
+        tracker.onReportResponse(true, fullGeneration);
+
+        ReportCompleteStorageInfoRequest report = tracker.nextIncrementalReport(HOSTNAME, false);
+        assertNotNull(report);
+        assertEquals(fullGeneration, report.getBaseGeneration());
+        assertEquals(fullGeneration + 2, report.getGeneration());
+        assertEquals(Collections.singletonList("/b"), filenames(report));
+        assertEquals(Collections.singletonList("/a"), report.getRemovedFilesList());
+    }
+
+    private long fullReport(StorageReportTracker tracker) {
+        long generation = tracker.beginFullReport();
+        tracker.onReportResponse(true, generation);
+        return generation;
+    }
+
+    private List<String> filenames(ReportCompleteStorageInfoRequest report) {
+        List<String> filenames = new ArrayList<>(report.getFileInfosCount());
+        for (FileMetaInfo fileInfo : report.getFileInfosList()) {
+            filenames.add(fileInfo.getFilename());
+        }
+        return filenames;
+    }
+}
@@ -0,0 +1,26 @@
+#!/bin/bash
+
+if [ $# -lt 1 ];
+then
+  echo "USAGE: $0 {editlog文件或者NameNode的base.dir} ..."
+  exit 1
+fi
+
+base_dir=$(dirname $0)/..
+
+# Which java to use
+if [ -z "$JAVA_HOME" ]; then
+  JAVA="java"
+else
+  JAVA="$JAVA_HOME/bin/java"
+fi
+
+export CLASSPATH
+
+# 包含lib文件夹中的jar包
+for file in "$base_dir"/lib/*.jar;
+do
+    CLASSPATH="$CLASSPATH":"$file"
+done;
+
+$JAVA -cp $CLASSPATH com.ruyuan.dfs.namenode.tools.EditLogVerifier "$@"
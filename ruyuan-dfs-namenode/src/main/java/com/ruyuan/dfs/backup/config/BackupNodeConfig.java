@@ -27,7 +27,19 @@ public class BackupNodeConfig {
     private String baseDir;
     private long fetchEditLogInterval;
     private int fetchEditLogSize;
+    /**
+     * 是否订阅NameNode推送的editlog，订阅成功之后不再拉取editlog
+     */
+    private boolean fetchEditLogStream;
+    /**
+     * 订阅推送时，NameNode已经推送但是还没有确认回放的editlog数量上限
+     */
+    private int fetchEditLogStreamWindow;
     private long checkpointInterval;
+    /**
+     * 两次完整checkpoint之间最多有多少次增量checkpoint，0表示不使用增量checkpoint
+     */
+    private int checkpointDeltaMax;
     private String nameNodeServer;
     private String backupNodeServer;
 
@@ -35,14 +47,20 @@ public class BackupNodeConfig {
         String baseDir = (String) properties.get("base.dir");
         long fetchEditLogInterval = Integer.parseInt((String) properties.get("fetch.editslog.interval"));
         int fetchEditLogSize = Integer.parseInt((String) properties.get("fetch.editslog.size"));
+        boolean fetchEditLogStream = Boolean.parseBoolean(properties.getProperty("fetch.editslog.stream", "true"));
+        int fetchEditLogStreamWindow = Integer.parseInt(properties.getProperty("fetch.editslog.stream.window", "8192"));
         long checkpointInterval = Long.parseLong((String) properties.get("checkpoint.interval"));
+        int checkpointDeltaMax = Integer.parseInt(properties.getProperty("checkpoint.delta.max", "10"));
         String nameNodeServer = (String) properties.get("namenode.server");
         String backupNodeServer = (String) properties.get("backupnode.server");
         return BackupNodeConfig.builder()
                 .baseDir(baseDir)
                 .fetchEditLogInterval(fetchEditLogInterval)
                 .fetchEditLogSize(fetchEditLogSize)
+                .fetchEditLogStream(fetchEditLogStream)
+                .fetchEditLogStreamWindow(fetchEditLogStreamWindow)
                 .checkpointInterval(checkpointInterval)
+                .checkpointDeltaMax(checkpointDeltaMax)
                 .nameNodeServer(nameNodeServer)
                 .backupNodeServer(backupNodeServer)
                 .build();
@@ -1,7 +1,6 @@
 package com.ruyuan.dfs.backup.fs;
 
 import com.ruyuan.dfs.backup.config.BackupNodeConfig;
-import com.ruyuan.dfs.common.enums.FsOpType;
 import com.ruyuan.dfs.model.backup.EditLog;
 import lombok.extern.slf4j.Slf4j;
 
@@ -10,6 +9,11 @@ import java.util.List;
 /**
  * 抓取Editslog
  *
+ * <pre>
+ * 开启了订阅推送的时候，先尝试订阅，订阅成功之后editlog由 {@link EditsLogSubscriber} 回放，这里只同步用户和槽位信息。
+ * 断开连接之后订阅失效，重新开始拉取editlog，直到再次订阅成功。
+ * </pre>
+ *
  * @author Sun Dasheng
  */
 @Slf4j
@@ -46,30 +50,24 @@ public class EditsLogFetcher implements Runnable {
                 Thread.sleep(1000);
                 return;
             }
-            List<EditLog> editLogs = nameNode.fetchEditsLog(nameSystem.getMaxTxId());
+            EditsLogSubscriber subscriber = nameNode.getEditsLogSubscriber();
+            if (subscriber != null && !subscriber.isSubscribed()) {
+                try {
+                    subscriber.subscribe();
+                } catch (Exception e) {
+                    log.warn("订阅EditLog推送失败，继续拉取EditLog：{}", e.getMessage());
+                }
+            }
+            if (subscriber != null && subscriber.isSubscribed()) {
+                nameNode.fetchEditsLog(nameSystem.getMaxTxId(), true);
+                return;
+            }
+            List<EditLog> editLogs = nameNode.fetchEditsLog(nameSystem.getMaxTxId(), false);
             if (editLogs.size() < backupnodeConfig.getFetchEditLogSize()) {
                 return;
             }
             log.info("抓取到editLog: [max txId={}, size={}]", nameSystem.getMaxTxId(), editLogs.size());
-            for (int i = 0; i < editLogs.size(); i++) {
-                EditLog editLog = editLogs.get(i);
-                if (editLog != null) {
-                    int op = editLog.getOpType();
-                    long txId = editLog.getTxId();
-                    if (nameSystem.getMaxTxId() < txId) {
-                        if (FsOpType.MKDIR.getValue() == op) {
-                            nameSystem.mkdir(editLog.getPath(), editLog.getAttrMap());
-                        } else if (FsOpType.CREATE.getValue() == op) {
-                            nameSystem.createFile(editLog.getPath(), editLog.getAttrMap());
-                        } else if (FsOpType.DELETE.getValue() == op) {
-                            nameSystem.deleteFile(editLog.getPath());
-                        }
-                        nameSystem.setMaxTxId(txId);
-                    }
-                } else {
-                    log.debug("EditLog is empty : {} ", editLogs.toString());
-                }
-            }
+            nameSystem.applyEditLogs(editLogs);
         } catch (Exception e) {
             log.error("抓取EditLog线程出现异常:", e);
         }
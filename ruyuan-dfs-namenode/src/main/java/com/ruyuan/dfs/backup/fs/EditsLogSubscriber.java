@@ -0,0 +1,124 @@
+package com.ruyuan.dfs.backup.fs;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.ruyuan.dfs.common.NettyPacket;
+import com.ruyuan.dfs.common.enums.PacketType;
+import com.ruyuan.dfs.common.exception.RequestTimeoutException;
+import com.ruyuan.dfs.common.metrics.Prometheus;
+import com.ruyuan.dfs.common.network.NetClient;
+import com.ruyuan.dfs.common.utils.DefaultThread;
+import com.ruyuan.dfs.model.backup.EditLogPush;
+import com.ruyuan.dfs.model.backup.EditLogPushAck;
+import com.ruyuan.dfs.model.backup.SubscribeEditLogRequest;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 订阅NameNode推送的Editslog
+ *
+ * <pre>
+ * 从当前回放到的txid订阅一次，之后NameNode在editlog刷盘之后主动推送：
+ *
+ *  1. 网络线程收到推送之后放入队列，由回放线程按顺序回放，每回放完一批往NameNode确认已经回放的txid。
+ *  2. NameNode保证没有确认的editlog不超过订阅时指定的窗口，所以队列中的editlog也不会超过窗口。
+ *  3. 断开连接之后订阅失效，{@link EditsLogFetcher} 恢复拉取，并且定时尝试重新订阅。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+@Slf4j
+public class EditsLogSubscriber {
+
+    private final NetClient netClient;
+    private final InMemoryNameSystem nameSystem;
+    private final int window;
+    private final BlockingQueue<EditLogPush> pushQueue = new LinkedBlockingQueue<>();
+    private final DefaultThread applyThread;
+    private volatile boolean subscribed = false;
+    private volatile boolean running = true;
+
+    public EditsLogSubscriber(NetClient netClient, InMemoryNameSystem nameSystem, int window) {
+        this.netClient = netClient;
+        this.nameSystem = nameSystem;
+        this.window = window;
+        this.applyThread = new DefaultThread("EditsLog-Subscriber", this::applyLoop, true);
+        this.applyThread.start();
+    }
+
+    /**
+     * 从当前回放到的txid订阅，会阻塞等待NameNode的响应，不能在网络线程中调用
+     */
+    public void subscribe() throws InterruptedException, RequestTimeoutException {
+        long txId = nameSystem.getMaxTxId();
+        SubscribeEditLogRequest request = SubscribeEditLogRequest.newBuilder()
+                .setTxId(txId)
+                .setWindow(window)
+                .build();
+        NettyPacket req = NettyPacket.buildPacket(request.toByteArray(), PacketType.SUBSCRIBE_EDIT_LOG);
+        NettyPacket resp = netClient.sendSync(req);
+        if (resp.isError()) {
+            log.warn("订阅EditLog推送失败：[error={}]", resp.getError());
+            return;
+        }
+        subscribed = true;
+        log.info("订阅EditLog推送：[txId={}, window={}]", txId, window);
+    }
+
+    public boolean isSubscribed() {
+        return subscribed;
+    }
+
+    /**
+     * 收到NameNode推送的editlog，在网络线程中调用，不能阻塞
+     *
+     * @param request 推送的网络包
+     */
+    public void onPush(NettyPacket request) throws InvalidProtocolBufferException {
+        pushQueue.offer(EditLogPush.parseFrom(request.getBody()));
+    }
+
+    /**
+     * 和NameNode断开连接，订阅失效
+     */
+    public void onDisconnected() {
+        if (subscribed) {
+            subscribed = false;
+            log.info("和NameNode断开连接，EditLog订阅失效.");
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        applyThread.interrupt();
+    }
+
+    private void applyLoop() {
+        while (running) {
+            EditLogPush push;
+            try {
+                push = pushQueue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                nameSystem.applyEditLogs(push.getEditLogsList());
+                long maxTxId = nameSystem.getMaxTxId();
+                Prometheus.hit("backupnode_editlog_apply_qps", "BackupNode回放推送的EditLog的QPS", push.getEditLogsCount());
+                Prometheus.gauge("backupnode_editlog_lag_txid", "BackupNode落后NameNode的EditLog数量", "type", "txId",
+                        Math.max(0, push.getSyncTxId() - maxTxId));
+                if (subscribed && netClient.isConnected()) {
+                    EditLogPushAck ack = EditLogPushAck.newBuilder()
+                            .setTxId(maxTxId)
+                            .build();
+                    netClient.send(NettyPacket.buildPacket(ack.toByteArray(), PacketType.EDIT_LOG_PUSH_ACK));
+                }
+            } catch (InterruptedException e) {
+                // shutdown
+            } catch (Exception e) {
+                log.error("回放推送的EditLog出现异常：", e);
+            }
+        }
+    }
+}
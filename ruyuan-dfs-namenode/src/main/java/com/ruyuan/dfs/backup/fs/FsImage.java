@@ -1,12 +1,15 @@
 package com.ruyuan.dfs.backup.fs;
 
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import com.google.protobuf.InvalidProtocolBufferException;
-import com.ruyuan.dfs.common.utils.ByteUtil;
 import com.ruyuan.dfs.common.utils.FileUtil;
 import com.ruyuan.dfs.model.backup.INode;
+import com.ruyuan.dfs.namenode.fs.Node;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.time.StopWatch;
 
@@ -17,14 +20,63 @@ import java.nio.channels.FileChannel;
 /**
  * 元数据内存影像
  *
+ * <pre>
+ * 版本1：[4位整个文件的长度][8位maxTxId][INode]，整棵目录树序列化成一个INode，文件不能超过2GB
+ *
+ * 版本2：分段格式，写入和读取都是流式的，不需要把整个文件放到内存中
+ *
+ *      文件头：[4位MAGIC][4位版本号][8位maxTxId]
+ *      分段：  [4位长度][4位CRC32C][INode]，每个分段是一个目录和它的一批孩子节点，孩子节点不包含孙子节点，
+ *             INode的path是目录的全路径，根目录的全路径是空字符串。目录按照先序遍历的顺序写入，
+ *             父目录总是在子目录之前，孩子很多的目录会拆分成多个分段。
+ *      结束：  [4位-1]
+ *      索引：  N * [8位分段的位置][8位从这个位置开始的分段数量]，每隔 INDEX_INTERVAL 字节记录一个分段的位置
+ *      文件尾：[8位索引的位置][4位索引的数量][8位分段数量][8位节点数量][4位CRC32C][4位MAGIC]，CRC覆盖索引和文件尾
+ *
+ * 版本3：增量FsImage，在版本2的基础上文件头多了8位baseTxId，表示基于哪个FsImage生成的
+ *
+ *      文件头：[4位MAGIC][4位版本号][8位maxTxId][8位baseTxId]
+ *      分段：  只包含上次checkpoint之后修改过的目录，每个目录包含它所有的孩子节点，加载的时候替换掉原来的孩子节点集合。
+ *             目录按照全路径排序写入，父目录总是在子目录之前。
+ *
+ *      增量FsImage不能单独加载，需要通过 {@link FsImageChain} 合并到完整的FsImage上
+ *
+ * 具体的读写参考 {@link FsImageWriter} 和 {@link FsImageReader}
+ * </pre>
+ *
  * @author Sun Dasheng
  */
 @Slf4j
 @Data
 @AllArgsConstructor
 @NoArgsConstructor
+@ToString(exclude = "root")
 public class FsImage {
 
+    public static final int MAGIC = 0x52465349;
+    public static final int LEGACY_LAYOUT_VERSION = 1;
+    public static final int LAYOUT_VERSION = 2;
+    public static final int DELTA_LAYOUT_VERSION = 3;
+    public static final int HEADER_SIZE = 16;
+    public static final int DELTA_HEADER_SIZE = 24;
+    public static final int SECTION_HEADER_SIZE = 8;
+    public static final int END_MARK = -1;
+    public static final int INDEX_ENTRY_SIZE = 16;
+    public static final int TRAILER_SIZE = 36;
+    /**
+     * 每个分段最多包含多少个孩子节点
+     */
+    public static final int SECTION_MAX_CHILDREN = 1024;
+    /**
+     * 每隔多少字节记录一个索引
+     */
+    public static final long INDEX_INTERVAL = 4 * 1024 * 1024;
+    /**
+     * 单个分段的最大长度，超过这个长度认为数据已经损坏
+     */
+    public static final int MAX_SECTION_SIZE = 64 * 1024 * 1024;
+
+    private static final HashFunction CRC32C = Hashing.crc32c();
     private static final int LENGTH_OF_FILE_LENGTH_FIELD = 4;
     private static final int LENGTH_OF_MAX_TX_ID_FIELD = 8;
 
@@ -34,77 +86,86 @@ public class FsImage {
     private long maxTxId;
 
     /**
-     * 内容
+     * 内存目录树的根节点
      */
-    private INode iNode;
+    private Node root;
 
     /**
-     * 4位整个文件的长度 + 8位maxId + 文件内容
+     * 解析FsImage文件
      *
-     * @return 二进制数组
+     * @param channel 文件channel
+     * @param path    文件绝对路径
+     * @param length  文件长度
+     * @return 如果合法返回 FsImage，不合法返回null
+     * @throws IOException IO异常，文件不存在
      */
-    public byte[] toByteArray() {
-        byte[] body = iNode.toByteArray();
-        // 文件长度包括 4位文件长度 + 8位txId + 内容长度
-        int fileLength = LENGTH_OF_FILE_LENGTH_FIELD + LENGTH_OF_MAX_TX_ID_FIELD + body.length;
-        byte[] ret = new byte[fileLength];
-        ByteUtil.setInt(ret, 0, fileLength);
-        ByteUtil.setLong(ret, LENGTH_OF_FILE_LENGTH_FIELD, maxTxId);
-        System.arraycopy(body, 0, ret, LENGTH_OF_FILE_LENGTH_FIELD + LENGTH_OF_MAX_TX_ID_FIELD, body.length);
-        return ret;
+    public static FsImage parse(FileChannel channel, String path, long length) throws IOException {
+        return parse(channel, path, length, 1);
     }
 
-
     /**
      * 解析FsImage文件
      *
      * @param channel 文件channel
      * @param path    文件绝对路径
      * @param length  文件长度
+     * @param threads 并行加载的线程数量，只对版本2的格式生效
      * @return 如果合法返回 FsImage，不合法返回null
      * @throws IOException IO异常，文件不存在
      */
-    public static FsImage parse(FileChannel channel, String path, int length) throws IOException {
+    public static FsImage parse(FileChannel channel, String path, long length, int threads) throws IOException {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        FsImage fsImage;
+        int version = readLayoutVersion(channel);
+        if (version == LAYOUT_VERSION) {
+            FsImageReader reader = FsImageReader.open(channel, path, length);
+            fsImage = reader == null ? null : reader.read(threads);
+        } else if (version == LEGACY_LAYOUT_VERSION) {
+            fsImage = parseLegacy(channel, path, length);
+        } else if (version == DELTA_LAYOUT_VERSION) {
+            log.warn("增量FsImage不能单独加载: [file={}]", path);
+            return null;
+        } else {
+            log.warn("不支持的FsImage格式版本: [file={}, version={}]", path, version);
+            return null;
+        }
+        if (fsImage == null) {
+            return null;
+        }
+        stopWatch.stop();
+        log.info("加载FSImage: [file={}, size={}, maxTxId={}, cost={} s]",
+                path, FileUtil.formatSize(length),
+                fsImage.getMaxTxId(), stopWatch.getTime() / 1000.0D);
+        return fsImage;
+    }
+
+    private static FsImage parseLegacy(FileChannel channel, String path, long length) throws IOException {
         ByteBuffer buffer = ByteBuffer.allocate(LENGTH_OF_FILE_LENGTH_FIELD + LENGTH_OF_MAX_TX_ID_FIELD);
-        channel.read(buffer);
+        channel.read(buffer, 0);
         buffer.flip();
-        if (buffer.remaining() < 4) {
+        if (buffer.remaining() < LENGTH_OF_FILE_LENGTH_FIELD + LENGTH_OF_MAX_TX_ID_FIELD
+                || buffer.getInt() != length) {
             log.warn("FsImage文件不完整: [file={}]", path);
             return null;
         }
-        int fileLength = buffer.getInt();
-        if (fileLength != length) {
-            log.warn("FsImage文件不完整: [file={}]", path);
+        long maxTxId = buffer.getLong();
+        int bodyLength = (int) length - LENGTH_OF_FILE_LENGTH_FIELD - LENGTH_OF_MAX_TX_ID_FIELD;
+        buffer = ByteBuffer.allocate(bodyLength);
+        long position = LENGTH_OF_FILE_LENGTH_FIELD + LENGTH_OF_MAX_TX_ID_FIELD;
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+            // read until full
+        }
+        INode iNode;
+        try {
+            iNode = INode.parseFrom(buffer.array());
+        } catch (InvalidProtocolBufferException e) {
+            log.error("Parse FsImage failed.", e);
             return null;
-        } else {
-            StopWatch stopWatch = new StopWatch();
-            stopWatch.start();
-            long maxTxId = buffer.getLong();
-            int bodyLength = fileLength - LENGTH_OF_FILE_LENGTH_FIELD - LENGTH_OF_MAX_TX_ID_FIELD;
-            buffer = ByteBuffer.allocate(bodyLength);
-            channel.read(buffer);
-            buffer.flip();
-            byte[] body = new byte[bodyLength];
-            buffer.get(body);
-            INode iNode;
-            try {
-                iNode = INode.parseFrom(body);
-            } catch (InvalidProtocolBufferException e) {
-                log.error("Parse EditLog failed.", e);
-                return null;
-            }
-
-            FsImage fsImage = new FsImage(maxTxId, iNode);
-            stopWatch.stop();
-            log.info("加载FSImage: [file={}, size={}, maxTxId={}, cost={} s]",
-                    path, FileUtil.formatSize(length),
-                    fsImage.getMaxTxId(), stopWatch.getTime() / 1000.0D);
-            stopWatch.reset();
-            return fsImage;
         }
+        return new FsImage(maxTxId, Node.parseINode(iNode, ""));
     }
 
-
     /**
      * 校验FSImage是否合法
      *
@@ -114,21 +175,40 @@ public class FsImage {
      * @return 如果合法返回MaxTxId, 如果不合法返回-1
      * @throws IOException 文件不存在
      */
-    public static long validate(FileChannel channel, String path, int length) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(12);
-        channel.read(buffer);
-        buffer.flip();
-        if (buffer.remaining() < LENGTH_OF_FILE_LENGTH_FIELD) {
-            log.warn("FsImage文件不完整: [file={}]", path);
+    public static long validate(FileChannel channel, String path, long length) throws IOException {
+        int version = readLayoutVersion(channel);
+        if (version == LAYOUT_VERSION || version == DELTA_LAYOUT_VERSION) {
+            FsImageReader reader = FsImageReader.open(channel, path, length);
+            return reader == null ? -1 : reader.getMaxTxId();
+        } else if (version != LEGACY_LAYOUT_VERSION) {
+            log.warn("不支持的FsImage格式版本: [file={}, version={}]", path, version);
             return -1;
         }
-        int fileLength = buffer.getInt();
-        if (fileLength != length) {
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH_OF_FILE_LENGTH_FIELD + LENGTH_OF_MAX_TX_ID_FIELD);
+        channel.read(buffer, 0);
+        buffer.flip();
+        if (buffer.remaining() < LENGTH_OF_FILE_LENGTH_FIELD + LENGTH_OF_MAX_TX_ID_FIELD
+                || buffer.getInt() != length) {
             log.warn("FsImage文件不完整: [file={}]", path);
             return -1;
-        } else {
-            return buffer.getLong();
         }
+        return buffer.getLong();
+    }
+
+    public static int crc32c(byte[] data, int offset, int length) {
+        return CRC32C.hashBytes(data, offset, length).asInt();
     }
 
+    /**
+     * 读取文件格式的版本号，版本1没有文件头
+     */
+    static int readLayoutVersion(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        channel.read(buffer, 0);
+        buffer.flip();
+        if (buffer.remaining() == 8 && buffer.getInt() == MAGIC) {
+            return buffer.getInt();
+        }
+        return LEGACY_LAYOUT_VERSION;
+    }
 }
@@ -0,0 +1,183 @@
+package com.ruyuan.dfs.backup.fs;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 当前生效的FsImage文件链
+ *
+ * <pre>
+ * 由一个完整的FsImage和之后若干个增量FsImage组成，每个增量FsImage的baseTxId等于前一个文件的maxTxId：
+ *
+ *    fsimage-1624846255954  完整    maxTxId=100
+ *    fsimage-1624846265954  增量    baseTxId=100 maxTxId=150
+ *    fsimage-1624846275954  增量    baseTxId=150 maxTxId=200
+ *
+ * 扫描的时候按照时间戳倒序找到最新的合法的完整FsImage，然后按照时间戳顺序把首尾相接的增量FsImage加到链上，
+ * 遇到不合法或者接不上的增量FsImage就停止。不在链上的文件都是可以删除的。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+@Slf4j
+public class FsImageChain {
+
+    private final List<String> files = new ArrayList<>();
+    private final List<String> obsoleteFiles = new ArrayList<>();
+    private long maxTxId = -1;
+
+    private FsImageChain() {
+    }
+
+    /**
+     * 扫描FsImage文件
+     *
+     * @param timeFsImageMap 时间戳和文件的映射
+     * @return FsImage文件链
+     * @throws IOException IO异常
+     */
+    public static FsImageChain scan(Map<Long, String> timeFsImageMap) throws IOException {
+        FsImageChain chain = new FsImageChain();
+        List<Long> sortedList = new ArrayList<>(timeFsImageMap.keySet());
+        sortedList.sort(Collections.reverseOrder());
+        List<Summary> deltas = new ArrayList<>();
+        for (Long time : sortedList) {
+            String path = timeFsImageMap.get(time);
+            if (chain.maxTxId >= 0) {
+                chain.obsoleteFiles.add(path);
+                continue;
+            }
+            Summary summary = summarize(path);
+            if (summary == null) {
+                chain.obsoleteFiles.add(path);
+            } else if (summary.baseTxId >= 0) {
+                deltas.add(summary);
+            } else {
+                chain.files.add(path);
+                chain.maxTxId = summary.maxTxId;
+            }
+        }
+        Collections.reverse(deltas);
+        for (Summary delta : deltas) {
+            if (chain.maxTxId >= 0 && delta.baseTxId == chain.maxTxId) {
+                chain.files.add(delta.path);
+                chain.maxTxId = delta.maxTxId;
+            } else {
+                chain.obsoleteFiles.add(delta.path);
+            }
+        }
+        return chain;
+    }
+
+    private static Summary summarize(String path) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r"); FileInputStream fis =
+                new FileInputStream(raf.getFD()); FileChannel channel = fis.getChannel()) {
+            if (FsImage.readLayoutVersion(channel) == FsImage.DELTA_LAYOUT_VERSION) {
+                FsImageReader reader = FsImageReader.open(channel, path, raf.length());
+                return reader == null ? null : new Summary(path, reader.getBaseTxId(), reader.getMaxTxId());
+            }
+            long maxTxId = FsImage.validate(channel, path, raf.length());
+            return maxTxId < 0 ? null : new Summary(path, -1, maxTxId);
+        }
+    }
+
+    /**
+     * 加载完整的FsImage，然后依次合并增量FsImage
+     *
+     * @param threads 并行加载完整FsImage的线程数量
+     * @return 合并之后的FsImage，没有合法的完整FsImage返回null
+     * @throws IOException IO异常
+     */
+    public FsImage load(int threads) throws IOException {
+        int limit = files.size();
+        while (limit > 0) {
+            FsImage fsImage = parse(files.get(0), threads);
+            if (fsImage == null) {
+                return null;
+            }
+            int failed = applyDeltas(fsImage, limit);
+            if (failed < 0) {
+                return fsImage;
+            }
+            // 合并到一半失败，目录树已经被修改了一部分，重新加载，只合并之前的增量
+            limit = failed;
+        }
+        return null;
+    }
+
+    /**
+     * @return 合并失败的增量的位置，全部成功返回-1
+     */
+    private int applyDeltas(FsImage fsImage, int limit) throws IOException {
+        for (int i = 1; i < limit; i++) {
+            String path = files.get(i);
+            FsImageDelta delta;
+            try (RandomAccessFile raf = new RandomAccessFile(path, "r"); FileInputStream fis =
+                    new FileInputStream(raf.getFD()); FileChannel channel = fis.getChannel()) {
+                FsImageReader reader = FsImageReader.open(channel, path, raf.length());
+                delta = reader == null ? null : reader.readDelta();
+            }
+            if (delta == null || delta.getBaseTxId() != fsImage.getMaxTxId()) {
+                // 还没有修改目录树，直接使用已经合并的结果
+                log.error("增量FsImage不合法，忽略之后的增量: [file={}]", path);
+                return -1;
+            }
+            if (!delta.applyTo(fsImage.getRoot())) {
+                log.error("合并增量FsImage失败: [file={}]", path);
+                return i;
+            }
+            fsImage.setMaxTxId(delta.getMaxTxId());
+            log.info("合并增量FsImage: [file={}, baseTxId={}, maxTxId={}]", path, delta.getBaseTxId(),
+                    delta.getMaxTxId());
+        }
+        return -1;
+    }
+
+    private FsImage parse(String path, int threads) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r"); FileInputStream fis =
+                new FileInputStream(raf.getFD()); FileChannel channel = fis.getChannel()) {
+            return FsImage.parse(channel, path, raf.length(), threads);
+        }
+    }
+
+    /**
+     * 链上的文件，第一个是完整的FsImage
+     */
+    public List<String> getFiles() {
+        return files;
+    }
+
+    /**
+     * 不在链上，可以删除的文件
+     */
+    public List<String> getObsoleteFiles() {
+        return obsoleteFiles;
+    }
+
+    /**
+     * 整个链对应的最大txId，没有合法的完整FsImage返回-1
+     */
+    public long getMaxTxId() {
+        return maxTxId;
+    }
+
+    private static class Summary {
+        private final String path;
+        private final long baseTxId;
+        private final long maxTxId;
+
+        Summary(String path, long baseTxId, long maxTxId) {
+            this.path = path;
+            this.baseTxId = baseTxId;
+            this.maxTxId = maxTxId;
+        }
+    }
+}
@@ -2,12 +2,9 @@ package com.ruyuan.dfs.backup.fs;
 
 import com.ruyuan.dfs.backup.config.BackupNodeConfig;
 import com.ruyuan.dfs.common.network.file.FileTransportClient;
-import com.ruyuan.dfs.common.utils.FileUtil;
 import com.ruyuan.dfs.namenode.fs.FsImageClearTask;
 import lombok.extern.slf4j.Slf4j;
 
-import java.nio.ByteBuffer;
-
 /**
  * FsImage 检查点
  *
@@ -26,6 +23,12 @@ import java.nio.ByteBuffer;
  *
  *  3. NameNode基于第2步得到的FsImage文件，读取其中的TxId，然后删除比txId小的EditLogs文件
  *
+ *  增量checkpoint：
+ *
+ *  1. 两次完整checkpoint之间，最多做 checkpointDeltaMax 次增量checkpoint，增量FsImage只包含上次checkpoint之后修改过的目录。
+ *  2. 完整的FsImage和之后首尾相接的增量FsImage组成一个 {@link FsImageChain}，加载和清理的时候都以整个链为单位。
+ *  3. 启动之后的第一次checkpoint，或者上一次checkpoint保存、上传失败，都会做完整checkpoint，保证NameNode上的链是连续的。
+ *
  * </pre>
  *
  * @author Sun Dasheng
@@ -39,6 +42,14 @@ public class FsImageCheckPointer implements Runnable {
     private FileTransportClient fileTransportClient;
     private long lastCheckpointTxId;
     private FsImageClearTask fsImageClearTask;
+    /**
+     * 上一次完整checkpoint之后做了多少次增量checkpoint
+     */
+    private int deltaCount;
+    /**
+     * 下一次是否必须做完整checkpoint
+     */
+    private boolean forceFull = true;
 
     public FsImageCheckPointer(NameNodeClient namenodeClient, InMemoryNameSystem nameSystem, BackupNodeConfig backupnodeConfig) {
         this.nameSystem = nameSystem;
@@ -61,17 +72,20 @@ public class FsImageCheckPointer implements Runnable {
                 log.info("EditLog和上次没有变化，不进行checkpoint: [txId={}]", lastCheckpointTxId);
                 return;
             }
-            FsImage fsImage = nameSystem.getFsImage();
-            lastCheckpointTxId = fsImage.getMaxTxId();
             String fsImageFile = backupNodeConfig.getFsImageFile(String.valueOf(System.currentTimeMillis()));
 
-            log.info("开始执行checkpoint操作: [maxTxId={}]", fsImage.getMaxTxId());
+            log.info("开始执行checkpoint操作: [maxTxId={}]", nameSystem.getMaxTxId());
+
+            boolean full = forceFull || deltaCount >= backupNodeConfig.getCheckpointDeltaMax();
+            // 保存或者上传失败之后链可能断了，下一次需要做完整checkpoint
+            forceFull = true;
 
             // 写入FsImage文件
-            doCheckpoint(fsImage, fsImageFile);
+            lastCheckpointTxId = full ? doCheckpoint(fsImageFile) : doDeltaCheckpoint(fsImageFile);
+            deltaCount = full ? 0 : deltaCount + 1;
 
             // 上传FsImage给NameNode
-            uploadFsImage(fsImageFile);
+            forceFull = !uploadFsImage(fsImageFile);
 
             // 删除旧的FSImage
             namenodeClient.getDefaultScheduler().scheduleOnce("删除FSImage任务", fsImageClearTask, 0);
@@ -83,22 +97,33 @@ public class FsImageCheckPointer implements Runnable {
     /**
      * 上传FsImage到NameNode
      */
-    private void uploadFsImage(String path) {
+    private boolean uploadFsImage(String path) {
         try {
             log.info("开始上传fsImage文件：[file={}]", path);
             fileTransportClient.sendFile(path);
             log.info("结束上传fsImage文件：[file={}]", path);
+            return true;
         } catch (Exception e) {
             log.info("上传FsImage异常：", e);
+            return false;
         }
     }
 
     /**
      * 写入fsImage文件
      */
-    private void doCheckpoint(FsImage fsImage, String path) throws Exception {
-        ByteBuffer buffer = ByteBuffer.wrap(fsImage.toByteArray());
-        FileUtil.saveFile(path, true, buffer);
+    private long doCheckpoint(String path) throws Exception {
+        long maxTxId = nameSystem.saveFsImage(path);
         log.info("保存FsImage文件：[file={}]", path);
+        return maxTxId;
+    }
+
+    /**
+     * 写入增量fsImage文件
+     */
+    private long doDeltaCheckpoint(String path) throws Exception {
+        long maxTxId = nameSystem.saveDeltaFsImage(path, lastCheckpointTxId);
+        log.info("保存增量FsImage文件：[file={}, baseTxId={}, maxTxId={}]", path, lastCheckpointTxId, maxTxId);
+        return maxTxId;
     }
 }
@@ -0,0 +1,122 @@
+package com.ruyuan.dfs.backup.fs;
+
+import com.ruyuan.dfs.model.backup.INode;
+import com.ruyuan.dfs.namenode.fs.Node;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 增量FsImage
+ *
+ * <pre>
+ * 每个分段是一个修改过的目录和它的一批孩子节点，同一个目录的多个分段是连续的，合起来就是这个目录完整的孩子节点集合。
+ * 合并的时候按照分段的顺序处理每个目录：
+ *
+ *  1. 名称和类型都没有变化的孩子节点保留原来的节点，只替换属性，子目录下的节点不受影响。
+ *  2. 新出现的孩子节点直接创建，不在分段中的孩子节点删除。
+ *
+ * 目录按照全路径排序，父目录先合并，所以新创建的目录在合并它自己的分段之前一定已经存在了。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+@Slf4j
+public class FsImageDelta {
+
+    private final long baseTxId;
+    private final long maxTxId;
+    private final List<INode> sections;
+
+    public FsImageDelta(long baseTxId, long maxTxId, List<INode> sections) {
+        this.baseTxId = baseTxId;
+        this.maxTxId = maxTxId;
+        this.sections = sections;
+    }
+
+    public long getBaseTxId() {
+        return baseTxId;
+    }
+
+    public long getMaxTxId() {
+        return maxTxId;
+    }
+
+    /**
+     * 把增量合并到目录树上
+     *
+     * @param root 目录树的根节点
+     * @return 找不到分段对应的目录返回false，这时候目录树可能已经被修改了一部分
+     */
+    public boolean applyTo(Node root) {
+        String directoryPath = null;
+        Node directory = null;
+        Set<String> listed = new HashSet<>();
+        for (INode section : sections) {
+            if (!section.getPath().equals(directoryPath)) {
+                if (directory != null) {
+                    removeUnlisted(directory, listed);
+                }
+                directoryPath = section.getPath();
+                directory = findDirectory(root, directoryPath);
+                if (directory == null) {
+                    log.error("合并增量FsImage失败，找不到分段对应的目录: [directory={}]", directoryPath);
+                    return false;
+                }
+                if (directory == root) {
+                    replaceAttr(root, section);
+                }
+                listed.clear();
+            }
+            for (INode child : section.getChildrenList()) {
+                Node node = directory.getChildren(child.getPath());
+                if (node != null && node.getType() == child.getType()) {
+                    replaceAttr(node, child);
+                } else {
+                    node = new Node(child.getPath(), child.getType());
+                    node.putAllAttr(child.getAttrMap());
+                    directory.addChildren(node);
+                }
+                listed.add(child.getPath());
+            }
+        }
+        if (directory != null) {
+            removeUnlisted(directory, listed);
+        }
+        return true;
+    }
+
+    private void replaceAttr(Node node, INode iNode) {
+        node.getAttr().clear();
+        node.putAllAttr(iNode.getAttrMap());
+    }
+
+    private void removeUnlisted(Node directory, Set<String> listed) {
+        List<String> removed = new ArrayList<>();
+        for (String name : directory.getChildren().keySet()) {
+            if (!listed.contains(name)) {
+                removed.add(name);
+            }
+        }
+        for (String name : removed) {
+            directory.removeChildren(name).setParent(null);
+        }
+    }
+
+    private Node findDirectory(Node root, String fullPath) {
+        if (fullPath.isEmpty()) {
+            return root;
+        }
+        Node current = root;
+        for (String name : fullPath.substring(1).split("/")) {
+            current = current.getChildren(name);
+            if (current == null || current.isFile()) {
+                return null;
+            }
+        }
+        return current;
+    }
+}
@@ -0,0 +1,467 @@
+package com.ruyuan.dfs.backup.fs;
+
+import com.ruyuan.dfs.common.enums.NodeType;
+import com.ruyuan.dfs.common.utils.NamedThreadFactory;
+import com.ruyuan.dfs.common.utils.PrettyCodes;
+import com.ruyuan.dfs.model.backup.INode;
+import com.ruyuan.dfs.namenode.fs.Node;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.time.StopWatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <pre>
+ * 流式读取FsImage文件
+ *
+ * 打开文件的时候先校验文件头、索引和文件尾，然后通过固定大小的缓冲区逐个读取分段，
+ * 每读取一个分段就挂到对应的目录下，内存中只有当前分段的数据。
+ *
+ * 并行加载：按照索引把分段切分成多个区间，每个线程负责一个区间，解析分段并在区间内部把子目录挂到父目录下，
+ * 组装出若干棵独立的子树。父目录不在当前区间内的分段，等所有线程结束之后再按照区间的顺序挂到目录树上，
+ * 因为分段是先序写入的，这时候父目录一定已经存在了。
+ *
+ * 增量FsImage只能通过 {@link #readDelta()} 读取，分段不会组装成目录树。
+ *
+ * 文件格式参考 {@link FsImage}
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+@Slf4j
+public class FsImageReader {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final String path;
+    private int layoutVersion;
+    private int headerSize;
+    private long maxTxId;
+    private long baseTxId = -1;
+    private long indexOffset;
+    private long[] indexPositions;
+    private long[] indexSections;
+    private long sectionCount;
+    private long nodeCount;
+
+    private FsImageReader(FileChannel channel, String path) {
+        this.channel = channel;
+        this.path = path;
+    }
+
+    /**
+     * 打开FsImage文件，校验文件头、索引和文件尾
+     *
+     * @param channel 文件channel
+     * @param path    文件路径
+     * @param length  文件长度
+     * @return 文件不完整或者校验失败返回null
+     * @throws IOException IO异常
+     */
+    public static FsImageReader open(FileChannel channel, String path, long length) throws IOException {
+        FsImageReader reader = new FsImageReader(channel, path);
+        return reader.readTrailer(length) ? reader : null;
+    }
+
+    private boolean readTrailer(long length) throws IOException {
+        if (length < FsImage.HEADER_SIZE + 4 + FsImage.TRAILER_SIZE) {
+            log.warn("FsImage文件不完整: [file={}]", path);
+            return false;
+        }
+        ByteBuffer header = readFully(0, FsImage.HEADER_SIZE);
+        header.getInt();
+        layoutVersion = header.getInt();
+        maxTxId = header.getLong();
+        headerSize = FsImage.HEADER_SIZE;
+        if (layoutVersion == FsImage.DELTA_LAYOUT_VERSION) {
+            headerSize = FsImage.DELTA_HEADER_SIZE;
+            if (length < headerSize + 4 + FsImage.TRAILER_SIZE) {
+                log.warn("FsImage文件不完整: [file={}]", path);
+                return false;
+            }
+            baseTxId = readFully(FsImage.HEADER_SIZE, 8).getLong();
+        }
+        ByteBuffer trailer = readFully(length - FsImage.TRAILER_SIZE, FsImage.TRAILER_SIZE);
+        indexOffset = trailer.getLong();
+        int indexCount = trailer.getInt();
+        sectionCount = trailer.getLong();
+        nodeCount = trailer.getLong();
+        int crc = trailer.getInt();
+        int magic = trailer.getInt();
+        if (magic != FsImage.MAGIC || indexCount < 0 || indexOffset < headerSize + 4
+                || indexOffset + (long) indexCount * FsImage.INDEX_ENTRY_SIZE + FsImage.TRAILER_SIZE != length) {
+            log.warn("FsImage文件不完整: [file={}]", path);
+            return false;
+        }
+        int tailLength = indexCount * FsImage.INDEX_ENTRY_SIZE + FsImage.TRAILER_SIZE;
+        ByteBuffer tail = readFully(indexOffset, tailLength);
+        if (crc != FsImage.crc32c(tail.array(), 0, tailLength - 8)) {
+            log.warn("FsImage文件索引校验失败: [file={}]", path);
+            return false;
+        }
+        indexPositions = new long[indexCount];
+        indexSections = new long[indexCount];
+        for (int i = 0; i < indexCount; i++) {
+            indexPositions[i] = tail.getLong();
+            indexSections[i] = tail.getLong();
+        }
+        return true;
+    }
+
+    /**
+     * 读取所有的分段，还原出目录树
+     *
+     * @param threads 并行加载的线程数量
+     * @return FsImage，数据损坏返回null
+     * @throws IOException IO异常
+     */
+    public FsImage read(int threads) throws IOException {
+        if (isDelta()) {
+            log.warn("增量FsImage不能单独加载: [file={}]", path);
+            return null;
+        }
+        if (threads <= 1 || indexPositions.length <= 1) {
+            return read();
+        }
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        int chunkCount = indexPositions.length;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, chunkCount),
+                new NamedThreadFactory("FsImage-Loader-"));
+        List<Future<Chunk>> futures = new ArrayList<>(chunkCount);
+        try {
+            for (int i = 0; i < chunkCount; i++) {
+                long start = indexPositions[i];
+                long end = i + 1 < chunkCount ? indexPositions[i + 1] : indexOffset - 4;
+                futures.add(executor.submit(() -> readChunk(start, end)));
+            }
+            List<Chunk> chunks = new ArrayList<>(chunkCount);
+            for (Future<Chunk> future : futures) {
+                chunks.add(future.get());
+            }
+            long decodeTime = stopWatch.getTime();
+            Node root = new Node("/", NodeType.DIRECTORY.getValue());
+            long sections = 0;
+            long nodes = 0;
+            for (int i = 0; i < chunkCount; i++) {
+                Chunk chunk = chunks.get(i);
+                if (chunk.corrupt || chunk.sections != indexSections[i]) {
+                    log.error("FsImage文件损坏: [file={}, chunk={}, sections={}, expectSections={}]",
+                            path, i, chunk.sections, indexSections[i]);
+                    return null;
+                }
+                if (chunk.rootSection != null) {
+                    root.setType(chunk.rootSection.getType());
+                    root.putAllAttr(chunk.rootSection.getAttrMap());
+                }
+                for (int j = 0; j < chunk.pendingPaths.size(); j++) {
+                    Node directory = findDirectory(root, chunk.pendingPaths.get(j));
+                    if (directory == null) {
+                        log.error("FsImage文件损坏，找不到分段对应的目录: [file={}, directory={}]", path,
+                                chunk.pendingPaths.get(j));
+                        return null;
+                    }
+                    for (Node child : chunk.pendingChildren.get(j)) {
+                        directory.addChildren(child);
+                    }
+                }
+                sections += chunk.sections;
+                nodes += chunk.nodes;
+            }
+            if (sections != sectionCount || nodes != nodeCount) {
+                log.error("FsImage文件损坏: [file={}, sections={}, expectSections={}, nodes={}, expectNodes={}]",
+                        path, sections, sectionCount, nodes, nodeCount);
+                return null;
+            }
+            log.info("并行加载FsImage: [file={}, threads={}, chunks={}, decode={} ms, link={} ms]", path,
+                    Math.min(threads, chunkCount), chunkCount, decodeTime, stopWatch.getTime() - decodeTime);
+            return new FsImage(maxTxId, root);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("加载FsImage被中断", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("加载FsImage失败", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 解析一个区间内的分段，父目录在区间内的直接挂上去，否则留给加载线程处理
+     */
+    private Chunk readChunk(long start, long end) throws IOException {
+        Chunk chunk = new Chunk();
+        SectionReader sectionReader = new SectionReader(start, end);
+        Map<String, Node> directories = new HashMap<>(PrettyCodes.trimMapSize());
+        String directoryPath = null;
+        Node directory = null;
+        List<Node> pending = null;
+        INode section;
+        while ((section = sectionReader.next()) != null) {
+            String sectionPath = section.getPath();
+            if (sectionPath.isEmpty() && chunk.sections == 0 && start == headerSize) {
+                chunk.rootSection = section;
+            }
+            if (!sectionPath.equals(directoryPath)) {
+                directoryPath = sectionPath;
+                directory = directories.get(sectionPath);
+                if (directory == null) {
+                    pending = new ArrayList<>(section.getChildrenCount());
+                    chunk.pendingPaths.add(sectionPath);
+                    chunk.pendingChildren.add(pending);
+                }
+            }
+            for (INode child : section.getChildrenList()) {
+                Node node = new Node(child.getPath(), child.getType());
+                node.putAllAttr(child.getAttrMap());
+                if (directory != null) {
+                    directory.addChildren(node);
+                } else {
+                    pending.add(node);
+                }
+                if (!node.isFile()) {
+                    directories.put(sectionPath + "/" + child.getPath(), node);
+                }
+            }
+            chunk.nodes += section.getChildrenCount();
+            chunk.sections++;
+        }
+        chunk.corrupt = sectionReader.isCorrupt();
+        return chunk;
+    }
+
+    /**
+     * 读取所有的分段，还原出目录树
+     *
+     * @return FsImage，数据损坏返回null
+     * @throws IOException IO异常
+     */
+    public FsImage read() throws IOException {
+        if (isDelta()) {
+            log.warn("增量FsImage不能单独加载: [file={}]", path);
+            return null;
+        }
+        Node root = new Node("/", NodeType.DIRECTORY.getValue());
+        SectionReader sectionReader = new SectionReader(headerSize, indexOffset - 4);
+        Node directory = null;
+        String directoryPath = null;
+        long sections = 0;
+        long nodes = 0;
+        INode section;
+        while ((section = sectionReader.next()) != null) {
+            if (sections == 0) {
+                root.setType(section.getType());
+                root.putAllAttr(section.getAttrMap());
+            }
+            if (!section.getPath().equals(directoryPath)) {
+                directoryPath = section.getPath();
+                directory = findDirectory(root, directoryPath);
+                if (directory == null) {
+                    log.error("FsImage文件损坏，找不到分段对应的目录: [file={}, directory={}]", path, directoryPath);
+                    return null;
+                }
+            }
+            for (INode child : section.getChildrenList()) {
+                Node node = new Node(child.getPath(), child.getType());
+                node.putAllAttr(child.getAttrMap());
+                directory.addChildren(node);
+            }
+            nodes += section.getChildrenCount();
+            sections++;
+        }
+        if (sectionReader.isCorrupt() || sections != sectionCount || nodes != nodeCount) {
+            log.error("FsImage文件损坏: [file={}, sections={}, expectSections={}, nodes={}, expectNodes={}]",
+                    path, sections, sectionCount, nodes, nodeCount);
+            return null;
+        }
+        return new FsImage(maxTxId, root);
+    }
+
+    /**
+     * 读取增量FsImage的所有分段，增量FsImage通常比较小，全部读到内存之后再合并，避免合并到一半发现数据损坏
+     *
+     * @return 增量FsImage，数据损坏返回null
+     * @throws IOException IO异常
+     */
+    public FsImageDelta readDelta() throws IOException {
+        if (!isDelta()) {
+            log.warn("不是增量FsImage: [file={}]", path);
+            return null;
+        }
+        SectionReader sectionReader = new SectionReader(headerSize, indexOffset - 4);
+        List<INode> sections = new ArrayList<>();
+        long nodes = 0;
+        INode section;
+        while ((section = sectionReader.next()) != null) {
+            sections.add(section);
+            nodes += section.getChildrenCount();
+        }
+        if (sectionReader.isCorrupt() || sections.size() != sectionCount || nodes != nodeCount) {
+            log.error("FsImage文件损坏: [file={}, sections={}, expectSections={}, nodes={}, expectNodes={}]",
+                    path, sections.size(), sectionCount, nodes, nodeCount);
+            return null;
+        }
+        return new FsImageDelta(baseTxId, maxTxId, sections);
+    }
+
+    /**
+     * 根据全路径查找目录，父目录的分段总是在子目录之前，所以目录一定已经加载了
+     */
+    private Node findDirectory(Node root, String fullPath) {
+        if (fullPath.isEmpty()) {
+            return root;
+        }
+        Node current = root;
+        for (String name : fullPath.substring(1).split("/")) {
+            current = current.getChildren(name);
+            if (current == null || current.isFile()) {
+                return null;
+            }
+        }
+        return current;
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("FsImage文件不完整: " + path);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public long getMaxTxId() {
+        return maxTxId;
+    }
+
+    /**
+     * 是否是增量FsImage
+     */
+    public boolean isDelta() {
+        return layoutVersion == FsImage.DELTA_LAYOUT_VERSION;
+    }
+
+    /**
+     * 增量FsImage基于哪个txId生成，完整的FsImage返回-1
+     */
+    public long getBaseTxId() {
+        return baseTxId;
+    }
+
+    public long getSectionCount() {
+        return sectionCount;
+    }
+
+    public long getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * 一个区间的解析结果
+     */
+    private static class Chunk {
+        private INode rootSection;
+        private final List<String> pendingPaths = new ArrayList<>();
+        private final List<List<Node>> pendingChildren = new ArrayList<>();
+        private long sections;
+        private long nodes;
+        private boolean corrupt;
+    }
+
+    /**
+     * 从指定位置开始逐个读取分段
+     */
+    private class SectionReader {
+
+        private final long end;
+        private long readPosition;
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private boolean corrupt = false;
+
+        SectionReader(long start, long end) {
+            this.readPosition = start;
+            this.end = end;
+            buffer.flip();
+        }
+
+        /**
+         * 读取下一个分段
+         *
+         * @return 分段，读到结束位置或者数据损坏返回null
+         */
+        INode next() throws IOException {
+            ensure(FsImage.SECTION_HEADER_SIZE);
+            if (!buffer.hasRemaining()) {
+                return null;
+            }
+            if (buffer.remaining() < FsImage.SECTION_HEADER_SIZE) {
+                corrupt = true;
+                return null;
+            }
+            int length = buffer.getInt(buffer.position());
+            int crc = buffer.getInt(buffer.position() + 4);
+            if (length < 0 || length > FsImage.MAX_SECTION_SIZE) {
+                corrupt = true;
+                return null;
+            }
+            ensure(FsImage.SECTION_HEADER_SIZE + length);
+            if (buffer.remaining() < FsImage.SECTION_HEADER_SIZE + length) {
+                corrupt = true;
+                return null;
+            }
+            int offset = buffer.arrayOffset() + buffer.position() + FsImage.SECTION_HEADER_SIZE;
+            if (crc != FsImage.crc32c(buffer.array(), offset, length)) {
+                log.error("FsImage分段校验失败: [file={}]", path);
+                corrupt = true;
+                return null;
+            }
+            INode section = INode.parseFrom(ByteBuffer.wrap(buffer.array(), offset, length));
+            buffer.position(buffer.position() + FsImage.SECTION_HEADER_SIZE + length);
+            return section;
+        }
+
+        boolean isCorrupt() {
+            return corrupt;
+        }
+
+        private void ensure(int required) throws IOException {
+            if (buffer.remaining() >= required) {
+                return;
+            }
+            if (buffer.capacity() < required) {
+                ByteBuffer bigger = ByteBuffer.allocate(required);
+                bigger.put(buffer);
+                buffer = bigger;
+            } else {
+                buffer.compact();
+            }
+            while (buffer.position() < required && readPosition < end) {
+                if (buffer.remaining() > end - readPosition) {
+                    buffer.limit(buffer.position() + (int) (end - readPosition));
+                }
+                int read = channel.read(buffer, readPosition);
+                if (read < 0) {
+                    break;
+                }
+                readPosition += read;
+            }
+            buffer.flip();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.ruyuan.dfs.backup.fs;
+
+import com.ruyuan.dfs.common.utils.FileUtil;
+import com.ruyuan.dfs.model.backup.INode;
+import com.ruyuan.dfs.namenode.fs.NamespaceSnapshot;
+import com.ruyuan.dfs.namenode.fs.Node;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * <pre>
+ * 流式写入FsImage文件
+ *
+ * 按照先序遍历的顺序把目录树拆分成一个个分段，通过固定大小的缓冲区写入文件，
+ * 写入过程中只有当前分段和待写入的目录在内存中，不需要把整棵目录树序列化成一个INode。
+ * 基于 {@link NamespaceSnapshot} 写入的时候，每个节点都通过快照获取快照时间点的状态，写入过程中不需要持有锁。
+ *
+ * 文件格式参考 {@link FsImage}
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+@Slf4j
+public class FsImageWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final List<Long> indexPositions = new ArrayList<>();
+    private final List<Long> indexSections = new ArrayList<>();
+    /**
+     * 已经写入的数据长度，包括缓冲区中还没有写到文件的数据
+     */
+    private long position;
+    private long sectionCount;
+    private long nodeCount;
+
+    private FsImageWriter(String path, long maxTxId, long baseTxId) throws IOException {
+        FileUtil.mkdirParent(path);
+        this.raf = new RandomAccessFile(path, "rw");
+        this.channel = raf.getChannel();
+        this.raf.setLength(0);
+        buffer.putInt(FsImage.MAGIC);
+        if (baseTxId < 0) {
+            buffer.putInt(FsImage.LAYOUT_VERSION);
+            buffer.putLong(maxTxId);
+            position = FsImage.HEADER_SIZE;
+        } else {
+            buffer.putInt(FsImage.DELTA_LAYOUT_VERSION);
+            buffer.putLong(maxTxId);
+            buffer.putLong(baseTxId);
+            position = FsImage.DELTA_HEADER_SIZE;
+        }
+    }
+
+    /**
+     * 把目录树写入FsImage文件
+     *
+     * @param path    文件路径
+     * @param root    目录树的根节点
+     * @param maxTxId 目录树对应的最大txId
+     * @return 文件长度
+     * @throws IOException IO异常
+     */
+    public static long write(String path, Node root, long maxTxId) throws IOException {
+        return write(path, root, (node, withChildren) -> node, maxTxId);
+    }
+
+    /**
+     * 把目录树的快照写入FsImage文件
+     *
+     * @param path     文件路径
+     * @param snapshot 目录树的快照
+     * @param maxTxId  快照对应的最大txId
+     * @return 文件长度
+     * @throws IOException IO异常
+     */
+    public static long write(String path, NamespaceSnapshot snapshot, long maxTxId) throws IOException {
+        return write(path, snapshot.getRoot(), snapshot::view, maxTxId);
+    }
+
+    private static long write(String path, Node root, BiFunction<Node, Boolean, Node> view, long maxTxId)
+            throws IOException {
+        try (FsImageWriter writer = new FsImageWriter(path, maxTxId, -1)) {
+            writer.writeTree(root, view);
+            long length = writer.finish();
+            log.info("保存FsImage文件：[file={}, maxTxId={}, nodes={}, sections={}, size={}]", path, maxTxId,
+                    writer.nodeCount, writer.sectionCount, FileUtil.formatSize(length));
+            return length;
+        }
+    }
+
+    /**
+     * 把快照创建之前修改过的目录写入增量FsImage文件
+     *
+     * @param path     文件路径
+     * @param snapshot 目录树的快照，需要包含修改过的目录
+     * @param baseTxId 上一次checkpoint的txId
+     * @param maxTxId  快照对应的最大txId
+     * @return 文件长度
+     * @throws IOException IO异常
+     */
+    public static long writeDelta(String path, NamespaceSnapshot snapshot, long baseTxId, long maxTxId)
+            throws IOException {
+        try (FsImageWriter writer = new FsImageWriter(path, maxTxId, baseTxId)) {
+            for (Map.Entry<String, Node> entry : snapshot.getDirtyDirectories().entrySet()) {
+                String directoryPath = entry.getKey();
+                Node directory = snapshot.view(entry.getValue(), true);
+                writer.writeDirectory(directoryPath, directory, snapshot::view, null, null);
+            }
+            long length = writer.finish();
+            log.info("保存增量FsImage文件：[file={}, baseTxId={}, maxTxId={}, directories={}, nodes={}, size={}]",
+                    path, baseTxId, maxTxId, snapshot.getDirtyDirectories().size(), writer.nodeCount,
+                    FileUtil.formatSize(length));
+            return length;
+        }
+    }
+
+    /**
+     * @param root 根节点
+     * @param view 获取节点在快照时间点的状态，第二个参数表示是否需要孩子节点。
+     *             目录在父目录的分段中只读取属性，出栈的时候才读取孩子节点，栈中只保存目录树中的节点
+     */
+    private void writeTree(Node root, BiFunction<Node, Boolean, Node> view) throws IOException {
+        Deque<Node> directories = new ArrayDeque<>();
+        Deque<String> directoryPaths = new ArrayDeque<>();
+        directories.push(root);
+        directoryPaths.push("");
+        List<Node> subDirectories = new ArrayList<>();
+        List<String> subDirectoryNames = new ArrayList<>();
+        while (!directories.isEmpty()) {
+            Node directory = view.apply(directories.pop(), true);
+            String directoryPath = directoryPaths.pop();
+            if (directory.getChildren().isEmpty() && !directoryPath.isEmpty()) {
+                continue;
+            }
+            writeDirectory(directoryPath, directory, view, subDirectories, subDirectoryNames);
+            // 倒序入栈，保证子目录按照名称顺序写入
+            for (int i = subDirectories.size() - 1; i >= 0; i--) {
+                directories.push(subDirectories.get(i));
+                directoryPaths.push(directoryPath + "/" + subDirectoryNames.get(i));
+            }
+            subDirectories.clear();
+            subDirectoryNames.clear();
+        }
+    }
+
+    /**
+     * 把一个目录和它的孩子节点写成一个或多个分段，孩子节点为空的时候也会写一个空的分段
+     *
+     * @param directoryPath     目录的全路径
+     * @param directory         目录在快照时间点的状态
+     * @param view              获取孩子节点在快照时间点的状态
+     * @param subDirectories    不为空时收集子目录
+     * @param subDirectoryNames 子目录的名称
+     */
+    private void writeDirectory(String directoryPath, Node directory, BiFunction<Node, Boolean, Node> view,
+                                List<Node> subDirectories, List<String> subDirectoryNames) throws IOException {
+        INode.Builder builder = INode.newBuilder().setPath(directoryPath);
+        if (directoryPath.isEmpty()) {
+            // 只有根目录自己的属性需要写在分段中，其他目录的属性跟着父目录的分段写入
+            builder.setType(directory.getType()).putAllAttr(directory.getAttr());
+        }
+        boolean written = false;
+        for (Node node : directory.getChildren().values()) {
+            Node child = view.apply(node, false);
+            builder.addChildren(INode.newBuilder()
+                    .setPath(child.getPath())
+                    .setType(child.getType())
+                    .putAllAttr(child.getAttr()));
+            nodeCount++;
+            if (subDirectories != null && !child.isFile()) {
+                subDirectories.add(node);
+                subDirectoryNames.add(child.getPath());
+            }
+            if (builder.getChildrenCount() >= FsImage.SECTION_MAX_CHILDREN) {
+                writeSection(builder.build());
+                builder = INode.newBuilder().setPath(directoryPath);
+                written = true;
+            }
+        }
+        if (builder.getChildrenCount() > 0 || !written) {
+            writeSection(builder.build());
+        }
+    }
+
+    private void writeSection(INode section) throws IOException {
+        if (indexPositions.isEmpty() || position - indexPositions.get(indexPositions.size() - 1)
+                >= FsImage.INDEX_INTERVAL) {
+            indexPositions.add(position);
+            indexSections.add(0L);
+        }
+        int last = indexSections.size() - 1;
+        indexSections.set(last, indexSections.get(last) + 1);
+        byte[] body = section.toByteArray();
+        if (buffer.remaining() < FsImage.SECTION_HEADER_SIZE + body.length) {
+            flushBuffer();
+        }
+        buffer.putInt(body.length);
+        buffer.putInt(FsImage.crc32c(body, 0, body.length));
+        if (buffer.remaining() < body.length) {
+            flushBuffer();
+            writeFully(ByteBuffer.wrap(body));
+        } else {
+            buffer.put(body);
+        }
+        position += FsImage.SECTION_HEADER_SIZE + body.length;
+        sectionCount++;
+    }
+
+    /**
+     * 写入结束标记、索引和文件尾
+     */
+    private long finish() throws IOException {
+        long indexOffset = position + 4;
+        int tailLength = indexPositions.size() * FsImage.INDEX_ENTRY_SIZE + FsImage.TRAILER_SIZE;
+        ByteBuffer tail = ByteBuffer.allocate(4 + tailLength);
+        tail.putInt(FsImage.END_MARK);
+        for (int i = 0; i < indexPositions.size(); i++) {
+            tail.putLong(indexPositions.get(i));
+            tail.putLong(indexSections.get(i));
+        }
+        tail.putLong(indexOffset);
+        tail.putInt(indexPositions.size());
+        tail.putLong(sectionCount);
+        tail.putLong(nodeCount);
+        tail.putInt(FsImage.crc32c(tail.array(), 4, tailLength - 8));
+        tail.putInt(FsImage.MAGIC);
+        tail.flip();
+        flushBuffer();
+        writeFully(tail);
+        channel.force(true);
+        return indexOffset + tailLength;
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        raf.close();
+    }
+}
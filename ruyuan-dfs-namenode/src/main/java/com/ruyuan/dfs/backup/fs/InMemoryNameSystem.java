@@ -1,9 +1,13 @@
 package com.ruyuan.dfs.backup.fs;
 
 import com.ruyuan.dfs.backup.config.BackupNodeConfig;
+import com.ruyuan.dfs.model.backup.EditLog;
 import com.ruyuan.dfs.namenode.fs.AbstractFsNameSystem;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -20,7 +24,9 @@ public class InMemoryNameSystem extends AbstractFsNameSystem {
 
     public InMemoryNameSystem(BackupNodeConfig backupNodeConfig) {
         this.backupNodeConfig = backupNodeConfig;
-
+        if (backupNodeConfig.getCheckpointDeltaMax() > 0) {
+            directory.enableDirtyTracking();
+        }
     }
 
     public long getMaxTxId() {
@@ -36,6 +42,39 @@ public class InMemoryNameSystem extends AbstractFsNameSystem {
         this.maxTxId = maxTxId;
     }
 
+    /**
+     * 按照txid的顺序回放一批editlog，已经回放过的editlog会跳过
+     *
+     * <pre>
+     * 拉取和订阅推送两种方式在切换的时候可能同时在回放，所以回放需要串行执行。
+     * 整批editlog交给 FsDirectory 在一次加锁中回放完，回放完之后再更新最大的txid。
+     * </pre>
+     *
+     * @param editLogs editlog
+     * @return 实际回放的数量
+     */
+    public synchronized int applyEditLogs(List<EditLog> editLogs) {
+        List<EditLog> pending = new ArrayList<>(editLogs.size());
+        long lastTxId = maxTxId;
+        for (EditLog editLog : editLogs) {
+            if (editLog == null) {
+                log.debug("EditLog is empty : {} ", editLogs);
+                continue;
+            }
+            if (lastTxId >= editLog.getTxId()) {
+                continue;
+            }
+            pending.add(editLog);
+            lastTxId = editLog.getTxId();
+        }
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        directory.applyEditLogs(pending);
+        setMaxTxId(lastTxId);
+        return pending.size();
+    }
+
     @Override
     public void recoveryNamespace() throws Exception {
         try {
@@ -61,14 +100,31 @@ public class InMemoryNameSystem extends AbstractFsNameSystem {
     }
 
     /**
-     * 获取FSImage
+     * 把内存目录树保存为FSImage文件
+     *
+     * @param path 文件路径
+     * @return FsImage对应的最大txId
+     * @throws IOException IO异常
+     */
+    public long saveFsImage(String path) throws IOException {
+        // 先读取txId再保存目录树，目录树中可能包含比txId更新的修改，回放editlog的时候会重复执行，但是不会丢失
+        long txId = maxTxId;
+        directory.writeFsImage(path, txId);
+        return txId;
+    }
+
+    /**
+     * 把上一次checkpoint之后修改过的目录保存为增量FSImage文件
      *
-     * @return FsImage
+     * @param path     文件路径
+     * @param baseTxId 上一次checkpoint的txId
+     * @return FsImage对应的最大txId
+     * @throws IOException IO异常
      */
-    public FsImage getFsImage() {
-        FsImage fsImage = directory.getFsImage();
-        fsImage.setMaxTxId(maxTxId);
-        return fsImage;
+    public long saveDeltaFsImage(String path, long baseTxId) throws IOException {
+        long txId = maxTxId;
+        directory.writeDeltaFsImage(path, baseTxId, txId);
+        return txId;
     }
 
 }
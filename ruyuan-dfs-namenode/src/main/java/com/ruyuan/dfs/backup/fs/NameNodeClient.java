@@ -31,13 +31,20 @@ public class NameNodeClient {
     private final BackupNodeConfig backupnodeConfig;
     private final NetClient netClient;
     private final InMemoryNameSystem nameSystem;
+    private final EditsLogSubscriber editsLogSubscriber;
     private volatile boolean shutdown = false;
+    /**
+     * 已经同步的用户信息的版本号
+     */
+    private volatile long userVersion = 0L;
 
     public NameNodeClient(DefaultScheduler defaultScheduler, BackupNodeConfig backupnodeConfig, InMemoryNameSystem nameSystem) {
         this.netClient = new NetClient("BackupNode-NameNode-" + backupnodeConfig.getNameNodeHostname(), defaultScheduler, 3);
         this.defaultScheduler = defaultScheduler;
         this.nameSystem = nameSystem;
         this.backupnodeConfig = backupnodeConfig;
+        this.editsLogSubscriber = backupnodeConfig.isFetchEditLogStream() ?
+                new EditsLogSubscriber(netClient, nameSystem, backupnodeConfig.getFetchEditLogStreamWindow()) : null;
     }
 
     /**
@@ -56,6 +63,8 @@ public class NameNodeClient {
         this.netClient.addConnectListener(connected -> {
             if (connected) {
                 reportBackupNodeInfo();
+            } else if (editsLogSubscriber != null) {
+                editsLogSubscriber.onDisconnected();
             }
         });
         this.netClient.addNettyPackageListener(requestWrapper -> {
@@ -64,6 +73,8 @@ public class NameNodeClient {
                 log.info("收到NameNode下发的Slots信息.");
                 BackupNodeSlots backupNodeSlots = BackupNodeSlots.parseFrom(request.getBody());
                 NodeRoleSwitcher.getInstance().setSlots(backupNodeSlots.getSlotsMap());
+            } else if (request.getPacketType() == PacketType.EDIT_LOG_PUSH.getValue() && editsLogSubscriber != null) {
+                editsLogSubscriber.onPush(request);
             }
         });
         this.netClient.connect(backupnodeConfig.getNameNodeHostname(), backupnodeConfig.getNameNodePort());
@@ -108,25 +119,40 @@ public class NameNodeClient {
     /**
      * 抓取editLog数据
      *
-     * @param txId 当前的txId
+     * @param txId            当前的txId
+     * @param withoutEditLogs 是否只同步用户和槽位信息，订阅了推送的时候不需要拉取editLog
      * @return editLog数据
      */
-    public List<EditLog> fetchEditsLog(long txId) throws InvalidProtocolBufferException, InterruptedException, RequestTimeoutException {
+    public List<EditLog> fetchEditsLog(long txId, boolean withoutEditLogs) throws InvalidProtocolBufferException,
+            InterruptedException, RequestTimeoutException {
         boolean hasSlots = NodeRoleSwitcher.getInstance().hasSlots();
         FetchEditsLogRequest request = FetchEditsLogRequest.newBuilder()
                 .setTxId(txId)
                 .setNeedSlots(!hasSlots)
+                .setWithoutEditLogs(withoutEditLogs)
+                .setUserVersion(userVersion)
                 .build();
         NettyPacket req = NettyPacket.buildPacket(request.toByteArray(), PacketType.FETCH_EDIT_LOG);
         NettyPacket nettyPacket = netClient.sendSync(req);
         FetchEditsLogResponse response = FetchEditsLogResponse.parseFrom(nettyPacket.getBody());
-        List<UserEntity> usersList = response.getUsersList();
-        NodeRoleSwitcher.getInstance().replaceUser(usersList.stream()
-                .map(User::parse)
-                .collect(Collectors.toList()));
+        // 用户信息的版本号没有变化的时候NameNode不会返回用户信息
+        if (response.getUserVersion() == 0 || response.getUserVersion() != userVersion) {
+            List<UserEntity> usersList = response.getUsersList();
+            NodeRoleSwitcher.getInstance().replaceUser(usersList.stream()
+                    .map(User::parse)
+                    .collect(Collectors.toList()));
+            userVersion = response.getUserVersion();
+        }
         return response.getEditLogsList();
     }
 
+    /**
+     * @return 没有开启订阅推送时返回null
+     */
+    public EditsLogSubscriber getEditsLogSubscriber() {
+        return editsLogSubscriber;
+    }
+
     public NetClient getNetClient() {
         return netClient;
     }
@@ -139,6 +165,9 @@ public class NameNodeClient {
      * 优雅停机
      */
     public void shutdown() {
+        if (editsLogSubscriber != null) {
+            editsLogSubscriber.shutdown();
+        }
         this.netClient.shutdown();
     }
 }
@@ -2,7 +2,6 @@ package com.ruyuan.dfs.ha;
 
 import com.alibaba.fastjson.JSONObject;
 import com.ruyuan.dfs.backup.BackupNode;
-import com.ruyuan.dfs.backup.fs.FsImage;
 import com.ruyuan.dfs.common.Constants;
 import com.ruyuan.dfs.common.NettyPacket;
 import com.ruyuan.dfs.common.enums.NameNodeLaunchMode;
@@ -146,12 +145,10 @@ public class NodeRoleSwitcher {
             log.error("升级为NameNode失败，没有足够的配置信息. 程序即将退出 !!");
             System.exit(0);
         }
-        FsImage fsImage = backupNode.getNameSystem().getFsImage();
         try {
             // 保存FSImage
             String nameNodeFsImage = nameNodeConfig.getFsimageFile(String.valueOf(System.currentTimeMillis()));
-            ByteBuffer buffer = ByteBuffer.wrap(fsImage.toByteArray());
-            FileUtil.saveFile(nameNodeFsImage, true, buffer);
+            backupNode.getNameSystem().saveFsImage(nameNodeFsImage);
 
             // 保存Slots信息
             String slotFile = nameNodeConfig.getSlotFile();
@@ -160,7 +157,7 @@ public class NodeRoleSwitcher {
                 slotsBuilder.putAllNewSlots(this.slotsMap);
             }
             NameNodeSlots slots = slotsBuilder.build();
-            buffer = ByteBuffer.wrap(slots.toByteArray());
+            ByteBuffer buffer = ByteBuffer.wrap(slots.toByteArray());
             FileUtil.saveFile(slotFile, true, buffer);
 
             // 保存用户信息
@@ -169,7 +169,9 @@ public class NameNode {
     public void shutdown() {
         if (started.compareAndSet(true, false)) {
             this.defaultScheduler.shutdown();
+            this.nameNodeApis.shutdown();
             this.diskNameSystem.shutdown();
+            this.dataNodeManager.shutdown();
             this.tomcatServer.shutdown();
             this.peerNameNodes.shutdown();
             this.nameNodeServer.shutdown();
@@ -1,5 +1,6 @@
 package com.ruyuan.dfs.namenode.config;
 
+import com.ruyuan.dfs.common.enums.FsLockMode;
 import com.ruyuan.dfs.common.enums.NameNodeLaunchMode;
 import com.ruyuan.dfs.model.backup.NameNodeConf;
 import lombok.AllArgsConstructor;
@@ -37,6 +38,30 @@ public class NameNodeConfig {
      * 默认EditLog Buffer刷磁盘的阈值
      */
     private final int DEFAULT_EDITLOG_FLUSH_THRESHOLD = 524288;
+    /**
+     * 默认EditLog从写入到刷磁盘的最长等待时间
+     */
+    private final long DEFAULT_EDITLOG_SYNC_INTERVAL = 1000;
+    /**
+     * 默认EditLog段文件大小
+     */
+    private final long DEFAULT_EDITLOG_SEGMENT_SIZE = 16 * 1024 * 1024;
+    /**
+     * 默认EditLog段文件滚动时间
+     */
+    private final long DEFAULT_EDITLOG_SEGMENT_ROLL_INTERVAL = 3600000;
+    /**
+     * 默认回放EditLog的时候解析和回放是否并行
+     */
+    private final boolean DEFAULT_EDITLOG_REPLAY_PIPELINE = false;
+    /**
+     * 默认内存中缓存最近刷盘的EditLog数量
+     */
+    private final int DEFAULT_EDITLOG_CACHE_CAPACITY = 65536;
+    /**
+     * 默认并行加载FsImage的线程数量
+     */
+    private final int DEFAULT_FSIMAGE_LOAD_THREADS = 4;
     /**
      * 默认DataNode心跳超时的阈值
      */
@@ -49,11 +74,25 @@ public class NameNodeConfig {
      * 默认检查DataNode是否心跳超时的时间间隔
      */
     private final int DEFAULT_DATANODE_ALIVE_CHECK_INTERVAL = 30000;
+    /**
+     * 默认的副本放置策略
+     */
+    private static final String DEFAULT_PLACEMENT_POLICY = "available-space";
+    /**
+     * 默认NameNode之间同步DataNode心跳的时间间隔
+     */
+    private final long DEFAULT_DATANODE_LIVENESS_GOSSIP_INTERVAL = 1000;
 
 
     private String baseDir;
     private int port;
     private int editLogFlushThreshold;
+    private long editLogSyncInterval;
+    private long editLogSegmentSize;
+    private long editLogSegmentRollInterval;
+    private boolean editLogReplayPipeline;
+    private int editLogCacheCapacity;
+    private int fsImageLoadThreads;
     private long dataNodeHeartbeatTimeout;
     private int replicaNum;
     private long dataNodeAliveCheckInterval;
@@ -66,12 +105,27 @@ public class NameNodeConfig {
     private int nameNodeApiCoreSize;
     private int nameNodeApiMaximumPoolSize;
     private int nameNodeApiQueueSize;
+    private String fsLockMode;
+    private String placementPolicy;
+    private long dataNodeLivenessGossipInterval;
 
     public NameNodeConfig(NameNodeConf nameNodeConf) {
         this.baseDir = nameNodeConf.getValuesOrDefault("baseDir", DEFAULT_BASEDIR);
         this.port = Integer.parseInt(nameNodeConf.getValuesOrDefault("port", DEFAULT_PORT + ""));
         this.editLogFlushThreshold = Integer.parseInt(nameNodeConf.getValuesOrDefault("editLogFlushThreshold",
                 DEFAULT_EDITLOG_FLUSH_THRESHOLD + ""));
+        this.editLogSyncInterval = Long.parseLong(nameNodeConf.getValuesOrDefault("editLogSyncInterval",
+                DEFAULT_EDITLOG_SYNC_INTERVAL + ""));
+        this.editLogSegmentSize = Long.parseLong(nameNodeConf.getValuesOrDefault("editLogSegmentSize",
+                DEFAULT_EDITLOG_SEGMENT_SIZE + ""));
+        this.editLogSegmentRollInterval = Long.parseLong(nameNodeConf.getValuesOrDefault("editLogSegmentRollInterval",
+                DEFAULT_EDITLOG_SEGMENT_ROLL_INTERVAL + ""));
+        this.editLogReplayPipeline = Boolean.parseBoolean(nameNodeConf.getValuesOrDefault("editLogReplayPipeline",
+                DEFAULT_EDITLOG_REPLAY_PIPELINE + ""));
+        this.editLogCacheCapacity = Integer.parseInt(nameNodeConf.getValuesOrDefault("editLogCacheCapacity",
+                DEFAULT_EDITLOG_CACHE_CAPACITY + ""));
+        this.fsImageLoadThreads = Integer.parseInt(nameNodeConf.getValuesOrDefault("fsImageLoadThreads",
+                DEFAULT_FSIMAGE_LOAD_THREADS + ""));
         this.dataNodeHeartbeatTimeout = Integer.parseInt(nameNodeConf.getValuesOrDefault("dataNodeHeartbeatTimeout",
                 DEFAULT_DATANODE_HEARTBEAT_TIMEOUT + ""));
         this.replicaNum = Integer.parseInt(nameNodeConf.getValuesOrDefault("replicaNum",
@@ -87,6 +141,10 @@ public class NameNodeConfig {
         this.nameNodeApiCoreSize = Integer.parseInt(nameNodeConf.getValuesOrThrow("nameNodeApiCoreSize"));
         this.nameNodeApiMaximumPoolSize = Integer.parseInt(nameNodeConf.getValuesOrThrow("nameNodeApiMaximumPoolSize"));
         this.nameNodeApiQueueSize = Integer.parseInt(nameNodeConf.getValuesOrThrow("nameNodeApiQueueSize"));
+        this.fsLockMode = nameNodeConf.getValuesOrDefault("fsLockMode", FsLockMode.GLOBAL.getMode());
+        this.placementPolicy = nameNodeConf.getValuesOrDefault("placementPolicy", DEFAULT_PLACEMENT_POLICY);
+        this.dataNodeLivenessGossipInterval = Long.parseLong(nameNodeConf.getValuesOrDefault(
+                "dataNodeLivenessGossipInterval", DEFAULT_DATANODE_LIVENESS_GOSSIP_INTERVAL + ""));
     }
 
     public Map<String, String> getConfig() {
@@ -94,6 +152,12 @@ public class NameNodeConfig {
         ret.put("baseDir", baseDir);
         ret.put("port", port + "");
         ret.put("editLogFlushThreshold", editLogFlushThreshold + "");
+        ret.put("editLogSyncInterval", editLogSyncInterval + "");
+        ret.put("editLogSegmentSize", editLogSegmentSize + "");
+        ret.put("editLogSegmentRollInterval", editLogSegmentRollInterval + "");
+        ret.put("editLogReplayPipeline", editLogReplayPipeline + "");
+        ret.put("editLogCacheCapacity", editLogCacheCapacity + "");
+        ret.put("fsImageLoadThreads", fsImageLoadThreads + "");
         ret.put("dataNodeHeartbeatTimeout", dataNodeHeartbeatTimeout + "");
         ret.put("replicaNum", replicaNum + "");
         ret.put("dataNodeAliveCheckInterval", dataNodeAliveCheckInterval + "");
@@ -106,6 +170,9 @@ public class NameNodeConfig {
         ret.put("nameNodeApiCoreSize", nameNodeApiCoreSize + "");
         ret.put("nameNodeApiMaximumPoolSize", nameNodeApiMaximumPoolSize + "");
         ret.put("nameNodeApiQueueSize", nameNodeApiQueueSize + "");
+        ret.put("fsLockMode", getLockMode().getMode());
+        ret.put("placementPolicy", placementPolicy);
+        ret.put("dataNodeLivenessGossipInterval", dataNodeLivenessGossipInterval + "");
         return ret;
     }
 
@@ -114,6 +181,14 @@ public class NameNodeConfig {
         String baseDir = (String) properties.get("base.dir");
         int port = Integer.parseInt((String) properties.get("port"));
         int editLogFlushThreshold = Integer.parseInt((String) properties.get("editlogs.flush.threshold"));
+        long editLogSyncInterval = Long.parseLong(properties.getProperty("editlogs.sync.interval", "1000"));
+        long editLogSegmentSize = Long.parseLong(properties.getProperty("editlogs.segment.size", "16777216"));
+        long editLogSegmentRollInterval = Long.parseLong(properties.getProperty("editlogs.segment.roll.interval",
+                "3600000"));
+        boolean editLogReplayPipeline = Boolean.parseBoolean(properties.getProperty("editlogs.replay.pipeline",
+                "false"));
+        int editLogCacheCapacity = Integer.parseInt(properties.getProperty("editlogs.cache.capacity", "65536"));
+        int fsImageLoadThreads = Integer.parseInt(properties.getProperty("fsimage.load.threads", "4"));
         long dataNodeHeartbeatTimeout = Long.parseLong((String) properties.get("datanode.heartbeat.timeout"));
         int replicaNum = Integer.parseInt((String) properties.get("replica.num"));
         long dataNodeAliveCheckInterval = Integer.parseInt((String) properties.get("datanode.alive.check.interval"));
@@ -126,10 +201,20 @@ public class NameNodeConfig {
         int nameNodeApiCoreSize = Integer.parseInt((String) properties.get("namenode.api.coreSize"));
         int nameNodeApiMaximumPoolSize = Integer.parseInt((String) properties.get("namenode.api.maximumPoolSize"));
         int nameNodeApiQueueSize = Integer.parseInt((String) properties.get("namenode.api.queueSize"));
+        String fsLockMode = properties.getProperty("namenode.fs.lock.mode", FsLockMode.GLOBAL.getMode());
+        String placementPolicy = properties.getProperty("namenode.placement.policy", DEFAULT_PLACEMENT_POLICY);
+        long dataNodeLivenessGossipInterval = Long.parseLong(properties.getProperty(
+                "datanode.liveness.gossip.interval", "1000"));
         return NameNodeConfig.builder()
                 .baseDir(baseDir)
                 .port(port)
                 .editLogFlushThreshold(editLogFlushThreshold)
+                .editLogSyncInterval(editLogSyncInterval)
+                .editLogSegmentSize(editLogSegmentSize)
+                .editLogSegmentRollInterval(editLogSegmentRollInterval)
+                .editLogReplayPipeline(editLogReplayPipeline)
+                .editLogCacheCapacity(editLogCacheCapacity)
+                .fsImageLoadThreads(fsImageLoadThreads)
                 .dataNodeHeartbeatTimeout(dataNodeHeartbeatTimeout)
                 .replicaNum(replicaNum)
                 .dataNodeAliveCheckInterval(dataNodeAliveCheckInterval)
@@ -142,11 +227,18 @@ public class NameNodeConfig {
                 .nameNodeApiCoreSize(nameNodeApiCoreSize)
                 .nameNodeApiMaximumPoolSize(nameNodeApiMaximumPoolSize)
                 .nameNodeApiQueueSize(nameNodeApiQueueSize)
+                .fsLockMode(fsLockMode)
+                .placementPolicy(placementPolicy)
+                .dataNodeLivenessGossipInterval(dataNodeLivenessGossipInterval)
                 .build();
     }
 
-    public String getEditlogsFile(long start, long end) {
-        return baseDir + File.separator + "editslog-" + start + "_" + end + ".log";
+    public String getEditlogSegmentFile(long start) {
+        return baseDir + File.separator + "editslog-" + start + ".segment";
+    }
+
+    public String getEditlogIndexFile() {
+        return baseDir + File.separator + "editslog.index";
     }
 
     public String getFsimageFile(String time) {
@@ -169,6 +261,10 @@ public class NameNodeConfig {
         return NameNodeLaunchMode.getEnum(nameNodeLaunchMode);
     }
 
+    public FsLockMode getLockMode() {
+        return FsLockMode.getEnum(fsLockMode);
+    }
+
     public long getClearStorageThreshold() {
         return nameNodeTrashClearThreshold;
     }
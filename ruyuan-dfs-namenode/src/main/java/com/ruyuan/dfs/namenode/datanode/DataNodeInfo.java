@@ -1,10 +1,13 @@
 package com.ruyuan.dfs.namenode.datanode;
 
+import com.ruyuan.dfs.common.enums.CommandType;
+import com.ruyuan.dfs.model.datanode.ReplicaCommand;
 import com.ruyuan.dfs.namenode.rebalance.RemoveReplicaTask;
 import com.ruyuan.dfs.namenode.rebalance.ReplicaTask;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
@@ -29,6 +32,11 @@ public class DataNodeInfo implements Comparable<DataNodeInfo> {
     private long latestHeartbeatTime;
     private volatile long storedDataSize;
     private volatile long freeSpace;
+    private String rack;
+    /**
+     * NameNode已经应用的DataNode存储上报的代数，-1表示还没有收到过完整的上报
+     */
+    private volatile long reportedGeneration = -1;
     private int status;
     private ConcurrentLinkedQueue<ReplicaTask> replicaTasks = new ConcurrentLinkedQueue<>();
     private ConcurrentLinkedQueue<RemoveReplicaTask> removeReplicaTasks = new ConcurrentLinkedQueue<>();
@@ -54,6 +62,17 @@ public class DataNodeInfo implements Comparable<DataNodeInfo> {
         }
     }
 
+    /**
+     * 增量上报基于的代数是否和已经应用的代数一致，不一致的时候拒绝增量上报，DataNode需要重新全量上报
+     *
+     * @param baseGeneration 增量上报基于的代数
+     * @return 是否接受增量上报
+     */
+    public boolean matchReportedGeneration(long baseGeneration) {
+        long generation = reportedGeneration;
+        return generation >= 0 && generation == baseGeneration;
+    }
+
     /**
      * 添加副本复制任务
      *
@@ -98,6 +117,47 @@ public class DataNodeInfo implements Comparable<DataNodeInfo> {
         removeReplicaTasks.add(task);
     }
 
+    /**
+     * 取出需要下发给DataNode的副本复制和删除命令
+     *
+     * @param maxNum 复制和删除命令各自最多取多少个
+     * @return 命令
+     */
+    public List<ReplicaCommand> pollReplicaCommands(int maxNum) {
+        List<ReplicaCommand> commands = new ArrayList<>();
+        for (ReplicaTask task : pollReplicaTask(maxNum)) {
+            commands.add(ReplicaCommand.newBuilder()
+                    .setFilename(task.getFilename())
+                    .setHostname(task.getHostname())
+                    .setPort(task.getPort())
+                    .setCommand(CommandType.REPLICA_COPY.getValue())
+                    .build());
+        }
+        for (RemoveReplicaTask task : pollRemoveReplicaTask(maxNum)) {
+            commands.add(ReplicaCommand.newBuilder()
+                    .setFilename(task.getFileName())
+                    .setHostname(task.getHostname())
+                    .setCommand(CommandType.REPLICA_REMOVE.getValue())
+                    .build());
+        }
+        return commands;
+    }
+
+    /**
+     * 添加别的NameNode转交过来的副本命令，下次心跳的时候下发给DataNode
+     *
+     * @param commands 命令
+     */
+    public void addReplicaCommands(List<ReplicaCommand> commands) {
+        for (ReplicaCommand command : commands) {
+            if (command.getCommand() == CommandType.REPLICA_COPY.getValue()) {
+                addReplicaTask(new ReplicaTask(command.getFilename(), command.getHostname(), command.getPort()));
+            } else if (command.getCommand() == CommandType.REPLICA_REMOVE.getValue()) {
+                addRemoveReplicaTask(new RemoveReplicaTask(command.getHostname(), command.getFilename()));
+            }
+        }
+    }
+
 
     @Override
     public int compareTo(DataNodeInfo o) {
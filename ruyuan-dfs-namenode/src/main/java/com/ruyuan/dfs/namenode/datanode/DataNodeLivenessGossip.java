@@ -0,0 +1,136 @@
+package com.ruyuan.dfs.namenode.datanode;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.ruyuan.dfs.common.NettyPacket;
+import com.ruyuan.dfs.common.enums.PacketType;
+import com.ruyuan.dfs.common.utils.DefaultScheduler;
+import com.ruyuan.dfs.model.datanode.DataNodeLivenessRequest;
+import com.ruyuan.dfs.model.datanode.DataNodeLivenessResponse;
+import com.ruyuan.dfs.model.datanode.HeartbeatResponse;
+import com.ruyuan.dfs.model.datanode.ReplicaCommand;
+import com.ruyuan.dfs.namenode.config.NameNodeConfig;
+import com.ruyuan.dfs.namenode.shard.peer.PeerNameNodes;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在NameNode之间批量同步DataNode的心跳
+ *
+ * <pre>
+ * DataNode只往一个NameNode发送心跳，其他NameNode需要知道DataNode还活着，并且要把自己给这个DataNode的副本命令下发下去。
+ *
+ * 收到心跳的NameNode只记录下DataNode的主机名，每隔一段时间把这段时间内发送过心跳的DataNode打包成一个请求，
+ * 发送给所有的NameNode。别的NameNode更新这些DataNode的心跳时间，并在响应中带上自己给这些DataNode的副本命令，
+ * 这些命令会放到本地的DataNode信息中，随下一次心跳下发。心跳的处理不再需要同步请求别的NameNode，
+ * 同步的请求数量和DataNode数量无关，每个周期每个NameNode只有一个。
+ *
+ * 每次同步带上一个递增的版本号，版本号从启动时间开始，重启之后也不会变小，别的NameNode丢弃版本号不大于已经收到的请求。
+ * 同步间隔需要远小于DataNode心跳超时的时间。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+@Slf4j
+public class DataNodeLivenessGossip {
+
+    private static final int MAX_COMMANDS = 100;
+
+    private final int nameNodeId;
+    private final DataNodeManager dataNodeManager;
+    private final PeerNameNodes peerNameNodes;
+    private final Set<String> heartbeats = ConcurrentHashMap.newKeySet();
+    private final AtomicLong version = new AtomicLong(System.currentTimeMillis());
+    private final Map<Integer, Long> peerVersions = new ConcurrentHashMap<>();
+
+    public DataNodeLivenessGossip(NameNodeConfig nameNodeConfig, DataNodeManager dataNodeManager,
+                                  PeerNameNodes peerNameNodes, DefaultScheduler defaultScheduler) {
+        this.nameNodeId = nameNodeConfig.getNameNodeId();
+        this.dataNodeManager = dataNodeManager;
+        this.peerNameNodes = peerNameNodes;
+        long interval = nameNodeConfig.getDataNodeLivenessGossipInterval();
+        defaultScheduler.schedule("同步DataNode心跳", this::publish, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 记录收到了DataNode的心跳
+     *
+     * @param hostname DataNode主机名
+     */
+    public void onHeartbeat(String hostname) {
+        heartbeats.add(hostname);
+    }
+
+    /**
+     * 把这个周期内收到的心跳同步给别的NameNode
+     */
+    void publish() {
+        if (heartbeats.isEmpty()) {
+            return;
+        }
+        List<String> hostnames = new ArrayList<>(heartbeats.size());
+        for (Iterator<String> iterator = heartbeats.iterator(); iterator.hasNext(); ) {
+            hostnames.add(iterator.next());
+            iterator.remove();
+        }
+        DataNodeLivenessRequest request = DataNodeLivenessRequest.newBuilder()
+                .setNameNodeId(nameNodeId)
+                .setVersion(version.incrementAndGet())
+                .addAllHostnames(hostnames)
+                .build();
+        NettyPacket packet = NettyPacket.buildPacket(request.toByteArray(), PacketType.DATA_NODE_LIVENESS_GOSSIP);
+        for (NettyPacket nettyPacket : peerNameNodes.broadcastSync(packet)) {
+            try {
+                DataNodeLivenessResponse response = DataNodeLivenessResponse.parseFrom(nettyPacket.getBody());
+                applyCommands(response);
+            } catch (InvalidProtocolBufferException e) {
+                log.error("解析DataNode心跳同步的响应失败：", e);
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("同步DataNode心跳给别的NameNode：[version={}, dataNodes={}]", request.getVersion(), hostnames.size());
+        }
+    }
+
+    /**
+     * 处理别的NameNode同步过来的心跳
+     *
+     * @param request 请求
+     * @return 本NameNode需要下发给这些DataNode的副本命令
+     */
+    public DataNodeLivenessResponse onGossip(DataNodeLivenessRequest request) {
+        DataNodeLivenessResponse.Builder builder = DataNodeLivenessResponse.newBuilder();
+        long latest = peerVersions.merge(request.getNameNodeId(), request.getVersion(), Math::max);
+        if (latest != request.getVersion()) {
+            log.info("丢弃过期的DataNode心跳同步：[nameNodeId={}, version={}, latest={}]",
+                    request.getNameNodeId(), request.getVersion(), latest);
+            return builder.build();
+        }
+        for (String hostname : request.getHostnamesList()) {
+            DataNodeInfo dataNode = dataNodeManager.getDataNode(hostname);
+            if (dataNode == null || !dataNodeManager.heartbeat(hostname)) {
+                continue;
+            }
+            List<ReplicaCommand> commands = dataNode.pollReplicaCommands(MAX_COMMANDS);
+            if (!commands.isEmpty()) {
+                builder.putCommands(hostname, HeartbeatResponse.newBuilder().addAllCommands(commands).build());
+            }
+        }
+        return builder.build();
+    }
+
+    private void applyCommands(DataNodeLivenessResponse response) {
+        for (Map.Entry<String, HeartbeatResponse> entry : response.getCommandsMap().entrySet()) {
+            DataNodeInfo dataNode = dataNodeManager.getDataNode(entry.getKey());
+            if (dataNode == null) {
+                log.warn("别的NameNode转交的副本命令找不到DataNode，丢弃：[hostname={}, commands={}]",
+                        entry.getKey(), entry.getValue().getCommandsCount());
+                continue;
+            }
+            dataNode.addReplicaCommands(entry.getValue().getCommandsList());
+        }
+    }
+}
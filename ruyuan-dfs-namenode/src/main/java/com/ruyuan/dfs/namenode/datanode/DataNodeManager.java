@@ -5,11 +5,12 @@ import com.ruyuan.dfs.common.FileInfo;
 import com.ruyuan.dfs.common.exception.NameNodeException;
 import com.ruyuan.dfs.common.utils.DateUtils;
 import com.ruyuan.dfs.common.utils.DefaultScheduler;
-import com.ruyuan.dfs.common.utils.PrettyCodes;
 import com.ruyuan.dfs.model.datanode.RegisterRequest;
 import com.ruyuan.dfs.namenode.config.NameNodeConfig;
+import com.ruyuan.dfs.namenode.datanode.placement.PlacementPolicy;
 import com.ruyuan.dfs.namenode.fs.DiskNameSystem;
 import com.ruyuan.dfs.namenode.fs.Node;
+import com.ruyuan.dfs.namenode.fs.TrashPolicyDefault;
 import com.ruyuan.dfs.namenode.rebalance.RemoveReplicaTask;
 import com.ruyuan.dfs.namenode.rebalance.ReplicaTask;
 import com.ruyuan.dfs.namenode.server.UserManager;
@@ -17,10 +18,11 @@ import com.ruyuan.dfs.namenode.server.tomcat.domain.User;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
 
 /**
  * 负责管理dataNode
@@ -30,12 +32,16 @@ import java.util.stream.Collectors;
 @Slf4j
 public class DataNodeManager {
 
+    /**
+     * 已经Ready的DataNode按照存储大小重新排序的间隔
+     */
+    private static final long SORT_INTERVAL = 1000;
+
     private final UserManager userManager;
     private final Map<String, DataNodeInfo> dataNodes = new ConcurrentHashMap<>();
-    private final ReentrantReadWriteLock replicaLock = new ReentrantReadWriteLock();
     /**
      * <pre>
-     * 每个文件对应存储的Datanode信息
+     * 每个文件对应存储的DataNode信息，以及每个DataNode存储的文件列表
      *
      * 比如文件aaa.png，存储在datanode01、datanode02
      *
@@ -43,29 +49,27 @@ public class DataNodeManager {
      *        datanode01,
      *        datanode02
      *    ]
+     *
+     *    datanode01 : [aaa.png]
+     *    datanode02 : [aaa.png]
      * </pre>
      */
-    private final Map<String, List<DataNodeInfo>> replicaByFilename = new ConcurrentHashMap<>();
-
+    private final ReplicaIndex replicaIndex = new ReplicaIndex();
+    private final FileReceiveRegistry fileReceiveRegistry = new FileReceiveRegistry();
     /**
-     * <pre>
-     * 每个DataNode 存储的文件列表
-     *
-     * 比如datanode01存储有文件：aaa.jpg、bbb.jpg
-     *
-     *    datanode01 : [
-     *        aaa.jpg,
-     *        bbb.jpg
-     *    ]
-     * </pre>
+     * 每个DataNode最近一次全量上报的进度，完成之后保留，用来识别迟到的旧批次
      */
-    private final Map<String, Map<String, FileInfo>> filesByDataNode = new ConcurrentHashMap<>();
+    private final Map<String, FullStorageReport> fullStorageReports = new ConcurrentHashMap<>();
     private final NameNodeConfig nameNodeConfig;
+    private final PlacementPolicy placementPolicy;
+    private volatile DataNodeInfo[] sortedReadyDataNodes = new DataNodeInfo[0];
+    private volatile long sortedTime;
     private DiskNameSystem diskNameSystem;
 
     public DataNodeManager(NameNodeConfig nameNodeConfig, DefaultScheduler defaultScheduler, UserManager userManager) {
         this.nameNodeConfig = nameNodeConfig;
         this.userManager = userManager;
+        this.placementPolicy = PlacementPolicy.create(nameNodeConfig.getPlacementPolicy());
         long dataNodeAliveThreshold = nameNodeConfig.getDataNodeAliveCheckInterval();
         defaultScheduler.schedule("DataNode存活检测", new DataNodeAliveMonitor(),
                 dataNodeAliveThreshold, dataNodeAliveThreshold, TimeUnit.MILLISECONDS);
@@ -92,6 +96,7 @@ public class DataNodeManager {
         dataNode.setNodeId(request.getNodeId());
         log.info("收到DataNode注册请求：[hostname={}, storageSize={}, freeSpace={}]",
                 request.getHostname(), request.getStoredDataSize(), request.getFreeSpace());
+        dataNode.setRack(request.getRack());
         dataNodes.put(request.getHostname(), dataNode);
         return true;
     }
@@ -115,92 +120,58 @@ public class DataNodeManager {
     }
 
     /**
-     * 获取已经Ready并且排序的DataNode列表
+     * 获取已经Ready并且按照存储大小排序的DataNode
+     *
+     * <pre>
+     * 存储大小在每次写入副本的时候都会变化，不在每次变化的时候调整顺序，而是在选择DataNode的时候，
+     * 如果距离上次排序超过了 {@link #SORT_INTERVAL}，重新排序一次。DataNode上线、下线的时候立即重建。
+     * 数组不会被修改，重建的时候替换成新的数组，读取不需要加锁。
+     * </pre>
      *
-     * @return DataNode列表
+     * @return 按照存储大小从小到大排序的DataNode，调用方不能修改
      */
-    private List<DataNodeInfo> getSortedReadyDataNode() {
-        return dataNodes.values().stream()
-                .filter(dataNodeInfo -> dataNodeInfo.getStatus() == DataNodeInfo.STATUS_READY)
-                .sorted()
-                .collect(Collectors.toList());
+    private DataNodeInfo[] getSortedReadyDataNode() {
+        if (System.currentTimeMillis() - sortedTime >= SORT_INTERVAL) {
+            synchronized (this) {
+                // 多个线程同时发现过期的时候只排序一次
+                if (System.currentTimeMillis() - sortedTime >= SORT_INTERVAL) {
+                    sortReadyDataNode();
+                }
+            }
+        }
+        return sortedReadyDataNodes;
     }
 
     /**
-     * 从DataNode集合中选择节点，但是要排除已经包含该文件的DataNode节点
-     *
-     * @param dataNodeList      DataNode节点列表
-     * @param requiredNodeCount 需要的DataNode节点数量
-     * @param filename          文件名
+     * 重新排序已经Ready的DataNode
      */
-    private List<DataNodeInfo> selectDataNodeFromList(List<DataNodeInfo> dataNodeList, int requiredNodeCount,
-                                                      String filename) throws NameNodeException {
-        int existCount = 0;
-
-        long minStoredDataSize = -1;
-        /*
-         * 在上传小文件的时候，文件大小较小，为了避免流量都打到同一台DataNode机器。
-         *
-         * 所以如果多台DataNode之间的存储空间大小误差在1G范围内，直接随机取一台。
-         *
-         * 如果误差范围小于1G,则按存储空间大小从低到高进行获取
-         *
-         */
-        List<DataNodeInfo> candidateNodes = new ArrayList<>(10);
-        long delta = 1024 * 1024 * 1024;
-        for (DataNodeInfo dataNodeInfo : dataNodeList) {
-            if (dataNodeContainsFiles(dataNodeInfo.getHostname(), filename)) {
-                existCount++;
-                continue;
-            }
-            long storedDataSize = dataNodeInfo.getStoredDataSize();
-            if (minStoredDataSize < 0) {
-                minStoredDataSize = storedDataSize;
-            }
-            if (dataNodeInfo.getStoredDataSize() - minStoredDataSize <= delta) {
-                candidateNodes.add(dataNodeInfo);
+    private synchronized void sortReadyDataNode() {
+        List<DataNodeInfo> readyDataNodes = new ArrayList<>(dataNodes.size());
+        for (DataNodeInfo dataNode : dataNodes.values()) {
+            if (dataNode.getStatus() == DataNodeInfo.STATUS_READY) {
+                readyDataNodes.add(dataNode);
             }
         }
-        int findCount = 0;
-        if (candidateNodes.size() == requiredNodeCount) {
-            // 误差在1G以内的DataNode数量刚好和需要的节点数量一样
-            return candidateNodes;
-        } else if (candidateNodes.size() < requiredNodeCount) {
-            // 误差在1G以内的DataNode数量小于需要的节点数量，则需要从datanode列表中继续取到足够的节点。
-            int remainNodeCount = requiredNodeCount - candidateNodes.size();
-            for (DataNodeInfo dataNodeInfo : dataNodeList) {
-                if (candidateNodes.contains(dataNodeInfo) ||
-                        dataNodeContainsFiles(dataNodeInfo.getHostname(), filename)) {
-                    continue;
-                }
-                candidateNodes.add(dataNodeInfo);
-                remainNodeCount--;
-                findCount++;
-                if (remainNodeCount <= 0) {
-                    return candidateNodes;
-                }
-            }
-        } else {
-            // 误差在1G以内的DataNode数量很多，超过所需的节点数量，则随机取几个
-            Random random = new Random();
-            List<DataNodeInfo> selectedDataNodes = new ArrayList<>();
-            for (int i = 0; i < requiredNodeCount; i++) {
-                int index = random.nextInt(candidateNodes.size());
-                DataNodeInfo dataNodeInfo = candidateNodes.get(index);
-                if (selectedDataNodes.contains(dataNodeInfo) ||
-                        dataNodeContainsFiles(dataNodeInfo.getHostname(), filename)) {
-                    continue;
-                }
-                selectedDataNodes.add(dataNodeInfo);
+        // 存储大小会被并发修改，先取一份快照再排序，上一次的顺序基本有序，插入排序接近线性
+        DataNodeInfo[] sorted = readyDataNodes.toArray(new DataNodeInfo[0]);
+        long[] storedDataSizes = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            storedDataSizes[i] = sorted[i].getStoredDataSize();
+        }
+        for (int i = 1; i < sorted.length; i++) {
+            DataNodeInfo dataNode = sorted[i];
+            long storedDataSize = storedDataSizes[i];
+            int j = i - 1;
+            while (j >= 0 && storedDataSizes[j] > storedDataSize) {
+                sorted[j + 1] = sorted[j];
+                storedDataSizes[j + 1] = storedDataSizes[j];
+                j--;
             }
-            return selectedDataNodes;
-
+            sorted[j + 1] = dataNode;
+            storedDataSizes[j + 1] = storedDataSize;
         }
-        log.error("DataNode数量不足：[datanodeList={}]", dataNodes.values());
-        throw new NameNodeException("DataNode数量不足: [applyCount=" + requiredNodeCount +
-                ", findCount=" + findCount +
-                ", existsFileNodeCount=" + existCount +
-                ", filename=" + filename);
+        sortedReadyDataNodes = sorted;
+        sortedTime = System.currentTimeMillis();
     }
 
     /**
@@ -212,6 +183,7 @@ public class DataNodeManager {
         DataNodeInfo dataNode = dataNodes.get(hostname);
         if (dataNode != null) {
             dataNode.setStatus(DataNodeInfo.STATUS_READY);
+            sortReadyDataNode();
         }
     }
 
@@ -222,11 +194,8 @@ public class DataNodeManager {
      */
     private void createLostReplicaTask(DataNodeInfo dataNodeInfo) {
         // 获取需要复制的副本列表
-        Map<String, FileInfo> filesByDataNode = removeFileByDataNode(dataNodeInfo.getHostname());
-        if (filesByDataNode == null) {
-            return;
-        }
-        for (FileInfo fileInfo : filesByDataNode.values()) {
+        List<FileInfo> files = removeFileByDataNode(dataNodeInfo.getHostname());
+        for (FileInfo fileInfo : files) {
             // 找到一个可读取文件的DataNode
             DataNodeInfo sourceDataNode = chooseReadableDataNodeByFileName(fileInfo.getFileName(), dataNodeInfo);
             if (sourceDataNode == null) {
@@ -252,19 +221,15 @@ public class DataNodeManager {
      * @param excludeDataNode 排除的DataNode
      */
     private DataNodeInfo allocateReplicateDataNodes(FileInfo fileInfo, DataNodeInfo excludeDataNode) {
-        List<DataNodeInfo> dataNodeInfos = dataNodes.values().stream()
-                .filter(dataNodeInfo -> !dataNodeInfo.equals(excludeDataNode) &&
-                        dataNodeInfo.getStatus() == DataNodeInfo.STATUS_READY)
-                .sorted()
-                .collect(Collectors.toList());
-        try {
-            List<DataNodeInfo> dataNodesList = selectDataNodeFromList(dataNodeInfos,
-                    1, fileInfo.getFileName());
-            return dataNodesList.get(0);
-        } catch (Exception e) {
-            log.warn("allocateReplicateDataNodes select node failed.", e);
+        String filename = fileInfo.getFileName();
+        List<DataNodeInfo> dataNodesList = placementPolicy.choose(getSortedReadyDataNode(), 1,
+                dataNodeInfo -> dataNodeInfo.equals(excludeDataNode) ||
+                        dataNodeContainsFiles(dataNodeInfo.getHostname(), filename));
+        if (dataNodesList.isEmpty()) {
+            log.warn("allocateReplicateDataNodes select node failed: [filename={}]", filename);
             return null;
         }
+        return dataNodesList.get(0);
     }
 
     /**
@@ -275,18 +240,22 @@ public class DataNodeManager {
     public List<DataNodeInfo> allocateDataNodes(String username, int count, String filename) throws Exception {
         User user = userManager.getUser(username);
         Set<String> dataNodeSet = user.getStorageInfo().getDataNodesSet();
+        Predicate<DataNodeInfo> excluded;
         if (dataNodeSet.isEmpty()) {
-            List<DataNodeInfo> sortedReadyDataNode = getSortedReadyDataNode();
-            return selectDataNodeFromList(sortedReadyDataNode, count, filename);
+            excluded = dataNodeInfo -> dataNodeContainsFiles(dataNodeInfo.getHostname(), filename);
         } else {
             // 这里用户是指定了DataNode的，则在指定的DataNode中查找对应的DataNode
-            List<DataNodeInfo> dataNodeInfos = dataNodes.values().stream()
-                    .filter(dataNodeInfo -> dataNodeInfo.getStatus() == DataNodeInfo.STATUS_READY
-                            && dataNodeSet.contains(dataNodeInfo.getHostname()))
-                    .sorted()
-                    .collect(Collectors.toList());
-            return selectDataNodeFromList(dataNodeInfos, count, filename);
+            excluded = dataNodeInfo -> !dataNodeSet.contains(dataNodeInfo.getHostname()) ||
+                    dataNodeContainsFiles(dataNodeInfo.getHostname(), filename);
         }
+        List<DataNodeInfo> selected = placementPolicy.choose(getSortedReadyDataNode(), count, excluded);
+        if (selected.size() < count) {
+            log.error("DataNode数量不足：[datanodeList={}]", dataNodes.values());
+            throw new NameNodeException("DataNode数量不足: [applyCount=" + count +
+                    ", findCount=" + selected.size() +
+                    ", filename=" + filename);
+        }
+        return selected;
     }
 
     /**
@@ -295,24 +264,13 @@ public class DataNodeManager {
      * @param hostname DataNode
      * @return 该DataNode的文件列表
      */
-    public Map<String, FileInfo> removeFileByDataNode(String hostname) {
-        replicaLock.writeLock().lock();
-        try {
-            return filesByDataNode.remove(hostname);
-        } finally {
-            replicaLock.writeLock().unlock();
-        }
+    public List<FileInfo> removeFileByDataNode(String hostname) {
+        return replicaIndex.removeDataNode(hostname);
     }
 
 
     public boolean dataNodeContainsFiles(String hostname, String filename) {
-        replicaLock.readLock().lock();
-        try {
-            Map<String, FileInfo> files = filesByDataNode.getOrDefault(hostname, new HashMap<>(PrettyCodes.trimMapSize()));
-            return files.containsKey(filename);
-        } finally {
-            replicaLock.readLock().unlock();
-        }
+        return replicaIndex.contains(filename, hostname);
     }
 
     /**
@@ -321,59 +279,110 @@ public class DataNodeManager {
      * @param fileInfo 文件信息
      */
     public void addReplica(FileInfo fileInfo) {
-        replicaLock.writeLock().lock();
-        try {
-            // 获取该文件所属的DataNode
-            DataNodeInfo dataNode = dataNodes.get(fileInfo.getHostname());
-
-            // 获取该文件对应的DataNode列表
-            List<DataNodeInfo> dataNodeInfos = replicaByFilename.computeIfAbsent(fileInfo.getFileName(),
-                    k -> new ArrayList<>());
-
-            // 文件目录树有可能被移动到.Trash目录下面了，所以除了正常查找一遍文件目录树之外，还要查一遍垃圾箱。
-            Node node = maybeInTrash(fileInfo.getFileName());
-            if (node == null) {
-                log.warn("收到DataNode上报的存储信息，但是在内存目录树中不存在文件,下发命令让DataNode删除文件: [hostname={}, filename={}]",
-                        fileInfo.getHostname(), fileInfo.getFileName());
-                RemoveReplicaTask task = new RemoveReplicaTask(fileInfo.getHostname(), fileInfo.getFileName());
-                dataNode.addRemoveReplicaTask(task);
-                return;
-            }
-            int replicaNum = Integer.parseInt(node.getAttr().getOrDefault(Constants.ATTR_REPLICA_NUM,
-                    String.valueOf(nameNodeConfig.getReplicaNum())));
-            // 如果该文件的副本数量超过配置的数量，则让该DataNode删除文件
-            if (dataNodeInfos.size() >= replicaNum) {
-                RemoveReplicaTask task = new RemoveReplicaTask(dataNode.getHostname(), fileInfo.getFileName());
-                log.info("下发副本删除任务：[hostname={}, filename={}]", dataNode.getHostname(), fileInfo.getFileName());
-                dataNode.addRemoveReplicaTask(task);
-                return;
-            }
+        // 获取该文件所属的DataNode
+        DataNodeInfo dataNode = dataNodes.get(fileInfo.getHostname());
+        FullStorageReport fullStorageReport = fullStorageReports.get(fileInfo.getHostname());
+        if (fullStorageReport != null) {
+            fullStorageReport.markReported(fileInfo.getFileName());
+        }
+
+        // 文件目录树有可能被移动到.Trash目录下面了，所以除了正常查找一遍文件目录树之外，还要查一遍垃圾箱。
+        Node node = maybeInTrash(fileInfo.getFileName());
+        if (node == null) {
+            log.warn("收到DataNode上报的存储信息，但是在内存目录树中不存在文件,下发命令让DataNode删除文件: [hostname={}, filename={}]",
+                    fileInfo.getHostname(), fileInfo.getFileName());
+            RemoveReplicaTask task = new RemoveReplicaTask(fileInfo.getHostname(), fileInfo.getFileName());
+            dataNode.addRemoveReplicaTask(task);
+            return;
+        }
+        int replicaNum = node.getReplicaNum(nameNodeConfig.getReplicaNum());
+        // 如果该文件的副本数量超过配置的数量，则让该DataNode删除文件
+        if (!replicaIndex.add(fileInfo, replicaNum)) {
+            RemoveReplicaTask task = new RemoveReplicaTask(dataNode.getHostname(), fileInfo.getFileName());
+            log.info("下发副本删除任务：[hostname={}, filename={}]", dataNode.getHostname(), fileInfo.getFileName());
+            dataNode.addRemoveReplicaTask(task);
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("收到DataNode文件上报：[hostname={}, filename={}]", fileInfo.getHostname(), fileInfo.getFileName());
+        }
+        fileReceiveRegistry.informReplicaReceived(fileInfo.getFileName());
+    }
+
+    /**
+     * 批量应用DataNode的存储上报
+     *
+     * <pre>
+     * 上报中新增的文件和单个文件上报一样检查目录树和副本数量，删除的文件直接从副本索引中摘除。
+     * 同一个文件重复上报不会有影响，DataNode的存储大小由单个文件的上报维护，这里不修改。
+     * </pre>
+     *
+     * @param hostname     DataNode
+     * @param addedFiles   新增的副本
+     * @param removedFiles 删除的文件名
+     */
+    public void applyStorageReport(String hostname, List<FileInfo> addedFiles, List<String> removedFiles) {
+        DataNodeInfo dataNode = dataNodes.get(hostname);
+        if (dataNode == null) {
+            log.warn("收到存储上报，但是DataNode不存在：[hostname={}]", hostname);
+            return;
+        }
+        for (FileInfo fileInfo : addedFiles) {
+            addReplica(fileInfo);
+        }
+        for (String filename : removedFiles) {
+            replicaIndex.remove(filename, hostname);
+        }
+    }
 
-            // 副本数量没有超过，将文件信息维护起来
-            dataNodeInfos.add(dataNode);
-            Map<String, FileInfo> files = filesByDataNode.computeIfAbsent(fileInfo.getHostname(), k -> new HashMap<>(PrettyCodes.trimMapSize()));
-            files.put(fileInfo.getFileName(), fileInfo);
-            if (log.isDebugEnabled()) {
-                log.debug("收到DataNode文件上报：[hostname={}, filename={}]", fileInfo.getHostname(), fileInfo.getFileName());
+    /**
+     * 应用DataNode全量上报的一个批次
+     *
+     * <pre>
+     * 全量上报用上报的文件替换DataNode原来的副本：DataNode上已经删除、但是删除没有通过增量上报送达的副本，
+     * 比如增量上报被拒绝之后回退到全量上报，在所有批次处理完之后从副本索引中删除。
+     * 每个批次都带着文件总数，批次的处理顺序不影响结果，比当前代数旧的批次只添加副本。
+     * </pre>
+     *
+     * @param hostname   DataNode
+     * @param generation 全量上报的代数
+     * @param addedFiles 批次中属于当前NameNode的副本
+     * @param batchFiles 批次中的文件数量，包括不属于当前NameNode的文件
+     * @param totalFiles 这次全量上报的文件总数
+     */
+    public void applyFullStorageReport(String hostname, long generation, List<FileInfo> addedFiles,
+                                       int batchFiles, long totalFiles) {
+        DataNodeInfo dataNode = dataNodes.get(hostname);
+        if (dataNode == null) {
+            log.warn("收到全量存储上报，但是DataNode不存在：[hostname={}]", hostname);
+            return;
+        }
+        FullStorageReport report = fullStorageReports.compute(hostname, (k, v) ->
+                v != null && v.getGeneration() >= generation ? v
+                        : new FullStorageReport(generation, replicaIndex.files(hostname)));
+        for (FileInfo fileInfo : addedFiles) {
+            addReplica(fileInfo);
+        }
+        if (report.getGeneration() != generation || !report.onBatchApplied(batchFiles, totalFiles)) {
+            return;
+        }
+        int removed = 0;
+        for (String filename : report.unreported()) {
+            if (replicaIndex.remove(filename, hostname) != null) {
+                removed++;
             }
-        } finally {
-            replicaLock.writeLock().unlock();
         }
+        log.info("全量上报处理完成，删除DataNode上已经不存在的副本：[hostname={}, generation={}, removed={}]",
+                hostname, generation, removed);
     }
 
     private Node maybeInTrash(String fileName) {
-        Node node = diskNameSystem.listFiles(fileName);
+        // 只读取副本数量，不需要拷贝节点
+        Node node = diskNameSystem.unsafeListFiles(fileName);
         if (node != null) {
             return node;
         }
-        String[] split = fileName.split("/");
-        String[] newSplit = new String[split.length + 1];
-        newSplit[0] = split[0];
-        newSplit[1] = split[1];
-        newSplit[2] = Constants.TRASH_DIR;
-        System.arraycopy(split, 2, newSplit, 3, split.length - 2);
-        String trashPath = String.join("/", newSplit);
-        return diskNameSystem.listFiles(trashPath);
+        return diskNameSystem.unsafeListFiles(TrashPolicyDefault.toTrashPath(fileName));
     }
 
     /**
@@ -394,25 +403,22 @@ public class DataNodeManager {
      * @return 可读的DataNode
      */
     public DataNodeInfo chooseReadableDataNodeByFileName(String filename, DataNodeInfo toRemoveDataNode) {
-        replicaLock.readLock().lock();
-        try {
-            List<DataNodeInfo> dataNodeInfos = replicaByFilename.get(filename);
-            if (dataNodeInfos == null) {
-                return null;
-            }
-            if (toRemoveDataNode != null) {
-                dataNodeInfos.remove(toRemoveDataNode);
-            }
-            if (dataNodeInfos.isEmpty()) {
-                return null;
+        if (toRemoveDataNode != null) {
+            replicaIndex.remove(filename, toRemoveDataNode.getHostname());
+        }
+        FileInfo[] replicas = replicaIndex.get(filename);
+        if (replicas.length == 0) {
+            return null;
+        }
+        // 从随机的位置开始找，跳过已经下线的DataNode
+        int start = ThreadLocalRandom.current().nextInt(replicas.length);
+        for (int i = 0; i < replicas.length; i++) {
+            DataNodeInfo dataNode = dataNodes.get(replicas[(start + i) % replicas.length].getHostname());
+            if (dataNode != null) {
+                return dataNode;
             }
-            int size = dataNodeInfos.size();
-            Random random = new Random();
-            int i = random.nextInt(size);
-            return dataNodeInfos.get(i);
-        } finally {
-            replicaLock.readLock().unlock();
         }
+        return null;
     }
 
     /**
@@ -422,12 +428,15 @@ public class DataNodeManager {
      * @return DataNode信息
      */
     public List<DataNodeInfo> getDataNodeByFileName(String filename) {
-        replicaLock.readLock().lock();
-        try {
-            return replicaByFilename.getOrDefault(filename, new ArrayList<>(PrettyCodes.trimListSize()));
-        } finally {
-            replicaLock.readLock().unlock();
+        FileInfo[] replicas = replicaIndex.get(filename);
+        List<DataNodeInfo> ret = new ArrayList<>(replicas.length);
+        for (FileInfo replica : replicas) {
+            DataNodeInfo dataNode = dataNodes.get(replica.getHostname());
+            if (dataNode != null) {
+                ret.add(dataNode);
+            }
         }
+        return ret;
     }
 
 
@@ -447,65 +456,39 @@ public class DataNodeManager {
      * @return 被删除的文件信息
      */
     public FileInfo removeFileStorage(String filename, boolean delReplica) {
-        replicaLock.writeLock().lock();
-        try {
-            List<DataNodeInfo> fileDataNodes = replicaByFilename.remove(filename);
-            if (fileDataNodes == null) {
-                return null;
-            }
-            FileInfo ret = null;
-            for (Map<String, FileInfo> dataNodeFileInfo : filesByDataNode.values()) {
-                FileInfo fileInfo = dataNodeFileInfo.remove(filename);
-                if (fileInfo != null) {
-                    ret = fileInfo;
-                }
-            }
-
-            if (delReplica) {
-                for (DataNodeInfo dataNodeInfo : fileDataNodes) {
-                    DataNodeInfo dataNode = dataNodes.get(dataNodeInfo.getHostname());
-                    RemoveReplicaTask task = new RemoveReplicaTask(dataNode.getHostname(), filename);
-                    log.info("下发副本删除任务：[hostname={}, filename={}]", dataNode.getHostname(), filename);
-                    dataNode.addRemoveReplicaTask(task);
+        FileInfo[] replicas = replicaIndex.removeFile(filename);
+        if (replicas.length == 0) {
+            return null;
+        }
+        if (delReplica) {
+            for (FileInfo replica : replicas) {
+                DataNodeInfo dataNode = dataNodes.get(replica.getHostname());
+                if (dataNode == null) {
+                    continue;
                 }
+                RemoveReplicaTask task = new RemoveReplicaTask(dataNode.getHostname(), filename);
+                log.info("下发副本删除任务：[hostname={}, filename={}]", dataNode.getHostname(), filename);
+                dataNode.addRemoveReplicaTask(task);
             }
-            return ret;
-        } finally {
-            replicaLock.writeLock().unlock();
         }
+        return replicas[replicas.length - 1];
     }
 
     public FileInfo getFileStorage(String filename) {
-        replicaLock.readLock().lock();
-        try {
-            for (Map<String, FileInfo> map : filesByDataNode.values()) {
-                FileInfo fileInfo = map.get(filename);
-                if (fileInfo != null) {
-                    return fileInfo;
-                }
-            }
-            return null;
-        } finally {
-            replicaLock.readLock().unlock();
-        }
+        FileInfo[] replicas = replicaIndex.get(filename);
+        return replicas.length == 0 ? null : replicas[0];
     }
 
     /**
-     * 等待知道DataNode上报文件
+     * 等待DataNode上报文件，不阻塞调用线程
      *
      * @param filename 文件名
+     * @param timeout  超时时间，单位毫秒
+     * @return 有可读的DataNode上报了文件之后完成，超时的时候以 {@link NameNodeException} 异常完成
      */
-    public void waitFileReceive(String filename, long timeout) throws NameNodeException, InterruptedException {
-        long remainTimeout = timeout;
-        synchronized (this) {
-            while (chooseReadableDataNodeByFileName(filename) == null) {
-                if (remainTimeout < 0) {
-                    throw new NameNodeException("等待文件上传确认超时：" + filename);
-                }
-                wait(10);
-                remainTimeout -= 10;
-            }
-        }
+    public CompletableFuture<Void> waitFileReceive(String filename, long timeout) {
+        return fileReceiveRegistry.await(filename, timeout,
+                () -> chooseReadableDataNodeByFileName(filename) != null);
     }
 
     /**
@@ -519,8 +502,7 @@ public class DataNodeManager {
         List<DataNodeInfo> dataNodeInfos = allocateDataNodes(username, addNum, filename);
         DataNodeInfo sourceDataNode = chooseReadableDataNodeByFileName(filename);
         Node node = diskNameSystem.unsafeListFiles(filename);
-        int replicaNum = Integer.parseInt(node.getAttr().getOrDefault(Constants.ATTR_REPLICA_NUM,
-                String.valueOf(nameNodeConfig.getReplicaNum())));
+        int replicaNum = node.getReplicaNum(nameNodeConfig.getReplicaNum());
         node.getAttr().put(Constants.ATTR_REPLICA_NUM, String.valueOf(replicaNum + addNum));
         for (DataNodeInfo destDataNode : dataNodeInfos) {
             ReplicaTask task = new ReplicaTask(filename, sourceDataNode.getHostname(), sourceDataNode.getNioPort());
@@ -530,6 +512,10 @@ public class DataNodeManager {
         }
     }
 
+    public void shutdown() {
+        fileReceiveRegistry.shutdown();
+    }
+
     /**
      * dataNode是否存活的监控线程
      *
@@ -554,7 +540,11 @@ public class DataNodeManager {
                 iterator.remove();
                 toRemoveDataNode.add(next);
             }
+            if (!toRemoveDataNode.isEmpty()) {
+                sortReadyDataNode();
+            }
             for (DataNodeInfo info : toRemoveDataNode) {
+                fullStorageReports.remove(info.getHostname());
                 createLostReplicaTask(info);
             }
         }
@@ -0,0 +1,84 @@
+package com.ruyuan.dfs.namenode.datanode;
+
+import com.ruyuan.dfs.common.exception.NameNodeException;
+import com.ruyuan.dfs.common.utils.NamedThreadFactory;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 等待DataNode上报文件的登记表
+ *
+ * <pre>
+ * 客户端确认上传完成的时候，如果DataNode还没有上报文件，为文件登记一个future，不占用线程等待。
+ * DataNode上报副本的时候完成future，超时由时间轮触发，两者都会把future从登记表中删除。
+ *
+ * 同一个文件同时有多个等待者的时候共用一个future，超时时间以最先登记的为准。
+ * 登记之后会再检查一次文件是否已经上报，避免检查和登记之间上报的副本被错过。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+class FileReceiveRegistry {
+
+    private final Map<String, CompletableFuture<Void>> waiters = new ConcurrentHashMap<>();
+    private final HashedWheelTimer timer = new HashedWheelTimer(
+            new NamedThreadFactory("FileReceive-Timer-"), 10, TimeUnit.MILLISECONDS);
+
+    /**
+     * 等待文件上报
+     *
+     * @param filename 文件名
+     * @param timeout  超时时间，单位毫秒
+     * @param received 文件是否已经上报
+     * @return 文件上报之后完成，超时的时候以 {@link NameNodeException} 异常完成
+     */
+    CompletableFuture<Void> await(String filename, long timeout, BooleanSupplier received) {
+        if (received.getAsBoolean()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletableFuture<Void> existing = waiters.putIfAbsent(filename, future);
+        if (existing != null) {
+            return existing;
+        }
+        Timeout timer = this.timer.newTimeout(t -> {
+            if (waiters.remove(filename, future)) {
+                future.completeExceptionally(new NameNodeException("等待文件上传确认超时：" + filename));
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        future.whenComplete((v, e) -> timer.cancel());
+        if (received.getAsBoolean()) {
+            informReplicaReceived(filename);
+        }
+        return future;
+    }
+
+    /**
+     * 文件的副本已经上报
+     *
+     * @param filename 文件名
+     */
+    void informReplicaReceived(String filename) {
+        CompletableFuture<Void> future = waiters.remove(filename);
+        if (future != null) {
+            future.complete(null);
+        }
+    }
+
+    /**
+     * 等待中的文件数量
+     */
+    int size() {
+        return waiters.size();
+    }
+
+    void shutdown() {
+        timer.stop();
+    }
+}
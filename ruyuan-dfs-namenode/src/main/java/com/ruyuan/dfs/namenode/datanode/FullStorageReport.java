@@ -0,0 +1,68 @@
+package com.ruyuan.dfs.namenode.datanode;
+
+import com.ruyuan.dfs.common.utils.OpenHashSet;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DataNode一次全量上报的进度
+ *
+ * <pre>
+ * 全量上报要用上报的文件替换NameNode记录的副本，而不只是添加。开始的时候记录DataNode当前所有副本的文件名，
+ * 上报过程中收到的副本从中划掉，所有批次都处理完之后，剩下的就是DataNode上已经不存在的副本。
+ *
+ * 批次在线程池中处理，顺序不固定，所以不依赖finished标记，而是累计处理过的文件数量，等于上报的文件总数时完成。
+ * 上报期间通过别的途径收到的副本同样会划掉，避免被误删。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+class FullStorageReport {
+
+    private final long generation;
+    private final OpenHashSet<String> unreported = new OpenHashSet<>();
+    private final AtomicLong appliedFiles = new AtomicLong();
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    /**
+     * @param generation 全量上报的代数
+     * @param filenames  开始上报时DataNode的所有副本
+     */
+    FullStorageReport(long generation, List<String> filenames) {
+        this.generation = generation;
+        for (String filename : filenames) {
+            unreported.add(filename);
+        }
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * 收到DataNode上的一个副本
+     */
+    void markReported(String filename) {
+        unreported.remove(filename);
+    }
+
+    /**
+     * 一个批次处理完成
+     *
+     * @param files      批次中的文件数量，包括不属于当前NameNode的文件
+     * @param totalFiles 这次全量上报的文件总数
+     * @return 所有批次都处理完成的时候返回true，只会返回一次
+     */
+    boolean onBatchApplied(int files, long totalFiles) {
+        return appliedFiles.addAndGet(files) >= totalFiles && completed.compareAndSet(false, true);
+    }
+
+    /**
+     * @return 没有上报的副本
+     */
+    List<String> unreported() {
+        return unreported.toList();
+    }
+}
@@ -0,0 +1,205 @@
+package com.ruyuan.dfs.namenode.datanode;
+
+import com.ruyuan.dfs.common.FileInfo;
+import com.ruyuan.dfs.common.utils.OpenHashSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 文件副本的双向索引
+ *
+ * <pre>
+ * 文件名 -> 副本数组：每个副本是DataNode上报的 {@link FileInfo}，数组不会被修改，修改时复制一份新的数组替换，
+ * 读取副本位置不需要加锁，开销是 O(副本数量)。
+ *
+ * DataNode -> 文件名集合：只在DataNode宕机时使用，找出需要补充副本的文件。每个DataNode使用一个 {@link OpenHashSet}，
+ * 只保存文件名的引用，和副本数组中的 FileInfo 共用同一个字符串。
+ *
+ * 同一个文件的修改按照文件名分段加锁，保证"检查副本数量再添加"这样的操作是原子的，不同文件的修改可以并发执行。
+ * 两个索引的修改都在文件对应的分段锁中完成，DataNode的文件名集合在自己的monitor中修改。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+class ReplicaIndex {
+
+    private static final FileInfo[] EMPTY = new FileInfo[0];
+    private static final int STRIPES = 256;
+
+    private final Map<String, FileInfo[]> replicasByFilename = new ConcurrentHashMap<>();
+    private final Map<String, OpenHashSet<String>> filesByDataNode = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[STRIPES];
+
+    ReplicaIndex() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * 获取文件的所有副本
+     *
+     * @param filename 文件名
+     * @return 副本，不存在时返回空数组，调用方不能修改
+     */
+    FileInfo[] get(String filename) {
+        return replicasByFilename.getOrDefault(filename, EMPTY);
+    }
+
+    /**
+     * DataNode上是否有文件的副本
+     */
+    boolean contains(String filename, String hostname) {
+        return indexOf(get(filename), hostname) >= 0;
+    }
+
+    /**
+     * 添加一个副本，同一个DataNode重复上报时更新副本信息
+     *
+     * @param fileInfo    副本信息
+     * @param maxReplicas 文件最多的副本数量
+     * @return 是否添加成功，副本数量已经达到上限时返回false
+     */
+    boolean add(FileInfo fileInfo, int maxReplicas) {
+        String filename = fileInfo.getFileName();
+        synchronized (lock(filename)) {
+            FileInfo[] replicas = get(filename);
+            int index = indexOf(replicas, fileInfo.getHostname());
+            FileInfo[] updated;
+            if (index >= 0) {
+                updated = replicas.clone();
+                updated[index] = fileInfo;
+            } else {
+                if (replicas.length >= maxReplicas) {
+                    return false;
+                }
+                updated = new FileInfo[replicas.length + 1];
+                System.arraycopy(replicas, 0, updated, 0, replicas.length);
+                updated[replicas.length] = fileInfo;
+            }
+            replicasByFilename.put(filename, updated);
+            filesByDataNode.computeIfAbsent(fileInfo.getHostname(), k -> new OpenHashSet<>()).add(filename);
+            return true;
+        }
+    }
+
+    /**
+     * 删除文件在某个DataNode上的副本
+     *
+     * @return 被删除的副本，不存在返回null
+     */
+    FileInfo remove(String filename, String hostname) {
+        synchronized (lock(filename)) {
+            FileInfo removed = removeReplica(filename, hostname);
+            OpenHashSet<String> files = filesByDataNode.get(hostname);
+            if (removed != null && files != null) {
+                files.remove(filename);
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * 删除文件的所有副本
+     *
+     * @return 被删除的副本，不存在时返回空数组
+     */
+    FileInfo[] removeFile(String filename) {
+        synchronized (lock(filename)) {
+            FileInfo[] replicas = replicasByFilename.remove(filename);
+            if (replicas == null) {
+                return EMPTY;
+            }
+            for (FileInfo replica : replicas) {
+                OpenHashSet<String> files = filesByDataNode.get(replica.getHostname());
+                if (files != null) {
+                    files.remove(filename);
+                }
+            }
+            return replicas;
+        }
+    }
+
+    /**
+     * 删除DataNode上的所有副本，DataNode宕机的时候使用
+     *
+     * <pre>
+     * 删除的过程中DataNode可能重新注册并上报，所以文件名集合不会整个摘掉，而是对开始时集合中的每个文件，
+     * 在文件的分段锁中同时从两个索引中删除。删除之后重新上报的副本会留在两个索引中，没有被遍历到的新文件不受影响。
+     * 空的集合留在索引中，DataNode重新上报的时候继续使用。
+     * </pre>
+     *
+     * @param hostname DataNode
+     * @return 被删除的副本
+     */
+    List<FileInfo> removeDataNode(String hostname) {
+        OpenHashSet<String> files = filesByDataNode.get(hostname);
+        if (files == null) {
+            return new ArrayList<>(0);
+        }
+        List<String> filenames = files.toList();
+        List<FileInfo> ret = new ArrayList<>(filenames.size());
+        for (String filename : filenames) {
+            FileInfo removed = remove(filename, hostname);
+            if (removed != null) {
+                ret.add(removed);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * DataNode上所有副本的文件名
+     *
+     * @return 文件名的拷贝
+     */
+    List<String> files(String hostname) {
+        OpenHashSet<String> files = filesByDataNode.get(hostname);
+        return files == null ? new ArrayList<>(0) : files.toList();
+    }
+
+    /**
+     * DataNode上的副本数量
+     */
+    int size(String hostname) {
+        OpenHashSet<String> files = filesByDataNode.get(hostname);
+        return files == null ? 0 : files.size();
+    }
+
+    /**
+     * 调用方持有文件对应的分段锁，只修改文件名 -> 副本数组的索引
+     */
+    private FileInfo removeReplica(String filename, String hostname) {
+        FileInfo[] replicas = get(filename);
+        int index = indexOf(replicas, hostname);
+        if (index < 0) {
+            return null;
+        }
+        if (replicas.length == 1) {
+            replicasByFilename.remove(filename);
+        } else {
+            FileInfo[] updated = new FileInfo[replicas.length - 1];
+            System.arraycopy(replicas, 0, updated, 0, index);
+            System.arraycopy(replicas, index + 1, updated, index, updated.length - index);
+            replicasByFilename.put(filename, updated);
+        }
+        return replicas[index];
+    }
+
+    private Object lock(String filename) {
+        int h = filename.hashCode() * 0x9E3779B9;
+        return locks[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static int indexOf(FileInfo[] replicas, String hostname) {
+        for (int i = 0; i < replicas.length; i++) {
+            if (replicas[i].getHostname().equals(hostname)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
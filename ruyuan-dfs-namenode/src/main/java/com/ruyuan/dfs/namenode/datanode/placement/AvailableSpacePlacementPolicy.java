@@ -0,0 +1,63 @@
+package com.ruyuan.dfs.namenode.datanode.placement;
+
+import com.ruyuan.dfs.namenode.datanode.DataNodeInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * 默认的放置策略：优先选择存储大小最小的DataNode
+ *
+ * <pre>
+ * 在上传小文件的时候，文件大小较小，为了避免流量都打到同一台DataNode机器，
+ * 存储大小和最小的DataNode相差在1G以内的DataNode都作为候选，在候选中随机选择。
+ * 候选数量不够的时候按照存储大小从小到大补齐。
+ *
+ * 候选的DataNode通过蓄水池抽样选择，只遍历一次数组，除了返回结果之外不需要额外的内存。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class AvailableSpacePlacementPolicy implements PlacementPolicy {
+
+    static final String NAME = "available-space";
+
+    private static final long DELTA = 1024 * 1024 * 1024;
+
+    @Override
+    public List<DataNodeInfo> choose(DataNodeInfo[] dataNodes, int count, Predicate<DataNodeInfo> excluded) {
+        List<DataNodeInfo> ret = new ArrayList<>(count);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long minStoredDataSize = -1;
+        int seen = 0;
+        for (DataNodeInfo dataNode : dataNodes) {
+            if (excluded.test(dataNode)) {
+                continue;
+            }
+            long storedDataSize = dataNode.getStoredDataSize();
+            if (minStoredDataSize < 0) {
+                minStoredDataSize = storedDataSize;
+            }
+            if (storedDataSize - minStoredDataSize > DELTA) {
+                // 候选已经足够，或者已经不是候选了，按照顺序补齐
+                if (ret.size() >= count) {
+                    break;
+                }
+                ret.add(dataNode);
+                continue;
+            }
+            seen++;
+            if (ret.size() < count) {
+                ret.add(dataNode);
+            } else {
+                int index = random.nextInt(seen);
+                if (index < count) {
+                    ret.set(index, dataNode);
+                }
+            }
+        }
+        return ret;
+    }
+}
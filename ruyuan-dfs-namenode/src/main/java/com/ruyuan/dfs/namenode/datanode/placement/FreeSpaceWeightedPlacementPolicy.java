@@ -0,0 +1,60 @@
+package com.ruyuan.dfs.namenode.datanode.placement;
+
+import com.ruyuan.dfs.namenode.datanode.DataNodeInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * 按照剩余空间加权随机选择DataNode，剩余空间越大被选中的概率越大
+ *
+ * <pre>
+ * 适合DataNode磁盘大小不一样的集群，按照存储大小选择会让小磁盘的DataNode先被写满。
+ *
+ * 使用加权的无放回抽样：每个DataNode生成一个 指数分布随机数 / 权重 的key，选择key最小的count个，
+ * 只需要遍历一次数组，开销是 O(DataNode数量 × 副本数量)，副本数量很小，基本上是线性的。
+ * 没有上报剩余空间的DataNode按照1个字节的权重参与选择。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class FreeSpaceWeightedPlacementPolicy implements PlacementPolicy {
+
+    static final String NAME = "free-space-weighted";
+
+    @Override
+    public List<DataNodeInfo> choose(DataNodeInfo[] dataNodes, int count, Predicate<DataNodeInfo> excluded) {
+        if (count <= 0) {
+            return new ArrayList<>(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        DataNodeInfo[] selected = new DataNodeInfo[count];
+        double[] keys = new double[count];
+        int size = 0;
+        for (DataNodeInfo dataNode : dataNodes) {
+            if (excluded.test(dataNode)) {
+                continue;
+            }
+            double key = -Math.log(1 - random.nextDouble()) / Math.max(dataNode.getFreeSpace(), 1L);
+            if (size == count && key >= keys[size - 1]) {
+                continue;
+            }
+            // 按照key从小到大插入，超过count个的时候丢弃最大的
+            int i = size == count ? size - 1 : size++;
+            while (i > 0 && keys[i - 1] > key) {
+                keys[i] = keys[i - 1];
+                selected[i] = selected[i - 1];
+                i--;
+            }
+            keys[i] = key;
+            selected[i] = dataNode;
+        }
+        List<DataNodeInfo> ret = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ret.add(selected[i]);
+        }
+        return ret;
+    }
+}
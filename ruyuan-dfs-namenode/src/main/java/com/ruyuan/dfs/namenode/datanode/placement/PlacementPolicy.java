@@ -0,0 +1,60 @@
+package com.ruyuan.dfs.namenode.datanode.placement;
+
+import com.ruyuan.dfs.namenode.datanode.DataNodeInfo;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * 副本放置策略：为新文件或者需要补充的副本选择DataNode
+ *
+ * <pre>
+ * DataNodeManager维护一个按照存储大小从小到大排序的可用DataNode数组，DataNode上线、下线的时候立即重建，
+ * 存储大小的变化每隔一段时间重新排序一次。策略只需要在这个数组上做选择，不需要每次排序，也不应该修改数组。
+ *
+ * 通过配置 namenode.placement.policy 选择策略：
+ *
+ *  1. available-space：默认策略，在存储大小最小的一批DataNode中随机选择，见 {@link AvailableSpacePlacementPolicy}
+ *  2. free-space-weighted：按照剩余空间加权随机选择，见 {@link FreeSpaceWeightedPlacementPolicy}
+ *  3. rack-aware：副本尽量分布在不同的机架上，见 {@link RackAwarePlacementPolicy}
+ *
+ * 也可以配置实现了这个接口的类的全限定名，类需要有无参构造函数。策略会被多个线程同时调用，实现需要是线程安全的。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public interface PlacementPolicy {
+
+    /**
+     * 选择DataNode
+     *
+     * @param dataNodes 按照存储大小从小到大排序的可用DataNode
+     * @param count     需要的DataNode数量
+     * @param excluded  不能选择的DataNode，例如已经有这个文件副本的DataNode
+     * @return 选中的DataNode，可用的DataNode不足时返回的数量小于count
+     */
+    List<DataNodeInfo> choose(DataNodeInfo[] dataNodes, int count, Predicate<DataNodeInfo> excluded);
+
+    /**
+     * 根据配置创建放置策略
+     *
+     * @param policy 内置策略的名称，或者实现类的全限定名
+     * @return 放置策略
+     */
+    static PlacementPolicy create(String policy) {
+        if (policy == null || policy.isEmpty() || AvailableSpacePlacementPolicy.NAME.equals(policy)) {
+            return new AvailableSpacePlacementPolicy();
+        }
+        if (FreeSpaceWeightedPlacementPolicy.NAME.equals(policy)) {
+            return new FreeSpaceWeightedPlacementPolicy();
+        }
+        if (RackAwarePlacementPolicy.NAME.equals(policy)) {
+            return new RackAwarePlacementPolicy(new AvailableSpacePlacementPolicy());
+        }
+        try {
+            return (PlacementPolicy) Class.forName(policy).getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("无法创建副本放置策略：" + policy, e);
+        }
+    }
+}
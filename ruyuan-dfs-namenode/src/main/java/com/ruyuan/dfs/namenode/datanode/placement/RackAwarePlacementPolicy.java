@@ -0,0 +1,49 @@
+package com.ruyuan.dfs.namenode.datanode.placement;
+
+import com.ruyuan.dfs.namenode.datanode.DataNodeInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * 机架感知的放置策略：同一个文件的副本尽量放在不同的机架上
+ *
+ * <pre>
+ * 机架是DataNode注册时通过 datanode.rack 上报的任意字符串，也可以用来表示可用区，例如 /zone-a/rack-1。
+ * 每次委托给另一个策略选择一个DataNode，并排除已经选中的机架。机架数量少于副本数量的时候，
+ * 剩下的副本不再要求机架不同，只排除已经选中的DataNode。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class RackAwarePlacementPolicy implements PlacementPolicy {
+
+    static final String NAME = "rack-aware";
+
+    private final PlacementPolicy delegate;
+
+    public RackAwarePlacementPolicy(PlacementPolicy delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public List<DataNodeInfo> choose(DataNodeInfo[] dataNodes, int count, Predicate<DataNodeInfo> excluded) {
+        List<DataNodeInfo> ret = new ArrayList<>(count);
+        List<String> racks = new ArrayList<>(count);
+        Predicate<DataNodeInfo> selected = dataNode -> excluded.test(dataNode) || ret.contains(dataNode);
+        Predicate<DataNodeInfo> sameRack = dataNode -> selected.test(dataNode) || racks.contains(Objects.toString(dataNode.getRack(), ""));
+        while (ret.size() < count) {
+            List<DataNodeInfo> chosen = delegate.choose(dataNodes, 1, sameRack);
+            if (chosen.isEmpty()) {
+                chosen = delegate.choose(dataNodes, count - ret.size(), selected);
+                ret.addAll(chosen);
+                break;
+            }
+            ret.add(chosen.get(0));
+            racks.add(Objects.toString(chosen.get(0).getRack(), ""));
+        }
+        return ret;
+    }
+}
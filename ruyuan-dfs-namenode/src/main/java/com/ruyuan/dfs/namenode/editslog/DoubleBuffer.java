@@ -43,8 +43,8 @@ public class DoubleBuffer {
     /**
      * 把缓冲区的editlog数据刷新到磁盘
      */
-    public EditslogInfo flush() throws IOException {
-        EditslogInfo editslogInfo = syncBuffer.flush();
+    public EditslogInfo flush(EditLogSegmentManager segmentManager) throws IOException {
+        EditslogInfo editslogInfo = syncBuffer.flush(segmentManager);
         if (editslogInfo != null) {
             syncBuffer.clear();
         }
@@ -1,6 +1,5 @@
 package com.ruyuan.dfs.namenode.editslog;
 
-import com.ruyuan.dfs.common.utils.FileUtil;
 import com.ruyuan.dfs.namenode.config.NameNodeConfig;
 import lombok.extern.slf4j.Slf4j;
 
@@ -22,6 +21,7 @@ public class EditLogBuffer {
     private ByteArrayOutputStream buffer;
     private volatile long startTxid = -1L;
     private volatile long endTxid = 0L;
+    private int count = 0;
 
     public EditLogBuffer(NameNodeConfig nameNodeConfig) {
         this.nameNodeConfig = nameNodeConfig;
@@ -40,6 +40,7 @@ public class EditLogBuffer {
         }
         endTxid = editLog.getTxId();
         buffer.write(editLog.toByteArray());
+        count++;
     }
 
     /**
@@ -62,6 +63,7 @@ public class EditLogBuffer {
         buffer.reset();
         startTxid = -1;
         endTxid = -1;
+        count = 0;
     }
 
     /**
@@ -72,17 +74,16 @@ public class EditLogBuffer {
     }
 
     /**
-     * 刷磁盘
+     * 刷磁盘，追加到正在写入的段文件中
+     *
+     * @param segmentManager 段文件管理器
      */
-    public EditslogInfo flush() throws IOException {
+    public EditslogInfo flush(EditLogSegmentManager segmentManager) throws IOException {
         if (buffer.size() <= 0) {
             return null;
         }
         byte[] data = buffer.toByteArray();
         ByteBuffer dataBuffer = ByteBuffer.wrap(data);
-        String path = nameNodeConfig.getEditlogsFile(startTxid, endTxid);
-        log.info("保存editslog文件：[file={}]", path);
-        FileUtil.saveFile(path, false, dataBuffer);
-        return new EditslogInfo(startTxid, endTxid, path);
+        return segmentManager.append(startTxid, endTxid, count, dataBuffer);
     }
 }
\ No newline at end of file
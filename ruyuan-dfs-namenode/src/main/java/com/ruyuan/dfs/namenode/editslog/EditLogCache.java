@@ -0,0 +1,101 @@
+package com.ruyuan.dfs.namenode.editslog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 最近刷盘的editlog的环形缓存
+ *
+ * <pre>
+ * 刷盘线程在一批editlog刷盘成功之后直接放入缓存，缓存的是已经解析好的editlog，读取的时候不需要再解析：
+ *
+ *  1. txid是连续的，txid对应的位置是 txid & mask，新的editlog覆盖最老的editlog，不需要额外的索引。
+ *  2. 只有刷盘线程会写入，写完一批之后才更新lastTxId，读取线程先读lastTxId，保证能看到这之前写入的editlog。
+ *  3. 读取的时候校验每个位置上editlog的txid，被覆盖了就停止读取，写入失败没有刷盘的txid直接跳过。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class EditLogCache {
+
+    private final EditLogWrapper[] ring;
+    private final int mask;
+    /**
+     * 缓存中最小的txid，-1表示还没有写入
+     */
+    private volatile long firstTxId = -1;
+    /**
+     * 缓存中最大的txid
+     */
+    private volatile long lastTxId = -1;
+
+    /**
+     * @param capacity 缓存的数量，会向上取整到2的幂
+     */
+    public EditLogCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.ring = new EditLogWrapper[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * 放入一批刚刷盘的editlog，只能在刷盘线程中调用
+     *
+     * @param editLogs 按照txid升序排列的editlog
+     */
+    void put(List<EditLogWrapper> editLogs) {
+        if (editLogs.isEmpty()) {
+            return;
+        }
+        for (EditLogWrapper editLog : editLogs) {
+            ring[(int) (editLog.getTxId() & mask)] = editLog;
+        }
+        if (firstTxId < 0) {
+            firstTxId = editLogs.get(0).getTxId();
+        }
+        lastTxId = editLogs.get(editLogs.size() - 1).getTxId();
+    }
+
+    /**
+     * 读取txId之后的一批editlog
+     *
+     * @param txId     从下一条开始读取
+     * @param maxSize  最多读取的数量
+     * @param maxBytes 最多读取的字节数，至少会读取一条
+     * @return editlog，txId之后的editlog已经不在缓存中的时候返回null
+     */
+    public List<EditLogWrapper> get(long txId, int maxSize, int maxBytes) {
+        long last = lastTxId;
+        long first = Math.max(firstTxId, last - ring.length + 1);
+        if (firstTxId < 0 || txId + 1 < first) {
+            return null;
+        }
+        List<EditLogWrapper> result = new ArrayList<>(Math.min(maxSize, (int) Math.max(0, last - txId)));
+        int bytes = 0;
+        for (long i = txId + 1; i <= last && result.size() < maxSize && bytes < maxBytes; i++) {
+            EditLogWrapper editLog = ring[(int) (i & mask)];
+            if (editLog == null || editLog.getTxId() < i) {
+                // 写入失败没有刷盘的txid
+                continue;
+            }
+            if (editLog.getTxId() > i) {
+                // 读取过程中被新的editlog覆盖了
+                break;
+            }
+            result.add(editLog);
+            bytes += editLog.getSerializedSize();
+        }
+        if (result.isEmpty() && txId < last) {
+            return null;
+        }
+        return result;
+    }
+
+    public long getLastTxId() {
+        return lastTxId;
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+}
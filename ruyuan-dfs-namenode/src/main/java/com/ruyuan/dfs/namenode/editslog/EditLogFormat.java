@@ -0,0 +1,151 @@
+package com.ruyuan.dfs.namenode.editslog;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.ruyuan.dfs.model.backup.EditLog;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <pre>
+ * editlog的磁盘格式
+ *
+ * 版本1：没有文件头，每条editlog为 [4字节长度][EditLog]
+ *
+ * 版本2：
+ *      文件头： [4字节MAGIC][4字节版本号]
+ *      记录：   [4字节长度][4字节CRC32C][EditLog]
+ *      文件尾： [4字节-1][8字节startTxId][8字节endTxId][8字节记录数量][8字节数据长度][4字节CRC32C]
+ *
+ * 段文件预分配的空间都是0，读到长度为0说明后面没有数据了。段文件写入完成之后才会追加文件尾。
+ * 读取的时候遇到长度不合法、数据不完整或者CRC校验失败，都会停在最后一条合法的editlog上，
+ * 读取逻辑参考 {@link EditLogReader}
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class EditLogFormat {
+
+    public static final int MAGIC = 0x5244454C;
+    public static final int LEGACY_LAYOUT_VERSION = 1;
+    public static final int LAYOUT_VERSION = 2;
+    public static final int HEADER_SIZE = 8;
+    public static final int RECORD_HEADER_SIZE = 8;
+    public static final int FOOTER_MARK = -1;
+    public static final int FOOTER_SIZE = 40;
+    /**
+     * 单条editlog的最大长度，超过这个长度认为数据已经损坏
+     */
+    public static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    private static final HashFunction CRC32C = Hashing.crc32c();
+
+    /**
+     * 读取结果
+     */
+    public enum Status {
+        /**
+         * 读到了数据末尾或者预分配的空白区域
+         */
+        EOF,
+        /**
+         * 读到了合法的文件尾
+         */
+        FOOTER,
+        /**
+         * 最后一条editlog没有写完整
+         */
+        TORN,
+        /**
+         * 数据校验失败
+         */
+        CORRUPT
+    }
+
+    @Getter
+    public static class ScanResult {
+        Status status = Status.EOF;
+        int layoutVersion;
+        long validLength;
+        long firstTxId = -1;
+        long lastTxId = -1;
+        long count;
+
+        /**
+         * 是否完整地读完了所有数据，没有遇到损坏的数据
+         */
+        public boolean isClean() {
+            return status == Status.EOF || status == Status.FOOTER;
+        }
+
+        @Override
+        public String toString() {
+            return "ScanResult{" +
+                    "status=" + status +
+                    ", layoutVersion=" + layoutVersion +
+                    ", validLength=" + validLength +
+                    ", firstTxId=" + firstTxId +
+                    ", lastTxId=" + lastTxId +
+                    ", count=" + count +
+                    '}';
+        }
+    }
+
+    public static int crc32c(byte[] data, int offset, int length) {
+        return CRC32C.hashBytes(data, offset, length).asInt();
+    }
+
+    /**
+     * 写文件头
+     */
+    public static ByteBuffer header() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(LAYOUT_VERSION);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 编码一条editlog
+     */
+    public static byte[] encode(EditLog editLog) {
+        byte[] body = editLog.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length);
+        buffer.putInt(body.length);
+        buffer.putInt(crc32c(body, 0, body.length));
+        buffer.put(body);
+        return buffer.array();
+    }
+
+    /**
+     * 生成文件尾
+     */
+    public static ByteBuffer footer(long startTxId, long endTxId, long count, long dataLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(FOOTER_SIZE);
+        buffer.putInt(FOOTER_MARK);
+        buffer.putLong(startTxId);
+        buffer.putLong(endTxId);
+        buffer.putLong(count);
+        buffer.putLong(dataLength);
+        buffer.putInt(crc32c(buffer.array(), 0, FOOTER_SIZE - 4));
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 读取文件头，读取之后buffer的position指向第一条editlog
+     *
+     * @param buffer 文件数据
+     * @return 版本号，没有文件头的是旧版本的格式
+     */
+    public static int readHeader(ByteBuffer buffer) {
+        if (buffer.remaining() >= HEADER_SIZE && buffer.getInt(buffer.position()) == MAGIC) {
+            int version = buffer.getInt(buffer.position() + 4);
+            buffer.position(buffer.position() + HEADER_SIZE);
+            return version;
+        }
+        return LEGACY_LAYOUT_VERSION;
+    }
+}
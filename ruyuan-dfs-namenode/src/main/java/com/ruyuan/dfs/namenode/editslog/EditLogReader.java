@@ -0,0 +1,267 @@
+package com.ruyuan.dfs.namenode.editslog;
+
+import com.ruyuan.dfs.model.backup.EditLog;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <pre>
+ * 流式读取editlog
+ *
+ * 通过一个固定大小的缓冲区从文件中增量读取数据，每次只解析一条editlog，
+ * 内存占用和文件大小无关，只和缓冲区大小以及单条editlog的大小有关。
+ *
+ * 读到数据末尾、文件尾或者损坏的数据时返回null，通过 {@link #getResult()} 获取读取结果，
+ * 读取结果中的validLength是最后一条合法editlog的末尾位置。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+@Slf4j
+public class EditLogReader implements Closeable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long limit;
+    private long readPosition;
+    private ByteBuffer buffer;
+    private final boolean legacy;
+    private final int recordHeaderSize;
+    private final long headerSize;
+    private final EditLogFormat.ScanResult result = new EditLogFormat.ScanResult();
+    private boolean finished = false;
+
+    private EditLogReader(FileChannel channel, long limit, ByteBuffer buffer, boolean hasHeader) throws IOException {
+        this.channel = channel;
+        this.limit = limit;
+        this.buffer = buffer;
+        int version = EditLogFormat.LAYOUT_VERSION;
+        if (hasHeader) {
+            ensure(EditLogFormat.HEADER_SIZE);
+            version = EditLogFormat.readHeader(this.buffer);
+            if (version != EditLogFormat.LEGACY_LAYOUT_VERSION && version != EditLogFormat.LAYOUT_VERSION) {
+                close();
+                throw new IllegalStateException("不支持的editlog格式版本：" + version);
+            }
+        }
+        this.legacy = version == EditLogFormat.LEGACY_LAYOUT_VERSION;
+        this.recordHeaderSize = legacy ? 4 : EditLogFormat.RECORD_HEADER_SIZE;
+        this.headerSize = hasHeader && !legacy ? EditLogFormat.HEADER_SIZE : 0;
+        this.result.layoutVersion = version;
+        this.result.validLength = headerSize;
+    }
+
+    /**
+     * 打开一个editlog文件
+     *
+     * @param name 文件路径
+     * @return reader
+     * @throws IOException IO异常
+     */
+    public static EditLogReader open(String name) throws IOException {
+        return open(name, -1, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * 打开一个editlog文件
+     *
+     * @param name       文件路径
+     * @param limit      最多读取多少字节，小于0表示读取整个文件
+     * @param bufferSize 缓冲区大小
+     * @return reader
+     * @throws IOException IO异常
+     */
+    public static EditLogReader open(String name, long limit, int bufferSize) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(name), StandardOpenOption.READ);
+        long size = limit < 0 ? channel.size() : Math.min(limit, channel.size());
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(bufferSize, Math.max(size, EditLogFormat.HEADER_SIZE)));
+        buffer.flip();
+        return new EditLogReader(channel, size, buffer, true);
+    }
+
+    /**
+     * 读取内存中的editlog，数据中没有文件头
+     *
+     * @param buffer 数据
+     * @return reader
+     */
+    public static EditLogReader wrap(ByteBuffer buffer) {
+        if (!buffer.hasArray()) {
+            ByteBuffer heapBuffer = ByteBuffer.allocate(buffer.remaining());
+            heapBuffer.put(buffer.duplicate());
+            heapBuffer.flip();
+            buffer = heapBuffer;
+        }
+        try {
+            return new EditLogReader(null, buffer.remaining(), buffer, false);
+        } catch (IOException e) {
+            // 内存数据不会有IO异常
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 读取下一条editlog
+     *
+     * @return editlog，没有更多合法的editlog时返回null
+     * @throws IOException IO异常
+     */
+    public EditLogWrapper next() throws IOException {
+        int length = nextRecord();
+        if (length < 0) {
+            return null;
+        }
+        int position = buffer.position();
+        EditLog editLog;
+        try {
+            editLog = EditLog.parseFrom(ByteBuffer.wrap(buffer.array(),
+                    buffer.arrayOffset() + position + recordHeaderSize, length));
+        } catch (Exception e) {
+            log.error("Parse EditLog failed.", e);
+            finish(EditLogFormat.Status.CORRUPT);
+            return null;
+        }
+        if (result.firstTxId < 0) {
+            result.firstTxId = editLog.getTxId();
+        }
+        result.lastTxId = editLog.getTxId();
+        consume(recordHeaderSize + length);
+        return new EditLogWrapper(editLog);
+    }
+
+    /**
+     * 只校验下一条editlog，不解析editlog的内容
+     *
+     * @return 是否读到了一条合法的editlog
+     * @throws IOException IO异常
+     */
+    public boolean skip() throws IOException {
+        int length = nextRecord();
+        if (length < 0) {
+            return false;
+        }
+        consume(recordHeaderSize + length);
+        return true;
+    }
+
+    /**
+     * 定位下一条完整的editlog，并校验长度和CRC
+     *
+     * @return editlog内容的长度，没有更多合法的editlog时返回-1
+     */
+    private int nextRecord() throws IOException {
+        if (finished) {
+            return -1;
+        }
+        ensure(4);
+        if (buffer.remaining() < 4) {
+            return finish(buffer.hasRemaining() ? EditLogFormat.Status.TORN : EditLogFormat.Status.EOF);
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length == 0) {
+            return finish(EditLogFormat.Status.EOF);
+        }
+        if (length == EditLogFormat.FOOTER_MARK && !legacy) {
+            ensure(EditLogFormat.FOOTER_SIZE);
+            return finish(checkFooter() ? EditLogFormat.Status.FOOTER : EditLogFormat.Status.CORRUPT);
+        }
+        if (length < 0 || length > EditLogFormat.MAX_RECORD_SIZE) {
+            return finish(EditLogFormat.Status.CORRUPT);
+        }
+        ensure(recordHeaderSize + length);
+        if (buffer.remaining() < recordHeaderSize + length) {
+            return finish(EditLogFormat.Status.TORN);
+        }
+        int position = buffer.position();
+        if (!legacy && buffer.getInt(position + 4) != EditLogFormat.crc32c(buffer.array(),
+                buffer.arrayOffset() + position + recordHeaderSize, length)) {
+            return finish(EditLogFormat.Status.CORRUPT);
+        }
+        return length;
+    }
+
+    private void consume(int recordSize) {
+        buffer.position(buffer.position() + recordSize);
+        result.validLength += recordSize;
+        result.count++;
+    }
+
+    private int finish(EditLogFormat.Status status) {
+        result.status = status;
+        finished = true;
+        return -1;
+    }
+
+    private boolean checkFooter() {
+        if (buffer.remaining() < EditLogFormat.FOOTER_SIZE) {
+            return false;
+        }
+        int position = buffer.position();
+        long startTxId = buffer.getLong(position + 4);
+        long endTxId = buffer.getLong(position + 12);
+        long count = buffer.getLong(position + 20);
+        long length = buffer.getLong(position + 28);
+        int crc = buffer.getInt(position + EditLogFormat.FOOTER_SIZE - 4);
+        boolean valid = crc == EditLogFormat.crc32c(buffer.array(), buffer.arrayOffset() + position,
+                EditLogFormat.FOOTER_SIZE - 4) && count == result.count && length == result.validLength - headerSize;
+        // 只校验不解析的时候不知道txid
+        if (valid && result.lastTxId >= 0) {
+            valid = endTxId == result.lastTxId && startTxId == result.firstTxId;
+        }
+        if (!valid) {
+            log.error("editlog文件尾校验失败：[start={}, end={}, count={}, length={}, result={}]",
+                    startTxId, endTxId, count, length, result);
+        }
+        return valid;
+    }
+
+    /**
+     * 保证缓冲区中至少有required字节的数据，除非已经读到末尾
+     */
+    private void ensure(int required) throws IOException {
+        if (buffer.remaining() >= required || channel == null) {
+            return;
+        }
+        if (buffer.capacity() < required) {
+            ByteBuffer bigger = ByteBuffer.allocate(required);
+            bigger.put(buffer);
+            buffer = bigger;
+        } else {
+            buffer.compact();
+        }
+        while (buffer.position() < required && readPosition < limit) {
+            if (buffer.remaining() > limit - readPosition) {
+                buffer.limit(buffer.position() + (int) (limit - readPosition));
+            }
+            int read = channel.read(buffer, readPosition);
+            if (read < 0) {
+                break;
+            }
+            readPosition += read;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * 获取读取结果
+     *
+     * @return 读取结果
+     */
+    public EditLogFormat.ScanResult getResult() {
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
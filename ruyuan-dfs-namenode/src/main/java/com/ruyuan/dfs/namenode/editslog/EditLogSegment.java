@@ -0,0 +1,158 @@
+package com.ruyuan.dfs.namenode.editslog;
+
+import com.ruyuan.dfs.common.utils.FileUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <pre>
+ * 正在写入的editlog段文件
+ *
+ * 文件按照 PREALLOCATE_SIZE 预先分配空间并填充0，每次刷盘都是在原文件上追加写入，
+ * 大部分刷盘不会改变文件的长度，只需要同步数据不需要同步元数据。
+ *
+ * 段文件写满或者超过滚动时间之后会被截断到实际长度并写入文件尾，变成只读的段文件。
+ * 文件格式参考 {@link EditLogFormat}
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+@Slf4j
+public class EditLogSegment implements Closeable {
+
+    /**
+     * 每次预分配的空间大小
+     */
+    private static final int PREALLOCATE_SIZE = 1024 * 1024;
+    private static final ByteBuffer ZERO_BUFFER = ByteBuffer.allocateDirect(PREALLOCATE_SIZE);
+
+    private final String name;
+    private final long startTxId;
+    private final long createTime;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private volatile long endTxId;
+    private long count;
+    /**
+     * 已经写入的数据长度
+     */
+    private volatile long position;
+    /**
+     * 已经预分配的文件长度
+     */
+    private long allocated;
+
+    private EditLogSegment(String name, long startTxId) throws IOException {
+        FileUtil.mkdirParent(name);
+        this.name = name;
+        this.startTxId = startTxId;
+        this.endTxId = startTxId - 1;
+        this.createTime = System.currentTimeMillis();
+        this.raf = new RandomAccessFile(name, "rw");
+        this.channel = raf.getChannel();
+        this.raf.setLength(0);
+        this.position = 0;
+        this.allocated = 0;
+        preallocate(EditLogFormat.HEADER_SIZE);
+        ByteBuffer header = EditLogFormat.header();
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+        channel.force(true);
+    }
+
+    /**
+     * 创建一个新的段文件
+     *
+     * @param name      文件路径
+     * @param startTxId 第一条editlog的txid
+     * @return 段文件
+     * @throws IOException IO异常
+     */
+    public static EditLogSegment create(String name, long startTxId) throws IOException {
+        log.info("创建editslog段文件：[file={}]", name);
+        return new EditLogSegment(name, startTxId);
+    }
+
+    /**
+     * 追加一批editlog并刷到磁盘
+     *
+     * @param data    editlog数据
+     * @param endTxId 这一批editlog最大的txid
+     * @param count   这一批editlog的数量
+     * @throws IOException IO异常
+     */
+    public void append(ByteBuffer data, long endTxId, int count) throws IOException {
+        preallocate(position + data.remaining());
+        long writePosition = position;
+        while (data.hasRemaining()) {
+            writePosition += channel.write(data, writePosition);
+        }
+        channel.force(false);
+        this.position = writePosition;
+        this.endTxId = endTxId;
+        this.count += count;
+    }
+
+    private void preallocate(long required) throws IOException {
+        if (required <= allocated) {
+            return;
+        }
+        while (allocated < required) {
+            ByteBuffer zero = ZERO_BUFFER.duplicate();
+            while (zero.hasRemaining()) {
+                allocated += channel.write(zero, allocated);
+            }
+        }
+        // 文件长度发生了变化，需要连同元数据一起同步
+        channel.force(true);
+    }
+
+    /**
+     * 截断预分配的空间，写入文件尾并关闭文件
+     *
+     * @throws IOException IO异常
+     */
+    public void finalizeSegment() throws IOException {
+        channel.truncate(position);
+        ByteBuffer footer = EditLogFormat.footer(startTxId, endTxId, count, position - EditLogFormat.HEADER_SIZE);
+        long writePosition = position;
+        while (footer.hasRemaining()) {
+            writePosition += channel.write(footer, writePosition);
+        }
+        channel.force(true);
+        close();
+        log.info("editslog段文件写入完成：[file={}, start={}, end={}, size={}]", name, startTxId, endTxId, position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        raf.close();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getStartTxId() {
+        return startTxId;
+    }
+
+    public long getEndTxId() {
+        return endTxId;
+    }
+
+    public long getSize() {
+        return position;
+    }
+
+    public long getCreateTime() {
+        return createTime;
+    }
+}
@@ -0,0 +1,89 @@
+package com.ruyuan.dfs.namenode.editslog;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 从段文件中按照txid的顺序流式读取editlog
+ *
+ * <pre>
+ * 读取的editlog已经不在 {@link EditLogCache} 中的时候使用，连续读取的时候接着上一次的位置读，
+ * 不需要每次从头解析段文件，内存中只有一批editlog。不是线程安全的。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+@Slf4j
+public class EditLogSegmentCursor implements Closeable {
+
+    private final FsEditLog editLog;
+    private EditLogReader reader;
+    private String name;
+    /**
+     * reader读取到的最后一条editlog的txid
+     */
+    private long txId;
+
+    public EditLogSegmentCursor(FsEditLog editLog) {
+        this.editLog = editLog;
+    }
+
+    /**
+     * 读取txId之后的一批editlog
+     *
+     * @param txId     从下一条开始读取
+     * @param maxSize  最多读取的数量
+     * @param maxBytes 最多读取的字节数，至少会读取一条
+     * @return editlog，段文件中没有更多的editlog时返回空
+     * @throws IOException IO异常
+     */
+    public List<EditLogWrapper> read(long txId, int maxSize, int maxBytes) throws IOException {
+        List<EditLogWrapper> batch = new ArrayList<>();
+        int bytes = 0;
+        for (EditslogInfo info : editLog.getSortedEditLogFiles(txId)) {
+            if (reader == null || !info.getName().equals(name) || this.txId != txId) {
+                close();
+                reader = editLog.openEditLogFile(info.getName());
+                name = info.getName();
+            }
+            boolean eof = false;
+            while (batch.size() < maxSize && bytes < maxBytes) {
+                EditLogWrapper next = reader.next();
+                if (next == null) {
+                    eof = true;
+                    break;
+                }
+                if (next.getTxId() <= txId) {
+                    continue;
+                }
+                batch.add(next);
+                bytes += next.getSerializedSize();
+                this.txId = next.getTxId();
+            }
+            if (!eof) {
+                break;
+            }
+            // 读完了一个段文件，还没有读够的话继续读下一个段文件
+            close();
+        }
+        return batch;
+    }
+
+    @Override
+    public void close() {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        } catch (IOException e) {
+            log.warn("关闭EditLog段文件失败：[file={}]", name, e);
+        }
+        reader = null;
+        name = null;
+    }
+}
@@ -0,0 +1,368 @@
+package com.ruyuan.dfs.namenode.editslog;
+
+import com.ruyuan.dfs.common.utils.FileUtil;
+import com.ruyuan.dfs.namenode.config.NameNodeConfig;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <pre>
+ * 管理磁盘上的editlog段文件
+ *
+ * 所有段文件的txid范围记录在索引文件 editslog.index 中，每一行的格式为：
+ *
+ *      startTxId endTxId fileName
+ *
+ * 正在写入的段文件endTxId为-1，NameNode重启的时候会扫描这个段文件找到最后一条完整的editlog，
+ * 截断后面的数据。回放、清理、BackupNode抓取editlog都通过索引定位段文件，不需要遍历目录。
+ *
+ * 段文件的格式参考 {@link EditLogFormat}
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+@Slf4j
+public class EditLogSegmentManager {
+
+    /**
+     * 旧版本每次刷盘生成一个文件的文件名，例如：editslog-1_1000.log
+     */
+    private static final Pattern LEGACY_FILE_PATTERN = Pattern.compile("editslog-(\\d+)_(\\d+)\\.log");
+    private static final long IN_PROGRESS = -1L;
+
+    private final NameNodeConfig nameNodeConfig;
+
+    /**
+     * 磁盘中的段文件，升序，最后一个可能是正在写入的段文件
+     */
+    private final List<EditslogInfo> editLogInfos = new CopyOnWriteArrayList<>();
+
+    /**
+     * 正在写入的段文件
+     */
+    private volatile EditLogSegment currentSegment;
+
+    public EditLogSegmentManager(NameNodeConfig nameNodeConfig) {
+        this.nameNodeConfig = nameNodeConfig;
+    }
+
+    /**
+     * 从索引文件中加载段文件信息，如果索引文件不存在，则从目录中扫描旧版本的editlog文件
+     */
+    public synchronized void load() {
+        try {
+            File indexFile = new File(nameNodeConfig.getEditlogIndexFile());
+            List<EditslogInfo> infos = indexFile.exists() ? readIndex(indexFile) : scanLegacyFiles();
+            for (EditslogInfo info : infos) {
+                if (info.getEnd() == IN_PROGRESS) {
+                    info = recover(info);
+                }
+                if (info != null) {
+                    editLogInfos.add(info);
+                }
+            }
+            editLogInfos.sort(null);
+            if (!editLogInfos.isEmpty() || indexFile.exists()) {
+                saveIndex();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("加载editslog索引文件失败", e);
+        }
+    }
+
+    /**
+     * 把一批editlog追加到正在写入的段文件中
+     *
+     * @param startTxId 这一批editlog最小的txid
+     * @param endTxId   这一批editlog最大的txid
+     * @param count     这一批editlog的数量
+     * @param data      editlog数据
+     * @return 段文件信息
+     * @throws IOException IO异常
+     */
+    public EditslogInfo append(long startTxId, long endTxId, int count, ByteBuffer data) throws IOException {
+        EditLogSegment segment = currentSegment;
+        if (segment == null) {
+            segment = EditLogSegment.create(nameNodeConfig.getEditlogSegmentFile(startTxId), startTxId);
+            synchronized (this) {
+                currentSegment = segment;
+                editLogInfos.add(new EditslogInfo(startTxId, IN_PROGRESS, segment.getName()));
+                saveIndex();
+            }
+        }
+        segment.append(data, endTxId, count);
+        EditslogInfo info = new EditslogInfo(segment.getStartTxId(), endTxId, segment.getName());
+        synchronized (this) {
+            editLogInfos.set(editLogInfos.size() - 1, info);
+        }
+        if (segment.getSize() >= nameNodeConfig.getEditLogSegmentSize() ||
+                System.currentTimeMillis() - segment.getCreateTime() >= nameNodeConfig.getEditLogSegmentRollInterval()) {
+            rollSegment();
+        }
+        return info;
+    }
+
+    /**
+     * 结束正在写入的段文件，下一次写入会创建新的段文件
+     *
+     * @throws IOException IO异常
+     */
+    public synchronized void rollSegment() throws IOException {
+        EditLogSegment segment = currentSegment;
+        if (segment == null) {
+            return;
+        }
+        segment.finalizeSegment();
+        currentSegment = null;
+        saveIndex();
+    }
+
+    /**
+     * 读取段文件中所有的editlog
+     *
+     * @param name 段文件路径
+     * @return editlog
+     * @throws IOException IO异常
+     */
+    public List<EditLogWrapper> read(String name) throws IOException {
+        List<EditLogWrapper> ret = new LinkedList<>();
+        EditLogFormat.ScanResult result = read(name, ret::add);
+        if (!result.isClean()) {
+            log.error("读取editslog段文件遇到损坏的数据：[file={}, result={}]", name, result);
+        }
+        return ret;
+    }
+
+    /**
+     * 读取段文件中所有的editlog，遇到损坏的数据停止读取
+     *
+     * @param name     段文件路径
+     * @param consumer editlog回调
+     * @return 读取结果
+     * @throws IOException IO异常
+     */
+    public EditLogFormat.ScanResult read(String name, Consumer<EditLogWrapper> consumer) throws IOException {
+        try (EditLogReader reader = open(name)) {
+            EditLogWrapper editLogWrapper;
+            while ((editLogWrapper = reader.next()) != null) {
+                consumer.accept(editLogWrapper);
+            }
+            return reader.getResult();
+        }
+    }
+
+    /**
+     * 流式读取段文件
+     *
+     * @param name 段文件路径
+     * @return reader
+     * @throws IOException IO异常
+     */
+    public EditLogReader open(String name) throws IOException {
+        EditLogSegment segment = currentSegment;
+        // 正在写入的段文件只读取已经刷盘的部分，跳过预分配的空间
+        long limit = segment != null && segment.getName().equals(name) ? segment.getSize() : -1;
+        return EditLogReader.open(name, limit, EditLogReader.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * <pre>
+     * 丢弃损坏的数据以及之后所有的段文件
+     *
+     * 损坏的段文件和之后的段文件都会重命名为 *.corrupt 保留下来，
+     * 损坏的段文件中合法的部分会拷贝回原来的文件，继续参与回放和同步。
+     * </pre>
+     *
+     * @param info   损坏的段文件
+     * @param result 读取结果
+     * @throws IOException IO异常
+     */
+    public synchronized void discardAfter(EditslogInfo info, EditLogFormat.ScanResult result) throws IOException {
+        int index = editLogInfos.indexOf(info);
+        if (index < 0 || currentSegment != null) {
+            return;
+        }
+        List<EditslogInfo> discarded = new ArrayList<>(editLogInfos.subList(index, editLogInfos.size()));
+        editLogInfos.removeAll(discarded);
+        for (EditslogInfo each : discarded) {
+            File corruptFile = new File(each.getName() + ".corrupt");
+            Files.move(new File(each.getName()).toPath(), corruptFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            log.error("丢弃editslog段文件：[file={}, corruptFile={}]", each.getName(), corruptFile.getName());
+        }
+        if (result.getCount() > 0) {
+            try (FileChannel source = FileChannel.open(new File(info.getName() + ".corrupt").toPath(),
+                    StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(new File(info.getName()).toPath(),
+                         StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long transferred = 0;
+                while (transferred < result.getValidLength()) {
+                    transferred += source.transferTo(transferred, result.getValidLength() - transferred, target);
+                }
+                target.force(true);
+            }
+            editLogInfos.add(new EditslogInfo(info.getStart(), result.getLastTxId(), info.getName()));
+            log.error("保留损坏段文件中合法的editlog：[file={}, end={}]", info.getName(), result.getLastTxId());
+        }
+        saveIndex();
+    }
+
+    /**
+     * 获取包含比minTxId更大的editlog的段文件
+     *
+     * @param minTxId 最小的txid
+     * @return 排序后的段文件信息
+     */
+    public List<EditslogInfo> getSortedEditLogFiles(long minTxId) {
+        List<EditslogInfo> result = new ArrayList<>();
+        for (EditslogInfo editslogInfo : editLogInfos) {
+            if (editslogInfo.getEnd() <= minTxId) {
+                continue;
+            }
+            result.add(editslogInfo);
+        }
+        return result;
+    }
+
+    /**
+     * 清除最大txid小于等于txId的段文件，正在写入的段文件不会被清除
+     *
+     * @param txId txId
+     */
+    public synchronized void cleanByTxId(long txId) {
+        EditLogSegment segment = currentSegment;
+        List<EditslogInfo> toRemoveEditLog = new ArrayList<>();
+        for (EditslogInfo editslogInfo : editLogInfos) {
+            if (editslogInfo.getEnd() > txId) {
+                continue;
+            }
+            if (segment != null && segment.getName().equals(editslogInfo.getName())) {
+                continue;
+            }
+            toRemoveEditLog.add(editslogInfo);
+        }
+        if (toRemoveEditLog.isEmpty()) {
+            return;
+        }
+        editLogInfos.removeAll(toRemoveEditLog);
+        try {
+            saveIndex();
+        } catch (IOException e) {
+            log.error("保存editslog索引文件失败：", e);
+            return;
+        }
+        for (EditslogInfo editslogInfo : toRemoveEditLog) {
+            if (FileUtil.delete(editslogInfo.getName())) {
+                log.info("删除editLog文件: [file={}]", editslogInfo.getName());
+            }
+        }
+    }
+
+    /**
+     * 关闭正在写入的段文件
+     */
+    public void close() {
+        try {
+            rollSegment();
+        } catch (IOException e) {
+            log.error("关闭editslog段文件失败：", e);
+        }
+    }
+
+    /**
+     * 扫描中断写入的段文件，截断最后一条完整editlog之后的数据
+     */
+    private EditslogInfo recover(EditslogInfo info) throws IOException {
+        File file = new File(info.getName());
+        if (!file.exists()) {
+            return null;
+        }
+        EditLogFormat.ScanResult result;
+        try (EditLogReader reader = EditLogReader.open(info.getName())) {
+            while (reader.next() != null) {
+                // 读取到最后一条合法的editlog
+            }
+            result = reader.getResult();
+        }
+        long endTxId = result.getLastTxId();
+        long validLength = result.getValidLength();
+        if (result.getCount() == 0) {
+            FileUtil.delete(file);
+            log.info("删除空的editslog段文件：[file={}]", info.getName());
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            channel.truncate(validLength);
+            channel.force(true);
+        }
+        log.info("恢复editslog段文件：[file={}, start={}, end={}, size={}, status={}]", info.getName(),
+                info.getStart(), endTxId, validLength, result.getStatus());
+        return new EditslogInfo(info.getStart(), endTxId, info.getName());
+    }
+
+    private List<EditslogInfo> readIndex(File indexFile) throws IOException {
+        List<EditslogInfo> infos = new ArrayList<>();
+        for (String line : FileUtil.readString(indexFile.getAbsolutePath()).split("\n")) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length != 3) {
+                continue;
+            }
+            infos.add(new EditslogInfo(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                    nameNodeConfig.getBaseDir() + File.separator + fields[2]));
+        }
+        return infos;
+    }
+
+    private List<EditslogInfo> scanLegacyFiles() {
+        List<EditslogInfo> infos = new ArrayList<>();
+        File[] files = new File(nameNodeConfig.getBaseDir()).listFiles();
+        if (files == null) {
+            return infos;
+        }
+        for (File file : files) {
+            Matcher matcher = LEGACY_FILE_PATTERN.matcher(file.getName());
+            if (matcher.matches()) {
+                infos.add(new EditslogInfo(Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)),
+                        nameNodeConfig.getBaseDir() + File.separator + file.getName()));
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * 先写临时文件再重命名，保证索引文件是完整的
+     */
+    private void saveIndex() throws IOException {
+        EditLogSegment segment = currentSegment;
+        StringBuilder builder = new StringBuilder();
+        for (EditslogInfo info : editLogInfos) {
+            boolean inProgress = segment != null && segment.getName().equals(info.getName());
+            builder.append(info.getStart())
+                    .append(" ")
+                    .append(inProgress ? IN_PROGRESS : info.getEnd())
+                    .append(" ")
+                    .append(new File(info.getName()).getName())
+                    .append("\n");
+        }
+        String indexFile = nameNodeConfig.getEditlogIndexFile();
+        String tmpFile = indexFile + ".tmp";
+        FileUtil.saveFile(tmpFile, true, ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8)));
+        Files.move(new File(tmpFile).toPath(), new File(indexFile).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
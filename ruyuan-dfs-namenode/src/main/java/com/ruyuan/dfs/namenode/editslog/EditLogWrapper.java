@@ -1,10 +1,10 @@
 package com.ruyuan.dfs.namenode.editslog;
 
-import com.ruyuan.dfs.common.utils.ByteUtil;
 import com.ruyuan.dfs.common.utils.PrettyCodes;
 import com.ruyuan.dfs.model.backup.EditLog;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -33,6 +33,14 @@ public class EditLogWrapper {
                 .build();
     }
 
+    public EditLogWrapper(int opType, String path, String dstPath) {
+        this.editLog = EditLog.newBuilder()
+                .setOpType(opType)
+                .setPath(path)
+                .setDstPath(dstPath)
+                .build();
+    }
+
     public EditLogWrapper(EditLog editLog) {
         this.editLog = editLog;
     }
@@ -51,13 +59,17 @@ public class EditLogWrapper {
         return this.editLog.getTxId();
     }
 
+    /**
+     * 序列化之后的长度
+     *
+     * @return 长度
+     */
+    public int getSerializedSize() {
+        return editLog.getSerializedSize() + EditLogFormat.RECORD_HEADER_SIZE;
+    }
+
     public byte[] toByteArray() {
-        byte[] body = editLog.toByteArray();
-        int bodyLength = body.length;
-        byte[] ret = new byte[body.length + 4];
-        ByteUtil.setInt(ret, 0, bodyLength);
-        System.arraycopy(body, 0, ret, 4, bodyLength);
-        return ret;
+        return EditLogFormat.encode(editLog);
     }
 
     public static List<EditLogWrapper> parseFrom(byte[] bytes) {
@@ -65,21 +77,23 @@ public class EditLogWrapper {
         return parseFrom(byteBuffer);
     }
 
+    /**
+     * 解析内存缓冲区中的editlog，缓冲区中没有文件头
+     *
+     * @param byteBuffer 缓冲区
+     * @return editlog
+     */
     public static List<EditLogWrapper> parseFrom(ByteBuffer byteBuffer) {
         List<EditLogWrapper> ret = new LinkedList<>();
-        while (byteBuffer.hasRemaining()) {
-            try {
-                int bodyLength = byteBuffer.getInt();
-                byte[] body = new byte[bodyLength];
-                byteBuffer.get(body);
-                EditLog editLog = EditLog.parseFrom(body);
-                ret.add(new EditLogWrapper(editLog));
-            } catch (Exception e) {
-                log.error("Parse EditLog failed.", e);
+        try (EditLogReader reader = EditLogReader.wrap(byteBuffer)) {
+            EditLogWrapper editLogWrapper;
+            while ((editLogWrapper = reader.next()) != null) {
+                ret.add(editLogWrapper);
             }
+        } catch (IOException e) {
+            // 内存数据不会有IO异常
+            throw new IllegalStateException(e);
         }
         return ret;
     }
-
-
 }
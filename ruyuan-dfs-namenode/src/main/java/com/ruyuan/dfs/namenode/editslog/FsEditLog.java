@@ -1,12 +1,13 @@
 package com.ruyuan.dfs.namenode.editslog;
 
-import com.ruyuan.dfs.common.utils.FileUtil;
+import com.ruyuan.dfs.common.metrics.Prometheus;
+import com.ruyuan.dfs.common.utils.DefaultThread;
+import com.ruyuan.dfs.common.utils.NamedThreadFactory;
 import com.ruyuan.dfs.namenode.config.NameNodeConfig;
 import com.ruyuan.dfs.namenode.fs.PlaybackEditLogCallback;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.time.StopWatch;
 
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -14,36 +15,86 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 /**
  * 表示EditLogs
  *
+ * <pre>
+ * 采用组提交的方式写editlog：
+ *
+ *  1. 写入线程分配txid之后把editlog放入无锁队列，立即返回一个Future。
+ *  2. 单独的刷盘线程从队列中批量取出editlog写入双缓冲，达到阈值或者超过等待时间之后整批刷盘，
+ *     然后把这一批Future交给回调线程完成。Future上挂的回调（构造响应、发送网络包等）都在回调线程中执行，
+ *     不会推迟下一次刷盘。
+ *  3. 刷盘之后的editlog放入 {@link EditLogCache}，BackupNode读取最近的editlog时不需要读取和解析段文件。
+ * </pre>
+ *
  * @author Sun Dasheng
  */
 @Slf4j
 public class FsEditLog {
 
-    private static Pattern indexPattern = Pattern.compile("(\\d+)_(\\d+)");
+    /**
+     * 有editlog已经分配了txid但是还没有入队时，刷盘线程等待的时间
+     */
+    private static final long PARK_NANOS_WAIT_GAP = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * 关闭时等待已经分配了txid但是还没有入队的editlog的最长时间，超过之后剩下的editlog直接失败
+     */
+    private static final long CLOSE_WAIT_GAP_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * 回放editlog时解析线程每批交给回放线程的editlog数量
+     */
+    private static final int REPLAY_BATCH_SIZE = 256;
+
+    /**
+     * 回放editlog时最多缓存多少批已经解析还没有回放的editlog
+     */
+    private static final int REPLAY_QUEUE_SIZE = 16;
+
+    private static final List<EditLogWrapper> END_OF_SEGMENT = new ArrayList<>(0);
 
     private NameNodeConfig nameNodeConfig;
 
     /**
      * 每条editLog的id，自增
      */
-    private volatile long txIdSeq = 0;
+    private final AtomicLong txIdSeq = new AtomicLong(0);
 
     /**
-     * 双缓冲
+     * 双缓冲，只有刷盘线程会往里面写数据
      */
     private DoubleBuffer editLogBuffer;
 
     /**
-     * 每个线程保存的txid
+     * 等待刷盘线程写入缓冲区的editlog
      */
-    private ThreadLocal<Long> localTxId = new ThreadLocal<>();
+    private final Queue<PendingEditLog> pendingQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 队列中还没有被刷盘线程取走的editlog数量，从0变成1的时候唤醒刷盘线程
+     */
+    private final AtomicInteger pendingCount = new AtomicInteger(0);
+
+    /**
+     * 强制刷盘的请求
+     */
+    private final Queue<FlushRequest> flushRequests = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 已经写入缓冲区的最大txid
+     */
+    private volatile long writtenTxId = 0;
 
     /**
      * 当前刷新磁盘最大的txId
@@ -51,153 +102,348 @@ public class FsEditLog {
     private volatile long syncTxid = 0;
 
     /**
-     * 当前是否在刷磁盘
+     * 刷盘线程
+     */
+    private final DefaultThread syncThread;
+
+    /**
+     * 完成刷盘之后的Future，单线程保证按照txid的顺序完成
      */
-    private volatile boolean isSyncRunning = false;
+    private final ExecutorService completionExecutor;
+
+    private volatile boolean running = true;
 
     /**
-     * 是否正在调度一次刷盘的操作
+     * 刷盘线程已经退出，之后入队的editlog由写入线程自己失败掉
      */
-    private volatile Boolean isSchedulingSync = false;
+    private volatile boolean stopped = false;
 
     /**
-     * 磁盘中的editLog文件, 升序
+     * 刷盘线程出现的异常，出现异常之后不能再保证txid连续，所有新的写入直接失败
      */
-    private List<EditslogInfo> editLogInfos = null;
+    private volatile Throwable failure;
+
+    /**
+     * 磁盘中的editLog段文件
+     */
+    private final EditLogSegmentManager segmentManager;
+
+    /**
+     * 最近刷盘的editlog，没有开启缓存的时候为null
+     */
+    private final EditLogCache editLogCache;
+
+    /**
+     * 一批editlog刷到磁盘之后的回调
+     */
+    private final List<Consumer<List<EditLogWrapper>>> syncListeners = new CopyOnWriteArrayList<>();
 
     public FsEditLog(NameNodeConfig nameNodeConfig) {
         this.nameNodeConfig = nameNodeConfig;
         this.editLogBuffer = new DoubleBuffer(nameNodeConfig);
-        this.loadEditLogInfos();
+        this.segmentManager = new EditLogSegmentManager(nameNodeConfig);
+        this.segmentManager.load();
+        this.editLogCache = nameNodeConfig.getEditLogCacheCapacity() > 0 ?
+                new EditLogCache(nameNodeConfig.getEditLogCacheCapacity()) : null;
+        this.completionExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("FsEditLog-Completion-"));
+        this.syncThread = new DefaultThread("FsEditLog-Sync", this::syncLoop, true);
+        this.syncThread.start();
     }
 
 
     /**
+     * <pre>
      * 写入一条editlog
      *
+     * 写入线程只负责分配txid并把editlog放入无锁队列，不会在这里阻塞。
+     * 刷盘线程按照txid的顺序把editlog写入缓冲区，当缓冲区达到阈值或者等待时间超过editlogs.sync.interval时，
+     * 把这一批editlog一起刷到磁盘，然后由回调线程完成这一批editlog对应的Future。
+     * </pre>
+     *
      * @param editLog 内容
+     * @return editlog刷到磁盘之后完成的Future，结果为txid，挂在上面的回调在回调线程中执行
      */
-    public void logEdit(EditLogWrapper editLog) {
-        synchronized (this) {
-            // 刚进来就直接检查一下是否有人正在调度一次刷盘的操作
-            waitSchedulingSync();
-
-            txIdSeq++;
-            // 保存txid到线程
-            long txid = txIdSeq;
-            localTxId.set(txid);
-
-            // 构造一条editlog写入缓冲区
-            editLog.setTxId(txid);
-            try {
-                editLogBuffer.write(editLog);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            if (!editLogBuffer.shouldForceSync()) {
-                return;
-            }
-            // 如果代码进行到这里，就说明需要刷磁盘
-            isSchedulingSync = true;
+    public CompletableFuture<Long> logEdit(EditLogWrapper editLog) {
+        if (!isAvailable()) {
+            return failedFuture();
         }
+        long txId = txIdSeq.incrementAndGet();
+        editLog.setTxId(txId);
+        PendingEditLog pending = new PendingEditLog(editLog);
+        pendingQueue.offer(pending);
+        if (pendingCount.getAndIncrement() == 0) {
+            LockSupport.unpark(syncThread);
+        }
+        if (stopped) {
+            failPending();
+        }
+        return pending.future;
+    }
 
-        // 释放掉锁
-        logSync();
+    /**
+     * 批量写入editlog
+     *
+     * <pre>
+     * 一次分配一段连续的txid，刷盘线程只会被唤醒一次，这一批editlog会在同一次或者相邻的几次组提交中刷盘。
+     * </pre>
+     *
+     * @param editLogs 内容
+     * @return 最后一条editlog刷到磁盘之后完成的Future，结果为txid，editLogs为空时立即完成，结果为当前的最大txid
+     */
+    public CompletableFuture<Long> logEdits(List<EditLogWrapper> editLogs) {
+        if (editLogs.isEmpty()) {
+            return CompletableFuture.completedFuture(txIdSeq.get());
+        }
+        if (!isAvailable()) {
+            return failedFuture();
+        }
+        long txId = txIdSeq.getAndAdd(editLogs.size());
+        PendingEditLog pending = null;
+        for (EditLogWrapper editLog : editLogs) {
+            editLog.setTxId(++txId);
+            pending = new PendingEditLog(editLog);
+            pendingQueue.offer(pending);
+        }
+        if (pendingCount.getAndAdd(editLogs.size()) == 0) {
+            LockSupport.unpark(syncThread);
+        }
+        if (stopped) {
+            failPending();
+        }
+        return pending.future;
     }
 
     /**
-     * 等待正在调度的刷磁盘的操作
+     * 刷盘线程
+     *
+     * <pre>
+     * 写缓冲区或者刷盘失败之后，后面的editlog不能再保证txid连续，所以任何异常都会让EditLog进入失败状态：
+     * 所有还没有刷盘的editlog和强制刷盘请求都直接失败，之后新的写入也会被拒绝。
+     * </pre>
      */
-    private void waitSchedulingSync() {
+    private void syncLoop() {
+        PriorityQueue<PendingEditLog> reorderQueue = new PriorityQueue<>();
+        List<PendingEditLog> unSyncedEditLogs = new ArrayList<>();
         try {
-            while (isSchedulingSync) {
-                wait(1000);
-                // 此时就释放锁，等待一秒再次尝试获取锁，去判断
-                // isSchedulingSync是否为false，就可以脱离出while循环
+            doSyncLoop(reorderQueue, unSyncedEditLogs);
+        } catch (Throwable e) {
+            log.error("EditLog刷盘线程出现异常，停止写入EditLog：", e);
+            failure = e;
+        } finally {
+            stopped = true;
+            Throwable cause = unavailableCause();
+            for (PendingEditLog pending : unSyncedEditLogs) {
+                pending.future.completeExceptionally(cause);
+            }
+            for (PendingEditLog pending : reorderQueue) {
+                pending.future.completeExceptionally(cause);
             }
-        } catch (Exception e) {
-            log.info("waitSchedulingSync has interrupted !!");
+            failPending();
         }
     }
 
-    /**
-     * 异步刷磁盘
-     */
-    private void logSync() {
-        synchronized (this) {
-            long txId = localTxId.get();
-            localTxId.remove();
-            /*
-             * 在这种情况下需要等待：
-             * 1. 有其他线程正在刷磁盘，但是其他线程刷的磁盘的最大txid比当前需要刷磁盘的线程id少。
-             * 这通常表示：正在刷磁盘的线程不会把当前线程需要刷的数据刷到磁盘中
-             */
-            while (txId > syncTxid && isSyncRunning) {
-                try {
-                    wait(1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+    private void doSyncLoop(PriorityQueue<PendingEditLog> reorderQueue,
+                            List<PendingEditLog> unSyncedEditLogs) throws IOException {
+        long syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(nameNodeConfig.getEditLogSyncInterval());
+        long firstUnSyncedTime = 0L;
+        long closeDeadline = 0L;
+        while (running || !pendingQueue.isEmpty() || !reorderQueue.isEmpty() || !unSyncedEditLogs.isEmpty()) {
+            int drained = 0;
+            PendingEditLog pending;
+            while ((pending = pendingQueue.poll()) != null) {
+                reorderQueue.add(pending);
+                drained++;
+            }
+            if (drained > 0) {
+                pendingCount.addAndGet(-drained);
+            }
+            // 分配txid和入队不是原子操作，只写入连续的部分，剩下的等下一轮
+            while (!reorderQueue.isEmpty() && reorderQueue.peek().txId == writtenTxId + 1) {
+                pending = reorderQueue.poll();
+                if (unSyncedEditLogs.isEmpty()) {
+                    firstUnSyncedTime = System.nanoTime();
+                }
+                // 先放入列表，写入失败的时候和其他没有刷盘的editlog一起失败
+                unSyncedEditLogs.add(pending);
+                synchronized (this) {
+                    editLogBuffer.write(pending.editLog);
+                }
+                writtenTxId = pending.txId;
+                if (editLogBuffer.shouldForceSync()) {
+                    sync(unSyncedEditLogs);
+                    unSyncedEditLogs.clear();
                 }
             }
-            /*
-             * 多个线程在上面等待，当前一个线程刷磁盘操作完成后，唤醒了一堆线程，此时只有一个线程获取到锁。
-             * 这个线程会进行刷磁盘操作，当这个线程释放锁之后，其他被唤醒的线程会依次获取到锁。
-             * 此时每个被唤醒的线程需要重新判断一次，自己要做的事情是不是被其他线程干完了
-             */
-            if (txId <= syncTxid) {
-                return;
+            FlushRequest flushRequest = flushRequests.peek();
+            boolean forceSync = flushRequest != null && flushRequest.txId <= writtenTxId;
+            if (!unSyncedEditLogs.isEmpty() && (forceSync || !running || editLogBuffer.shouldForceSync()
+                    || System.nanoTime() - firstUnSyncedTime >= syncIntervalNanos)) {
+                sync(unSyncedEditLogs);
+                unSyncedEditLogs.clear();
             }
+            while ((flushRequest = flushRequests.peek()) != null && unSyncedEditLogs.isEmpty()
+                    && flushRequest.txId <= writtenTxId) {
+                CompletableFuture<Void> future = flushRequests.poll().future;
+                completionExecutor.execute(() -> future.complete(null));
+            }
+            if (!pendingQueue.isEmpty()) {
+                continue;
+            }
+            if (!running) {
+                if (closeDeadline == 0L) {
+                    closeDeadline = System.nanoTime() + CLOSE_WAIT_GAP_NANOS;
+                } else if (!reorderQueue.isEmpty() && System.nanoTime() - closeDeadline >= 0) {
+                    log.error("关闭EditLog时等待txid空洞超时，丢弃后面的editlog：[writtenTxId={}, pending={}]",
+                            writtenTxId, reorderQueue.size());
+                    return;
+                }
+            }
+            if (!reorderQueue.isEmpty() || flushRequest != null || !running) {
+                // 等待还没有入队的editlog
+                LockSupport.parkNanos(PARK_NANOS_WAIT_GAP);
+            } else if (unSyncedEditLogs.isEmpty()) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, syncIntervalNanos - (System.nanoTime() - firstUnSyncedTime));
+            }
+        }
+    }
 
-            // 交换两块缓冲区
-            editLogBuffer.setReadyToSync();
-
-            // 记录最大的txid
-            syncTxid = txId;
+    private boolean isAvailable() {
+        return running && failure == null;
+    }
 
-            // 设置当前正在同步到磁盘的标志位
-            isSchedulingSync = false;
+    private Throwable unavailableCause() {
+        Throwable cause = failure;
+        return cause != null ? new IllegalStateException("EditLog刷盘失败，不能再写入editlog", cause)
+                : new IllegalStateException("EditLog已经关闭");
+    }
 
-            // 唤醒哪些正在wait的线程
-            notifyAll();
+    private CompletableFuture<Long> failedFuture() {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        future.completeExceptionally(unavailableCause());
+        return future;
+    }
 
-            // 正在刷磁盘
-            isSyncRunning = true;
+    /**
+     * 刷盘线程退出之后，让还在队列中的editlog和强制刷盘请求失败，写入线程和刷盘线程都可能调用
+     */
+    private void failPending() {
+        Throwable cause = unavailableCause();
+        PendingEditLog pending;
+        while ((pending = pendingQueue.poll()) != null) {
+            pending.future.completeExceptionally(cause);
+        }
+        FlushRequest flushRequest;
+        while ((flushRequest = flushRequests.poll()) != null) {
+            flushRequest.future.completeExceptionally(cause);
         }
+    }
 
-        try {
-            EditslogInfo editslogInfo = editLogBuffer.flush();
-            if (editslogInfo != null) {
-                editLogInfos.add(editslogInfo);
+    /**
+     * 把缓冲区的一批editlog刷到磁盘
+     */
+    private void sync(List<PendingEditLog> editLogs) throws IOException {
+        synchronized (this) {
+            editLogBuffer.setReadyToSync();
+        }
+        long txId = editLogs.get(editLogs.size() - 1).txId;
+        // 刷盘失败由刷盘线程统一处理，这一批editlog和后面的editlog都会失败
+        editLogBuffer.flush(segmentManager);
+        List<EditLogWrapper> synced = editLogCache == null && syncListeners.isEmpty() ?
+                null : toEditLogs(editLogs);
+        if (editLogCache != null) {
+            // 先放入缓存再更新syncTxid，读取到syncTxid之后一定能从缓存中读到editlog
+            editLogCache.put(synced);
+        }
+        syncTxid = txId;
+        Prometheus.hit("namenode_editlog_sync_qps", "EditLog刷盘QPS", editLogs.size());
+        PendingEditLog[] completed = editLogs.toArray(new PendingEditLog[0]);
+        completionExecutor.execute(() -> {
+            for (PendingEditLog editLog : completed) {
+                editLog.future.complete(editLog.txId);
             }
-        } catch (IOException e) {
-            log.info("FSEditlog刷磁盘失败：", e);
+        });
+        if (synced != null) {
+            notifySyncListeners(synced);
         }
+    }
 
-        synchronized (this) {
-            // 同步完了磁盘之后，就会将标志位复位，再释放锁
-            isSyncRunning = false;
-            notifyAll();
+    private List<EditLogWrapper> toEditLogs(List<PendingEditLog> editLogs) {
+        List<EditLogWrapper> result = new ArrayList<>(editLogs.size());
+        for (PendingEditLog editLog : editLogs) {
+            result.add(editLog.editLog);
+        }
+        return result;
+    }
+
+    private void notifySyncListeners(List<EditLogWrapper> synced) {
+        for (Consumer<List<EditLogWrapper>> listener : syncListeners) {
+            try {
+                listener.accept(synced);
+            } catch (Exception e) {
+                log.error("EditLog刷盘回调出现异常：", e);
+            }
         }
     }
 
+    /**
+     * 添加刷盘回调，在刷盘线程中按照txid的顺序调用，回调中不能阻塞
+     *
+     * @param listener 回调，参数是刚刷到磁盘的一批editlog
+     */
+    public void addSyncListener(Consumer<List<EditLogWrapper>> listener) {
+        syncListeners.add(listener);
+    }
+
     /**
      * 强制把内存缓冲里的数据刷入磁盘中
      */
     public void flush() {
-        synchronized (this) {
-            try {
-                editLogBuffer.setReadyToSync();
-                EditslogInfo editslogInfo = editLogBuffer.flush();
-                if (editslogInfo != null) {
-                    editLogInfos.add(editslogInfo);
-                }
-            } catch (IOException e) {
-                log.error("强制刷新EditLog缓冲区到磁盘失败.", e);
-            }
+        if (stopped) {
+            log.error("EditLog刷盘线程已经退出，不能强制刷盘.", failure);
+            return;
+        }
+        FlushRequest request = new FlushRequest(txIdSeq.get());
+        flushRequests.offer(request);
+        LockSupport.unpark(syncThread);
+        if (stopped) {
+            failPending();
+        }
+        try {
+            request.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("强制刷新EditLog缓冲区到磁盘失败.", e);
         }
     }
 
+    /**
+     * 刷完内存中所有的editlog，停止刷盘线程，返回之前所有刷盘成功的Future都已经完成
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(syncThread);
+        try {
+            syncThread.join();
+            completionExecutor.shutdown();
+            completionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segmentManager.close();
+    }
+
+    /**
+     * 获取已经刷到磁盘的最大txid
+     *
+     * @return txid
+     */
+    public long getSyncTxid() {
+        return syncTxid;
+    }
+
     /**
      * 获取当前写editLog的缓冲区
      *
@@ -218,32 +464,127 @@ public class FsEditLog {
      */
     public void playbackEditLog(long txiId, PlaybackEditLogCallback callback) throws IOException {
         long currentTxSeq = txiId;
-        this.txIdSeq = currentTxSeq;
+        resetTxId(currentTxSeq);
         List<EditslogInfo> sortedEditLogsFiles = getSortedEditLogFiles(txiId);
         StopWatch stopWatch = new StopWatch();
         for (EditslogInfo info : sortedEditLogsFiles) {
             if (info.getEnd() <= currentTxSeq) {
                 continue;
             }
-            List<EditLogWrapper> editLogWrappers = readEditLogFromFile(info.getName());
+            long[] lastTxId = {currentTxSeq};
             stopWatch.start();
-            for (EditLogWrapper editLogWrapper : editLogWrappers) {
-                long tmpTxId = editLogWrapper.getTxId();
-                if (tmpTxId <= currentTxSeq) {
-                    continue;
-                }
-                currentTxSeq = tmpTxId;
-                this.txIdSeq = currentTxSeq;
-                if (callback != null) {
-                    callback.playback(editLogWrapper);
-                }
+            EditLogFormat.ScanResult result;
+            try (EditLogReader reader = segmentManager.open(info.getName())) {
+                result = replay(reader, editLogWrapper -> {
+                    long tmpTxId = editLogWrapper.getTxId();
+                    if (tmpTxId <= lastTxId[0]) {
+                        return;
+                    }
+                    lastTxId[0] = tmpTxId;
+                    if (callback != null) {
+                        callback.playback(editLogWrapper);
+                    }
+                });
             }
+            currentTxSeq = lastTxId[0];
+            resetTxId(currentTxSeq);
             stopWatch.stop();
             log.info("回放editLog文件: [file={}, cost={} s]", info.getName(), stopWatch.getTime() / 1000.0D);
             stopWatch.reset();
+            if (!result.isClean()) {
+                // 后面的editlog和已经回放的editlog之间有空洞，不能再继续回放
+                log.error("editLog文件损坏，回放到最后一条合法的editlog为止: [file={}, txId={}, result={}]",
+                        info.getName(), currentTxSeq, result);
+                segmentManager.discardAfter(info, result);
+                break;
+            }
         }
     }
 
+    /**
+     * <pre>
+     * 回放一个段文件
+     *
+     * 开启 editlogs.replay.pipeline 之后，由单独的线程读取和解析editlog，每 REPLAY_BATCH_SIZE 条一批放入有界队列，
+     * 当前线程从队列中取出来回放，解析和回放可以同时进行，内存中最多只有 REPLAY_QUEUE_SIZE 批editlog。
+     * </pre>
+     *
+     * @param reader   段文件
+     * @param consumer 回放editlog
+     * @return 读取结果
+     * @throws IOException IO异常
+     */
+    private EditLogFormat.ScanResult replay(EditLogReader reader, Consumer<EditLogWrapper> consumer) throws IOException {
+        if (!nameNodeConfig.isEditLogReplayPipeline()) {
+            EditLogWrapper editLogWrapper;
+            while ((editLogWrapper = reader.next()) != null) {
+                consumer.accept(editLogWrapper);
+            }
+            return reader.getResult();
+        }
+        BlockingQueue<List<EditLogWrapper>> queue = new ArrayBlockingQueue<>(REPLAY_QUEUE_SIZE);
+        AtomicReference<Exception> decodeError = new AtomicReference<>();
+        DefaultThread decodeThread = new DefaultThread("FsEditLog-Replay-Decoder", () -> {
+            try {
+                List<EditLogWrapper> batch = new ArrayList<>(REPLAY_BATCH_SIZE);
+                EditLogWrapper editLogWrapper;
+                while ((editLogWrapper = reader.next()) != null) {
+                    batch.add(editLogWrapper);
+                    if (batch.size() >= REPLAY_BATCH_SIZE) {
+                        queue.put(batch);
+                        batch = new ArrayList<>(REPLAY_BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    queue.put(batch);
+                }
+            } catch (InterruptedException e) {
+                // 回放线程出现异常，不需要再继续解析
+                return;
+            } catch (Exception e) {
+                decodeError.set(e);
+            }
+            try {
+                queue.put(END_OF_SEGMENT);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }, true);
+        decodeThread.start();
+        try {
+            List<EditLogWrapper> batch;
+            while ((batch = queue.take()) != END_OF_SEGMENT) {
+                for (EditLogWrapper editLogWrapper : batch) {
+                    consumer.accept(editLogWrapper);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("回放editlog被中断", e);
+        } finally {
+            // 正常结束时解析线程已经退出，回放出现异常时让解析线程尽快退出
+            decodeThread.interrupt();
+            try {
+                decodeThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Exception e = decodeError.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw new IllegalStateException("解析editlog失败", e);
+        }
+        return reader.getResult();
+    }
+
+    private void resetTxId(long txId) {
+        txIdSeq.set(txId);
+        writtenTxId = txId;
+        syncTxid = txId;
+    }
+
     /**
      * 从文件中读取EditLog
      *
@@ -252,75 +593,58 @@ public class FsEditLog {
      * @throws IOException IO异常
      */
     public List<EditLogWrapper> readEditLogFromFile(String absolutePath) throws IOException {
-        return EditLogWrapper.parseFrom(FileUtil.readBuffer(absolutePath));
+        return segmentManager.read(absolutePath);
     }
 
 
     /**
-     * <pre>
-     * 获取比minTxId更大的editlog文件，经过排序后的文件
-     * 比如磁盘中有文件：
-     *
-     *      1_1000.log
-     *      1001_2000.log
-     *      2001_3000.log
-     *
-     * 如果minTxId=1500，则会返回: [1001_2000.log, 2001_3000.log]
-     * </pre>
+     * 读取txId之后的一批已经刷盘的editlog，优先从缓存中读取，不在缓存中的时候通过cursor从段文件中读取
      *
-     * @param minTxId 最小的txid
-     * @return 排序后的文件信息
+     * @param txId     从下一条开始读取
+     * @param maxSize  最多读取的数量
+     * @param maxBytes 最多读取的字节数，至少会读取一条
+     * @param cursor   读取段文件的游标，由调用方持有，连续读取的时候可以接着上一次的位置
+     * @return editlog，没有更多的editlog时返回空
+     * @throws IOException IO异常
      */
-    public List<EditslogInfo> getSortedEditLogFiles(long minTxId) {
-        List<EditslogInfo> result = new ArrayList<>();
-        for (EditslogInfo editslogInfo : editLogInfos) {
-            if (editslogInfo.getEnd() <= minTxId) {
-                continue;
-            }
-            result.add(editslogInfo);
+    public List<EditLogWrapper> readSyncedEditLogs(long txId, int maxSize, int maxBytes,
+                                                   EditLogSegmentCursor cursor) throws IOException {
+        List<EditLogWrapper> result = editLogCache == null ? null : editLogCache.get(txId, maxSize, maxBytes);
+        if (result != null) {
+            return result;
         }
-        return result;
+        Prometheus.incCounter("namenode_editlog_cache_miss", "读取EditLog缓存未命中的次数");
+        return cursor.read(txId, maxSize, maxBytes);
     }
 
     /**
-     * 从磁盘中加载所有的editslog文件信息
+     * 流式读取段文件，正在写入的段文件只读取已经刷盘的部分
+     *
+     * @param absolutePath 绝对路径
+     * @return reader
+     * @throws IOException IO异常
      */
-    private void loadEditLogInfos() {
-        this.editLogInfos = new CopyOnWriteArrayList<>();
-        File dir = new File(nameNodeConfig.getBaseDir());
-        if (!dir.isDirectory()) {
-            return;
-        }
-        File[] files = dir.listFiles();
-        if (files == null || files.length == 0) {
-            return;
-        }
-        for (File file : files) {
-            if (!file.getName().contains("edits")) {
-                continue;
-            }
-            long[] index = getIndexFromFileName(file.getName());
-            this.editLogInfos.add(new EditslogInfo(index[0], index[1],
-                    nameNodeConfig.getBaseDir() + File.separator + file.getName()));
-        }
-        this.editLogInfos.sort(null);
+    public EditLogReader openEditLogFile(String absolutePath) throws IOException {
+        return segmentManager.open(absolutePath);
     }
 
-
     /**
-     * 从文件名中提取index
+     * <pre>
+     * 获取比minTxId更大的editlog文件，经过排序后的文件
+     * 比如磁盘中有文件：
      *
-     * @param name 文件名  1_1000.log
-     * @return 数组，例如：[1,1000]
-     */
-    private long[] getIndexFromFileName(String name) {
-        Matcher matcher = indexPattern.matcher(name);
-        long[] result = new long[2];
-        if (matcher.find()) {
-            result[0] = Long.parseLong(matcher.group(1));
-            result[1] = Long.parseLong(matcher.group(2));
-        }
-        return result;
+     *      1_1000
+     *      1001_2000
+     *      2001_3000
+     *
+     * 如果minTxId=1500，则会返回: [1001_2000, 2001_3000]
+     * </pre>
+     *
+     * @param minTxId 最小的txid
+     * @return 排序后的文件信息
+     */
+    public List<EditslogInfo> getSortedEditLogFiles(long minTxId) {
+        return segmentManager.getSortedEditLogFiles(minTxId);
     }
 
     /**
@@ -330,28 +654,48 @@ public class FsEditLog {
      *
      * 比如磁盘中有文件：
      *
-     *      1_1000.log
-     *      1001_2000.log
-     *      2001_3000.log
+     *      1_1000
+     *      1001_2000
+     *      2001_3000
      *
-     * 如果txid=1500，则会删除文件: [1_1000.log]
+     * 如果txid=1500，则会删除文件: [1_1000]
      *
      * </pre>
      *
      * @param txId txId
      */
     public void cleanEditLogByTxId(long txId) {
-        List<EditslogInfo> toRemoveEditLog = new ArrayList<>();
-        for (EditslogInfo editslogInfo : editLogInfos) {
-            if (editslogInfo.getEnd() > txId) {
-                continue;
-            }
-            File file = new File(editslogInfo.getName());
-            if (file.delete()) {
-                log.info("删除editLog文件: [file={}]", editslogInfo.getName());
-            }
-            toRemoveEditLog.add(editslogInfo);
+        segmentManager.cleanByTxId(txId);
+    }
+
+    /**
+     * 等待刷盘的editlog
+     */
+    private static class PendingEditLog implements Comparable<PendingEditLog> {
+        private final EditLogWrapper editLog;
+        private final long txId;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        PendingEditLog(EditLogWrapper editLog) {
+            this.editLog = editLog;
+            this.txId = editLog.getTxId();
+        }
+
+        @Override
+        public int compareTo(PendingEditLog o) {
+            return Long.compare(txId, o.txId);
+        }
+    }
+
+    /**
+     * 强制刷盘请求，txid之前的editlog都刷到磁盘之后完成
+     */
+    private static class FlushRequest {
+        private final long txId;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        FlushRequest(long txId) {
+            this.txId = txId;
         }
-        editLogInfos.removeAll(toRemoveEditLog);
     }
 }
@@ -1,16 +1,14 @@
 package com.ruyuan.dfs.namenode.fs;
 
 import com.ruyuan.dfs.backup.fs.FsImage;
-import com.ruyuan.dfs.common.Constants;
+import com.ruyuan.dfs.backup.fs.FsImageChain;
+import com.ruyuan.dfs.common.enums.FsLockMode;
 import com.ruyuan.dfs.model.namenode.Metadata;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.time.StopWatch;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -27,7 +25,11 @@ public abstract class AbstractFsNameSystem implements FsNamesystem {
     protected FsDirectory directory;
 
     public AbstractFsNameSystem() {
-        this.directory = new FsDirectory();
+        this(FsLockMode.GLOBAL);
+    }
+
+    public AbstractFsNameSystem(FsLockMode lockMode) {
+        this.directory = new FsDirectory(lockMode);
     }
 
     /**
@@ -47,12 +49,43 @@ public abstract class AbstractFsNameSystem implements FsNamesystem {
         return this.directory.createFile(filename, attr);
     }
 
+    @Override
+    public boolean[] createFiles(List<String> filenames, List<Map<String, String>> attrs) {
+        return this.directory.createFiles(filenames, attrs);
+    }
+
     @Override
     public boolean deleteFile(String filename) {
         Node node = this.directory.delete(filename);
         return node != null;
     }
 
+    @Override
+    public boolean moveToTrash(String filename, Map<String, String> attr) {
+        return this.directory.moveToTrash(filename, attr);
+    }
+
+    @Override
+    public boolean[] moveToTrash(List<String> filenames, Map<String, String> attr) {
+        return this.directory.moveToTrash(filenames, attr);
+    }
+
+    @Override
+    public int rename(String src, String dst) {
+        return this.directory.rename(src, dst);
+    }
+
+    /**
+     * 按照删除时间从早到晚查找垃圾箱中已经过期的文件
+     *
+     * @param expireBefore 删除时间早于这个时间的文件已经过期
+     * @param limit        最多返回多少个
+     * @return 过期文件的全路径
+     */
+    public List<String> findExpiredTrashFiles(long expireBefore, int limit) {
+        return this.directory.findExpiredTrashFiles(expireBefore, limit);
+    }
+
 
     @Override
     public Set<Metadata> getFilesBySlot(int slot) {
@@ -77,20 +110,20 @@ public abstract class AbstractFsNameSystem implements FsNamesystem {
      * @return 最新并合法的FSImage
      */
     protected FsImage scanLatestValidFsImage(String baseDir) throws IOException {
-        Map<Long, String> timeFsImageMap = scanFsImageMap(baseDir);
-        List<Long> sortedList = new ArrayList<>(timeFsImageMap.keySet());
-        sortedList.sort((o1, o2) -> o1.equals(o2) ? 0 : (int) (o2 - o1));
-        for (Long time : sortedList) {
-            String path = timeFsImageMap.get(time);
-            try (RandomAccessFile raf = new RandomAccessFile(path, "r"); FileInputStream fis =
-                    new FileInputStream(raf.getFD()); FileChannel channel = fis.getChannel()) {
-                FsImage fsImage = FsImage.parse(channel, path, (int) raf.length());
-                if (fsImage != null) {
-                    return fsImage;
-                }
-            }
-        }
-        return null;
+        return scanLatestValidFsImage(baseDir, 1);
+    }
+
+    /**
+     * 扫描最新的FSImage文件，包括最新的完整FsImage和之后的增量FsImage
+     *
+     * @param baseDir 文件目录
+     * @param threads 并行加载的线程数量
+     * @return 合并增量之后的FSImage
+     */
+    protected FsImage scanLatestValidFsImage(String baseDir, int threads) throws IOException {
+        FsImageChain chain = FsImageChain.scan(scanFsImageMap(baseDir));
+        log.info("扫描FsImage文件: [files={}, maxTxId={}]", chain.getFiles(), chain.getMaxTxId());
+        return chain.load(threads);
     }
 
     /**
@@ -141,33 +174,9 @@ public abstract class AbstractFsNameSystem implements FsNamesystem {
      * @return 文件数量
      */
     public CalculateResult calculate(String path) {
-        CalculateResult result = new CalculateResult();
-        result.setFileCount(0);
-        result.setTotalSize(0);
-        Node node = unsafeListFiles(path);
-        if (node == null) {
-            return result;
-        } else {
-            internalCalculate(node, result);
-        }
-        return result;
-    }
-
-    private void internalCalculate(Node node, CalculateResult result) {
-        if (node.isFile()) {
-            result.addFileCount();
-            String fileSizeStr = node.getAttr().getOrDefault(Constants.ATTR_FILE_SIZE, "0");
-            long fileSize = Long.parseLong(fileSizeStr);
-            result.addTotalSize(fileSize);
-        } else {
-            for (String key : node.getChildren().keySet()) {
-                Node children = node.getChildren().get(key);
-                internalCalculate(children, result);
-            }
-        }
+        return directory.calculate(path);
     }
 
-
     /**
      * 获取文件列表
      *
@@ -178,6 +187,18 @@ public abstract class AbstractFsNameSystem implements FsNamesystem {
         return this.directory.listFiles(filename, level);
     }
 
+    /**
+     * 分页获取文件列表
+     *
+     * @param filename   文件路径
+     * @param startAfter 上一页最后一个文件的名称，为空时从第一个开始
+     * @param pageSize   每页最多多少个文件
+     * @return 只包含这一页文件的目录，目录不存在返回null
+     */
+    public Node listFiles(String filename, String startAfter, int pageSize) {
+        return this.directory.listFiles(filename, startAfter, pageSize);
+    }
+
     /**
      * <pre>
      *     假设存在文件：
@@ -219,4 +240,14 @@ public abstract class AbstractFsNameSystem implements FsNamesystem {
         }
         return Collections.unmodifiableMap(node.getAttr());
     }
+
+    /**
+     * 批量获取文件属性
+     *
+     * @param filenames 文件名称
+     * @return 每个文件的属性，和文件名称一一对应，不存在的文件为null
+     */
+    public List<Map<String, String>> getAttrs(List<String> filenames) {
+        return this.directory.getAttrs(filenames);
+    }
 }
@@ -13,8 +13,13 @@ import com.ruyuan.dfs.namenode.server.UserManager;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.time.StopWatch;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 /**
  * 负责管理文件系统元数据的组件
@@ -31,7 +36,7 @@ public class DiskNameSystem extends AbstractFsNameSystem {
 
     public DiskNameSystem(NameNodeConfig nameNodeConfig, DefaultScheduler defaultScheduler,
                           DataNodeManager dataNodeManager, UserManager userManager) {
-        super();
+        super(nameNodeConfig.getLockMode());
         this.nameNodeConfig = nameNodeConfig;
         this.editLog = new FsEditLog(nameNodeConfig);
         dataNodeManager.setDiskNameSystem(this);
@@ -48,12 +53,21 @@ public class DiskNameSystem extends AbstractFsNameSystem {
     @Override
     public void recoveryNamespace() throws Exception {
         try {
-            FsImage fsImage = scanLatestValidFsImage(nameNodeConfig.getBaseDir());
+            StopWatch stopWatch = new StopWatch();
+            stopWatch.start();
+            FsImage fsImage = scanLatestValidFsImage(nameNodeConfig.getBaseDir(),
+                    nameNodeConfig.getFsImageLoadThreads());
+            long loadTime = stopWatch.getTime();
+            Prometheus.gauge("namenode_recovery_cost", "NameNode启动恢复元数据各阶段耗时", "phase",
+                    "loadFsImage", loadTime);
             long txId = 0L;
             if (fsImage != null) {
                 txId = fsImage.getMaxTxId();
                 applyFsImage(fsImage);
             }
+            long applyTime = stopWatch.getTime() - loadTime;
+            Prometheus.gauge("namenode_recovery_cost", "NameNode启动恢复元数据各阶段耗时", "phase",
+                    "applyFsImage", applyTime);
             // 回放editLog文件
             this.editLog.playbackEditLog(txId, obj -> {
                 EditLog editLog = obj.getEditLog();
@@ -65,8 +79,20 @@ public class DiskNameSystem extends AbstractFsNameSystem {
                     super.createFile(editLog.getPath(), editLog.getAttrMap());
                 } else if (opType == FsOpType.DELETE.getValue()) {
                     super.deleteFile(editLog.getPath());
+                } else if (opType == FsOpType.MOVE_TO_TRASH.getValue()) {
+                    super.moveToTrash(editLog.getPath(), editLog.getAttrMap());
+                } else if (opType == FsOpType.RENAME.getValue()) {
+                    super.rename(editLog.getPath(), editLog.getDstPath());
                 }
             });
+            stopWatch.stop();
+            long replayTime = stopWatch.getTime() - loadTime - applyTime;
+            Prometheus.gauge("namenode_recovery_cost", "NameNode启动恢复元数据各阶段耗时", "phase",
+                    "replayEditLog", replayTime);
+            Prometheus.gauge("namenode_recovery_cost", "NameNode启动恢复元数据各阶段耗时", "phase",
+                    "total", stopWatch.getTime());
+            log.info("NameNode恢复元数据完成: [loadFsImage={} ms, applyFsImage={} ms, replayEditLog={} ms]",
+                    loadTime, applyTime, replayTime);
         } catch (Exception e) {
             log.info("NameNode恢复命名空间异常：", e);
             throw e;
@@ -84,49 +110,205 @@ public class DiskNameSystem extends AbstractFsNameSystem {
     }
 
     /**
-     * 创建目录
+     * 创建目录，等待editlog刷盘之后返回
      *
      * @param path 目录路径
      */
     @Override
     public void mkdir(String path, Map<String, String> attr) {
+        mkdirAsync(path, attr).join();
+    }
+
+    /**
+     * 创建目录
+     *
+     * @param path 目录路径
+     * @return editlog刷盘之后完成的Future，结果为txid
+     */
+    public CompletableFuture<Long> mkdirAsync(String path, Map<String, String> attr) {
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
-        super.mkdir(path, attr);
-        this.editLog.logEdit(new EditLogWrapper(FsOpType.MKDIR.getValue(), path, attr));
+        CompletableFuture<Long> future = this.directory.mkdir(path, attr,
+                () -> this.editLog.logEdit(new EditLogWrapper(FsOpType.MKDIR.getValue(), path, attr)));
         log.info("创建文件夹：{}", path);
         stopWatch.stop();
         Prometheus.gauge("namenode_fs_memory_cost", "FSDirectory操作耗时", "op", "mkdir", stopWatch.getTime());
+        return future;
     }
 
     /**
-     * 创建文件
+     * 创建文件，等待editlog刷盘之后返回
      *
      * @param filename 文件路径
      */
     @Override
     public boolean createFile(String filename, Map<String, String> attr) {
+        return createFileAsync(filename, attr).join();
+    }
+
+    /**
+     * 创建文件
+     *
+     * @param filename 文件路径
+     * @return editlog刷盘之后完成的Future，文件已经存在时立即完成，结果为false
+     */
+    public CompletableFuture<Boolean> createFileAsync(String filename, Map<String, String> attr) {
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
-        if (!super.createFile(filename, attr)) {
-            return false;
+        CompletableFuture<Long> future = this.directory.createFile(filename, attr,
+                () -> this.editLog.logEdit(new EditLogWrapper(FsOpType.CREATE.getValue(), filename, attr)));
+        if (future == null) {
+            return CompletableFuture.completedFuture(false);
         }
-        this.editLog.logEdit(new EditLogWrapper(FsOpType.CREATE.getValue(), filename, attr));
         Prometheus.gauge("namenode_fs_memory_cost", "FSDirectory操作耗时", "op", "createFile", stopWatch.getTime());
-        return true;
+        return future.thenApply(txId -> true);
+    }
+
+    /**
+     * 批量创建文件，等待editlog刷盘之后返回
+     *
+     * @param filenames 文件路径
+     */
+    @Override
+    public boolean[] createFiles(List<String> filenames, List<Map<String, String>> attrs) {
+        return createFilesAsync(filenames, attrs).join();
+    }
+
+    /**
+     * 批量创建文件，创建成功的文件在同一个加锁区间中写入editlog
+     *
+     * <pre>
+     * 全局锁模式下整批文件的editlog一次入队，分配一段连续的txid，在同一次或者相邻的几次组提交中刷盘。
+     * 分层锁模式下每个文件在自己的锁中入队，保证和同一个目录下其他修改的顺序一致。
+     * </pre>
+     *
+     * @param filenames 文件路径
+     * @return 这一批editlog都刷盘之后完成的Future，结果为每个文件是否创建成功
+     */
+    public CompletableFuture<boolean[]> createFilesAsync(List<String> filenames, List<Map<String, String>> attrs) {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        BatchJournal journal = new BatchJournal(index -> new EditLogWrapper(FsOpType.CREATE.getValue(),
+                filenames.get(index), attrs.get(index)));
+        boolean[] ret = this.directory.createFiles(filenames, attrs, journal);
+        Prometheus.gauge("namenode_fs_memory_cost", "FSDirectory操作耗时", "op", "createFiles", stopWatch.getTime());
+        return journal.future().thenApply(v -> ret);
     }
 
+    /**
+     * 删除文件，等待editlog刷盘之后返回
+     *
+     * @param filename 文件路径
+     */
     @Override
     public boolean deleteFile(String filename) {
+        return deleteFileAsync(filename).join();
+    }
+
+    /**
+     * 删除文件
+     *
+     * @param filename 文件路径
+     * @return editlog刷盘之后完成的Future，文件不存在时立即完成，结果为false
+     */
+    public CompletableFuture<Boolean> deleteFileAsync(String filename) {
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
-        if (!super.deleteFile(filename)) {
-            return false;
+        CompletableFuture<Long> future = this.directory.delete(filename,
+                remove -> this.editLog.logEdit(new EditLogWrapper(FsOpType.DELETE.getValue(), filename)));
+        if (future == null) {
+            return CompletableFuture.completedFuture(false);
         }
-        this.editLog.logEdit(new EditLogWrapper(FsOpType.DELETE.getValue(), filename));
         log.info("删除文件：{}", filename);
         Prometheus.gauge("namenode_fs_memory_cost", "FSDirectory操作耗时", "op", "deleteFile", stopWatch.getTime());
-        return true;
+        return future.thenApply(txId -> true);
+    }
+
+    /**
+     * 移动文件到垃圾箱，等待editlog刷盘之后返回
+     *
+     * @param filename 文件路径
+     */
+    @Override
+    public boolean moveToTrash(String filename, Map<String, String> attr) {
+        return moveToTrashAsync(filename, attr).join();
+    }
+
+    /**
+     * 移动文件到垃圾箱
+     *
+     * @param filename 文件路径
+     * @return editlog刷盘之后完成的Future，文件不存在时立即完成，结果为false
+     */
+    public CompletableFuture<Boolean> moveToTrashAsync(String filename, Map<String, String> attr) {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        CompletableFuture<Long> future = this.directory.moveToTrash(filename, attr,
+                () -> this.editLog.logEdit(new EditLogWrapper(FsOpType.MOVE_TO_TRASH.getValue(), filename, attr)));
+        if (future == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        log.info("移动文件到垃圾箱：{}", filename);
+        Prometheus.gauge("namenode_fs_memory_cost", "FSDirectory操作耗时", "op", "moveToTrash", stopWatch.getTime());
+        return future.thenApply(txId -> true);
+    }
+
+    /**
+     * 批量移动文件到垃圾箱，等待editlog刷盘之后返回
+     *
+     * @param filenames 文件路径
+     */
+    @Override
+    public boolean[] moveToTrash(List<String> filenames, Map<String, String> attr) {
+        return moveToTrashAsync(filenames, attr).join();
+    }
+
+    /**
+     * 批量移动文件到垃圾箱，整批移动完之后在同一个加锁区间中一次写入所有移动成功的文件的editlog
+     *
+     * @param filenames 文件路径
+     * @return 这一批editlog都刷盘之后完成的Future，结果为每个文件是否移动成功
+     */
+    public CompletableFuture<boolean[]> moveToTrashAsync(List<String> filenames, Map<String, String> attr) {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        BatchJournal journal = new BatchJournal(index -> new EditLogWrapper(FsOpType.MOVE_TO_TRASH.getValue(),
+                filenames.get(index), attr));
+        boolean[] ret = this.directory.moveToTrash(filenames, attr, journal);
+        log.info("批量移动文件到垃圾箱：[total={}, moved={}]", ret.length, journal.count);
+        Prometheus.gauge("namenode_fs_memory_cost", "FSDirectory操作耗时", "op", "moveToTrash", stopWatch.getTime());
+        return journal.future().thenApply(v -> ret);
+    }
+
+    /**
+     * 重命名，等待editlog刷盘之后返回
+     *
+     * @param src 原路径
+     * @param dst 目标路径
+     */
+    @Override
+    public int rename(String src, String dst) {
+        return renameAsync(src, dst).join();
+    }
+
+    /**
+     * 重命名
+     *
+     * @param src 原路径
+     * @param dst 目标路径
+     * @return editlog刷盘之后完成的Future，结果为移动的文件数量，重命名失败时立即完成，结果小于0
+     */
+    public CompletableFuture<Integer> renameAsync(String src, String dst) {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        CompletableFuture<Integer> future = this.directory.rename(src, dst, files -> this.editLog.logEdit(
+                new EditLogWrapper(FsOpType.RENAME.getValue(), src, dst)).thenApply(txId -> files));
+        if (future == null) {
+            return CompletableFuture.completedFuture(-1);
+        }
+        log.info("重命名：[src={}, dst={}]", src, dst);
+        Prometheus.gauge("namenode_fs_memory_cost", "FSDirectory操作耗时", "op", "rename", stopWatch.getTime());
+        return future;
     }
 
     /**
@@ -135,7 +317,7 @@ public class DiskNameSystem extends AbstractFsNameSystem {
      */
     public void shutdown() {
         log.info("Shutdown DiskNameSystem.");
-        this.editLog.flush();
+        this.editLog.close();
     }
 
     /**
@@ -147,4 +329,38 @@ public class DiskNameSystem extends AbstractFsNameSystem {
         return editLog;
     }
 
+    /**
+     * 批量操作的journal，每次调用把修改成功的文件的editlog一次入队
+     *
+     * <pre>
+     * editlog的Future按照txid的顺序完成，刷盘失败之后后面的editlog也都会失败，所以只需要等待最后一次入队的Future。
+     * </pre>
+     */
+    private class BatchJournal implements Consumer<int[]> {
+
+        private final IntFunction<EditLogWrapper> editLogFactory;
+        private CompletableFuture<Long> last;
+        private int count;
+
+        BatchJournal(IntFunction<EditLogWrapper> editLogFactory) {
+            this.editLogFactory = editLogFactory;
+        }
+
+        @Override
+        public void accept(int[] indexes) {
+            List<EditLogWrapper> editLogs = new ArrayList<>(indexes.length);
+            for (int index : indexes) {
+                editLogs.add(editLogFactory.apply(index));
+            }
+            last = editLog.logEdits(editLogs);
+            count += indexes.length;
+        }
+
+        /**
+         * @return 入队的editlog都刷盘之后完成的Future，没有修改成功的文件时立即完成
+         */
+        CompletableFuture<Long> future() {
+            return last == null ? CompletableFuture.completedFuture(null) : last;
+        }
+    }
 }
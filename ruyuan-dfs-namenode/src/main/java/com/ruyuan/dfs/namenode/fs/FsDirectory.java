@@ -1,160 +1,1143 @@
 package com.ruyuan.dfs.namenode.fs;
 
 import com.ruyuan.dfs.backup.fs.FsImage;
+import com.ruyuan.dfs.backup.fs.FsImageWriter;
 import com.ruyuan.dfs.common.Constants;
+import com.ruyuan.dfs.common.enums.FsLockMode;
+import com.ruyuan.dfs.common.enums.FsOpType;
 import com.ruyuan.dfs.common.enums.NodeType;
 import com.ruyuan.dfs.common.utils.StringUtils;
+import com.ruyuan.dfs.model.backup.EditLog;
 import com.ruyuan.dfs.model.backup.INode;
 import com.ruyuan.dfs.model.namenode.Metadata;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
 /**
  * 负责管理内存中文件目录树的核心组件
  *
+ * <pre>
+ * 支持两种加锁模式：
+ *
+ *  1. GLOBAL: 整棵目录树共用一把读写锁，所有的修改操作互斥。
+ *  2. HIERARCHICAL: 修改操作持有全局锁的读锁，然后从根节点开始逐层对目录加读锁，
+ *     只对需要修改孩子节点的那一层目录加写锁。这样在不相交的子树中的修改可以并行执行。
+ *     只有创建快照和加载FsImage这种针对整棵树的操作才会持有全局锁的写锁。
+ *
+ *  分层锁模式下的约定：
+ *
+ *  1. 一个目录的孩子节点集合由该目录的锁保护，一个节点的属性由其父目录的锁保护。
+ *  2. 加锁顺序永远是从根节点往下，不会出现持有下层锁再去获取上层锁的情况，从而避免死锁。
+ *
+ * 修改操作可以传入journal，修改成功之后在同一个加锁区间中调用，用来给editlog分配txid并入队。
+ * 这样editlog的顺序和修改目录树的顺序一致，回放之后得到相同的目录树。journal中不能等待刷盘。
+ * 批量操作在整批持有全局写锁的时候只调用一次journal，传入所有修改成功的下标，整批editlog一次入队。
+ *
+ * 生成FsImage不会在整个序列化过程中持有锁，而是先创建一个写时复制的 {@link NamespaceSnapshot}，
+ * 创建快照只需要短暂持有全局写锁，之后基于快照写文件，修改操作可以同时执行。
+ *
+ * 开启增量checkpoint之后，会记录上一个快照之后修改过的目录：孩子节点集合发生变化，或者孩子节点的属性发生变化。
+ * 创建快照的时候把这些目录交给快照，用来生成只包含这些目录的增量FsImage。
+ *
+ * 迁移槽位时按照槽位查询文件通过 {@link SlotIndex} 完成，索引在第一次查询时建立，之后随着创建和删除文件增量维护。
+ * 垃圾箱中的文件按照删除时间记录在 {@link TrashIndex} 中，清理垃圾箱的时候只需要访问已经过期的文件。
+ * 每个目录下的文件数量和文件大小之和记录在 {@link UsageIndex} 中，统计目录用量不需要遍历子树。
+ * </pre>
+ *
  * @author Sun Dasheng
  */
 @Slf4j
 public class FsDirectory {
 
-    private Node root;
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private Node root;
+    private final FsLockMode lockMode;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    /**
+     * 同一时间只允许存在一个快照，后创建的快照等待前一个快照关闭
+     */
+    private final Semaphore snapshotPermit = new Semaphore(1);
+    /**
+     * 当前存在的快照，不存在时为null。节点通过根节点读取，判断修改之前是否需要保存副本
+     */
+    private volatile NamespaceSnapshot activeSnapshot;
+    /**
+     * 上一个快照之后修改过的目录，没有开启增量checkpoint的时候为null
+     */
+    private volatile Set<Node> dirtyDirectories;
+    /**
+     * 槽位到文件节点的索引，第一次按照槽位查询文件的时候建立，之后增量维护，没有建立之前为null
+     */
+    private volatile SlotIndex slotIndex;
+    /**
+     * 垃圾箱中的文件按照删除时间排序的索引
+     */
+    private final TrashIndex trashIndex = new TrashIndex();
+    /**
+     * 每个目录下的文件数量和文件大小之和
+     */
+    private final UsageIndex usageIndex = new UsageIndex();
+
+    public FsDirectory() {
+        this(FsLockMode.GLOBAL);
+    }
+
+    public FsDirectory(FsLockMode lockMode) {
+        this.root = new RootNode(this);
+        this.lockMode = lockMode;
+    }
+
+    public FsLockMode getLockMode() {
+        return lockMode;
+    }
+
+    private boolean isHierarchical() {
+        return FsLockMode.HIERARCHICAL.equals(lockMode);
+    }
+
+    /**
+     * 创建文件目录
+     *
+     * @param path 文件目录
+     */
+    public void mkdir(String path, Map<String, String> attr) {
+        mkdir(path, attr, null);
+    }
+
+    /**
+     * 创建文件目录
+     *
+     * @param path    文件目录
+     * @param journal 创建之后在持有锁的时候调用，可以为null
+     * @return journal的返回值
+     */
+    public <T> T mkdir(String path, Map<String, String> attr, Supplier<T> journal) {
+        if (isHierarchical()) {
+            return hierarchicalMkdir(path, attr, journal);
+        }
+        try {
+            lock.writeLock().lock();
+            String[] paths = StringUtils.split(path, '/');
+            Node current = root;
+            for (String p : paths) {
+                if ("".equals(p)) {
+                    continue;
+                }
+                current = findDirectory(current, p);
+            }
+            current.putAllAttr(attr);
+            markDirty(current.getParent() == null ? current : current.getParent());
+            return journal(journal);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private <T> T hierarchicalMkdir(String path, Map<String, String> attr, Supplier<T> journal) {
+        String[] paths = StringUtils.split(path, '/');
+        PathLocks pathLocks = new PathLocks();
+        lock.readLock().lock();
+        try {
+            if (paths.length == 0) {
+                pathLocks.write(root);
+                root.putAllAttr(attr);
+                markDirty(root);
+                return journal(journal);
+            }
+            Node parent = lockAndMkdirs(paths, paths.length - 1, pathLocks);
+            pathLocks.upgrade(parent);
+            Node current = findDirectory(parent, paths[paths.length - 1]);
+            current.putAllAttr(attr);
+            markDirty(parent);
+            return journal(journal);
+        } finally {
+            pathLocks.releaseAll();
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 创建文件
+     *
+     * @param filename 文件名
+     * @return 是否创建成功
+     */
+    public boolean createFile(String filename, Map<String, String> attr) {
+        return createFile(filename, attr, () -> Boolean.TRUE) != null;
+    }
+
+    /**
+     * 创建文件
+     *
+     * @param filename 文件名
+     * @param journal  创建成功之后在持有锁的时候调用，不能为null
+     * @return journal的返回值，文件已经存在时返回null
+     */
+    public <T> T createFile(String filename, Map<String, String> attr, Supplier<T> journal) {
+        if (isHierarchical()) {
+            return hierarchicalCreateFile(filename, attr, journal);
+        }
+        try {
+            lock.writeLock().lock();
+            String[] paths = StringUtils.split(filename, '/');
+            String fileNode = paths[paths.length - 1];
+            Node fileParentNode = getFileParent(paths);
+            return addFile(fileParentNode, fileNode, filename, attr) ? journal.get() : null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private <T> T hierarchicalCreateFile(String filename, Map<String, String> attr, Supplier<T> journal) {
+        String[] paths = StringUtils.split(filename, '/');
+        String fileNode = paths[paths.length - 1];
+        PathLocks pathLocks = new PathLocks();
+        lock.readLock().lock();
+        try {
+            Node fileParentNode = lockAndMkdirs(paths, paths.length - 1, pathLocks);
+            pathLocks.upgrade(fileParentNode);
+            return addFile(fileParentNode, fileNode, filename, attr) ? journal.get() : null;
+        } finally {
+            pathLocks.releaseAll();
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 批量创建文件
+     *
+     * <pre>
+     * 全局锁模式下整批文件只加一次写锁，分层锁模式下每个文件独立加锁，不同目录下的文件可以和其他修改并行。
+     * </pre>
+     *
+     * @param filenames 文件名
+     * @param attrs     每个文件的属性，和文件名一一对应
+     * @return 每个文件是否创建成功，文件已经存在时创建失败
+     */
+    public boolean[] createFiles(List<String> filenames, List<Map<String, String>> attrs) {
+        return createFiles(filenames, attrs, null);
+    }
+
+    /**
+     * 批量创建文件，和 {@link #createFiles(List, List)} 相同
+     *
+     * @param filenames 文件名
+     * @param attrs     每个文件的属性，和文件名一一对应
+     * @param journal   在持有锁的时候调用，参数是创建成功的文件下标，可以为null。
+     *                  全局锁模式下整批只调用一次，分层锁模式下每个文件在自己的锁中调用一次
+     * @return 每个文件是否创建成功，文件已经存在时创建失败
+     */
+    public boolean[] createFiles(List<String> filenames, List<Map<String, String>> attrs, Consumer<int[]> journal) {
+        boolean[] ret = new boolean[filenames.size()];
+        if (isHierarchical()) {
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = hierarchicalCreateFile(filenames.get(i), attrs.get(i), journalAt(journal, i)) != null;
+            }
+            return ret;
+        }
+        int[] created = new int[ret.length];
+        int count = 0;
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < ret.length; i++) {
+                String filename = filenames.get(i);
+                String[] paths = StringUtils.split(filename, '/');
+                if (paths.length == 0) {
+                    continue;
+                }
+                ret[i] = addFile(getFileParent(paths), paths[paths.length - 1], filename, attrs.get(i));
+                if (ret[i]) {
+                    created[count++] = i;
+                }
+            }
+            journalAll(journal, created, count);
+            return ret;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean addFile(Node fileParentNode, String fileNode, String filename, Map<String, String> attr) {
+        Node childrenNode = fileParentNode.getChildren(fileNode);
+        if (childrenNode != null) {
+            log.warn("文件已存在，创建失败 : {}", filename);
+            return false;
+        }
+        Node child = newNode(fileNode, NodeType.FILE.getValue());
+        child.putAllAttr(attr);
+        fileParentNode.addChildren(child);
+        markDirty(fileParentNode);
+        SlotIndex index = slotIndex;
+        if (index != null) {
+            index.add(child);
+        }
+        if (child.getDelTime() >= 0 && inTrash(child)) {
+            trashIndex.add(child);
+        }
+        usageIndex.add(child);
+        return true;
+    }
+
+    /**
+     * 判断节点是否在某个用户的垃圾箱中，例如 /user/.Trash/a/b.png
+     */
+    private boolean inTrash(Node node) {
+        // 找到第二层的节点，也就是 /user/.Trash
+        Node trash = null;
+        for (Node current = node; current.getParent() != null && current.getParent().getParent() != null;
+             current = current.getParent()) {
+            trash = current;
+        }
+        return trash != null && trash != node && Constants.TRASH_DIR.equals(trash.getPath());
+    }
+
+    private Node getFileParent(String[] paths) {
+        Node current = root;
+        for (int i = 0; i < paths.length - 1; i++) {
+            String p = paths[i];
+            if ("".equals(p)) {
+                continue;
+            }
+            current = findDirectory(current, p);
+        }
+        return current;
+    }
+
+    /**
+     * 删除文件
+     *
+     * @param filename 文件名
+     */
+    public Node delete(String filename) {
+        return delete(filename, remove -> Node.deepCopy(remove, Integer.MAX_VALUE));
+    }
+
+    /**
+     * 删除文件
+     *
+     * @param filename 文件名
+     * @param journal  删除成功之后在持有锁的时候调用，参数是被删除的节点，不能为null
+     * @return journal的返回值，删除失败返回null
+     */
+    public <T> T delete(String filename, Function<Node, T> journal) {
+        if (isHierarchical()) {
+            return hierarchicalDelete(filename, journal);
+        }
+        lock.writeLock().lock();
+        try {
+            Node remove = deleteLocked(filename);
+            return remove == null ? null : journal.apply(remove);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 全局锁模式下删除文件，调用方持有全局写锁
+     *
+     * @param filename 文件名
+     * @return 被删除的节点，删除失败返回null
+     */
+    private Node deleteLocked(String filename) {
+        String[] paths = StringUtils.split(filename, '/');
+        String name = paths[paths.length - 1];
+        Node current = getFileParent(paths);
+        Node childrenNode;
+        if ("".equals(name)) {
+            childrenNode = current;
+        } else {
+            childrenNode = current.getChildren(name);
+        }
+        if (!canDelete(childrenNode, filename)) {
+            return null;
+        }
+        removeFromIndexes(childrenNode);
+        Node remove = current.getChildren().remove(name);
+        markDirty(current);
+
+        // 删除空文件夹
+        Node parent = remove.getParent();
+        Node child = remove;
+        while (parent != null) {
+            if (child.getChildren().isEmpty()) {
+                child.setParent(null);
+                parent.getChildren().remove(child.getPath());
+                markDirty(parent);
+            }
+            child = parent;
+            parent = parent.getParent();
+        }
+        return remove;
+    }
+
+    /**
+     * 把文件移动到垃圾箱
+     *
+     * <pre>
+     * 删除原来的文件和在垃圾箱中创建文件在一次加写锁中完成，对应一条 MOVE_TO_TRASH 的editlog，
+     * 不会出现文件已经删除但是还没有进入垃圾箱的中间状态。分层锁模式下涉及两个不相交的子树，同样持有全局写锁。
+     *
+     * 垃圾箱中已经存在同名的文件时，用新删除的文件替换。
+     * </pre>
+     *
+     * @param filename 文件名，例如 /user/a/b.png，移动之后是 /user/.Trash/a/b.png
+     * @param attr     需要添加到文件上的属性，包含删除时间
+     * @return 是否移动成功
+     */
+    public boolean moveToTrash(String filename, Map<String, String> attr) {
+        return moveToTrash(filename, attr, () -> Boolean.TRUE) != null;
+    }
+
+    /**
+     * 把文件移动到垃圾箱，和 {@link #moveToTrash(String, Map)} 相同
+     *
+     * @param filename 文件名
+     * @param attr     需要添加到文件上的属性，包含删除时间
+     * @param journal  移动成功之后在持有锁的时候调用，不能为null
+     * @return journal的返回值，移动失败返回null
+     */
+    public <T> T moveToTrash(String filename, Map<String, String> attr, Supplier<T> journal) {
+        lock.writeLock().lock();
+        try {
+            return moveToTrashLocked(filename, attr) ? journal.get() : null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean moveToTrashLocked(String filename, Map<String, String> attr) {
+        String[] paths = StringUtils.split(filename, '/');
+        if (paths.length < 2 || !canDelete(findNode(paths), filename)) {
+            return false;
+        }
+        String trashFilename = TrashPolicyDefault.toTrashPath(filename);
+        String[] trashPaths = StringUtils.split(trashFilename, '/');
+        Node trashNode = findNode(trashPaths);
+        if (trashNode != null && !canDelete(trashNode, trashFilename)) {
+            return false;
+        }
+        Node remove = deleteLocked(filename);
+        if (trashNode != null) {
+            deleteLocked(trashFilename);
+        }
+        String name = paths[paths.length - 1];
+        Map<String, String> trashAttr = new HashMap<>(remove.getAttr());
+        trashAttr.putAll(attr);
+        return addFile(getFileParent(trashPaths), name, trashFilename, trashAttr);
+    }
+
+    /**
+     * 批量把文件移动到垃圾箱，整批文件只加一次写锁，每个文件的处理和 {@link #moveToTrash(String, Map)} 相同
+     *
+     * @param filenames 文件名
+     * @param attr      需要添加到每个文件上的属性，包含删除时间
+     * @return 每个文件是否移动成功
+     */
+    public boolean[] moveToTrash(List<String> filenames, Map<String, String> attr) {
+        return moveToTrash(filenames, attr, null);
+    }
+
+    /**
+     * 批量把文件移动到垃圾箱，和 {@link #moveToTrash(List, Map)} 相同
+     *
+     * @param filenames 文件名
+     * @param attr      需要添加到每个文件上的属性，包含删除时间
+     * @param journal   整批移动完之后在持有锁的时候调用一次，参数是移动成功的文件下标，可以为null
+     * @return 每个文件是否移动成功
+     */
+    public boolean[] moveToTrash(List<String> filenames, Map<String, String> attr, Consumer<int[]> journal) {
+        boolean[] ret = new boolean[filenames.size()];
+        int[] moved = new int[ret.length];
+        int count = 0;
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = moveToTrashLocked(filenames.get(i), attr);
+                if (ret[i]) {
+                    moved[count++] = i;
+                }
+            }
+            journalAll(journal, moved, count);
+            return ret;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 重命名文件或者文件夹
+     *
+     * <pre>
+     * 把整个子树从原来的父目录摘下来挂到新的父目录下，目录树上只修改两个父目录，只写一条 RENAME 的editlog。
+     * 子树中的文件路径发生了变化，需要重新计算槽位并更新槽位索引和垃圾箱索引，移出垃圾箱的文件去掉删除时间。
+     * 子树中的目录在新的路径下需要完整写入增量FsImage，所以全部记录为修改过的目录。
+     *
+     * 原来的父目录变成空目录之后会被删除，和删除文件保持一致。涉及两个不相交的子树，分层锁模式下同样持有全局写锁。
+     * </pre>
+     *
+     * @param src 原来的路径
+     * @param dst 新的路径，不能已经存在，也不能在原来的路径下面
+     * @return 移动的文件数量，重命名失败返回-1
+     */
+    public int rename(String src, String dst) {
+        Integer files = rename(src, dst, Integer::valueOf);
+        return files == null ? -1 : files;
+    }
+
+    /**
+     * 重命名文件或者文件夹，和 {@link #rename(String, String)} 相同
+     *
+     * @param src     原来的路径
+     * @param dst     新的路径
+     * @param journal 重命名成功之后在持有锁的时候调用，参数是移动的文件数量，不能为null
+     * @return journal的返回值，重命名失败返回null
+     */
+    public <T> T rename(String src, String dst, IntFunction<T> journal) {
+        lock.writeLock().lock();
+        try {
+            int files = renameLocked(src, dst);
+            return files < 0 ? null : journal.apply(files);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int renameLocked(String src, String dst) {
+        String[] srcPaths = StringUtils.split(src, '/');
+        String[] dstPaths = StringUtils.split(dst, '/');
+        if (srcPaths.length == 0 || dstPaths.length == 0 || isPrefix(srcPaths, dstPaths)) {
+            log.warn("不能移动到自己的子目录，重命名失败：[src={}, dst={}]", src, dst);
+            return -1;
+        }
+        Node node = findNode(srcPaths);
+        if (node == null) {
+            log.warn("文件不存在, 重命名失败：[src={}]", src);
+            return -1;
+        }
+        Node current = root;
+        for (int i = 0; i < dstPaths.length && current != null; i++) {
+            current = current.getChildren(dstPaths[i]);
+            if (current != null && (current.isFile() || i == dstPaths.length - 1)) {
+                log.warn("目标文件已存在, 重命名失败：[src={}, dst={}]", src, dst);
+                return -1;
+            }
+        }
+        unindex(node);
+        Node srcParent = node.getParent();
+        srcParent.removeChildren(node.getPath());
+        markDirty(srcParent);
+        // 先挂到新的父目录下再删除空目录，新的父目录可能就是原来的父目录或者它的上层目录
+        Node dstParent = getFileParent(dstPaths);
+        node.setPath(dstPaths[dstPaths.length - 1]);
+        dstParent.addChildren(node);
+        markDirty(dstParent);
+        usageIndex.move(node, srcParent);
+        Node.invalidateSlots(node);
+        int files = reindex(node, inTrash(node));
+        while (srcParent != root && srcParent.getParent() != null && srcParent.getChildren().isEmpty()) {
+            Node parent = srcParent.getParent();
+            parent.removeChildren(srcParent.getPath());
+            srcParent.setParent(null);
+            markDirty(parent);
+            srcParent = parent;
+        }
+        return files;
+    }
+
+    private static boolean isPrefix(String[] prefix, String[] paths) {
+        if (prefix.length > paths.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (!prefix[i].equals(paths[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void unindex(Node node) {
+        if (node.isFile()) {
+            SlotIndex index = slotIndex;
+            if (index != null) {
+                index.remove(node);
+            }
+            trashIndex.remove(node);
+            return;
+        }
+        for (Node child : node.getChildren().values()) {
+            unindex(child);
+        }
+    }
+
+    /**
+     * 把移动之后的子树重新加入索引
+     *
+     * @param node    子树的根节点
+     * @param inTrash 子树是否在垃圾箱中
+     * @return 子树中的文件数量
+     */
+    private int reindex(Node node, boolean inTrash) {
+        if (node.isFile()) {
+            if (!inTrash) {
+                node.getAttr().remove(Constants.ATTR_FILE_DEL_TIME);
+            }
+            SlotIndex index = slotIndex;
+            if (index != null) {
+                index.add(node);
+            }
+            if (inTrash) {
+                trashIndex.add(node);
+            }
+            return 1;
+        }
+        markDirty(node);
+        // 子树的根节点可能就是某个用户的垃圾箱目录
+        boolean childInTrash = inTrash || (node.getParent() != null && node.getParent().getParent() == root
+                && Constants.TRASH_DIR.equals(node.getPath()));
+        int files = 0;
+        for (Node child : node.getChildren().values()) {
+            files += reindex(child, childInTrash);
+        }
+        return files;
+    }
+
+    /**
+     * 统计文件或者目录下的文件数量和文件大小之和，目录的统计值是增量维护的，不需要遍历子树
+     *
+     * @param path 文件或者目录的路径
+     * @return 统计结果，路径不存在时都是0
+     */
+    public CalculateResult calculate(String path) {
+        String[] paths = StringUtils.split(path, '/');
+        lock.readLock().lock();
+        try {
+            Node node = findNode(paths);
+            return node == null ? new CalculateResult(0, 0) : usageIndex.get(node);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 批量获取文件或者目录的属性，只复制节点自己的属性，不会复制子树
+     *
+     * <pre>
+     * 全局锁模式下整批只加一次读锁，分层锁模式下在全局读锁内对每个文件的路径逐层加读锁。
+     * </pre>
+     *
+     * @param filenames 文件名
+     * @return 每个文件的属性副本，和文件名一一对应，不存在的文件为null
+     */
+    public List<Map<String, String>> getAttrs(List<String> filenames) {
+        List<Map<String, String>> ret = new ArrayList<>(filenames.size());
+        lock.readLock().lock();
+        try {
+            for (String filename : filenames) {
+                String[] paths = StringUtils.split(filename, '/');
+                Node node;
+                if (isHierarchical() && paths.length > 0) {
+                    PathLocks pathLocks = new PathLocks();
+                    try {
+                        Node parent = lockPath(paths, paths.length - 1, pathLocks);
+                        node = parent == null ? null : parent.getChildren(paths[paths.length - 1]);
+                        ret.add(node == null ? null : new HashMap<>(node.getAttr()));
+                    } finally {
+                        pathLocks.releaseAll();
+                    }
+                    continue;
+                }
+                node = findNode(paths);
+                ret.add(node == null ? null : new HashMap<>(node.getAttr()));
+            }
+            return ret;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 按照删除时间从早到晚查找垃圾箱中已经过期的文件
+     *
+     * @param expireBefore 删除时间早于这个时间的文件已经过期
+     * @param limit        最多返回多少个
+     * @return 过期文件的全路径，例如 /user/.Trash/a/b.png
+     */
+    public List<String> findExpiredTrashFiles(long expireBefore, int limit) {
+        lock.readLock().lock();
+        try {
+            List<Node> nodes = trashIndex.expired(expireBefore, limit);
+            List<String> ret = new ArrayList<>(nodes.size());
+            for (Node node : nodes) {
+                String fullPath = node.getFullPath();
+                // 分层锁模式下文件可能刚刚被别的线程删除
+                if (!fullPath.isEmpty()) {
+                    ret.add(fullPath);
+                }
+            }
+            return ret;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 批量回放editlog，BackupNode回放从NameNode同步过来的一批editlog时使用
+     *
+     * <pre>
+     * 全局锁模式下整批editlog只加一次写锁，并且缓存这一批中已经找到的父目录，
+     * 同一个目录下的连续操作不需要每次都从根节点开始逐层查找。删除操作可能会连带删除空目录，
+     * 被删除的目录的parent会被置为null，缓存中这样的目录需要重新查找。
+     *
+     * 分层锁模式下逐条执行，每条editlog独立加锁。
+     * </pre>
+     *
+     * @param editLogs 按照txid排好序的editlog
+     */
+    public void applyEditLogs(List<EditLog> editLogs) {
+        if (isHierarchical()) {
+            for (EditLog editLog : editLogs) {
+                applyEditLog(editLog);
+            }
+            return;
+        }
+        Map<String, Node> parents = new HashMap<>();
+        lock.writeLock().lock();
+        try {
+            for (EditLog editLog : editLogs) {
+                int op = editLog.getOpType();
+                String path = editLog.getPath();
+                if (FsOpType.DELETE.getValue() == op) {
+                    deleteLocked(path);
+                    continue;
+                }
+                if (FsOpType.MOVE_TO_TRASH.getValue() == op) {
+                    moveToTrashLocked(path, editLog.getAttrMap());
+                    continue;
+                }
+                if (FsOpType.RENAME.getValue() == op) {
+                    // 被移动的目录还挂在目录树上，但是路径已经变了，缓存的父目录全部作废
+                    renameLocked(path, editLog.getDstPath());
+                    parents.clear();
+                    continue;
+                }
+                // 和split的结果保持一致，忽略末尾的'/'
+                int end = path.length();
+                while (end > 0 && path.charAt(end - 1) == '/') {
+                    end--;
+                }
+                int index = path.lastIndexOf('/', end - 1);
+                String name = path.substring(index + 1, end);
+                Node parent = index <= 0 ? root : resolveParent(path.substring(0, index), parents);
+                if (FsOpType.MKDIR.getValue() == op) {
+                    Node current = "".equals(name) ? parent : findDirectory(parent, name);
+                    current.putAllAttr(editLog.getAttrMap());
+                    markDirty(current.getParent() == null ? current : current.getParent());
+                } else if (FsOpType.CREATE.getValue() == op) {
+                    if ("".equals(name)) {
+                        log.warn("文件名为空，创建失败 : {}", path);
+                        continue;
+                    }
+                    addFile(parent, name, path, editLog.getAttrMap());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void applyEditLog(EditLog editLog) {
+        int op = editLog.getOpType();
+        if (FsOpType.MKDIR.getValue() == op) {
+            mkdir(editLog.getPath(), editLog.getAttrMap());
+        } else if (FsOpType.CREATE.getValue() == op) {
+            createFile(editLog.getPath(), editLog.getAttrMap());
+        } else if (FsOpType.DELETE.getValue() == op) {
+            delete(editLog.getPath());
+        } else if (FsOpType.MOVE_TO_TRASH.getValue() == op) {
+            moveToTrash(editLog.getPath(), editLog.getAttrMap());
+        } else if (FsOpType.RENAME.getValue() == op) {
+            rename(editLog.getPath(), editLog.getDstPath());
+        }
+    }
+
+    /**
+     * 查找父目录，不存在的目录会被创建，找到之后缓存起来给同一批的后续操作使用
+     */
+    private Node resolveParent(String parentPath, Map<String, Node> parents) {
+        Node parent = parents.get(parentPath);
+        // 空目录被删除的时候会从下往上逐层把parent置为null，所以只需要检查目录本身
+        if (parent == null || (parent != root && parent.getParent() == null)) {
+            parent = root;
+            for (String p : StringUtils.split(parentPath, '/')) {
+                parent = findDirectory(parent, p);
+            }
+            parents.put(parentPath, parent);
+        }
+        return parent;
+    }
+
+    private <T> T hierarchicalDelete(String filename, Function<Node, T> journal) {
+        String[] paths = StringUtils.split(filename, '/');
+        String name = paths[paths.length - 1];
+        T ret;
+        PathLocks pathLocks = new PathLocks();
+        lock.readLock().lock();
+        try {
+            Node current = lockPath(paths, paths.length - 1, pathLocks);
+            if (current == null) {
+                log.warn("文件不存在, 删除失败：[filename={}]", filename);
+                return null;
+            }
+            pathLocks.upgrade(current);
+            Node childrenNode = current.getChildren(name);
+            if (!canDelete(childrenNode, filename)) {
+                return null;
+            }
+            removeFromIndexes(childrenNode);
+            Node remove = current.removeChildren(name);
+            remove.setParent(null);
+            markDirty(current);
+            ret = journal.apply(remove);
+        } finally {
+            pathLocks.releaseAll();
+            lock.readLock().unlock();
+        }
+        // 删除空文件夹, 从下往上每一层都是一次独立的加锁操作
+        for (int depth = paths.length - 1; depth > 0; depth--) {
+            if (!removeIfEmptyDirectory(paths, depth)) {
+                break;
+            }
+        }
+        return ret;
+    }
+
+    private boolean canDelete(Node childrenNode, String filename) {
+        if (childrenNode == null) {
+            log.warn("文件不存在, 删除失败：[filename={}]", filename);
+            return false;
+        }
+        if (childrenNode.getType() == NodeType.DIRECTORY.getValue()) {
+            if (!childrenNode.getChildren().isEmpty()) {
+                log.warn("文件夹存在子文件，删除失败：[filename={}]", filename);
+                return false;
+            }
+        }
+        return true;
+    }
 
-    public FsDirectory() {
-        this.root = new Node("/", NodeType.DIRECTORY.getValue());
+    private void removeFromIndexes(Node node) {
+        if (!node.isFile()) {
+            return;
+        }
+        SlotIndex index = slotIndex;
+        if (index != null) {
+            index.remove(node);
+        }
+        trashIndex.remove(node);
+        usageIndex.remove(node);
     }
 
     /**
-     * 创建文件目录
+     * 分层锁模式下删除路径中第depth层的空目录
      *
-     * @param path 文件目录
+     * @param paths 路径
+     * @param depth 目录所在的层级
+     * @return 是否删除了目录
      */
-    public void mkdir(String path, Map<String, String> attr) {
+    private boolean removeIfEmptyDirectory(String[] paths, int depth) {
+        PathLocks pathLocks = new PathLocks();
+        lock.readLock().lock();
         try {
-            lock.writeLock().lock();
-            String[] paths = StringUtils.split(path, '/');
-            Node current = root;
-            for (String p : paths) {
-                if ("".equals(p)) {
-                    continue;
-                }
-                current = findDirectory(current, p);
+            Node parent = lockPath(paths, depth - 1, pathLocks);
+            if (parent == null) {
+                return false;
             }
-            current.putAllAttr(attr);
+            pathLocks.upgrade(parent);
+            Node dir = parent.getChildren(paths[depth - 1]);
+            // 持有父目录的写锁时，其他线程不可能在这个目录下添加孩子节点
+            if (dir == null || dir.isFile() || !dir.getChildren().isEmpty()) {
+                return false;
+            }
+            parent.removeChildren(dir.getPath());
+            dir.setParent(null);
+            markDirty(parent);
+            return true;
         } finally {
-            lock.writeLock().unlock();
+            pathLocks.releaseAll();
+            lock.readLock().unlock();
         }
     }
 
     /**
-     * 创建文件
+     * 查找节点，不会创建不存在的目录
      *
-     * @param filename 文件名
-     * @return 是否创建成功
+     * @param paths 路径
+     * @return 节点，不存在时返回null
      */
-    public boolean createFile(String filename, Map<String, String> attr) {
-        try {
-            lock.writeLock().lock();
-            String[] paths = StringUtils.split(filename, '/');
-            String fileNode = paths[paths.length - 1];
-            Node fileParentNode = getFileParent(paths);
-            Node childrenNode = fileParentNode.getChildren(fileNode);
-            if (childrenNode != null) {
-                log.warn("文件已存在，创建失败 : {}", filename);
-                return false;
+    private Node findNode(String[] paths) {
+        Node node = root;
+        for (int i = 0; i < paths.length && node != null; i++) {
+            node = node.getChildren(paths[i]);
+        }
+        return node;
+    }
+
+    private Node findDirectory(Node current, String p) {
+        Node childrenNode = current.getChildren(p);
+        if (childrenNode == null) {
+            childrenNode = newNode(p, NodeType.DIRECTORY.getValue());
+            current.addChildren(childrenNode);
+            // 新建的目录也要记录，可能是删除之后同名重新创建的，之前FsImage中的孩子节点不能保留
+            markDirty(current);
+            markDirty(childrenNode);
+        }
+        current = childrenNode;
+        return current;
+    }
+
+    /**
+     * 开启增量checkpoint，记录修改过的目录
+     */
+    public void enableDirtyTracking() {
+        dirtyDirectories = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * 记录修改过的目录，调用方持有全局锁，创建快照的时候不会漏掉正在执行的修改
+     */
+    private void markDirty(Node directory) {
+        Set<Node> dirty = dirtyDirectories;
+        if (dirty != null) {
+            dirty.add(directory);
+        }
+    }
+
+    /**
+     * 计算修改过的目录在快照时间点的全路径，已经被删除的目录不需要写入增量FsImage
+     */
+    private SortedMap<String, Node> resolveDirtyDirectories(Set<Node> dirty) {
+        SortedMap<String, Node> ret = new TreeMap<>();
+        Deque<String> names = new ArrayDeque<>();
+        for (Node directory : dirty) {
+            names.clear();
+            Node current = directory;
+            while (current.getParent() != null) {
+                names.push(current.getPath());
+                current = current.getParent();
             }
-            Node child = new Node(fileNode, NodeType.FILE.getValue());
-            child.putAllAttr(attr);
-            fileParentNode.addChildren(child);
-            return true;
-        } finally {
-            lock.writeLock().unlock();
+            if (current != root) {
+                continue;
+            }
+            StringBuilder path = new StringBuilder();
+            for (String name : names) {
+                path.append('/').append(name);
+            }
+            ret.put(path.toString(), directory);
         }
+        return ret;
     }
 
-    private Node getFileParent(String[] paths) {
+    /**
+     * 分层锁模式：从根节点开始逐层加读锁，遇到不存在的目录时，在父目录的写锁保护下创建，然后降级为读锁
+     *
+     * @param paths     路径
+     * @param count     处理路径的前count层
+     * @param pathLocks 持有的锁，返回时持有路径上所有目录的读锁，包括返回的目录
+     * @return 第count层的目录
+     */
+    private Node lockAndMkdirs(String[] paths, int count, PathLocks pathLocks) {
         Node current = root;
-        for (int i = 0; i < paths.length - 1; i++) {
+        pathLocks.read(current);
+        for (int i = 0; i < count; i++) {
             String p = paths[i];
             if ("".equals(p)) {
                 continue;
             }
-            current = findDirectory(current, p);
+            Node child = current.getChildren(p);
+            if (child == null) {
+                pathLocks.upgrade(current);
+                // 释放读锁到获取写锁之间，可能已经有别的线程创建了目录，findDirectory会再检查一次
+                child = findDirectory(current, p);
+                pathLocks.downgrade(current);
+            }
+            current = child;
+            pathLocks.read(current);
         }
         return current;
     }
 
     /**
-     * 删除文件
+     * 分层锁模式：从根节点开始逐层加读锁，不会创建目录
      *
-     * @param filename 文件名
+     * @param paths     路径
+     * @param count     处理路径的前count层
+     * @param pathLocks 持有的锁
+     * @return 第count层的目录，不存在返回null
      */
-    public Node delete(String filename) {
-        lock.writeLock().lock();
-        try {
-            String[] paths = StringUtils.split(filename, '/');
-            String name = paths[paths.length - 1];
-            Node current = getFileParent(paths);
-            Node childrenNode;
-            if ("".equals(name)) {
-                childrenNode = current;
-            } else {
-                childrenNode = current.getChildren(name);
+    private Node lockPath(String[] paths, int count, PathLocks pathLocks) {
+        Node current = root;
+        pathLocks.read(current);
+        for (int i = 0; i < count; i++) {
+            String p = paths[i];
+            if ("".equals(p)) {
+                continue;
             }
-            if (childrenNode == null) {
-                log.warn("文件不存在, 删除失败：[filename={}]", filename);
+            current = current.getChildren(p);
+            if (current == null) {
                 return null;
             }
-            if (childrenNode.getType() == NodeType.DIRECTORY.getValue()) {
-                if (!childrenNode.getChildren().isEmpty()) {
-                    log.warn("文件夹存在子文件，删除失败：[filename={}]", filename);
-                    return null;
-                }
-            }
-            Node remove = current.getChildren().remove(name);
+            pathLocks.read(current);
+        }
+        return current;
+    }
 
-            // 删除空文件夹
-            Node parent = remove.getParent();
-            Node child = remove;
-            while (parent != null) {
-                if (child.getChildren().isEmpty()) {
-                    child.setParent(null);
-                    parent.getChildren().remove(child.getPath());
-                }
-                child = parent;
-                parent = parent.getParent();
+    /**
+     * 把内存目录树写入FsImage文件
+     *
+     * @param path    文件路径
+     * @param maxTxId 目录树对应的最大txId
+     * @throws IOException IO异常
+     */
+    public void writeFsImage(String path, long maxTxId) throws IOException {
+        try (NamespaceSnapshot snapshot = createSnapshot()) {
+            FsImageWriter.write(path, snapshot, maxTxId);
+        }
+    }
+
+    /**
+     * 把上一个快照之后修改过的目录写入增量FsImage文件
+     *
+     * @param path     文件路径
+     * @param baseTxId 上一次checkpoint的txId
+     * @param maxTxId  目录树对应的最大txId
+     * @return 修改过的目录数量
+     * @throws IOException IO异常
+     */
+    public int writeDeltaFsImage(String path, long baseTxId, long maxTxId) throws IOException {
+        try (NamespaceSnapshot snapshot = createSnapshot(true)) {
+            FsImageWriter.writeDelta(path, snapshot, baseTxId, maxTxId);
+            return snapshot.getDirtyDirectories().size();
+        }
+    }
+
+    /**
+     * 创建目录树的时间点快照，使用完之后需要关闭
+     *
+     * @return 快照
+     * @throws IOException 等待上一个快照关闭的时候被中断
+     */
+    public NamespaceSnapshot createSnapshot() throws IOException {
+        return createSnapshot(false);
+    }
+
+    /**
+     * 创建目录树的时间点快照，使用完之后需要关闭。每次创建快照都会重新开始记录修改过的目录
+     *
+     * @param delta 快照中是否需要包含上一个快照之后修改过的目录
+     * @return 快照
+     * @throws IOException 等待上一个快照关闭的时候被中断
+     */
+    public NamespaceSnapshot createSnapshot(boolean delta) throws IOException {
+        if (delta && dirtyDirectories == null) {
+            throw new IllegalStateException("没有开启增量checkpoint");
+        }
+        try {
+            snapshotPermit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待创建快照的时候被中断", e);
+        }
+        // 两种加锁模式下修改操作都会持有全局锁，持有写锁的时候不会有正在执行的修改操作
+        lock.writeLock().lock();
+        try {
+            Set<Node> dirty = dirtyDirectories;
+            if (dirty != null) {
+                dirtyDirectories = ConcurrentHashMap.newKeySet();
             }
-            return Node.deepCopy(remove, Integer.MAX_VALUE);
+            NamespaceSnapshot snapshot = new NamespaceSnapshot(this, root,
+                    delta ? resolveDirtyDirectories(dirty) : null);
+            activeSnapshot = snapshot;
+            return snapshot;
+        } catch (RuntimeException e) {
+            snapshotPermit.release();
+            throw e;
         } finally {
             lock.writeLock().unlock();
         }
     }
 
-    private Node findDirectory(Node current, String p) {
-        Node childrenNode = current.getChildren(p);
-        if (childrenNode == null) {
-            childrenNode = new Node(p, NodeType.DIRECTORY.getValue());
-            current.addChildren(childrenNode);
+    private static <T> T journal(Supplier<T> journal) {
+        return journal == null ? null : journal.get();
+    }
+
+    /**
+     * 分层锁模式下批量操作中一个文件的journal，修改成功之后总是返回非null
+     */
+    private static Supplier<Boolean> journalAt(Consumer<int[]> journal, int index) {
+        return () -> {
+            if (journal != null) {
+                journal.accept(new int[]{index});
+            }
+            return Boolean.TRUE;
+        };
+    }
+
+    /**
+     * 批量操作中修改成功的文件一次交给journal
+     */
+    private static void journalAll(Consumer<int[]> journal, int[] indexes, int count) {
+        if (journal != null && count > 0) {
+            journal.accept(count == indexes.length ? indexes : Arrays.copyOf(indexes, count));
         }
-        current = childrenNode;
-        return current;
     }
 
     /**
-     * 根据内存目录树生成FsImage
+     * 获取当前存在的快照
      *
-     * @return FsImage
+     * @return 快照，不存在返回null
      */
-    public FsImage getFsImage() {
-        try {
-            lock.readLock().lock();
-            INode iNode = Node.toINode(root);
-            return new FsImage(0L, iNode);
-        } finally {
-            lock.readLock().unlock();
+    NamespaceSnapshot activeSnapshot() {
+        return activeSnapshot;
+    }
+
+    /**
+     * 快照开始关闭，之后的修改不需要再保存副本
+     *
+     * @param snapshot 快照
+     */
+    void deactivateSnapshot(NamespaceSnapshot snapshot) {
+        if (activeSnapshot == snapshot) {
+            activeSnapshot = null;
+        }
+    }
+
+    /**
+     * 快照关闭完成，允许创建下一个快照
+     */
+    void releaseSnapshotPermit() {
+        snapshotPermit.release();
+    }
+
+    /**
+     * 创建新节点，快照存在期间创建的节点带上快照的标记
+     */
+    private Node newNode(String path, int type) {
+        Node node = new Node(path, type);
+        NamespaceSnapshot snapshot = activeSnapshot;
+        if (snapshot != null) {
+            node.markCreated(snapshot);
         }
+        return node;
     }
 
     /**
@@ -165,12 +1148,43 @@ public class FsDirectory {
     public void applyFsImage(FsImage fsImage) {
         try {
             lock.writeLock().lock();
-            this.root = Node.parseINode(fsImage.getINode(), "");
+            RootNode newRoot = new RootNode(this);
+            newRoot.adopt(fsImage.getRoot());
+            this.root = newRoot;
+            this.slotIndex = null;
+            rebuildTrashIndex();
+            usageIndex.rebuild(root);
+            if (dirtyDirectories != null) {
+                dirtyDirectories = ConcurrentHashMap.newKeySet();
+            }
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    /**
+     * 重建垃圾箱索引，只需要遍历每个用户的垃圾箱，调用方持有全局写锁
+     */
+    private void rebuildTrashIndex() {
+        trashIndex.clear();
+        for (Node user : root.getChildren().values()) {
+            Node trash = user.getChildren(Constants.TRASH_DIR);
+            if (trash != null && !trash.isFile()) {
+                addTrashFiles(trash);
+            }
+        }
+    }
+
+    private void addTrashFiles(Node directory) {
+        for (Node child : directory.getChildren().values()) {
+            if (child.isFile()) {
+                trashIndex.add(child);
+            } else {
+                addTrashFiles(child);
+            }
+        }
+    }
+
     /**
      * 查看某个目录文件
      *
@@ -178,9 +1192,93 @@ public class FsDirectory {
      * @return 文件路径
      */
     public Node listFiles(String parent, int level) {
-        return Node.deepCopy(unsafeListFiles(parent), level);
+        if (isHierarchical()) {
+            return hierarchicalListFiles(parent, level);
+        }
+        lock.readLock().lock();
+        try {
+            return Node.deepCopy(unsafeListFiles(parent), level);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Node hierarchicalListFiles(String parent, int level) {
+        PathLocks pathLocks = new PathLocks();
+        lock.readLock().lock();
+        try {
+            Node node;
+            if (root.getPath().equals(parent)) {
+                node = root;
+            } else {
+                String[] paths = StringUtils.split(parent, '/');
+                Node current = lockPath(paths, paths.length - 1, pathLocks);
+                node = current == null ? null : current.getChildren(paths[paths.length - 1]);
+            }
+            return deepCopyLocked(node, level);
+        } finally {
+            pathLocks.releaseAll();
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 分层锁模式下深度拷贝节点，调用方需要持有node父目录的读锁
+     */
+    private Node deepCopyLocked(Node node, int level) {
+        if (node == null) {
+            return null;
+        }
+        Node ret = new Node(node.getPath(), node.getType());
+        ret.putAllAttr(node.getAttr());
+        if (level > 0 && !node.isFile()) {
+            Lock readLock = node.getLock().readLock();
+            readLock.lock();
+            try {
+                for (Node child : node.getChildren().values()) {
+                    ret.addChildren(deepCopyLocked(child, level - 1));
+                }
+            } finally {
+                readLock.unlock();
+            }
+        }
+        return ret;
     }
 
+    /**
+     * 分页查看目录下的文件
+     *
+     * <pre>
+     * 直接在目录的孩子节点数组上二分查找startAfter的位置，只拷贝这一页的孩子节点，不拷贝整个子树，
+     * 持有锁的时间和占用的内存只和pageSize有关。查找目录的过程中不会创建不存在的目录。
+     * </pre>
+     *
+     * @param parent     目录路径
+     * @param startAfter 上一页最后一个孩子节点的名称，为空时从第一个开始
+     * @param pageSize   每页最多多少个孩子节点
+     * @return 只包含这一页孩子节点的目录副本，目录不存在返回null
+     */
+    public Node listFiles(String parent, String startAfter, int pageSize) {
+        String[] paths = StringUtils.split(parent, '/');
+        if (isHierarchical()) {
+            PathLocks pathLocks = new PathLocks();
+            lock.readLock().lock();
+            try {
+                Node node = lockPath(paths, paths.length, pathLocks);
+                return node == null ? null : Node.copyPage(node, startAfter, pageSize);
+            } finally {
+                pathLocks.releaseAll();
+                lock.readLock().unlock();
+            }
+        }
+        lock.readLock().lock();
+        try {
+            Node node = findNode(paths);
+            return node == null ? null : Node.copyPage(node, startAfter, pageSize);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
     /**
      * 查看某个目录文件
@@ -202,10 +1300,21 @@ public class FsDirectory {
         if (root.getPath().equals(parent)) {
             return root;
         }
+        String[] paths = StringUtils.split(parent, '/');
+        String name = paths[paths.length - 1];
+        if (isHierarchical()) {
+            PathLocks pathLocks = new PathLocks();
+            lock.readLock().lock();
+            try {
+                Node current = lockPath(paths, paths.length - 1, pathLocks);
+                return current == null ? null : current.getChildren(name);
+            } finally {
+                pathLocks.releaseAll();
+                lock.readLock().unlock();
+            }
+        }
         lock.readLock().lock();
         try {
-            String[] paths = StringUtils.split(parent, '/');
-            String name = paths[paths.length - 1];
             Node current = getFileParent(paths);
             return current.getChildren(name);
         } finally {
@@ -240,8 +1349,7 @@ public class FsDirectory {
         if (node.isFile()) {
             ret.add(node.getFullPath());
         } else {
-            for (String key : node.getChildren().keySet()) {
-                Node child = node.getChildren().get(key);
+            for (Node child : node.getChildren().values()) {
                 ret.addAll(findAllFiles(child));
             }
         }
@@ -249,31 +1357,128 @@ public class FsDirectory {
     }
 
 
+    /**
+     * 查找槽位下的所有文件，通过 {@link SlotIndex} 查询，不需要遍历目录树
+     *
+     * @param slot 槽位
+     * @return 文件
+     */
     public Set<Metadata> findAllFileBySlot(int slot) {
-        return findAllFilesFilterBySlot(root, slot);
+        SlotIndex index = slotIndex;
+        if (index == null) {
+            index = buildSlotIndex();
+        }
+        lock.readLock().lock();
+        try {
+            List<Node> files = index.get(slot);
+            Set<Metadata> ret = new HashSet<>(files.size() * 2);
+            for (Node file : files) {
+                // 分层锁模式下文件可能刚刚被删除
+                if (file.getParent() == null) {
+                    continue;
+                }
+                ret.add(Metadata.newBuilder()
+                        .setFileName(file.getFullPath())
+                        .setType(NodeType.FILE.getValue())
+                        .putAllAttr(file.getAttr())
+                        .build());
+            }
+            return ret;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 遍历一次目录树建立槽位索引，持有全局写锁，建立的过程中不会有文件被创建或者删除
+     */
+    private SlotIndex buildSlotIndex() {
+        lock.writeLock().lock();
+        try {
+            if (slotIndex == null) {
+                long start = System.currentTimeMillis();
+                SlotIndex index = new SlotIndex();
+                index.addAll(root);
+                slotIndex = index;
+                log.info("建立槽位索引完成：[cost={} ms]", System.currentTimeMillis() - start);
+            }
+            return slotIndex;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
     public Set<Metadata> findAllFilesFilterBySlot(Node node, int slot) {
         Set<Metadata> ret = new HashSet<>();
         if (node.isFile()) {
-            String fullPath = node.getFullPath();
-            int slotIndex = StringUtils.hash(fullPath, Constants.SLOTS_COUNT);
-            if (slotIndex == slot) {
+            if (node.getSlot() == slot) {
                 ret.add(Metadata.newBuilder()
-                        .setFileName(fullPath)
+                        .setFileName(node.getFullPath())
                         .setType(NodeType.FILE.getValue())
                         .putAllAttr(node.getAttr())
                         .build());
             }
         } else {
-            for (String key : node.getChildren().keySet()) {
-                Node child = node.getChildren().get(key);
-                ret.addAll(findAllFilesFilterBySlot(child, slot));
+            Lock readLock = isHierarchical() ? node.getLock().readLock() : null;
+            if (readLock != null) {
+                readLock.lock();
+            }
+            try {
+                for (Node child : node.getChildren().values()) {
+                    ret.addAll(findAllFilesFilterBySlot(child, slot));
+                }
+            } finally {
+                if (readLock != null) {
+                    readLock.unlock();
+                }
             }
         }
         return ret;
     }
 
+    /**
+     * 分层锁模式下，记录一次操作沿路径持有的目录锁，操作结束后逆序释放
+     */
+    private static class PathLocks {
+
+        private final Deque<Lock> locks = new ArrayDeque<>();
+
+        void read(Node node) {
+            Lock readLock = node.getLock().readLock();
+            readLock.lock();
+            locks.push(readLock);
+        }
+
+        void write(Node node) {
+            Lock writeLock = node.getLock().writeLock();
+            writeLock.lock();
+            locks.push(writeLock);
+        }
+
+        /**
+         * 把最后获取的读锁换成写锁，读写锁不支持原子升级，所以是先释放读锁再获取写锁
+         */
+        void upgrade(Node node) {
+            locks.pop().unlock();
+            write(node);
+        }
+
+        /**
+         * 把最后获取的写锁降级为读锁
+         */
+        void downgrade(Node node) {
+            Lock writeLock = locks.pop();
+            Lock readLock = node.getLock().readLock();
+            readLock.lock();
+            writeLock.unlock();
+            locks.push(readLock);
+        }
 
+        void releaseAll() {
+            while (!locks.isEmpty()) {
+                locks.pop().unlock();
+            }
+        }
+    }
 }
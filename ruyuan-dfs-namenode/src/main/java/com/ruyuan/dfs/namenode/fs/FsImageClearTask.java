@@ -1,17 +1,11 @@
 package com.ruyuan.dfs.namenode.fs;
 
-import com.ruyuan.dfs.backup.fs.FsImage;
+import com.ruyuan.dfs.backup.fs.FsImageChain;
 import com.ruyuan.dfs.common.utils.FileUtil;
 import com.ruyuan.dfs.namenode.editslog.FsEditLog;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.FileInputStream;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
 
 /**
  * 清理FsImage的任务
@@ -38,33 +32,19 @@ public class FsImageClearTask implements Runnable {
     @SneakyThrows
     @Override
     public void run() {
-        Map<Long, String> timeFsImageMap = nameSystem.scanFsImageMap(baseDir);
-        List<Long> sortedList = new ArrayList<>(timeFsImageMap.keySet());
-        sortedList.sort((o1, o2) -> o1.equals(o2) ? 0 : (int) (o2 - o1));
-        boolean findValidFsImage = false;
-        long maxTxId = -1;
-        for (Long time : sortedList) {
-            String path = timeFsImageMap.get(time);
-            if (findValidFsImage) {
-                FileUtil.delete(path);
-                log.info("删除FSImage: [file={}]", path);
-                continue;
-            }
-            try (RandomAccessFile raf = new RandomAccessFile(path, "r"); FileInputStream fis =
-                    new FileInputStream(raf.getFD()); FileChannel channel = fis.getChannel()) {
-                maxTxId = FsImage.validate(channel, path, (int) raf.length());
-                if (maxTxId > 0) {
-                    findValidFsImage = true;
-                    log.info("清除FSImage任务，找到最新的合法的FsImage: [file={}]", path);
-                } else {
-                    FileUtil.delete(path);
-                    log.info("删除FSImage: [file={}]", path);
-                }
-            }
+        // 最新的完整FsImage和之后首尾相接的增量FsImage需要保留，其他的都删除
+        FsImageChain chain = FsImageChain.scan(nameSystem.scanFsImageMap(baseDir));
+        for (String path : chain.getObsoleteFiles()) {
+            FileUtil.delete(path);
+            log.info("删除FSImage: [file={}]", path);
+        }
+        long maxTxId = chain.getMaxTxId();
+        if (maxTxId > 0) {
+            log.info("清除FSImage任务，找到最新的合法的FsImage: [files={}, maxTxId={}]", chain.getFiles(), maxTxId);
         }
 
         // 如果是NameNode，则需要清除EditLog文件
-        if (findValidFsImage && fsEditLog != null) {
+        if (maxTxId > 0 && fsEditLog != null) {
             fsEditLog.cleanEditLogByTxId(maxTxId);
         }
     }
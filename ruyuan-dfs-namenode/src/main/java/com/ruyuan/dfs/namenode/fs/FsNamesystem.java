@@ -2,6 +2,7 @@ package com.ruyuan.dfs.namenode.fs;
 
 import com.ruyuan.dfs.model.namenode.Metadata;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -29,6 +30,15 @@ public interface FsNamesystem {
      */
     boolean createFile(String filename, Map<String, String> attr);
 
+    /**
+     * 批量创建文件
+     *
+     * @param filenames 文件名称
+     * @param attrs 每个文件的属性，和文件名称一一对应
+     * @return 每个文件是否创建成功
+     */
+    boolean[] createFiles(List<String> filenames, List<Map<String, String>> attrs);
+
 
     /**
      * 删除文件
@@ -38,6 +48,33 @@ public interface FsNamesystem {
      */
     boolean deleteFile(String filename);
 
+    /**
+     * 把文件移动到垃圾箱
+     *
+     * @param filename 文件名
+     * @param attr 需要添加到文件上的属性，包含删除时间
+     * @return 是否移动成功
+     */
+    boolean moveToTrash(String filename, Map<String, String> attr);
+
+    /**
+     * 批量把文件移动到垃圾箱
+     *
+     * @param filenames 文件名
+     * @param attr 需要添加到每个文件上的属性，包含删除时间
+     * @return 每个文件是否移动成功
+     */
+    boolean[] moveToTrash(List<String> filenames, Map<String, String> attr);
+
+    /**
+     * 重命名文件或者文件夹
+     *
+     * @param src 原来的路径
+     * @param dst 新的路径
+     * @return 移动的文件数量，重命名失败返回-1
+     */
+    int rename(String src, String dst);
+
     /**
      * 根据Slot获取文件名
      *
@@ -0,0 +1,137 @@
+package com.ruyuan.dfs.namenode.fs;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 内存目录树的时间点快照
+ *
+ * <pre>
+ * 基于写时复制实现，创建快照只需要短暂地持有全局写锁，快照存在期间修改操作可以正常执行：
+ *
+ *  1. 快照存在期间，节点在第一次被修改之前，会把修改前的属性和孩子节点数组保存一份副本。
+ *  2. 快照存在期间新创建的节点带上当前快照的标记，修改的时候不需要保存副本，因为快照中不可能包含它们。
+ *  3. 遍历快照的时候，通过 {@link #view(Node, boolean)} 获取节点在快照时间点的状态，有副本就用副本，没有就拷贝当前状态。
+ *     最后一次访问节点之后把副本替换成标记，副本可以被尽早回收，遍历过的节点再次修改也不会重新保存副本。
+ *
+ * 节点只有一个保存副本的位置，所以同一个 {@link FsDirectory} 同一时间只允许存在一个快照，后创建的快照会等待前一个快照关闭。
+ * 不同的目录树之间的快照互不影响。
+ * 关闭快照的时候会清理没有被访问过的副本，比如生成增量FsImage的时候只会访问修改过的目录。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class NamespaceSnapshot implements Closeable {
+
+    /**
+     * 快照所属的目录树
+     */
+    private final FsDirectory directory;
+    private Node root;
+    /**
+     * 上一个快照之后修改过的目录，key是快照时间点目录的全路径，按照全路径排序
+     */
+    private SortedMap<String, Node> dirtyDirectories;
+    /**
+     * 标记节点在当前快照中不需要保存副本
+     */
+    private final Frozen marker;
+    /**
+     * 保存了副本的节点，关闭快照的时候清理
+     */
+    private final Queue<Node> frozenNodes = new ConcurrentLinkedQueue<>();
+    private boolean closed;
+
+    /**
+     * 创建快照，调用方需要保证创建的时候没有正在执行的修改操作
+     *
+     * @param directory        快照所属的目录树
+     * @param root             目录树的根节点
+     * @param dirtyDirectories 上一个快照之后修改过的目录，不需要的时候传null
+     */
+    NamespaceSnapshot(FsDirectory directory, Node root, SortedMap<String, Node> dirtyDirectories) {
+        this.directory = directory;
+        this.root = root;
+        this.dirtyDirectories = dirtyDirectories;
+        this.marker = new Frozen(this, null);
+    }
+
+    /**
+     * 快照时间点的根节点，只能通过 {@link #view(Node, boolean)} 访问
+     *
+     * @return 根节点
+     */
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * 上一个快照之后修改过的目录，同样只能通过 {@link #view(Node, boolean)} 访问
+     *
+     * @return key是快照时间点目录的全路径，按照全路径排序，父目录总是在子目录之前
+     */
+    public SortedMap<String, Node> getDirtyDirectories() {
+        if (dirtyDirectories == null) {
+            throw new IllegalStateException("快照没有记录修改过的目录");
+        }
+        return Collections.unmodifiableSortedMap(dirtyDirectories);
+    }
+
+    /**
+     * 获取节点在快照时间点的状态
+     *
+     * <pre>
+     * 文件只能访问一次，目录可以先访问属性，再访问一次孩子节点，访问孩子节点之后不能再访问。
+     * </pre>
+     *
+     * @param node         目录树中的节点
+     * @param withChildren 是否需要孩子节点
+     * @return 节点的浅拷贝，孩子节点仍然是目录树中的节点。withChildren为false时不保证包含孩子节点
+     */
+    public Node view(Node node, boolean withChildren) {
+        return node.snapshotView(this, withChildren);
+    }
+
+    Frozen marker() {
+        return marker;
+    }
+
+    Frozen freeze(Node node, Node copy) {
+        frozenNodes.add(node);
+        return new Frozen(this, copy);
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        directory.deactivateSnapshot(this);
+        Node node;
+        while ((node = frozenNodes.poll()) != null) {
+            node.releaseFrozen(this);
+        }
+        // 快照期间创建的节点会一直引用marker，这里释放快照持有的目录树
+        root = null;
+        dirtyDirectories = null;
+        directory.releaseSnapshotPermit();
+    }
+
+    /**
+     * 节点在快照时间点的副本
+     */
+    static class Frozen {
+
+        final NamespaceSnapshot snapshot;
+        final Node copy;
+
+        Frozen(NamespaceSnapshot snapshot, Node copy) {
+            this.snapshot = snapshot;
+            this.copy = copy;
+        }
+    }
+}
@@ -1,37 +1,102 @@
 package com.ruyuan.dfs.namenode.fs;
 
+import com.ruyuan.dfs.common.Constants;
 import com.ruyuan.dfs.common.enums.NodeType;
+import com.ruyuan.dfs.common.utils.StringUtils;
 import com.ruyuan.dfs.model.backup.INode;
-import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 代表文件目录，包含一堆子文件或者子文件目录
  *
+ * <pre>
+ * 为了减少海量小文件场景下的内存占用，节点采用紧凑的内存布局：
+ *
+ *  1. 孩子节点按照名称排序保存在数组中，通过二分查找定位，文件节点不分配数组。
+ *  2. REPLICA_NUM、FILE_SIZE、DEL_TIME 这几个常用属性使用基本类型字段保存，其他自定义属性才会放到额外的Map中。
+ *  3. 文件所在的槽位第一次计算之后缓存在节点上，占用的是对象对齐的填充字节，不会增加节点的大小。
+ *
+ * 对外仍然通过 {@link #getChildren()} 和 {@link #getAttr()} 提供Map视图，对视图的修改会直接作用到节点上。
+ *
+ * 所有修改属性和孩子节点的操作都在节点的monitor中执行，修改之前会通过根节点检查所属的目录树是否存在
+ * {@link NamespaceSnapshot}，需要的话先保存一份修改前的副本。
+ * </pre>
+ *
  * @author Sun Dasheng
  */
-@Data
 @Slf4j
 public class Node {
 
+    private static final Node[] EMPTY_CHILDREN = new Node[0];
+    private static final int DEFAULT_CHILDREN_CAPACITY = 4;
+    private static final long ABSENT = -1L;
+    private static final short UNKNOWN_SLOT = -1;
+
     private String path;
-    private int type;
-    private final TreeMap<String, Node> children;
-    private Map<String, String> attr;
+    private byte type;
+    private Node[] children = EMPTY_CHILDREN;
+    private int childrenSize;
+    private long fileSize = ABSENT;
+    private long delTime = ABSENT;
+    private int replicaNum = (int) ABSENT;
+    private Map<String, String> extAttr;
     private Node parent;
+    /**
+     * 文件所在的槽位，还没有计算过或者路径发生变化之后为 UNKNOWN_SLOT
+     */
+    private transient short slot = UNKNOWN_SLOT;
+
+    /**
+     * 分层锁模式下保护当前目录的孩子节点，按需创建
+     */
+    private transient volatile ReentrantReadWriteLock lock;
+    /**
+     * 快照存在期间，第一次修改之前保存的副本
+     */
+    private transient NamespaceSnapshot.Frozen frozen;
 
     public Node() {
-        this.children = new TreeMap<>();
-        this.attr = new HashMap<>();
-        this.parent = null;
     }
 
     public Node(String path, int type) {
         this();
         this.path = path;
-        this.type = type;
+        this.type = (byte) type;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        synchronized (this) {
+            beforeModify();
+            this.path = path;
+            this.slot = UNKNOWN_SLOT;
+        }
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public void setType(int type) {
+        synchronized (this) {
+            beforeModify();
+            this.type = (byte) type;
+        }
+    }
+
+    public Node getParent() {
+        return parent;
+    }
+
+    public void setParent(Node parent) {
+        this.parent = parent;
+        this.slot = UNKNOWN_SLOT;
     }
 
     /**
@@ -49,18 +114,50 @@ public class Node {
      * @return 当前节点的全路径
      */
     public String getFullPath() {
-        return getFullPathInternal(this);
+        if (parent == null) {
+            return "";
+        }
+        int length = 0;
+        for (Node node = this; node.parent != null; node = node.parent) {
+            length += node.path.length() + 1;
+        }
+        StringBuilder sb = new StringBuilder(length);
+        appendFullPath(sb);
+        return sb.toString();
     }
 
-    private String getFullPathInternal(Node parent) {
+    private void appendFullPath(StringBuilder sb) {
         if (parent == null) {
-            return null;
+            return;
         }
-        String parentPath = getFullPathInternal(parent.getParent());
-        if (parentPath == null) {
-            return "";
+        parent.appendFullPath(sb);
+        sb.append('/').append(path);
+    }
+
+    /**
+     * 获取文件所在的槽位，第一次计算之后缓存在节点上
+     *
+     * @return 槽位
+     */
+    public int getSlot() {
+        int ret = slot;
+        if (ret < 0) {
+            ret = StringUtils.hash(getFullPath(), Constants.SLOTS_COUNT);
+            slot = (short) ret;
+        }
+        return ret;
+    }
+
+    /**
+     * 清空子树中所有文件缓存的槽位，目录被重命名或者移动之后调用
+     *
+     * @param node 子树的根节点
+     */
+    static void invalidateSlots(Node node) {
+        node.slot = UNKNOWN_SLOT;
+        for (int i = 0; i < node.childrenSize; i++) {
+            invalidateSlots(node.children[i]);
         }
-        return parentPath + "/" + parent.path;
     }
 
     public static INode toINode(Node node) {
@@ -70,13 +167,12 @@ public class Node {
         builder.setPath(path);
         builder.setType(type);
         builder.putAllAttr(node.getAttr());
-        Collection<Node> children = node.getChildren().values();
-        if (children.isEmpty()) {
+        if (node.childrenSize == 0) {
             return builder.build();
         }
-        List<INode> tmpNode = new ArrayList<>(children.size());
-        for (Node child : children) {
-            INode iNode = toINode(child);
+        List<INode> tmpNode = new ArrayList<>(node.childrenSize);
+        for (int i = 0; i < node.childrenSize; i++) {
+            INode iNode = toINode(node.children[i]);
             tmpNode.add(iNode);
         }
         builder.addAllChildren(tmpNode);
@@ -101,6 +197,7 @@ public class Node {
         if (children.isEmpty()) {
             return node;
         }
+        node.ensureChildrenCapacity(children.size());
         for (INode child : children) {
             node.addChildren(parseINode(child, parent == null ? null : parent + "/" + child.getPath()));
         }
@@ -119,17 +216,39 @@ public class Node {
         if (node == null) {
             return null;
         }
-        Node ret = new Node();
-        String path = node.getPath();
-        int type = node.getType();
-        ret.setPath(path);
-        ret.setType(type);
-        ret.putAllAttr(node.getAttr());
-        if (level > 0) {
-            TreeMap<String, Node> children = node.children;
-            if (!children.isEmpty()) {
-                for (String key : children.keySet()) {
-                    ret.addChildren(deepCopy(children.get(key), level - 1));
+        Node ret = new Node(node.path, node.type);
+        ret.copyAttr(node);
+        if (level > 0 && node.childrenSize > 0) {
+            ret.ensureChildrenCapacity(node.childrenSize);
+            for (int i = 0; i < node.childrenSize; i++) {
+                ret.addChildren(deepCopy(node.children[i], level - 1));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 拷贝目录中的一页孩子节点，孩子节点只拷贝自身的属性，不拷贝孙子节点
+     *
+     * @param node       目录
+     * @param startAfter 从名称大于startAfter的孩子节点开始，为空时从第一个孩子节点开始
+     * @param pageSize   最多拷贝多少个孩子节点
+     * @return 只包含这一页孩子节点的目录副本
+     */
+    public static Node copyPage(Node node, String startAfter, int pageSize) {
+        Node ret = new Node(node.path, node.type);
+        ret.copyAttr(node);
+        synchronized (node) {
+            int from = 0;
+            if (startAfter != null && !startAfter.isEmpty()) {
+                int index = node.indexOfChild(startAfter);
+                from = index >= 0 ? index + 1 : -(index + 1);
+            }
+            int count = Math.min(pageSize, node.childrenSize - from);
+            if (count > 0) {
+                ret.ensureChildrenCapacity(count);
+                for (int i = from; i < from + count; i++) {
+                    ret.addChildren(deepCopy(node.children[i], 0));
                 }
             }
         }
@@ -142,9 +261,9 @@ public class Node {
      * @param child 孩子节点
      */
     public void addChildren(Node child) {
-        synchronized (children) {
+        synchronized (this) {
             child.setParent(this);
-            this.children.put(child.getPath(), child);
+            putChild(child);
         }
     }
 
@@ -154,13 +273,359 @@ public class Node {
      * @param child 孩子节点
      */
     public Node getChildren(String child) {
-        synchronized (children) {
-            return children.get(child);
+        synchronized (this) {
+            int index = indexOfChild(child);
+            return index >= 0 ? children[index] : null;
         }
     }
 
+    /**
+     * 删除孩子节点
+     *
+     * @param child 孩子节点名称
+     * @return 被删除的节点
+     */
+    public Node removeChildren(String child) {
+        synchronized (this) {
+            int index = indexOfChild(child);
+            return index >= 0 ? removeChildAt(index) : null;
+        }
+    }
+
+    /**
+     * 获取孩子节点的Map视图，按照名称排序
+     *
+     * @return 孩子节点
+     */
+    public Map<String, Node> getChildren() {
+        return new ChildrenView();
+    }
+
+    /**
+     * 获取当前节点的读写锁，只在分层锁模式下使用
+     *
+     * @return 读写锁
+     */
+    public ReentrantReadWriteLock getLock() {
+        ReentrantReadWriteLock ret = lock;
+        if (ret == null) {
+            synchronized (this) {
+                ret = lock;
+                if (ret == null) {
+                    ret = new ReentrantReadWriteLock();
+                    lock = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 修改节点之前调用，调用方需要持有节点的monitor
+     */
+    private void beforeModify() {
+        NamespaceSnapshot snapshot = activeSnapshot();
+        if (snapshot != null && (frozen == null || frozen.snapshot != snapshot)) {
+            frozen = snapshot.freeze(this, shallowCopy());
+        }
+    }
+
+    /**
+     * 沿着父节点找到根节点，获取所属目录树当前存在的快照。
+     * 从目录树摘下来的子树在重新挂上之前仍然保留原来的父节点，不属于任何目录树的节点没有快照
+     *
+     * @return 快照，不存在返回null
+     */
+    private NamespaceSnapshot activeSnapshot() {
+        Node node = this;
+        while (node.parent != null) {
+            node = node.parent;
+        }
+        return node instanceof RootNode ? ((RootNode) node).activeSnapshot() : null;
+    }
+
+    /**
+     * 快照存在期间新创建的节点带上快照的标记，修改的时候不需要保存副本，需要在挂到目录树上之前调用
+     *
+     * @param snapshot 快照
+     */
+    void markCreated(NamespaceSnapshot snapshot) {
+        frozen = snapshot.marker();
+    }
+
+    /**
+     * 把另一个节点的属性和孩子节点转移到当前节点，用于替换目录树的根节点
+     *
+     * @param node 节点，转移之后不能再使用
+     */
+    void adopt(Node node) {
+        synchronized (this) {
+            copyAttr(node);
+            ensureChildrenCapacity(node.childrenSize);
+            for (int i = 0; i < node.childrenSize; i++) {
+                children[i] = node.children[i];
+                children[i].setParent(this);
+            }
+            childrenSize = node.childrenSize;
+        }
+    }
+
+    /**
+     * 快照关闭的时候清理还没有被访问过的副本
+     *
+     * @param snapshot 快照
+     */
+    void releaseFrozen(NamespaceSnapshot snapshot) {
+        synchronized (this) {
+            if (frozen != null && frozen.snapshot == snapshot) {
+                frozen = null;
+            }
+        }
+    }
+
+    /**
+     * 获取节点在快照时间点的状态
+     *
+     * @param snapshot     快照
+     * @param withChildren 是否需要孩子节点，文件或者需要孩子节点的时候是最后一次访问
+     * @return 节点的浅拷贝
+     */
+    Node snapshotView(NamespaceSnapshot snapshot, boolean withChildren) {
+        synchronized (this) {
+            Node ret;
+            if (frozen != null && frozen.snapshot == snapshot && frozen.copy != null) {
+                ret = frozen.copy;
+            } else {
+                ret = shallowCopy(withChildren);
+            }
+            if (withChildren || isFile()) {
+                frozen = snapshot.marker();
+            }
+            return ret;
+        }
+    }
+
+    private Node shallowCopy() {
+        return shallowCopy(true);
+    }
+
+    /**
+     * 拷贝节点的属性和孩子节点数组，孩子节点本身不拷贝，调用方需要持有节点的monitor
+     */
+    private Node shallowCopy(boolean withChildren) {
+        Node ret = new Node(path, type);
+        ret.copyAttr(this);
+        if (withChildren && childrenSize > 0) {
+            ret.children = Arrays.copyOf(children, childrenSize);
+            ret.childrenSize = childrenSize;
+        }
+        return ret;
+    }
+
+    private int indexOfChild(String name) {
+        int low = 0;
+        int high = childrenSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = children[mid].path.compareTo(name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private Node putChild(Node child) {
+        beforeModify();
+        int index = indexOfChild(child.path);
+        if (index >= 0) {
+            Node old = children[index];
+            children[index] = child;
+            return old;
+        }
+        int insertAt = -(index + 1);
+        ensureChildrenCapacity(childrenSize + 1);
+        System.arraycopy(children, insertAt, children, insertAt + 1, childrenSize - insertAt);
+        children[insertAt] = child;
+        childrenSize++;
+        return null;
+    }
+
+    private Node removeChildAt(int index) {
+        beforeModify();
+        Node old = children[index];
+        int moved = childrenSize - index - 1;
+        if (moved > 0) {
+            System.arraycopy(children, index + 1, children, index, moved);
+        }
+        children[--childrenSize] = null;
+        if (childrenSize == 0) {
+            children = EMPTY_CHILDREN;
+        }
+        return old;
+    }
+
+    private void ensureChildrenCapacity(int capacity) {
+        if (capacity <= children.length) {
+            return;
+        }
+        int newCapacity = Math.max(DEFAULT_CHILDREN_CAPACITY, children.length + (children.length >> 1));
+        children = Arrays.copyOf(children, Math.max(newCapacity, capacity));
+    }
+
+    /**
+     * 获取文件大小
+     *
+     * @return 文件大小，不存在返回0
+     */
+    public long getFileSize() {
+        return longAttr(fileSize, Constants.ATTR_FILE_SIZE, 0L);
+    }
+
+    /**
+     * 获取文件被删除的时间
+     *
+     * @return 删除时间，不存在返回-1
+     */
+    public long getDelTime() {
+        return longAttr(delTime, Constants.ATTR_FILE_DEL_TIME, ABSENT);
+    }
+
+    /**
+     * 获取文件副本数量
+     *
+     * @param defaultValue 不存在时的默认值
+     * @return 副本数量
+     */
+    public int getReplicaNum(int defaultValue) {
+        return (int) longAttr(replicaNum, Constants.ATTR_REPLICA_NUM, defaultValue);
+    }
+
+    private long longAttr(long value, String key, long defaultValue) {
+        if (value != ABSENT) {
+            return value;
+        }
+        String str = extAttr == null ? null : extAttr.get(key);
+        return str == null ? defaultValue : Long.parseLong(str);
+    }
+
+    /**
+     * 获取文件属性的Map视图
+     *
+     * @return 文件属性
+     */
+    public Map<String, String> getAttr() {
+        return new AttrView();
+    }
+
     public void putAllAttr(Map<String, String> attr) {
-        this.attr.putAll(attr);
+        for (Map.Entry<String, String> entry : attr.entrySet()) {
+            putAttr(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void copyAttr(Node node) {
+        this.fileSize = node.fileSize;
+        this.delTime = node.delTime;
+        this.replicaNum = node.replicaNum;
+        if (node.extAttr != null && !node.extAttr.isEmpty()) {
+            this.extAttr = new HashMap<>(node.extAttr);
+        }
+    }
+
+    private String getAttr(String key) {
+        String ret = null;
+        if (Constants.ATTR_FILE_SIZE.equals(key)) {
+            ret = fileSize == ABSENT ? null : String.valueOf(fileSize);
+        } else if (Constants.ATTR_FILE_DEL_TIME.equals(key)) {
+            ret = delTime == ABSENT ? null : String.valueOf(delTime);
+        } else if (Constants.ATTR_REPLICA_NUM.equals(key)) {
+            ret = replicaNum == ABSENT ? null : String.valueOf(replicaNum);
+        }
+        if (ret == null && extAttr != null) {
+            ret = extAttr.get(key);
+        }
+        return ret;
+    }
+
+    private String putAttr(String key, String value) {
+        synchronized (this) {
+            return putAttrInternal(key, value);
+        }
+    }
+
+    private String putAttrInternal(String key, String value) {
+        String old = removeAttrInternal(key);
+        long number = parseAttrValue(value);
+        if (number != ABSENT && Constants.ATTR_FILE_SIZE.equals(key)) {
+            fileSize = number;
+        } else if (number != ABSENT && Constants.ATTR_FILE_DEL_TIME.equals(key)) {
+            delTime = number;
+        } else if (number != ABSENT && number <= Integer.MAX_VALUE && Constants.ATTR_REPLICA_NUM.equals(key)) {
+            replicaNum = (int) number;
+        } else {
+            if (extAttr == null) {
+                extAttr = new HashMap<>(4);
+            }
+            extAttr.put(key, value);
+        }
+        return old;
+    }
+
+    private String removeAttr(Object key) {
+        synchronized (this) {
+            return removeAttrInternal(key);
+        }
+    }
+
+    private String removeAttrInternal(Object key) {
+        beforeModify();
+        String old = null;
+        if (Constants.ATTR_FILE_SIZE.equals(key) && fileSize != ABSENT) {
+            old = String.valueOf(fileSize);
+            fileSize = ABSENT;
+        } else if (Constants.ATTR_FILE_DEL_TIME.equals(key) && delTime != ABSENT) {
+            old = String.valueOf(delTime);
+            delTime = ABSENT;
+        } else if (Constants.ATTR_REPLICA_NUM.equals(key) && replicaNum != ABSENT) {
+            old = String.valueOf(replicaNum);
+            replicaNum = (int) ABSENT;
+        } else if (extAttr != null) {
+            old = extAttr.remove(key);
+            if (extAttr.isEmpty()) {
+                extAttr = null;
+            }
+        }
+        return old;
+    }
+
+    /**
+     * 只有不带前导0的非负整数才会用基本类型保存，保证转换回字符串之后和原值一致
+     *
+     * @param value 属性值
+     * @return 解析后的数字，不能解析返回-1
+     */
+    private static long parseAttrValue(String value) {
+        if (value == null) {
+            return ABSENT;
+        }
+        int length = value.length();
+        if (length == 0 || length > 18 || (length > 1 && value.charAt(0) == '0')) {
+            return ABSENT;
+        }
+        long ret = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return ABSENT;
+            }
+            ret = ret * 10 + (c - '0');
+        }
+        return ret;
     }
 
     @Override
@@ -168,8 +633,165 @@ public class Node {
         return "Node{" +
                 "path='" + path + '\'' +
                 ", type=" + type +
-                ", children=" + children +
-                ", attr=" + attr +
+                ", children=" + getChildren() +
+                ", attr=" + getAttr() +
                 '}';
     }
+
+    /**
+     * 孩子节点的Map视图
+     */
+    private class ChildrenView extends AbstractMap<String, Node> {
+
+        @Override
+        public int size() {
+            return childrenSize;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Node get(Object key) {
+            return key instanceof String ? getChildren((String) key) : null;
+        }
+
+        @Override
+        public Node put(String key, Node value) {
+            if (!key.equals(value.getPath())) {
+                throw new IllegalArgumentException("孩子节点名称和路径不一致：" + key);
+            }
+            synchronized (Node.this) {
+                return putChild(value);
+            }
+        }
+
+        @Override
+        public Node remove(Object key) {
+            return key instanceof String ? removeChildren((String) key) : null;
+        }
+
+        @Override
+        public Set<Entry<String, Node>> entrySet() {
+            return new AbstractSet<Entry<String, Node>>() {
+                @Override
+                public Iterator<Entry<String, Node>> iterator() {
+                    return new Iterator<Entry<String, Node>>() {
+                        private int next = 0;
+                        private int last = -1;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < childrenSize;
+                        }
+
+                        @Override
+                        public Entry<String, Node> next() {
+                            if (next >= childrenSize) {
+                                throw new NoSuchElementException();
+                            }
+                            last = next++;
+                            Node child = children[last];
+                            return new SimpleImmutableEntry<>(child.path, child);
+                        }
+
+                        @Override
+                        public void remove() {
+                            if (last < 0) {
+                                throw new IllegalStateException();
+                            }
+                            synchronized (Node.this) {
+                                removeChildAt(last);
+                            }
+                            next = last;
+                            last = -1;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return childrenSize;
+                }
+            };
+        }
+    }
+
+    /**
+     * 文件属性的Map视图
+     */
+    private class AttrView extends AbstractMap<String, String> {
+
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? getAttr((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            return putAttr(key, value);
+        }
+
+        @Override
+        public String remove(Object key) {
+            return removeAttr(key);
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            List<Entry<String, String>> entries = new ArrayList<>(3 + (extAttr == null ? 0 : extAttr.size()));
+            if (fileSize != ABSENT) {
+                entries.add(new SimpleImmutableEntry<>(Constants.ATTR_FILE_SIZE, String.valueOf(fileSize)));
+            }
+            if (delTime != ABSENT) {
+                entries.add(new SimpleImmutableEntry<>(Constants.ATTR_FILE_DEL_TIME, String.valueOf(delTime)));
+            }
+            if (replicaNum != ABSENT) {
+                entries.add(new SimpleImmutableEntry<>(Constants.ATTR_REPLICA_NUM, String.valueOf(replicaNum)));
+            }
+            if (extAttr != null) {
+                for (Entry<String, String> entry : extAttr.entrySet()) {
+                    entries.add(new SimpleImmutableEntry<>(entry));
+                }
+            }
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    Iterator<Entry<String, String>> iterator = entries.iterator();
+                    return new Iterator<Entry<String, String>>() {
+                        private Entry<String, String> last;
+
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            last = iterator.next();
+                            return last;
+                        }
+
+                        @Override
+                        public void remove() {
+                            iterator.remove();
+                            removeAttr(last.getKey());
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return entries.size();
+                }
+            };
+        }
+    }
 }
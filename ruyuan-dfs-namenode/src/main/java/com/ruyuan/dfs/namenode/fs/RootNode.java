@@ -0,0 +1,32 @@
+package com.ruyuan.dfs.namenode.fs;
+
+import com.ruyuan.dfs.common.enums.NodeType;
+
+/**
+ * {@link FsDirectory} 目录树的根节点
+ *
+ * <pre>
+ * 快照属于某一个目录树，不是整个JVM共享的。节点修改之前沿着父节点找到根节点，再通过根节点找到所属的
+ * {@link FsDirectory} 和它当前存在的快照，普通节点不需要额外保存所属目录树的引用。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+class RootNode extends Node {
+
+    private final FsDirectory directory;
+
+    RootNode(FsDirectory directory) {
+        super("/", NodeType.DIRECTORY.getValue());
+        this.directory = directory;
+    }
+
+    /**
+     * 获取所属目录树当前存在的快照
+     *
+     * @return 快照，不存在返回null
+     */
+    NamespaceSnapshot activeSnapshot() {
+        return directory.activeSnapshot();
+    }
+}
@@ -0,0 +1,75 @@
+package com.ruyuan.dfs.namenode.fs;
+
+import com.ruyuan.dfs.common.Constants;
+import com.ruyuan.dfs.common.utils.OpenHashSet;
+
+import java.util.List;
+
+/**
+ * 槽位到文件节点的索引
+ *
+ * <pre>
+ * 迁移槽位的时候需要找出某个槽位下的所有文件，每次遍历整棵目录树并计算每个文件的槽位的开销是 O(文件数量)，
+ * 迁移所有槽位就是 O(槽位数量 × 文件数量)。索引遍历一次目录树建立，之后随着创建和删除文件增量维护，
+ * 查询一个槽位的开销只和这个槽位下的文件数量有关。
+ *
+ * 每个槽位使用一个开放寻址的 {@link OpenHashSet} 保存文件节点的引用，按照引用判断是否相同，每个文件只占用一到两个数组元素。
+ * 同一个槽位的修改在槽位的monitor中串行执行，分层锁模式下不同目录下的修改可以并发更新索引。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+class SlotIndex {
+
+    @SuppressWarnings("unchecked")
+    private final OpenHashSet<Node>[] slots = new OpenHashSet[Constants.SLOTS_COUNT];
+
+    SlotIndex() {
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new OpenHashSet<>(true);
+        }
+    }
+
+    /**
+     * 遍历目录树，把所有的文件加入索引
+     *
+     * @param directory 目录
+     */
+    void addAll(Node directory) {
+        for (Node child : directory.getChildren().values()) {
+            if (child.isFile()) {
+                add(child);
+            } else {
+                addAll(child);
+            }
+        }
+    }
+
+    /**
+     * 添加文件，文件节点已经挂到了目录树上
+     *
+     * @param file 文件节点
+     */
+    void add(Node file) {
+        slots[file.getSlot()].add(file);
+    }
+
+    /**
+     * 删除文件，需要在文件节点从目录树上摘下来之前调用
+     *
+     * @param file 文件节点
+     */
+    void remove(Node file) {
+        slots[file.getSlot()].remove(file);
+    }
+
+    /**
+     * 获取槽位下的所有文件节点
+     *
+     * @param slot 槽位
+     * @return 文件节点
+     */
+    List<Node> get(int slot) {
+        return slots[slot].toList();
+    }
+}
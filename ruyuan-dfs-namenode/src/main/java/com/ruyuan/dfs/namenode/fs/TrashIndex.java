@@ -0,0 +1,85 @@
+package com.ruyuan.dfs.namenode.fs;
+
+import java.util.*;
+
+/**
+ * 垃圾箱中的文件按照删除时间排序的索引
+ *
+ * <pre>
+ * 只有移动到垃圾箱的文件才带有 DEL_TIME 属性，创建文件和删除文件的时候增量维护，加载FsImage之后只遍历每个用户的垃圾箱重建。
+ * 定时清理垃圾箱的时候从删除时间最早的文件开始取，只会访问已经过期的文件，不需要遍历整个垃圾箱。
+ *
+ * 文件进入垃圾箱之后 DEL_TIME 不会再被修改，删除的时候按照节点当前的 DEL_TIME 定位。
+ * 分层锁模式下不同目录的修改会并发更新索引，所有方法都在索引的monitor中执行。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+class TrashIndex {
+
+    private final TreeMap<Long, Set<Node>> files = new TreeMap<>();
+    private int size;
+
+    /**
+     * 添加文件，没有 DEL_TIME 属性的文件会被忽略
+     *
+     * @param file 文件节点
+     */
+    synchronized void add(Node file) {
+        long delTime = file.getDelTime();
+        if (delTime < 0) {
+            return;
+        }
+        if (files.computeIfAbsent(delTime, k -> Collections.newSetFromMap(new IdentityHashMap<>())).add(file)) {
+            size++;
+        }
+    }
+
+    /**
+     * 删除文件
+     *
+     * @param file 文件节点
+     */
+    synchronized void remove(Node file) {
+        long delTime = file.getDelTime();
+        if (delTime < 0) {
+            return;
+        }
+        Set<Node> nodes = files.get(delTime);
+        if (nodes != null && nodes.remove(file)) {
+            size--;
+            if (nodes.isEmpty()) {
+                files.remove(delTime);
+            }
+        }
+    }
+
+    /**
+     * 按照删除时间从早到晚获取已经过期的文件
+     *
+     * @param expireBefore 删除时间早于这个时间的文件已经过期
+     * @param limit        最多返回多少个
+     * @return 过期的文件节点
+     */
+    synchronized List<Node> expired(long expireBefore, int limit) {
+        List<Node> ret = new ArrayList<>();
+        for (Set<Node> nodes : files.headMap(expireBefore, false).values()) {
+            for (Node node : nodes) {
+                if (ret.size() >= limit) {
+                    return ret;
+                }
+                ret.add(node);
+            }
+        }
+        return ret;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized void clear() {
+        files.clear();
+        size = 0;
+    }
+}
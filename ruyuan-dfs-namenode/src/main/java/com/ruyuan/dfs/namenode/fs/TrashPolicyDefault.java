@@ -2,15 +2,14 @@ package com.ruyuan.dfs.namenode.fs;
 
 import com.ruyuan.dfs.common.Constants;
 import com.ruyuan.dfs.common.FileInfo;
-import com.ruyuan.dfs.common.enums.NodeType;
 import com.ruyuan.dfs.namenode.datanode.DataNodeManager;
 import com.ruyuan.dfs.namenode.server.UserManager;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 默认的垃圾清除机制
@@ -37,48 +36,36 @@ public class TrashPolicyDefault implements Runnable {
         if (log.isDebugEnabled()) {
             log.info("定时扫描垃圾箱线程启动.");
         }
-        long currentTime = System.currentTimeMillis();
-        Node node = diskNameSystem.listFiles("/");
-        TreeMap<String, Node> children = node.getChildren();
-        for (String user : children.keySet()) {
-            Node userTrashNode = node.getChildren().get(user).getChildren().get(Constants.TRASH_DIR);
-            if (userTrashNode != null) {
-                List<String> toRemoveFilename = new LinkedList<>();
-                scan(File.separator + user, userTrashNode, currentTime, toRemoveFilename);
-                for (String filename : toRemoveFilename) {
-                    // 下发任务给DataNode删除文件
-                    String dataNodeFilename = filename.replaceAll(File.separator + Constants.TRASH_DIR, "");
-                    FileInfo fileInfo = dataNodeManager.removeFileStorage(dataNodeFilename, true);
-                    if (fileInfo == null) {
-                        log.error("找不到文件的DataNode信息，等待下一次定时任务扫描再删除文件：[filename={}]", dataNodeFilename);
-                        continue;
-                    }
-                    log.debug("删除内存目录树：[filename={}]", filename);
-                    diskNameSystem.deleteFile(filename);
-                    String username = fileInfo.getFileName().split("/")[1];
-                    userManager.removeStorageInfo(username, fileInfo.getFileSize());
-                }
+        // 垃圾箱中的文件按照删除时间建立了索引，只会取出已经过期的文件，不需要遍历所有用户的垃圾箱
+        long expireBefore = System.currentTimeMillis() - clearStorageThreshold;
+        List<String> toRemoveFilename = diskNameSystem.findExpiredTrashFiles(expireBefore, Integer.MAX_VALUE);
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(toRemoveFilename.size());
+        for (String filename : toRemoveFilename) {
+            // 下发任务给DataNode删除文件
+            String dataNodeFilename = filename.replaceAll(File.separator + Constants.TRASH_DIR, "");
+            FileInfo fileInfo = dataNodeManager.removeFileStorage(dataNodeFilename, true);
+            if (fileInfo == null) {
+                log.error("找不到文件的DataNode信息，等待下一次定时任务扫描再删除文件：[filename={}]", dataNodeFilename);
+                continue;
             }
+            log.debug("删除内存目录树：[filename={}]", filename);
+            futures.add(diskNameSystem.deleteFileAsync(filename));
+            String username = fileInfo.getFileName().split("/")[1];
+            userManager.removeStorageInfo(username, fileInfo.getFileSize());
         }
+        // 不逐个等待刷盘，整批删除之后等待一次
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
     }
 
-    private void scan(String path, Node node, long currentTime, List<String> toRemoveFilename) {
-        String basePath = path + File.separator + node.getPath();
-        if (node.getChildren().isEmpty()) {
-            String deleteTime = node.getAttr().get(Constants.ATTR_FILE_DEL_TIME);
-            if (deleteTime == null) {
-                return;
-            }
-            long delTime = Long.parseLong(deleteTime);
-            boolean isFile = NodeType.FILE.getValue() == node.getType();
-            if (currentTime - clearStorageThreshold > delTime && isFile) {
-                toRemoveFilename.add(basePath);
-            }
-        } else {
-            for (String key : node.getChildren().keySet()) {
-                Node children = node.getChildren().get(key);
-                scan(basePath, children, currentTime, toRemoveFilename);
-            }
-        }
+    /**
+     * 获取文件在垃圾箱中的路径
+     *
+     * @param filename 文件名，例如 /user/a/b.png
+     * @return 垃圾箱中的路径，例如 /user/.Trash/a/b.png
+     */
+    public static String toTrashPath(String filename) {
+        int index = filename.indexOf('/', 1);
+        return index < 0 ? filename + "/" + Constants.TRASH_DIR :
+                filename.substring(0, index) + "/" + Constants.TRASH_DIR + filename.substring(index);
     }
 }
@@ -0,0 +1,119 @@
+package com.ruyuan.dfs.namenode.fs;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 目录的用量统计：子树中的文件数量和文件大小之和
+ *
+ * <pre>
+ * 创建和删除文件的时候从父目录开始一直更新到根节点，开销是 O(目录深度)，查询一个目录的用量不需要遍历子树。
+ * 只有子树中存在文件的目录才有记录，文件数量减到0的时候删除记录，被删除的空目录不会残留在索引中。
+ *
+ * 分层锁模式下不同子树中的修改会并发更新同一个上层目录，每个目录的统计值是不可变对象，通过 ConcurrentHashMap.compute 原子替换。
+ * FsImage中不保存统计值，加载FsImage之后遍历一次目录树重建。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+class UsageIndex {
+
+    private final Map<Node, Usage> usages = new ConcurrentHashMap<>();
+
+    /**
+     * 添加文件，文件节点已经挂到了目录树上
+     *
+     * @param file 文件节点
+     */
+    void add(Node file) {
+        update(file.getParent(), 1, file.getFileSize());
+    }
+
+    /**
+     * 删除文件，需要在文件节点从目录树上摘下来之前调用
+     *
+     * @param file 文件节点
+     */
+    void remove(Node file) {
+        update(file.getParent(), -1, -file.getFileSize());
+    }
+
+    /**
+     * 子树被移动到了新的父目录下，把子树的用量从原来的上层目录转移到新的上层目录，子树内部的统计值不变
+     *
+     * @param node      子树的根节点，已经挂到了新的父目录下
+     * @param oldParent 原来的父目录
+     */
+    void move(Node node, Node oldParent) {
+        CalculateResult usage = get(node);
+        update(oldParent, -usage.getFileCount(), -usage.getTotalSize());
+        update(node.getParent(), usage.getFileCount(), usage.getTotalSize());
+    }
+
+    /**
+     * 获取文件或者目录的用量
+     *
+     * @param node 节点
+     * @return 文件数量和文件大小之和
+     */
+    CalculateResult get(Node node) {
+        if (node.isFile()) {
+            return new CalculateResult(1, node.getFileSize());
+        }
+        Usage usage = usages.get(node);
+        return usage == null ? new CalculateResult(0, 0) : new CalculateResult((int) usage.fileCount, usage.totalSize);
+    }
+
+    /**
+     * 遍历目录树重建统计值
+     *
+     * @param root 根节点
+     */
+    void rebuild(Node root) {
+        usages.clear();
+        addAll(root);
+    }
+
+    private Usage addAll(Node directory) {
+        long fileCount = 0;
+        long totalSize = 0;
+        for (Node child : directory.getChildren().values()) {
+            if (child.isFile()) {
+                fileCount++;
+                totalSize += child.getFileSize();
+            } else {
+                Usage usage = addAll(child);
+                fileCount += usage.fileCount;
+                totalSize += usage.totalSize;
+            }
+        }
+        Usage usage = new Usage(fileCount, totalSize);
+        if (fileCount > 0) {
+            usages.put(directory, usage);
+        }
+        return usage;
+    }
+
+    private void update(Node directory, long fileCount, long totalSize) {
+        if (fileCount == 0 && totalSize == 0) {
+            return;
+        }
+        for (Node current = directory; current != null; current = current.getParent()) {
+            usages.compute(current, (k, v) -> {
+                long count = (v == null ? 0 : v.fileCount) + fileCount;
+                long size = (v == null ? 0 : v.totalSize) + totalSize;
+                return count <= 0 ? null : new Usage(count, size);
+            });
+        }
+    }
+
+    private static final class Usage {
+        private final long fileCount;
+        private final long totalSize;
+
+        private Usage(long fileCount, long totalSize) {
+            this.fileCount = fileCount;
+            this.totalSize = totalSize;
+        }
+    }
+}
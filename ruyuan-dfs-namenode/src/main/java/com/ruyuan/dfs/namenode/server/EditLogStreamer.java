@@ -0,0 +1,236 @@
+package com.ruyuan.dfs.namenode.server;
+
+import com.ruyuan.dfs.common.NettyPacket;
+import com.ruyuan.dfs.common.enums.PacketType;
+import com.ruyuan.dfs.common.metrics.Prometheus;
+import com.ruyuan.dfs.common.utils.DefaultThread;
+import com.ruyuan.dfs.common.utils.NetUtils;
+import com.ruyuan.dfs.model.backup.EditLogPush;
+import com.ruyuan.dfs.namenode.editslog.EditLogSegmentCursor;
+import com.ruyuan.dfs.namenode.editslog.EditLogWrapper;
+import com.ruyuan.dfs.namenode.editslog.FsEditLog;
+import io.netty.channel.Channel;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 往BackupNode推送EditLog
+ *
+ * <pre>
+ * BackupNode从某个txid订阅一次之后，NameNode在editlog刷盘之后主动推送，BackupNode不需要再轮询：
+ *
+ *  1. 刷盘线程在一批editlog刷盘之后唤醒推送线程。
+ *  2. 推送线程按照txid的顺序每次最多推送 PUSH_BATCH_SIZE 条，优先从 EditLogCache 中读取，
+ *     落后太多已经不在缓存中的时候从段文件中流式读取。
+ *  3. 流量控制：BackupNode回放完一批之后确认已经回放的txid，已经推送但是还没有确认的editlog不超过订阅时指定的窗口，
+ *     超过之后暂停推送等待确认。Channel不可写的时候同样暂停推送。
+ *
+ * 延迟指标：
+ *
+ *  namenode_editlog_stream_lag_txid  已经刷盘但是BackupNode还没有确认的editlog数量
+ *  namenode_editlog_stream_lag_ms    最早一条没有确认的editlog已经刷盘多长时间，用的都是NameNode的时钟
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+@Slf4j
+public class EditLogStreamer {
+
+    /**
+     * 每次推送最多包含多少条editlog
+     */
+    private static final int PUSH_BATCH_SIZE = 1024;
+
+    /**
+     * 每次推送最多包含多少字节的editlog，保证不超过网络包的大小限制
+     */
+    private static final int PUSH_BATCH_BYTES = 1024 * 1024;
+
+    /**
+     * 保留最近多少次刷盘的时间，用于计算延迟的毫秒数
+     */
+    private static final int SYNC_TIME_SIZE = 4096;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final long UNWRITABLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final FsEditLog editLog;
+    /**
+     * 每次刷盘的最大txid和刷盘时间
+     */
+    private final ConcurrentSkipListMap<Long, Long> syncTimes = new ConcurrentSkipListMap<>();
+    private int syncTimeCount = 0;
+    private final DefaultThread pushThread;
+    private volatile Subscription subscription;
+    private volatile boolean running = true;
+    /**
+     * 追赶进度的时候连续的几批可以接着上一次的位置读段文件，只有推送线程使用
+     */
+    private final EditLogSegmentCursor cursor;
+
+    public EditLogStreamer(FsEditLog editLog) {
+        this.editLog = editLog;
+        this.cursor = new EditLogSegmentCursor(editLog);
+        this.pushThread = new DefaultThread("EditLog-Streamer", this::pushLoop, true);
+        this.pushThread.start();
+        editLog.addSyncListener(this::onSync);
+    }
+
+    /**
+     * BackupNode订阅editlog
+     *
+     * @param channel BackupNode的连接
+     * @param txId    BackupNode已经回放的最大txid，从下一条开始推送
+     * @param window  已经推送但是还没有确认的editlog数量上限
+     */
+    public void subscribe(Channel channel, long txId, int window) {
+        this.subscription = new Subscription(channel, txId, Math.max(1, window));
+        log.info("BackupNode订阅EditLog：[channel={}, txId={}, window={}]", NetUtils.getChannelId(channel), txId, window);
+        LockSupport.unpark(pushThread);
+    }
+
+    /**
+     * BackupNode断开连接，取消订阅
+     *
+     * @param channel 断开的连接
+     */
+    public void unsubscribe(Channel channel) {
+        Subscription current = subscription;
+        if (current != null && current.match(channel)) {
+            subscription = null;
+            log.info("BackupNode取消订阅EditLog：[channel={}, ackedTxId={}]", NetUtils.getChannelId(channel),
+                    current.ackedTxId.get());
+        }
+    }
+
+    /**
+     * BackupNode确认已经回放的txid
+     *
+     * @param channel BackupNode的连接
+     * @param txId    已经回放的最大txid
+     */
+    public void ack(Channel channel, long txId) {
+        Subscription current = subscription;
+        if (current != null && current.match(channel)) {
+            current.ackedTxId.accumulateAndGet(txId, Math::max);
+            LockSupport.unpark(pushThread);
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(pushThread);
+    }
+
+    /**
+     * 刷盘线程的回调，不能阻塞
+     */
+    private void onSync(List<EditLogWrapper> editLogs) {
+        syncTimes.put(editLogs.get(editLogs.size() - 1).getTxId(), System.currentTimeMillis());
+        if (++syncTimeCount > SYNC_TIME_SIZE) {
+            syncTimes.pollFirstEntry();
+            syncTimeCount--;
+        }
+        if (subscription != null) {
+            LockSupport.unpark(pushThread);
+        }
+    }
+
+    private void pushLoop() {
+        while (running) {
+            Subscription current = subscription;
+            if (current == null) {
+                cursor.close();
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            long syncTxId = editLog.getSyncTxid();
+            reportLag(current, syncTxId);
+            int window = current.window - (int) (current.sentTxId - current.ackedTxId.get());
+            if (current.sentTxId >= syncTxId || window <= 0) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            if (!current.channel.isWritable()) {
+                LockSupport.parkNanos(this, UNWRITABLE_PARK_NANOS);
+                continue;
+            }
+            try {
+                List<EditLogWrapper> batch = editLog.readSyncedEditLogs(current.sentTxId,
+                        Math.min(window, PUSH_BATCH_SIZE), PUSH_BATCH_BYTES, cursor);
+                if (batch.isEmpty()) {
+                    log.warn("找不到需要推送的EditLog：[txId={}, syncTxId={}]", current.sentTxId, syncTxId);
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    continue;
+                }
+                push(current, batch, syncTxId);
+            } catch (Exception e) {
+                log.error("推送EditLog出现异常：", e);
+                cursor.close();
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+        cursor.close();
+    }
+
+    private void push(Subscription current, List<EditLogWrapper> batch, long syncTxId) {
+        EditLogPush.Builder builder = EditLogPush.newBuilder()
+                .setSyncTxId(syncTxId);
+        for (EditLogWrapper editLog : batch) {
+            builder.addEditLogs(editLog.getEditLog());
+        }
+        NettyPacket nettyPacket = NettyPacket.buildPacket(builder.build().toByteArray(), PacketType.EDIT_LOG_PUSH);
+        current.channel.writeAndFlush(nettyPacket);
+        current.sentTxId = batch.get(batch.size() - 1).getTxId();
+        Prometheus.hit("namenode_editlog_stream_qps", "NameNode往BackupNode推送EditLog的QPS", batch.size());
+    }
+
+    private void reportLag(Subscription current, long syncTxId) {
+        long ackedTxId = current.ackedTxId.get();
+        long lagTxId = Math.max(0, syncTxId - ackedTxId);
+        long lagMs = 0;
+        if (lagTxId > 0) {
+            // 找到包含下一条没有确认的editlog的那次刷盘，已经不在记录范围内的话用最早的一次，结果会偏小
+            Map.Entry<Long, Long> entry = syncTimes.ceilingEntry(ackedTxId + 1);
+            if (entry != null) {
+                lagMs = Math.max(0, System.currentTimeMillis() - entry.getValue());
+            }
+        }
+        Prometheus.gauge("namenode_editlog_stream_lag_txid", "BackupNode落后的EditLog数量", "type", "txId", lagTxId);
+        Prometheus.gauge("namenode_editlog_stream_lag_ms", "BackupNode落后的时间", "type", "ms", lagMs);
+    }
+
+    /**
+     * BackupNode的订阅
+     */
+    private static class Subscription {
+        private final Channel channel;
+        private final int window;
+        /**
+         * 已经推送的最大txid，只有推送线程修改
+         */
+        private volatile long sentTxId;
+        /**
+         * BackupNode确认已经回放的最大txid
+         */
+        private final AtomicLong ackedTxId;
+
+        Subscription(Channel channel, long txId, int window) {
+            this.channel = channel;
+            this.window = window;
+            this.sentTxId = txId;
+            this.ackedTxId = new AtomicLong(txId);
+        }
+
+        boolean match(Channel channel) {
+            return NetUtils.getChannelId(channel).equals(NetUtils.getChannelId(this.channel));
+        }
+    }
+}
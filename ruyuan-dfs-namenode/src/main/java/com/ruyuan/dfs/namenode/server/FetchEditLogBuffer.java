@@ -1,13 +1,12 @@
 package com.ruyuan.dfs.namenode.server;
 
+import com.ruyuan.dfs.namenode.editslog.EditLogSegmentCursor;
 import com.ruyuan.dfs.namenode.editslog.EditLogWrapper;
-import com.ruyuan.dfs.namenode.editslog.EditslogInfo;
 import com.ruyuan.dfs.namenode.fs.DiskNameSystem;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -19,95 +18,41 @@ import java.util.List;
 public class FetchEditLogBuffer {
 
     public static final int BACKUP_NODE_FETCH_SIZE = 10;
-    private List<EditLogWrapper> bufferedEditLog = new ArrayList<>();
-    private DiskNameSystem nameSystem;
+
+    /**
+     * 每次最多返回的editlog数量
+     */
+    public static final int BACKUP_NODE_FETCH_MAX_SIZE = 1024;
+
+    /**
+     * 每次最多返回的editlog字节数
+     */
+    private static final int BACKUP_NODE_FETCH_MAX_BYTES = 1024 * 1024;
+
+    private final DiskNameSystem nameSystem;
+    private final EditLogSegmentCursor cursor;
 
     public FetchEditLogBuffer(DiskNameSystem nameSystem) {
         this.nameSystem = nameSystem;
+        this.cursor = new EditLogSegmentCursor(nameSystem.getEditLog());
     }
 
     /**
      * <pre>
      * 抓取Editlog
-     * 1. 判断缓冲区的editslog数量没有达到阈值
-     *      1.1 尝试从editslog日志文件中读取editslog
-     *      1.2 如果editslog日志明显已经读取过了，直接将内存中最新的editslog读取到缓存中
-     *      1.3 如果editslog日志文件没有读取过，只读取一部分editslog，直到达到BackupNode拉取editslog条数的阈值即可
-     * 2. 判断缓冲区的editslog数量没有达到阈值
-     *      2.1 如果没有达到阈值，直接返回空
-     *      2.2 达到阈值，将数据返回给BackupNode
+     * 1. 最近刷盘的editlog直接从 EditLogCache 中按照txid切片返回，不需要读取和解析段文件
+     * 2. 已经不在缓存中的editlog从段文件中流式读取，BackupNode连续抓取的时候接着上一次的位置读取
+     * 3. 只返回已经刷盘的editlog，数量没有达到 BACKUP_NODE_FETCH_SIZE 时返回空
      * </pre>
      *
      * @return editLog结果
      */
-    public List<EditLogWrapper> fetch(long txId) throws IOException {
-        List<EditLogWrapper> result = new ArrayList<>();
-        if (bufferedEditLog.size() <= BACKUP_NODE_FETCH_SIZE) {
-            fetchEditLogAppendBuffer(txId);
-        }
-        if (bufferedEditLog.size() >= BACKUP_NODE_FETCH_SIZE) {
-            Iterator<EditLogWrapper> iterator = bufferedEditLog.iterator();
-            while (iterator.hasNext()) {
-                EditLogWrapper next = iterator.next();
-                result.add(next);
-                iterator.remove();
-            }
+    public synchronized List<EditLogWrapper> fetch(long txId) throws IOException {
+        List<EditLogWrapper> result = nameSystem.getEditLog().readSyncedEditLogs(txId, BACKUP_NODE_FETCH_MAX_SIZE,
+                BACKUP_NODE_FETCH_MAX_BYTES, cursor);
+        if (result.size() < BACKUP_NODE_FETCH_SIZE) {
+            return Collections.emptyList();
         }
         return result;
     }
-
-    /**
-     * 抓取editlog填充到缓存中
-     */
-    private void fetchEditLogAppendBuffer(long txId) throws IOException {
-        List<EditslogInfo> sortedEditLogsFiles = nameSystem.getEditLog().getSortedEditLogFiles(txId);
-        if (sortedEditLogsFiles.isEmpty()) {
-            appendMemoryEditLogToBuffer(txId);
-        } else {
-            long bufferedTxId = 0L;
-            for (EditslogInfo each : sortedEditLogsFiles) {
-                bufferedTxId = each.getEnd();
-                if (txId >= each.getEnd()) {
-                    // 如果当前最大的txid已经入了缓存了，则检查下一个文件
-                    continue;
-                }
-                List<EditLogWrapper> editsLogs = nameSystem.getEditLog().readEditLogFromFile(each.getName());
-                // 整个文件保存到buffer中
-                appendInternal(txId, editsLogs);
-                // 如果当前文件缓存到editlog中已经满足抓取的需求，则跳出循环
-                if (txId + BACKUP_NODE_FETCH_SIZE < each.getEnd()) {
-                    break;
-                }
-            }
-            // 表示读文件读不出更多的editlog了，此时需要从内存缓冲中读取
-            if (bufferedTxId <= txId) {
-                appendMemoryEditLogToBuffer(txId);
-            }
-        }
-    }
-
-    /**
-     * 抓取内存editslog到缓存中
-     */
-    private void appendMemoryEditLogToBuffer(long minTxId) {
-        List<EditLogWrapper> currentEditLog = nameSystem.getEditLog().getCurrentEditLog();
-        if (currentEditLog != null) {
-            appendInternal(minTxId, currentEditLog);
-        }
-    }
-
-    /**
-     * 将EditLog添加到缓存中
-     *
-     * @param minTxId     最小的TxId
-     * @param editLogList EditLog列表
-     */
-    private void appendInternal(long minTxId, List<EditLogWrapper> editLogList) {
-        for (EditLogWrapper editLog : editLogList) {
-            long txId = editLog.getTxId();
-            if (txId > minTxId) {
-                bufferedEditLog.add(editLog);
-            }
-        }
-    }
 }
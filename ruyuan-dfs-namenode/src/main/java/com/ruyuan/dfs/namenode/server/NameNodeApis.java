@@ -4,7 +4,6 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import com.ruyuan.dfs.common.Constants;
 import com.ruyuan.dfs.common.FileInfo;
 import com.ruyuan.dfs.common.NettyPacket;
-import com.ruyuan.dfs.common.enums.CommandType;
 import com.ruyuan.dfs.common.enums.NameNodeLaunchMode;
 import com.ruyuan.dfs.common.enums.NodeType;
 import com.ruyuan.dfs.common.enums.PacketType;
@@ -25,13 +24,13 @@ import com.ruyuan.dfs.model.datanode.*;
 import com.ruyuan.dfs.model.namenode.*;
 import com.ruyuan.dfs.namenode.config.NameNodeConfig;
 import com.ruyuan.dfs.namenode.datanode.DataNodeInfo;
+import com.ruyuan.dfs.namenode.datanode.DataNodeLivenessGossip;
 import com.ruyuan.dfs.namenode.datanode.DataNodeManager;
 import com.ruyuan.dfs.namenode.editslog.EditLogWrapper;
 import com.ruyuan.dfs.namenode.fs.CalculateResult;
 import com.ruyuan.dfs.namenode.fs.DiskNameSystem;
 import com.ruyuan.dfs.namenode.fs.Node;
-import com.ruyuan.dfs.namenode.rebalance.RemoveReplicaTask;
-import com.ruyuan.dfs.namenode.rebalance.ReplicaTask;
+import com.ruyuan.dfs.namenode.fs.TrashPolicyDefault;
 import com.ruyuan.dfs.namenode.server.tomcat.domain.User;
 import com.ruyuan.dfs.namenode.shard.ShardingManager;
 import com.ruyuan.dfs.namenode.shard.controller.ControllerManager;
@@ -45,6 +44,8 @@ import org.apache.commons.lang3.time.StopWatch;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -72,10 +73,12 @@ public class NameNodeApis extends AbstractChannelHandler {
     protected int nodeId;
     private final NameNodeLaunchMode mode;
     private final FetchEditLogBuffer fetchEditLogBuffer;
+    private final EditLogStreamer editLogStreamer;
     private final AtomicBoolean slotsChanged = new AtomicBoolean(false);
     private Map<Integer, Integer> slots;
     private final FileReceiveHandler fileReceiveHandler;
     private BackupNodeInfoHolder backupNodeInfoHolder;
+    private final DataNodeLivenessGossip livenessGossip;
 
     public NameNodeApis(NameNodeConfig nameNodeConfig, DataNodeManager dataNodeManager, PeerNameNodes peerNameNodes,
                         ShardingManager shardingManager, DiskNameSystem diskNameSystem, DefaultScheduler defaultScheduler,
@@ -92,6 +95,8 @@ public class NameNodeApis extends AbstractChannelHandler {
         this.controllerManager = controllerManager;
         this.defaultScheduler = defaultScheduler;
         this.fetchEditLogBuffer = new FetchEditLogBuffer(diskNameSystem);
+        this.editLogStreamer = new EditLogStreamer(diskNameSystem.getEditLog());
+        this.livenessGossip = new DataNodeLivenessGossip(nameNodeConfig, dataNodeManager, peerNameNodes, defaultScheduler);
         this.shardingManager.addOnSlotAllocateCompletedListener(slots -> {
             if (slotsChanged.compareAndSet(false, true)) {
                 this.slots = slots;
@@ -104,6 +109,13 @@ public class NameNodeApis extends AbstractChannelHandler {
                 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(nameNodeConfig.getNameNodeApiQueueSize()));
     }
 
+    /**
+     * 停止往BackupNode推送EditLog
+     */
+    public void shutdown() {
+        editLogStreamer.shutdown();
+    }
+
     public BackupNodeInfoHolder getBackupNodeInfoHolder() {
         return backupNodeInfoHolder;
     }
@@ -131,6 +143,7 @@ public class NameNodeApis extends AbstractChannelHandler {
         if (backupNodeInfoHolder != null && backupNodeInfoHolder.match(ctx.channel())) {
             backupNodeInfoHolder = null;
         }
+        editLogStreamer.unsubscribe(ctx.channel());
         ctx.fireChannelInactive();
     }
 
@@ -166,12 +179,21 @@ public class NameNodeApis extends AbstractChannelHandler {
                 case HEART_BRET:
                     handleDataNodeHeartbeatRequest(requestWrapper);
                     break;
+                case DATA_NODE_LIVENESS_GOSSIP:
+                    handleDataNodeLivenessGossipRequest(requestWrapper);
+                    break;
                 case MKDIR:
                     handleMkdirRequest(requestWrapper);
                     break;
                 case FETCH_EDIT_LOG:
                     handleFetchEditLogRequest(requestWrapper);
                     break;
+                case SUBSCRIBE_EDIT_LOG:
+                    handleSubscribeEditLogRequest(requestWrapper);
+                    break;
+                case EDIT_LOG_PUSH_ACK:
+                    handleEditLogPushAckRequest(requestWrapper);
+                    break;
                 case TRANSFER_FILE:
                     handleFileTransferRequest(requestWrapper);
                     break;
@@ -193,6 +215,15 @@ public class NameNodeApis extends AbstractChannelHandler {
                 case READ_ATTR:
                     handleReadAttrRequest(requestWrapper);
                     break;
+                case BATCH_CREATE_FILE:
+                    handleBatchCreateFileRequest(requestWrapper);
+                    break;
+                case BATCH_READ_ATTR:
+                    handleBatchReadAttrRequest(requestWrapper);
+                    break;
+                case BATCH_REMOVE_FILE:
+                    handleBatchRemoveFileRequest(requestWrapper);
+                    break;
                 case AUTHENTICATE:
                     handleAuthenticateRequest(requestWrapper);
                     break;
@@ -418,7 +449,8 @@ public class NameNodeApis extends AbstractChannelHandler {
     private void handleClientListFilesRequest(RequestWrapper requestWrapper) throws InvalidProtocolBufferException {
         ListFileRequest listFileRequest = ListFileRequest.parseFrom(requestWrapper.getRequest().getBody());
         String basePath = File.separator + requestWrapper.getRequest().getUserName() + listFileRequest.getPath();
-        Node ret = listNode(basePath);
+        Node ret = listFileRequest.getPageSize() > 0 ?
+                listPage(basePath, listFileRequest.getStartAfter(), listFileRequest.getPageSize()) : listNode(basePath);
         if (ret == null) {
             ret = new Node(listFileRequest.getPath(), NodeType.DIRECTORY.getValue());
         }
@@ -431,6 +463,41 @@ public class NameNodeApis extends AbstractChannelHandler {
         return maybeFetchFromOtherNode(basePath, node);
     }
 
+    /**
+     * 分页获取文件列表
+     *
+     * <pre>
+     * 集群模式下同一个目录的文件分布在不同的NameNode上，每个NameNode都返回名称大于startAfter的前pageSize个文件，
+     * 合并之后按照名称排序取前pageSize个，就是整个集群中这个目录的下一页。
+     * </pre>
+     */
+    private Node listPage(String basePath, String startAfter, int pageSize) throws InvalidProtocolBufferException {
+        Node ret = diskNameSystem.listFiles(basePath, startAfter, pageSize);
+        if (NameNodeLaunchMode.CLUSTER.equals(nameNodeConfig.getMode())) {
+            ListFileRequest listFileRequest = ListFileRequest.newBuilder()
+                    .setPath(basePath)
+                    .setStartAfter(startAfter)
+                    .setPageSize(pageSize)
+                    .build();
+            NettyPacket request = NettyPacket.buildPacket(listFileRequest.toByteArray(), PacketType.LIST_FILES);
+            List<NettyPacket> responses = peerNameNodes.broadcastSync(request);
+            for (NettyPacket response : responses) {
+                INode iNode = INode.parseFrom(response.getBody());
+                if (iNode.getPath().length() != 0) {
+                    Node merge = merge(ret, iNode);
+                    if (ret == null) {
+                        ret = merge;
+                    }
+                }
+            }
+            if (ret != null && ret.getChildren().size() > pageSize) {
+                int[] count = {0};
+                ret.getChildren().entrySet().removeIf(entry -> ++count[0] > pageSize);
+            }
+        }
+        return ret;
+    }
+
     /**
      * 从别的节点中获取用户文件列表
      */
@@ -512,15 +579,29 @@ public class NameNodeApis extends AbstractChannelHandler {
     private void handleNameNodeRemoveFileRequest(RequestWrapper requestWrapper) throws InvalidProtocolBufferException,
             NameNodeException {
         RemoveFileOrDirRequest request = RemoveFileOrDirRequest.parseFrom(requestWrapper.getRequest().getBody());
-        int count = removeFileOrDirInternal(request.getFilesList(), requestWrapper.getRequest().getUserName());
-        RemoveFileOrDirResponse response = RemoveFileOrDirResponse.newBuilder()
-                .setFileCount(count)
-                .build();
-        requestWrapper.sendResponse(response);
+        removeFileOrDirInternal(request.getFilesList(), requestWrapper.getRequest().getUserName())
+                .whenComplete((count, e) -> {
+                    if (e != null) {
+                        sendErrorResponse(requestWrapper, e);
+                        return;
+                    }
+                    RemoveFileOrDirResponse response = RemoveFileOrDirResponse.newBuilder()
+                            .setFileCount(count)
+                            .build();
+                    requestWrapper.sendResponse(response);
+                });
     }
 
 
-    public int removeFileOrDirInternal(List<String> paths, String username) throws NameNodeException {
+    /**
+     * 删除文件或者文件夹下的所有文件
+     *
+     * @param paths    路径
+     * @param username 用户名
+     * @return 所有editlog刷盘之后完成的Future，结果为删除的文件数量
+     */
+    public CompletableFuture<Integer> removeFileOrDirInternal(List<String> paths, String username)
+            throws NameNodeException {
         List<String> filenames = new ArrayList<>(PrettyCodes.trimMapSize());
         for (String path : paths) {
             String baseFile = File.separator + username + path;
@@ -531,10 +612,11 @@ public class NameNodeApis extends AbstractChannelHandler {
         }
         log.info("删除文件列表为: [path={}]", filenames);
         int count = filenames.size();
+        List<CompletableFuture<Void>> futures = new ArrayList<>(count);
         for (String filename : filenames) {
-            removeFileInternal(filename, username);
+            futures.add(removeFileInternal(filename, username));
         }
-        return count;
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> count);
     }
 
     /**
@@ -595,47 +677,70 @@ public class NameNodeApis extends AbstractChannelHandler {
     private void handleTrashResumeRequest(RequestWrapper requestWrapper) throws NameNodeException, InvalidProtocolBufferException {
         NettyPacket request = requestWrapper.getRequest();
         TrashResumeRequest trashResumeRequest = TrashResumeRequest.parseFrom(request.getBody());
-        int count = trashResumeInternal(trashResumeRequest.getFilesList(), requestWrapper.getRequest().getUserName());
-        TrashResumeResponse response = TrashResumeResponse.newBuilder()
-                .setFileCount(count)
-                .build();
-        requestWrapper.sendResponse(response);
+        trashResumeInternal(trashResumeRequest.getFilesList(), requestWrapper.getRequest().getUserName())
+                .whenComplete((count, e) -> {
+                    if (e != null) {
+                        sendErrorResponse(requestWrapper, e);
+                        return;
+                    }
+                    TrashResumeResponse response = TrashResumeResponse.newBuilder()
+                            .setFileCount(count)
+                            .build();
+                    requestWrapper.sendResponse(response);
+                });
     }
 
-    public int trashResumeInternal(List<String> paths, String username) throws NameNodeException {
-        List<String> filenames = new ArrayList<>(PrettyCodes.trimMapSize());
+    /**
+     * 从垃圾箱恢复文件或者文件夹
+     *
+     * <pre>
+     * 原来的路径不存在的时候，整个子树通过一次重命名移动回去，只写一条editlog。
+     * 原来的路径上已经有同名的文件夹时，逐层合并到已经存在的文件夹中；已经存在的同名文件不会被覆盖，留在垃圾箱中。
+     * </pre>
+     *
+     * @param paths    需要恢复的路径，相对于用户的垃圾箱
+     * @param username 用户名
+     * @return 所有editlog刷盘之后完成的Future，结果为恢复的文件数量
+     */
+    public CompletableFuture<Integer> trashResumeInternal(List<String> paths, String username)
+            throws NameNodeException {
+        List<CompletableFuture<Integer>> futures = new ArrayList<>(paths.size());
         for (String path : paths) {
-            String baseFile = File.separator + username + File.separator + Constants.TRASH_DIR + path;
-            List<String> allFiles = diskNameSystem.findAllFiles(baseFile);
-            for (String file : allFiles) {
-                filenames.add(path + file);
-            }
-        }
-        log.info("恢复文件列表为: [path={}]", filenames);
-        int count = 0;
-        for (String filename : filenames) {
-            String trashFilename = File.separator + username + File.separator +
-                    Constants.TRASH_DIR + filename;
-            Node node = diskNameSystem.listFiles(trashFilename, 1);
-            if (node == null) {
+            String trashFilename = File.separator + username + File.separator + Constants.TRASH_DIR + path;
+            if (diskNameSystem.unsafeListFiles(trashFilename) == null) {
                 throw new NameNodeException("文件不存在");
             }
-            if (NodeType.FILE.getValue() != node.getType()) {
-                throw new NameNodeException("无法恢复文件夹");
-            }
-            diskNameSystem.deleteFile(trashFilename);
-            String destFilename = File.separator + username + filename;
-            Map<String, String> currentAttr = node.getAttr();
-            currentAttr.remove(Constants.ATTR_FILE_DEL_TIME);
-            boolean ret = diskNameSystem.createFile(destFilename, currentAttr);
-            if (ret) {
-                count++;
-                log.debug("恢复文件：[src={}, target={}]", destFilename, destFilename);
-            } else {
-                log.warn("恢复文件失败，文件已存在：" + trashFilename);
-            }
+            futures.add(trashResume(trashFilename, File.separator + username + path));
         }
-        return count;
+        return sum(futures).thenApply(count -> {
+            log.info("恢复文件：[username={}, paths={}, count={}]", username, paths, count);
+            return count;
+        });
+    }
+
+    private CompletableFuture<Integer> trashResume(String trashFilename, String destFilename) {
+        Node dest = diskNameSystem.unsafeListFiles(destFilename);
+        if (dest == null) {
+            return diskNameSystem.renameAsync(trashFilename, destFilename).thenApply(files -> {
+                log.debug("恢复文件：[src={}, target={}, files={}]", trashFilename, destFilename, files);
+                return Math.max(files, 0);
+            });
+        }
+        Node node = diskNameSystem.unsafeListFiles(trashFilename);
+        if (node == null || node.isFile() || dest.isFile()) {
+            log.warn("恢复文件失败，文件已存在：" + destFilename);
+            return CompletableFuture.completedFuture(0);
+        }
+        List<CompletableFuture<Integer>> futures = new ArrayList<>(node.getChildren().size());
+        for (String child : new ArrayList<>(node.getChildren().keySet())) {
+            futures.add(trashResume(trashFilename + File.separator + child, destFilename + File.separator + child));
+        }
+        return sum(futures);
+    }
+
+    private static CompletableFuture<Integer> sum(List<CompletableFuture<Integer>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(v -> futures.stream().mapToInt(CompletableFuture::join).sum());
     }
 
 
@@ -644,7 +749,9 @@ public class NameNodeApis extends AbstractChannelHandler {
      */
     private void handleListFilesRequest(RequestWrapper requestWrapper) throws InvalidProtocolBufferException {
         ListFileRequest listFileRequest = ListFileRequest.parseFrom(requestWrapper.getRequest().getBody());
-        Node node = diskNameSystem.listFiles(listFileRequest.getPath(), 1);
+        Node node = listFileRequest.getPageSize() > 0 ?
+                diskNameSystem.listFiles(listFileRequest.getPath(), listFileRequest.getStartAfter(),
+                        listFileRequest.getPageSize()) : diskNameSystem.listFiles(listFileRequest.getPath(), 1);
         INode response;
         if (node != null) {
             response = Node.toINode(node);
@@ -708,18 +815,34 @@ public class NameNodeApis extends AbstractChannelHandler {
         String realFilename = File.separator + request.getUserName() + createFileRequest.getFilename();
         int nodeId = getNodeId(realFilename);
         if (this.nodeId == nodeId) {
-            if (request.getAck() != 0) {
-                dataNodeManager.waitFileReceive(realFilename, 3000);
+            if (request.getAck() == 0) {
+                confirmFileCreated(requestWrapper, createFileRequest.getFileSize());
+                return;
             }
-            userManager.addStorageInfo(request.getUserName(), createFileRequest.getFileSize());
-            CreateFileResponse response = CreateFileResponse.newBuilder()
-                    .build();
-            requestWrapper.sendResponse(response);
+            // 不占用API线程等待DataNode上报，在上报文件的线程或者超时的时候发送响应
+            dataNodeManager.waitFileReceive(realFilename, 3000).whenComplete((v, e) -> {
+                if (e != null) {
+                    log.error("发生业务异常：", e);
+                    sendErrorResponse(requestWrapper, e.getMessage());
+                    return;
+                }
+                confirmFileCreated(requestWrapper, createFileRequest.getFileSize());
+            });
         } else {
             forwardRequestToOtherNameNode(nodeId, requestWrapper);
         }
     }
 
+    /**
+     * 文件上传完成，更新用户的存储信息并响应客户端
+     */
+    private void confirmFileCreated(RequestWrapper requestWrapper, long fileSize) {
+        userManager.addStorageInfo(requestWrapper.getRequest().getUserName(), fileSize);
+        CreateFileResponse response = CreateFileResponse.newBuilder()
+                .build();
+        requestWrapper.sendResponse(response);
+    }
+
     /**
      * 处理抓取BackupNode信息请求
      */
@@ -869,45 +992,28 @@ public class NameNodeApis extends AbstractChannelHandler {
         if (!heartbeat) {
             throw new NameNodeException("心跳失败，DataNode不存在：" + heartbeatRequest.getHostname());
         }
-        DataNodeInfo dataNode = dataNodeManager.getDataNode(heartbeatRequest.getHostname());
-        List<ReplicaTask> replicaTask = dataNode.pollReplicaTask(100);
-        List<ReplicaCommand> replicaCommands = new LinkedList<>();
-        if (!replicaTask.isEmpty()) {
-            List<ReplicaCommand> commands = replicaTask.stream()
-                    .map(e -> ReplicaCommand.newBuilder()
-                            .setFilename(e.getFilename())
-                            .setHostname(e.getHostname())
-                            .setPort(e.getPort())
-                            .setCommand(CommandType.REPLICA_COPY.getValue())
-                            .build())
-                    .collect(Collectors.toList());
-            replicaCommands.addAll(commands);
-        }
-        List<RemoveReplicaTask> removeReplicaTasks = dataNode.pollRemoveReplicaTask(100);
-        if (!removeReplicaTasks.isEmpty()) {
-            List<ReplicaCommand> commands = removeReplicaTasks.stream()
-                    .map(e -> ReplicaCommand.newBuilder()
-                            .setFilename(e.getFileName())
-                            .setHostname(e.getHostname())
-                            .setCommand(CommandType.REPLICA_REMOVE.getValue())
-                            .build())
-                    .collect(Collectors.toList());
-            replicaCommands.addAll(commands);
-        }
-        // 同步请求其他所有NameNode节点获取他们的响应
-        List<NettyPacket> nettyPackets = broadcastSync(requestWrapper);
-        // 将其他NameNode节点的命令添加到给客户端的响应中
-        for (NettyPacket nettyPacket : nettyPackets) {
-            HeartbeatResponse heartbeatResponse = HeartbeatResponse.parseFrom(nettyPacket.getBody());
-            replicaCommands.addAll(heartbeatResponse.getCommandsList());
+        if (!requestWrapper.getRequest().getBroadcast()) {
+            // 不再同步请求别的NameNode，由DataNodeLivenessGossip定期批量同步，别的NameNode的副本命令随下一次心跳下发
+            livenessGossip.onHeartbeat(heartbeatRequest.getHostname());
         }
-
+        DataNodeInfo dataNode = dataNodeManager.getDataNode(heartbeatRequest.getHostname());
+        List<ReplicaCommand> replicaCommands = dataNode.pollReplicaCommands(100);
         HeartbeatResponse response = HeartbeatResponse.newBuilder()
                 .addAllCommands(replicaCommands)
                 .build();
         requestWrapper.sendResponse(response);
     }
 
+    /**
+     * 处理别的NameNode批量同步过来的DataNode心跳
+     *
+     * @param requestWrapper 请求
+     */
+    private void handleDataNodeLivenessGossipRequest(RequestWrapper requestWrapper) throws InvalidProtocolBufferException {
+        DataNodeLivenessRequest request = DataNodeLivenessRequest.parseFrom(requestWrapper.getRequest().getBody());
+        requestWrapper.sendResponse(livenessGossip.onGossip(request));
+    }
+
     /**
      * 处理创建文件夹请求
      *
@@ -923,8 +1029,13 @@ public class NameNodeApis extends AbstractChannelHandler {
         String realFilename = File.separator + request.getUserName() + mkdirRequest.getPath();
         int nodeId = getNodeId(realFilename);
         if (this.nodeId == nodeId) {
-            this.diskNameSystem.mkdir(realFilename, mkdirRequest.getAttrMap());
-            requestWrapper.sendResponse();
+            this.diskNameSystem.mkdirAsync(realFilename, mkdirRequest.getAttrMap()).whenComplete((txId, e) -> {
+                if (e != null) {
+                    sendErrorResponse(requestWrapper, e);
+                    return;
+                }
+                requestWrapper.sendResponse();
+            });
         } else {
             forwardRequestToOtherNameNode(nodeId, requestWrapper);
         }
@@ -938,19 +1049,27 @@ public class NameNodeApis extends AbstractChannelHandler {
         long txId = fetchEditsLogRequest.getTxId();
         List<EditLogWrapper> result = new ArrayList<>();
         try {
-            result = fetchEditLogBuffer.fetch(txId);
+            // 订阅了推送的BackupNode只需要同步用户和槽位信息
+            if (!fetchEditsLogRequest.getWithoutEditLogs()) {
+                result = fetchEditLogBuffer.fetch(txId);
+            }
         } catch (IOException e) {
             log.error("读取EditLog失败：", e);
         }
-        FetchEditsLogResponse response = FetchEditsLogResponse.newBuilder()
+        // 先读版本号再读用户信息，并发修改的时候最多是下一次多同步一次
+        long userVersion = userManager.getVersion();
+        FetchEditsLogResponse.Builder builder = FetchEditsLogResponse.newBuilder()
                 .addAllEditLogs(result.stream()
                         .map(EditLogWrapper::getEditLog)
                         .collect(Collectors.toList()))
-                .addAllUsers(userManager.getAllUser().stream()
-                        .map(User::toEntity)
-                        .collect(Collectors.toList()))
-                .build();
-        requestWrapper.sendResponse(response);
+                .setUserVersion(userVersion);
+        // 用户信息只在版本号发生变化之后才同步
+        if (fetchEditsLogRequest.getUserVersion() != userVersion) {
+            builder.addAllUsers(userManager.getAllUser().stream()
+                    .map(User::toEntity)
+                    .collect(Collectors.toList()));
+        }
+        requestWrapper.sendResponse(builder.build());
         if (NameNodeLaunchMode.SINGLE.equals(mode)) {
             return;
         }
@@ -969,6 +1088,23 @@ public class NameNodeApis extends AbstractChannelHandler {
         }
     }
 
+    /**
+     * 处理BackupNode订阅EditLog推送
+     */
+    private void handleSubscribeEditLogRequest(RequestWrapper requestWrapper) throws InvalidProtocolBufferException {
+        SubscribeEditLogRequest request = SubscribeEditLogRequest.parseFrom(requestWrapper.getRequest().getBody());
+        editLogStreamer.subscribe(requestWrapper.getCtx().channel(), request.getTxId(), request.getWindow());
+        requestWrapper.sendResponse();
+    }
+
+    /**
+     * 处理BackupNode确认已经回放的EditLog
+     */
+    private void handleEditLogPushAckRequest(RequestWrapper requestWrapper) throws InvalidProtocolBufferException {
+        EditLogPushAck ack = EditLogPushAck.parseFrom(requestWrapper.getRequest().getBody());
+        editLogStreamer.ack(requestWrapper.getCtx().channel(), ack.getTxId());
+    }
+
     /**
      * 处理文件传输，这里的场景主要是BackupNode上传FsImage文件
      */
@@ -979,30 +1115,75 @@ public class NameNodeApis extends AbstractChannelHandler {
 
     /**
      * 处理DataNode上报存储信息
+     *
+     * <pre>
+     * 全量上报分批发送，最后一批带上finished标记，之后记录DataNode的存储代数。
+     * 全量上报替换DataNode原来的副本，所有批次处理完之后删除没有上报的副本。
+     * 增量上报只包含上次确认之后新增和删除的文件，基于的代数和记录的不一致的时候拒绝，DataNode会重新全量上报。
+     * 上报会广播给别的NameNode，每个NameNode只保存属于自己Slot的文件，只有收到DataNode请求的NameNode做代数的检查和响应。
+     * </pre>
      */
     private void handleDataNodeReportStorageInfoRequest(RequestWrapper requestWrapper) throws
             InvalidProtocolBufferException {
         ReportCompleteStorageInfoRequest request =
                 ReportCompleteStorageInfoRequest.parseFrom(requestWrapper.getRequest().getBody());
-        broadcast(requestWrapper.getRequest());
-        log.info("全量上报存储信息：[hostname={}, files={}]", request.getHostname(), request.getFileInfosCount());
+        DataNodeInfo dataNode = dataNodeManager.getDataNode(request.getHostname());
+        boolean isBroadcastRequest = requestWrapper.getRequest().getBroadcast();
+        if (request.getIncremental() && !isBroadcastRequest) {
+            long reportedGeneration = dataNode == null ? -1 : dataNode.getReportedGeneration();
+            if (dataNode == null || !dataNode.matchReportedGeneration(request.getBaseGeneration())) {
+                log.info("增量上报的代数不一致，需要全量上报：[hostname={}, baseGeneration={}, reportedGeneration={}]",
+                        request.getHostname(), request.getBaseGeneration(), reportedGeneration);
+                sendReportStorageInfoResponse(requestWrapper, false, reportedGeneration);
+                return;
+            }
+        }
+        boolean broadcast = broadcast(requestWrapper.getRequest());
+        log.info("{}上报存储信息：[hostname={}, files={}, removedFiles={}]", request.getIncremental() ? "增量" : "全量",
+                request.getHostname(), request.getFileInfosCount(), request.getRemovedFilesCount());
+        // 只有属于自己Slot的文件信息才进行保存
+        // TODO 考虑和内存目录树进行对比，看看是否存在内存目录树不存在的文件，下发命令让DataNode清除
+        List<FileInfo> addedFiles = new ArrayList<>(request.getFileInfosCount());
         for (FileMetaInfo file : request.getFileInfosList()) {
             if (getNodeId(file.getFilename()) == this.nodeId) {
-                // 只有属于自己Slot的文件信息才进行保存
-                // TODO 考虑和内存目录树进行对比，看看是否存在内存目录树不存在的文件，下发命令让DataNode清除
-                FileInfo fileInfo = new FileInfo();
-                fileInfo.setFileName(file.getFilename());
-                fileInfo.setFileSize(file.getFileSize());
-                fileInfo.setHostname(request.getHostname());
-                dataNodeManager.addReplica(fileInfo);
+                addedFiles.add(new FileInfo(request.getHostname(), file.getFilename(), file.getFileSize()));
             }
         }
-        if (request.getFinished()) {
+        List<String> removedFiles = new ArrayList<>(request.getRemovedFilesCount());
+        for (String filename : request.getRemovedFilesList()) {
+            if (getNodeId(filename) == this.nodeId) {
+                removedFiles.add(filename);
+            }
+        }
+        if (request.getIncremental()) {
+            dataNodeManager.applyStorageReport(request.getHostname(), addedFiles, removedFiles);
+        } else {
+            dataNodeManager.applyFullStorageReport(request.getHostname(), request.getGeneration(), addedFiles,
+                    request.getFileInfosCount(), request.getTotalFiles());
+        }
+        if (!request.getFinished()) {
+            return;
+        }
+        if (dataNode != null) {
+            dataNode.setReportedGeneration(request.getGeneration());
+        }
+        if (!request.getIncremental()) {
             dataNodeManager.setDataNodeReady(request.getHostname());
-            log.info("全量上报存储信息完成：[hostname={}]", request.getHostname());
+            log.info("全量上报存储信息完成：[hostname={}, generation={}]", request.getHostname(), request.getGeneration());
+        }
+        if (!broadcast) {
+            sendReportStorageInfoResponse(requestWrapper, true, request.getGeneration());
         }
     }
 
+    private void sendReportStorageInfoResponse(RequestWrapper requestWrapper, boolean accepted, long generation) {
+        ReportStorageInfoResponse response = ReportStorageInfoResponse.newBuilder()
+                .setAccepted(accepted)
+                .setGeneration(generation)
+                .build();
+        requestWrapper.sendResponse(response);
+    }
+
     /**
      * 处理客户端创建文件请求
      */
@@ -1016,19 +1197,8 @@ public class NameNodeApis extends AbstractChannelHandler {
         int nodeId = getNodeId(realFilename);
         if (this.nodeId == nodeId) {
             Map<String, String> attrMap = new HashMap<>(createFileRequest.getAttrMap());
-            String replicaNumStr = attrMap.get(Constants.ATTR_REPLICA_NUM);
             attrMap.put(Constants.ATTR_FILE_SIZE, String.valueOf(createFileRequest.getFileSize()));
-            int replicaNum;
-            if (replicaNumStr != null) {
-                replicaNum = Integer.parseInt(replicaNumStr);
-                // 最少不能少于配置的数量
-                replicaNum = Math.max(replicaNum, diskNameSystem.getNameNodeConfig().getReplicaNum());
-                // 最大不能大于最大的数量
-                replicaNum = Math.min(replicaNum, Constants.MAX_REPLICA_NUM);
-            } else {
-                replicaNum = diskNameSystem.getNameNodeConfig().getReplicaNum();
-                attrMap.put(Constants.ATTR_REPLICA_NUM, String.valueOf(replicaNum));
-            }
+            int replicaNum = resolveReplicaNum(attrMap);
             Node node = diskNameSystem.listFiles(realFilename);
             if (node != null) {
                 throw new NameNodeException("文件已存在：" + createFileRequest.getFilename());
@@ -1036,25 +1206,324 @@ public class NameNodeApis extends AbstractChannelHandler {
             List<DataNodeInfo> dataNodeList = dataNodeManager.allocateDataNodes(request.getUserName(), replicaNum, realFilename);
             Prometheus.incCounter("namenode_put_file_count", "NameNode收到的上传文件请求数量");
             Prometheus.hit("namenode_put_file_qps", "NameNode瞬时上传文件QPS");
-            List<DataNode> dataNodes = dataNodeList.stream()
-                    .map(e -> DataNode.newBuilder().setHostname(e.getHostname())
-                            .setNioPort(e.getNioPort())
-                            .setHttpPort(e.getHttpPort())
-                            .build())
-                    .collect(Collectors.toList());
-            diskNameSystem.createFile(realFilename, attrMap);
-            List<String> collect = dataNodeList.stream().map(DataNodeInfo::getHostname).collect(Collectors.toList());
-            log.info("创建文件：[filename={}, datanodes={}]", realFilename, String.join(",", collect));
-            CreateFileResponse response = CreateFileResponse.newBuilder()
-                    .addAllDataNodes(dataNodes)
-                    .setRealFileName(realFilename)
-                    .build();
-            requestWrapper.sendResponse(response);
+            List<DataNode> dataNodes = toDataNodes(dataNodeList);
+            diskNameSystem.createFileAsync(realFilename, attrMap).whenComplete((created, e) -> {
+                if (e != null) {
+                    sendErrorResponse(requestWrapper, e);
+                    return;
+                }
+                if (!created) {
+                    sendErrorResponse(requestWrapper, "文件已存在：" + createFileRequest.getFilename());
+                    return;
+                }
+                List<String> collect = dataNodeList.stream().map(DataNodeInfo::getHostname).collect(Collectors.toList());
+                log.info("创建文件：[filename={}, datanodes={}]", realFilename, String.join(",", collect));
+                CreateFileResponse response = CreateFileResponse.newBuilder()
+                        .addAllDataNodes(dataNodes)
+                        .setRealFileName(realFilename)
+                        .build();
+                requestWrapper.sendResponse(response);
+            });
         } else {
             forwardRequestToOtherNameNode(nodeId, requestWrapper);
         }
     }
 
+    /**
+     * 计算文件的副本数量：不能少于配置的数量，不能大于最大的数量，没有指定时使用配置的数量并写入文件属性
+     */
+    private int resolveReplicaNum(Map<String, String> attrMap) {
+        String replicaNumStr = attrMap.get(Constants.ATTR_REPLICA_NUM);
+        int replicaNum;
+        if (replicaNumStr != null) {
+            replicaNum = Integer.parseInt(replicaNumStr);
+            // 最少不能少于配置的数量
+            replicaNum = Math.max(replicaNum, diskNameSystem.getNameNodeConfig().getReplicaNum());
+            // 最大不能大于最大的数量
+            replicaNum = Math.min(replicaNum, Constants.MAX_REPLICA_NUM);
+        } else {
+            replicaNum = diskNameSystem.getNameNodeConfig().getReplicaNum();
+            attrMap.put(Constants.ATTR_REPLICA_NUM, String.valueOf(replicaNum));
+        }
+        return replicaNum;
+    }
+
+    private List<DataNode> toDataNodes(List<DataNodeInfo> dataNodeList) {
+        return dataNodeList.stream()
+                .map(e -> DataNode.newBuilder().setHostname(e.getHostname())
+                        .setNioPort(e.getNioPort())
+                        .setHttpPort(e.getHttpPort())
+                        .build())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 处理客户端批量创建文件请求
+     *
+     * <pre>
+     * 按照文件所属的NameNode分组，属于其他NameNode的文件每组转发一次，属于自己的文件在一次加锁中创建，
+     * 这一批editlog都刷盘之后再返回响应。每个文件单独返回结果，顺序和请求中的顺序相同，一个文件失败不影响其他文件。
+     * </pre>
+     */
+    private void handleBatchCreateFileRequest(RequestWrapper requestWrapper) throws InvalidProtocolBufferException,
+            NameNodeException {
+        if (isNoAuth(requestWrapper)) {
+            return;
+        }
+        NettyPacket request = requestWrapper.getRequest();
+        String userName = request.getUserName();
+        List<CreateFileRequest> files = BatchCreateFileRequest.parseFrom(request.getBody()).getFilesList();
+        List<String> realFilenames = files.stream()
+                .map(file -> File.separator + userName + file.getFilename())
+                .collect(Collectors.toList());
+        BatchCreateFileResult[] results = new BatchCreateFileResult[files.size()];
+        CompletableFuture<Void> local = CompletableFuture.completedFuture(null);
+        for (Map.Entry<Integer, List<Integer>> group : groupByNodeId(realFilenames).entrySet()) {
+            List<Integer> indexes = group.getValue();
+            if (this.nodeId == group.getKey()) {
+                local = batchCreateFile(userName, files, realFilenames, indexes, results);
+                continue;
+            }
+            BatchCreateFileRequest.Builder builder = BatchCreateFileRequest.newBuilder();
+            indexes.forEach(i -> builder.addFiles(files.get(i)));
+            NettyPacket response = forwardBatchRequest(group.getKey(), request, builder.build().toByteArray());
+            if (response.isError()) {
+                indexes.forEach(i -> results[i] = createFileFailed(files.get(i).getFilename(), response.getError()));
+                continue;
+            }
+            List<BatchCreateFileResult> list = BatchCreateFileResponse.parseFrom(response.getBody()).getResultsList();
+            for (int k = 0; k < indexes.size(); k++) {
+                results[indexes.get(k)] = list.get(k);
+            }
+        }
+        local.whenComplete((v, e) -> {
+            if (e != null) {
+                sendErrorResponse(requestWrapper, e);
+                return;
+            }
+            requestWrapper.sendResponse(BatchCreateFileResponse.newBuilder()
+                    .addAllResults(Arrays.asList(results))
+                    .build());
+        });
+    }
+
+    /**
+     * 创建属于自己的一组文件，已经存在的文件不会分配DataNode
+     *
+     * @return editlog刷盘并且填好结果之后完成的Future，写editlog失败时这一组创建的文件都返回失败
+     */
+    private CompletableFuture<Void> batchCreateFile(String userName, List<CreateFileRequest> files,
+                                                    List<String> realFilenames, List<Integer> indexes,
+                                                    BatchCreateFileResult[] results) {
+        List<String> filenames = new ArrayList<>(indexes.size());
+        for (int i : indexes) {
+            filenames.add(realFilenames.get(i));
+        }
+        List<Map<String, String>> existAttrs = diskNameSystem.getAttrs(filenames);
+        List<Integer> creating = new ArrayList<>(indexes.size());
+        List<String> creatingFilenames = new ArrayList<>(indexes.size());
+        List<Map<String, String>> creatingAttrs = new ArrayList<>(indexes.size());
+        List<List<DataNodeInfo>> creatingDataNodes = new ArrayList<>(indexes.size());
+        for (int k = 0; k < indexes.size(); k++) {
+            int i = indexes.get(k);
+            CreateFileRequest file = files.get(i);
+            if (existAttrs.get(k) != null) {
+                results[i] = createFileFailed(file.getFilename(), "文件已存在：" + file.getFilename());
+                continue;
+            }
+            Map<String, String> attrMap = new HashMap<>(file.getAttrMap());
+            attrMap.put(Constants.ATTR_FILE_SIZE, String.valueOf(file.getFileSize()));
+            try {
+                int replicaNum = resolveReplicaNum(attrMap);
+                creatingDataNodes.add(dataNodeManager.allocateDataNodes(userName, replicaNum, realFilenames.get(i)));
+            } catch (Exception e) {
+                log.warn("批量创建文件，分配DataNode失败：[filename={}]", realFilenames.get(i), e);
+                results[i] = createFileFailed(file.getFilename(), e.getMessage() == null ? e.toString() : e.getMessage());
+                continue;
+            }
+            creating.add(i);
+            creatingFilenames.add(realFilenames.get(i));
+            creatingAttrs.add(attrMap);
+        }
+        return diskNameSystem.createFilesAsync(creatingFilenames, creatingAttrs).handle((created, e) -> {
+            if (e != null) {
+                Throwable cause = unwrap(e);
+                log.error("批量创建文件，写入editlog失败：[user={}]", userName, cause);
+                for (int i : creating) {
+                    results[i] = createFileFailed(files.get(i).getFilename(), String.valueOf(cause.getMessage()));
+                }
+                return null;
+            }
+            fillCreateFileResults(userName, files, indexes.size(), creating, creatingFilenames, creatingDataNodes,
+                    created, results);
+            return null;
+        });
+    }
+
+    private void fillCreateFileResults(String userName, List<CreateFileRequest> files, int total,
+                                       List<Integer> creating, List<String> creatingFilenames,
+                                       List<List<DataNodeInfo>> creatingDataNodes, boolean[] created,
+                                       BatchCreateFileResult[] results) {
+        int createdCount = 0;
+        for (int k = 0; k < created.length; k++) {
+            int i = creating.get(k);
+            String filename = files.get(i).getFilename();
+            if (!created[k]) {
+                // 同一批中有重复的文件名
+                results[i] = createFileFailed(filename, "文件已存在：" + filename);
+                continue;
+            }
+            createdCount++;
+            Prometheus.incCounter("namenode_put_file_count", "NameNode收到的上传文件请求数量");
+            Prometheus.hit("namenode_put_file_qps", "NameNode瞬时上传文件QPS");
+            CreateFileResponse response = CreateFileResponse.newBuilder()
+                    .addAllDataNodes(toDataNodes(creatingDataNodes.get(k)))
+                    .setRealFileName(creatingFilenames.get(k))
+                    .build();
+            results[i] = BatchCreateFileResult.newBuilder()
+                    .setFilename(filename)
+                    .setResponse(response)
+                    .build();
+        }
+        log.info("批量创建文件：[user={}, total={}, created={}]", userName, total, createdCount);
+    }
+
+    private BatchCreateFileResult createFileFailed(String filename, String error) {
+        return BatchCreateFileResult.newBuilder()
+                .setFilename(filename)
+                .setError(error)
+                .build();
+    }
+
+    /**
+     * 处理客户端批量读取文件属性请求，属于自己的文件在一次加锁中读取
+     */
+    private void handleBatchReadAttrRequest(RequestWrapper requestWrapper) throws InvalidProtocolBufferException,
+            NameNodeException {
+        if (isNoAuth(requestWrapper)) {
+            return;
+        }
+        NettyPacket request = requestWrapper.getRequest();
+        String userName = request.getUserName();
+        List<String> files = BatchReadAttrRequest.parseFrom(request.getBody()).getFilenamesList();
+        List<String> realFilenames = files.stream()
+                .map(file -> File.separator + userName + file)
+                .collect(Collectors.toList());
+        BatchReadAttrResult[] results = new BatchReadAttrResult[files.size()];
+        for (Map.Entry<Integer, List<Integer>> group : groupByNodeId(realFilenames).entrySet()) {
+            List<Integer> indexes = group.getValue();
+            if (this.nodeId == group.getKey()) {
+                List<String> filenames = indexes.stream().map(realFilenames::get).collect(Collectors.toList());
+                List<Map<String, String>> attrs = diskNameSystem.getAttrs(filenames);
+                for (int k = 0; k < indexes.size(); k++) {
+                    String filename = files.get(indexes.get(k));
+                    BatchReadAttrResult.Builder builder = BatchReadAttrResult.newBuilder().setFilename(filename);
+                    if (attrs.get(k) == null) {
+                        builder.setError("文件不存在：" + filename);
+                    } else {
+                        builder.putAllAttr(attrs.get(k));
+                    }
+                    results[indexes.get(k)] = builder.build();
+                }
+                continue;
+            }
+            BatchReadAttrRequest.Builder builder = BatchReadAttrRequest.newBuilder();
+            indexes.forEach(i -> builder.addFilenames(files.get(i)));
+            NettyPacket response = forwardBatchRequest(group.getKey(), request, builder.build().toByteArray());
+            if (response.isError()) {
+                indexes.forEach(i -> results[i] = BatchReadAttrResult.newBuilder()
+                        .setFilename(files.get(i))
+                        .setError(response.getError())
+                        .build());
+                continue;
+            }
+            List<BatchReadAttrResult> list = BatchReadAttrResponse.parseFrom(response.getBody()).getResultsList();
+            for (int k = 0; k < indexes.size(); k++) {
+                results[indexes.get(k)] = list.get(k);
+            }
+        }
+        requestWrapper.sendResponse(BatchReadAttrResponse.newBuilder()
+                .addAllResults(Arrays.asList(results))
+                .build());
+    }
+
+    /**
+     * 处理客户端批量删除文件请求，属于自己的文件在一次加锁中移动到垃圾箱，editlog都刷盘之后再返回响应
+     */
+    private void handleBatchRemoveFileRequest(RequestWrapper requestWrapper) throws InvalidProtocolBufferException,
+            NameNodeException {
+        if (isNoAuth(requestWrapper)) {
+            return;
+        }
+        NettyPacket request = requestWrapper.getRequest();
+        String userName = request.getUserName();
+        List<String> files = BatchRemoveFileRequest.parseFrom(request.getBody()).getFilenamesList();
+        List<String> realFilenames = files.stream()
+                .map(file -> File.separator + userName + file)
+                .collect(Collectors.toList());
+        BatchRemoveFileResult[] results = new BatchRemoveFileResult[files.size()];
+        CompletableFuture<Void> local = CompletableFuture.completedFuture(null);
+        for (Map.Entry<Integer, List<Integer>> group : groupByNodeId(realFilenames).entrySet()) {
+            List<Integer> indexes = group.getValue();
+            if (this.nodeId == group.getKey()) {
+                local = batchRemoveFile(files, realFilenames, indexes, results);
+                continue;
+            }
+            BatchRemoveFileRequest.Builder builder = BatchRemoveFileRequest.newBuilder();
+            indexes.forEach(i -> builder.addFilenames(files.get(i)));
+            NettyPacket response = forwardBatchRequest(group.getKey(), request, builder.build().toByteArray());
+            if (response.isError()) {
+                indexes.forEach(i -> results[i] = BatchRemoveFileResult.newBuilder()
+                        .setFilename(files.get(i))
+                        .setError(response.getError())
+                        .build());
+                continue;
+            }
+            List<BatchRemoveFileResult> list = BatchRemoveFileResponse.parseFrom(response.getBody()).getResultsList();
+            for (int k = 0; k < indexes.size(); k++) {
+                results[indexes.get(k)] = list.get(k);
+            }
+        }
+        local.whenComplete((v, e) -> {
+            if (e != null) {
+                sendErrorResponse(requestWrapper, e);
+                return;
+            }
+            requestWrapper.sendResponse(BatchRemoveFileResponse.newBuilder()
+                    .addAllResults(Arrays.asList(results))
+                    .build());
+        });
+    }
+
+    /**
+     * 把属于自己的一组文件移动到垃圾箱
+     *
+     * @return editlog刷盘并且填好结果之后完成的Future，写editlog失败时这一组文件都返回失败
+     */
+    private CompletableFuture<Void> batchRemoveFile(List<String> files, List<String> realFilenames,
+                                                    List<Integer> indexes, BatchRemoveFileResult[] results) {
+        List<String> filenames = indexes.stream().map(realFilenames::get).collect(Collectors.toList());
+        Map<String, String> attr = new HashMap<>(PrettyCodes.trimMapSize());
+        attr.put(Constants.ATTR_FILE_DEL_TIME, String.valueOf(System.currentTimeMillis()));
+        return diskNameSystem.moveToTrashAsync(filenames, attr).handle((moved, e) -> {
+            Throwable cause = e == null ? null : unwrap(e);
+            if (cause != null) {
+                log.error("批量删除文件，写入editlog失败：[files={}]", filenames.size(), cause);
+            }
+            for (int k = 0; k < indexes.size(); k++) {
+                String filename = files.get(indexes.get(k));
+                BatchRemoveFileResult.Builder builder = BatchRemoveFileResult.newBuilder().setFilename(filename);
+                if (cause != null) {
+                    builder.setError(String.valueOf(cause.getMessage()));
+                } else if (!moved[k]) {
+                    builder.setError("文件不存在或者文件夹不为空，无法删除：" + filename);
+                }
+                results[indexes.get(k)] = builder.build();
+            }
+            return null;
+        });
+    }
+
     /**
      * 获取文件所在的DataNode节点
      */
@@ -1124,8 +1593,13 @@ public class NameNodeApis extends AbstractChannelHandler {
         String realFilename = File.separator + userName + removeFileRequest.getFilename();
         int nodeId = getNodeId(realFilename);
         if (this.nodeId == nodeId) {
-            removeFileInternal(removeFileRequest.getFilename(), userName);
-            requestWrapper.sendResponse();
+            removeFileInternal(removeFileRequest.getFilename(), userName).whenComplete((v, e) -> {
+                if (e != null) {
+                    sendErrorResponse(requestWrapper, e);
+                    return;
+                }
+                requestWrapper.sendResponse();
+            });
         } else {
             forwardRequestToOtherNameNode(nodeId, requestWrapper);
         }
@@ -1136,25 +1610,28 @@ public class NameNodeApis extends AbstractChannelHandler {
      *
      * @param filename 删除文件
      * @param userName 用户名
+     * @return editlog刷盘之后完成的Future
      */
-    public void removeFileInternal(String filename, String userName) throws NameNodeException {
+    public CompletableFuture<Void> removeFileInternal(String filename, String userName) throws NameNodeException {
         String realFilename = File.separator + userName + filename;
-        Node node = diskNameSystem.listFiles(realFilename);
+        // 只判断是否存在和是否有孩子节点，不需要拷贝节点
+        Node node = diskNameSystem.unsafeListFiles(realFilename);
         if (node == null) {
             throw new NameNodeException("文件不存在：" + filename);
         }
-        Map<String, String> attr = new HashMap<>(PrettyCodes.trimMapSize());
-        attr.put(Constants.ATTR_FILE_DEL_TIME, String.valueOf(System.currentTimeMillis()));
-        if (node.getChildren().isEmpty()) {
-            diskNameSystem.deleteFile(realFilename);
-            String destFilename = File.separator + userName + File.separator + Constants.TRASH_DIR + filename;
-            Map<String, String> currentAttr = node.getAttr();
-            currentAttr.putAll(attr);
-            diskNameSystem.createFile(destFilename, currentAttr);
-            log.debug("删除文件，并移动到垃圾箱：[src={}, target={}]", realFilename, destFilename);
-        } else {
+        if (!node.getChildren().isEmpty()) {
             throw new NameNodeException("文件夹不为空，无法删除：" + filename);
         }
+        Map<String, String> attr = new HashMap<>(PrettyCodes.trimMapSize());
+        attr.put(Constants.ATTR_FILE_DEL_TIME, String.valueOf(System.currentTimeMillis()));
+        // 删除文件和在垃圾箱中创建文件是一次原子操作，只写一条editlog
+        return diskNameSystem.moveToTrashAsync(realFilename, attr).thenAccept(moved -> {
+            if (!moved) {
+                throw new CompletionException(new NameNodeException("文件不存在：" + filename));
+            }
+            log.debug("删除文件，并移动到垃圾箱：[src={}, target={}]", realFilename,
+                    TrashPolicyDefault.toTrashPath(realFilename));
+        });
     }
 
     /**
@@ -1204,6 +1681,19 @@ public class NameNodeApis extends AbstractChannelHandler {
         return new ArrayList<>();
     }
 
+    /**
+     * 异步处理的请求出现异常时返回异常响应信息
+     */
+    private void sendErrorResponse(RequestWrapper requestWrapper, Throwable e) {
+        Throwable cause = unwrap(e);
+        log.error("发生业务异常：", cause);
+        sendErrorResponse(requestWrapper, cause.getMessage());
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
     /**
      * 返回异常响应信息
      */
@@ -1227,6 +1717,43 @@ public class NameNodeApis extends AbstractChannelHandler {
         return this.nodeId;
     }
 
+    /**
+     * 把批量请求中的文件按照所属的NameNode分组
+     *
+     * @param realFilenames 文件全路径
+     * @return NameNode的ID -> 文件在请求中的下标
+     */
+    private Map<Integer, List<Integer>> groupByNodeId(List<String> realFilenames) {
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < realFilenames.size(); i++) {
+            groups.computeIfAbsent(getNodeId(realFilenames.get(i)), k -> new ArrayList<>()).add(i);
+        }
+        return groups;
+    }
+
+    /**
+     * 把批量请求中属于其他NameNode的一组文件转发过去，请求头和原来的请求相同，只替换请求体
+     *
+     * @return 响应，转发失败时返回带有错误信息的响应
+     */
+    private NettyPacket forwardBatchRequest(int nodeId, NettyPacket request, byte[] body) {
+        NettyPacket forward = NettyPacket.copy(request);
+        forward.setBody(body);
+        log.debug("转发批量请求到别的NameNode: [targetNodeId={}, packetType={}]", nodeId,
+                PacketType.getEnum(request.getPacketType()).getDescription());
+        try {
+            return peerNameNodes.sendSync(nodeId, forward);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.error("转发批量请求到别的NameNode失败：[targetNodeId={}]", nodeId, e);
+            NettyPacket response = NettyPacket.buildPacket(new byte[0], PacketType.getEnum(request.getPacketType()));
+            response.setError("转发请求失败：nodeId=" + nodeId);
+            return response;
+        }
+    }
+
     /**
      * 转发请求到其他NameNode
      */
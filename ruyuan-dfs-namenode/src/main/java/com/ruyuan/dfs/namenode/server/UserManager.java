@@ -16,6 +16,7 @@ import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -32,6 +33,11 @@ public class UserManager {
     private Map<String, User> userMap;
     private Map<String, String> channelUserMap = new ConcurrentHashMap<>();
     private Map<String, Set<String>> userTokenMaps = new ConcurrentHashMap<>();
+    /**
+     * 用户信息的版本号，用户信息发生变化之后递增，BackupNode只有在版本号变化之后才需要重新同步用户信息。
+     * 初始值使用启动时间，NameNode重启之后不会和重启之前的版本号重复
+     */
+    private final AtomicLong version = new AtomicLong(System.currentTimeMillis());
 
     public UserManager(NameNodeConfig nameNodeConfig, DefaultScheduler defaultScheduler) {
         this.defaultScheduler = defaultScheduler;
@@ -186,6 +192,7 @@ public class UserManager {
             }
         }
         userMap.put(user.getUsername(), user);
+        version.incrementAndGet();
     }
 
     public boolean contain(String username) {
@@ -201,6 +208,15 @@ public class UserManager {
         }
     }
 
+    /**
+     * 获取用户信息的版本号
+     *
+     * @return 版本号
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
     public List<User> getAllUser() {
         return userMap.values()
                 .stream()
@@ -212,6 +228,7 @@ public class UserManager {
         synchronized (this) {
             User user = userMap.remove(username);
             userTokenMaps.remove(username);
+            version.incrementAndGet();
             return user;
         }
     }
@@ -250,6 +267,7 @@ public class UserManager {
             User.StorageInfo storageInfo = user.getStorageInfo();
             storageInfo.setFileCount(storageInfo.getFileCount() + 1);
             storageInfo.setStorageSize(storageInfo.getStorageSize() + fileSize);
+            version.incrementAndGet();
         }
     }
 
@@ -268,6 +286,7 @@ public class UserManager {
             User.StorageInfo storageInfo = user.getStorageInfo();
             storageInfo.setFileCount(storageInfo.getFileCount() - 1);
             storageInfo.setStorageSize(storageInfo.getStorageSize() - fileSize);
+            version.incrementAndGet();
         }
     }
 
@@ -129,7 +129,7 @@ public class UserController {
     public CommonResponse<Integer> moveToTrash(@RequestBody UserFileMoveToTrashVO userFileMoveToTrashVO) throws NameNodeException,
             InvalidProtocolBufferException {
         List<String> paths = userFileMoveToTrashVO.getPaths();
-        int count = nameNodeApis.removeFileOrDirInternal(paths, userFileMoveToTrashVO.getUsername());
+        int count = nameNodeApis.removeFileOrDirInternal(paths, userFileMoveToTrashVO.getUsername()).join();
         RemoveFileOrDirRequest request = RemoveFileOrDirRequest.newBuilder()
                 .addAllFiles(paths)
                 .build();
@@ -148,7 +148,8 @@ public class UserController {
     @RequestMapping(value = "/trash/resume", method = "PUT")
     public CommonResponse<Integer> resumeTrash(@RequestBody UserFileMoveToTrashVO userFileMoveToTrashVO) throws
             InvalidProtocolBufferException, NameNodeException {
-        int count = nameNodeApis.trashResumeInternal(userFileMoveToTrashVO.getPaths(), userFileMoveToTrashVO.getUsername());
+        int count = nameNodeApis.trashResumeInternal(userFileMoveToTrashVO.getPaths(),
+                userFileMoveToTrashVO.getUsername()).join();
         TrashResumeRequest request = TrashResumeRequest.newBuilder()
                 .addAllFiles(userFileMoveToTrashVO.getPaths())
                 .build();
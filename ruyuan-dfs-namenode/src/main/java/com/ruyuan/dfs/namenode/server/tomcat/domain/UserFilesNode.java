@@ -38,11 +38,9 @@ public class UserFilesNode {
         userFilesNode.setPath(node.getPath());
         userFilesNode.setAttr(node.getAttr());
         userFilesNode.setType(node.getType());
-        long fileSize = Long.parseLong(node.getAttr().getOrDefault(Constants.ATTR_FILE_SIZE, "0"));
-        userFilesNode.setFileSize(FileUtil.formatSize(fileSize));
+        userFilesNode.setFileSize(FileUtil.formatSize(node.getFileSize()));
         List<UserFilesNode> children = new LinkedList<>();
-        for (String key : node.getChildren().keySet()) {
-            Node child = node.getChildren().get(key);
+        for (Node child : node.getChildren().values()) {
             UserFilesNode childNode = toUserFileNode(child, path);
             if (childNode == null) {
                 continue;
@@ -14,6 +14,7 @@ import com.ruyuan.dfs.namenode.shard.rebalance.RebalanceSlotInfo;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 基于远程PeerNode的Controller
@@ -157,18 +158,21 @@ public class RemoteController extends AbstractController {
             log.warn("提示：本轮重平衡不是自己发起的，别人发起的重平衡把我的Slot信息也分配好了。");
         }
         List<Metadata> filesList = response.getFilesList();
+        List<CompletableFuture<?>> futures = new ArrayList<>(filesList.size());
         for (Metadata metadata : filesList) {
             if (NodeType.FILE.getValue() == metadata.getType()) {
-                diskNameSystem.createFile(metadata.getFileName(), metadata.getAttrMap());
+                futures.add(diskNameSystem.createFileAsync(metadata.getFileName(), metadata.getAttrMap()));
                 FileInfo fileInfo = new FileInfo();
                 fileInfo.setHostname(metadata.getHostname());
                 fileInfo.setFileSize(metadata.getFileSize());
                 fileInfo.setFileName(metadata.getFileName());
                 dataNodeManager.addReplica(fileInfo);
             } else if (NodeType.DIRECTORY.getValue() == metadata.getType()) {
-                diskNameSystem.mkdir(metadata.getFileName(), metadata.getAttrMap());
+                futures.add(diskNameSystem.mkdirAsync(metadata.getFileName(), metadata.getAttrMap()));
             }
         }
+        // 这一批元数据的editlog都刷盘之后才算收到
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
         if (response.getCompleted()) {
             // 标记其中一个节点的元数据已经全部收到
             rebalanceSlotInfo.onNodeCompletedFetchMetadata(response.getNodeId());
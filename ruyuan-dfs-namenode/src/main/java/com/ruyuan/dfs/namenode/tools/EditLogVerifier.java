@@ -0,0 +1,108 @@
+package com.ruyuan.dfs.namenode.tools;
+
+import com.ruyuan.dfs.namenode.editslog.EditLogFormat;
+import com.ruyuan.dfs.namenode.editslog.EditLogReader;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <pre>
+ * editlog文件校验工具
+ *
+ * 顺序扫描editlog文件，只校验每条editlog的长度、CRC32C以及文件尾，不解析editlog的内容，
+ * 校验速度基本取决于磁盘的读取速度。
+ *
+ * 用法：EditLogVerifier {editlog文件或者NameNode的base.dir} ...
+ * 所有文件都校验通过返回0，否则返回2
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class EditLogVerifier {
+
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("USAGE: EditLogVerifier {editlog文件或者NameNode的base.dir} ...");
+            System.exit(1);
+        }
+        List<File> files = new ArrayList<>();
+        for (String arg : args) {
+            File file = new File(arg);
+            if (file.isDirectory()) {
+                File[] editLogFiles = file.listFiles((dir, name) -> name.startsWith("editslog-"));
+                if (editLogFiles != null) {
+                    Arrays.sort(editLogFiles, Comparator.comparing(File::getName));
+                    files.addAll(Arrays.asList(editLogFiles));
+                }
+            } else {
+                files.add(file);
+            }
+        }
+        boolean allClean = true;
+        long totalBytes = 0;
+        long start = System.currentTimeMillis();
+        for (File file : files) {
+            VerifyResult result = verify(file);
+            totalBytes += result.getFileLength();
+            allClean &= result.isClean();
+            System.out.println(file.getName() + " " + result);
+        }
+        long cost = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println("校验完成：[files=" + files.size() + ", bytes=" + totalBytes + ", cost=" + cost
+                + " ms, speed=" + (totalBytes * 1000 / cost / 1024 / 1024) + " MB/s, clean=" + allClean + "]");
+        System.exit(allClean ? 0 : 2);
+    }
+
+    /**
+     * 校验一个editlog文件
+     *
+     * @param file 文件
+     * @return 校验结果
+     * @throws IOException IO异常
+     */
+    public static VerifyResult verify(File file) throws IOException {
+        VerifyResult result = new VerifyResult();
+        result.fileLength = file.length();
+        try (EditLogReader reader = EditLogReader.open(file.getAbsolutePath(), -1, BUFFER_SIZE)) {
+            while (reader.skip()) {
+                // 只校验不解析
+            }
+            EditLogFormat.ScanResult scanResult = reader.getResult();
+            result.status = scanResult.getStatus();
+            result.layoutVersion = scanResult.getLayoutVersion();
+            result.validLength = scanResult.getValidLength();
+            result.records = scanResult.getCount();
+        }
+        return result;
+    }
+
+    @Getter
+    public static class VerifyResult {
+        private EditLogFormat.Status status = EditLogFormat.Status.EOF;
+        private int layoutVersion;
+        private long fileLength;
+        private long validLength;
+        private long records;
+
+        public boolean isClean() {
+            return status == EditLogFormat.Status.EOF || status == EditLogFormat.Status.FOOTER;
+        }
+
+        @Override
+        public String toString() {
+            return "[status=" + status +
+                    ", version=" + layoutVersion +
+                    ", records=" + records +
+                    ", validLength=" + validLength +
+                    ", fileLength=" + fileLength + "]";
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.ruyuan.dfs.backup.fs;
+
+import com.ruyuan.dfs.backup.config.BackupNodeConfig;
+import com.ruyuan.dfs.common.enums.FsOpType;
+import com.ruyuan.dfs.model.backup.EditLog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 对比BackupNode逐条回放和批量回放editlog的速度
+ *
+ * <pre>
+ * 运行方式：直接执行main方法，建议加上 -Xmx4g
+ *
+ *   第一个参数：editlog数量，默认2000000
+ *   第二个参数：每批editlog的数量，默认1024，和NameNode每次推送的数量一致
+ *
+ * editlog的分布和 EditLogStreamBenchmark 中写入的一致：4个写入线程交替写入，每个目录1000个文件，每10条删除一条。
+ *
+ *   1. 逐条回放：每条editlog单独加锁，从根节点开始逐层查找父目录（旧的方式）
+ *   2. 批量回放：每批editlog只加一次锁，同一批中已经找到的父目录直接复用
+ *
+ * 回放速度需要明显高于 EditLogStreamBenchmark 中NameNode的写入速度，BackupNode才不会在写入高峰时一直落后。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class EditLogApplyBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) {
+        int total = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        List<List<EditLog>> batches = generate(total, batchSize);
+        for (int round = 0; round < ROUNDS; round++) {
+            run("逐条回放", batches, EditLogApplyBenchmark::applyOneByOne);
+            run("批量回放", batches, InMemoryNameSystem::applyEditLogs);
+        }
+    }
+
+    private static List<List<EditLog>> generate(int total, int batchSize) {
+        List<List<EditLog>> batches = new ArrayList<>();
+        List<EditLog> batch = new ArrayList<>(batchSize);
+        for (int txId = 1; txId <= total; txId++) {
+            int writer = txId % 4;
+            int index = txId / 4;
+            String filename = "/benchmark/" + writer + "/" + (index / 1000) + "/file-" + index;
+            FsOpType opType = FsOpType.CREATE;
+            if (txId % 10 == 0) {
+                opType = FsOpType.DELETE;
+                filename = "/benchmark/" + writer + "/" + (index / 1000) + "/file-" + (index - 1);
+            }
+            batch.add(EditLog.newBuilder()
+                    .setTxId(txId)
+                    .setOpType(opType.getValue())
+                    .setPath(filename)
+                    .build());
+            if (batch.size() == batchSize) {
+                batches.add(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private static int applyOneByOne(InMemoryNameSystem nameSystem, List<EditLog> editLogs) {
+        for (EditLog editLog : editLogs) {
+            if (FsOpType.CREATE.getValue() == editLog.getOpType()) {
+                nameSystem.createFile(editLog.getPath(), editLog.getAttrMap());
+            } else if (FsOpType.DELETE.getValue() == editLog.getOpType()) {
+                nameSystem.deleteFile(editLog.getPath());
+            }
+            nameSystem.setMaxTxId(editLog.getTxId());
+        }
+        return editLogs.size();
+    }
+
+    private static void run(String name, List<List<EditLog>> batches, Apply apply) {
+        System.gc();
+        InMemoryNameSystem nameSystem = new InMemoryNameSystem(new BackupNodeConfig());
+        long count = 0;
+        long start = System.nanoTime();
+        for (List<EditLog> batch : batches) {
+            count += apply.apply(nameSystem, batch);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s：[records=%d, cost=%.0f ms, speed=%.0f records/s]%n", name, count, seconds * 1000,
+                count / seconds);
+    }
+
+    private interface Apply {
+        int apply(InMemoryNameSystem nameSystem, List<EditLog> editLogs);
+    }
+}
@@ -0,0 +1,71 @@
+package com.ruyuan.dfs.backup.fs;
+
+import com.ruyuan.dfs.backup.config.BackupNodeConfig;
+import com.ruyuan.dfs.common.NettyPacket;
+import com.ruyuan.dfs.common.enums.FsOpType;
+import com.ruyuan.dfs.common.enums.PacketType;
+import com.ruyuan.dfs.common.network.NetClient;
+import com.ruyuan.dfs.common.utils.DefaultScheduler;
+import com.ruyuan.dfs.model.backup.EditLog;
+import com.ruyuan.dfs.model.backup.EditLogPush;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Sun Dasheng
+ */
+public class EditsLogSubscriberTest {
+
+    @Test
+    public void testIgnoreDuplicatePush() throws Exception {
+        DefaultScheduler defaultScheduler = new DefaultScheduler("EditsLog-Subscriber-Test-");
+        NetClient netClient = new NetClient("BackupNode-Test", defaultScheduler);
+        InMemoryNameSystem nameSystem = new InMemoryNameSystem(new BackupNodeConfig());
+        EditsLogSubscriber subscriber = new EditsLogSubscriber(netClient, nameSystem, 100);
+        try {
+            // 拉取到的editlog已经回放到txid=3
+            assertEquals(3, nameSystem.applyEditLogs(Arrays.asList(
+                    editLog(1, "/pull/1"), editLog(2, "/pull/2"), editLog(3, "/pull/3"))));
+
+            // 订阅之后推送的editlog和拉取的结果重叠，按照txid跳过已经回放的部分
+            EditLogPush push = EditLogPush.newBuilder()
+                    .setSyncTxId(5)
+                    .addEditLogs(editLog(2, "/push/2"))
+                    .addEditLogs(editLog(3, "/push/3"))
+                    .addEditLogs(editLog(4, "/push/4"))
+                    .addEditLogs(editLog(5, "/push/5"))
+                    .build();
+            subscriber.onPush(NettyPacket.buildPacket(push.toByteArray(), PacketType.EDIT_LOG_PUSH));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (nameSystem.getMaxTxId() < 5) {
+                assertTrue(System.currentTimeMillis() < deadline, "等待回放超时");
+                Thread.sleep(10);
+            }
+
+            assertEquals(Arrays.asList("/1", "/2", "/3"), nameSystem.findAllFiles("/pull"));
+            assertEquals(Arrays.asList("/4", "/5"), nameSystem.findAllFiles("/push"));
+
+            // 完全重复的推送不会再回放
+            subscriber.onPush(NettyPacket.buildPacket(push.toByteArray(), PacketType.EDIT_LOG_PUSH));
+            Thread.sleep(100);
+            assertEquals(5, nameSystem.getMaxTxId());
+            assertEquals(0, nameSystem.applyEditLogs(Collections.singletonList(editLog(5, "/push/5"))));
+        } finally {
+            subscriber.shutdown();
+            netClient.shutdown();
+            defaultScheduler.shutdown();
+        }
+    }
+
+    private EditLog editLog(long txId, String path) {
+        return EditLog.newBuilder()
+                .setTxId(txId)
+                .setOpType(FsOpType.CREATE.getValue())
+                .setPath(path)
+                .build();
+    }
+}
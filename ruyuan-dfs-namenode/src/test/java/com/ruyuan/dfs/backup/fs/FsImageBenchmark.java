@@ -0,0 +1,140 @@
+package com.ruyuan.dfs.backup.fs;
+
+import com.ruyuan.dfs.common.Constants;
+import com.ruyuan.dfs.common.enums.NodeType;
+import com.ruyuan.dfs.common.utils.FileUtil;
+import com.ruyuan.dfs.namenode.fs.FsDirectory;
+import com.ruyuan.dfs.namenode.fs.Node;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 对比FsImage保存和加载的速度以及内存占用
+ *
+ * <pre>
+ * 运行方式：直接执行main方法，5000万文件建议加上 -Xmx24g
+ *
+ *   第一个参数：文件数量，默认5000万
+ *   第二个参数：FsImage所在目录，默认在临时目录下
+ *   第三个参数：并行加载的线程数量，默认4
+ *
+ * 每个目录下放1000个文件，每个文件带上 FILE_SIZE 和 REPLICA_NUM 两个属性。
+ * 文件数量不超过 LEGACY_MAX_FILES 的时候同时对比旧的格式，旧的格式整个文件不能超过2GB。
+ * 最后在 DELTA_DIRS 个目录下新建 DELTA_FILES 个文件，对比增量FsImage的大小和耗时。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class FsImageBenchmark {
+
+    private static final int FILES_PER_DIR = 1000;
+    private static final int LEGACY_MAX_FILES = 5000000;
+    private static final int DELTA_DIRS = 10;
+    private static final int DELTA_FILES = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 50000000;
+        File baseDir = args.length > 1 ? new File(args[1]) :
+                new File(System.getProperty("java.io.tmpdir"), "fsimage-benchmark");
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        baseDir.mkdirs();
+        Node root = build(fileCount);
+        System.out.println("生成目录树：[files=" + fileCount + "]");
+
+        String path = new File(baseDir, "fsimage-" + System.currentTimeMillis()).getAbsolutePath();
+        run("流式保存", () -> FsImageWriter.write(path, root, fileCount));
+        System.out.println("文件大小：" + FileUtil.formatSize(new File(path).length()));
+        if (fileCount <= LEGACY_MAX_FILES) {
+            String legacyPath = new File(baseDir, "fsimage-legacy").getAbsolutePath();
+            run("旧格式保存", () -> writeLegacy(legacyPath, root, fileCount));
+            System.out.println("文件大小：" + FileUtil.formatSize(new File(legacyPath).length()));
+            run("旧格式加载", () -> load(legacyPath, 1));
+            FileUtil.delete(legacyPath);
+        }
+        run("流式加载", () -> load(path, 1));
+        run("并行加载(" + threads + "线程)", () -> load(path, threads));
+        FileUtil.delete(path);
+
+        FsDirectory fsDirectory = new FsDirectory();
+        fsDirectory.enableDirtyTracking();
+        fsDirectory.applyFsImage(new FsImage(fileCount, root));
+        for (int i = 0; i < DELTA_FILES; i++) {
+            fsDirectory.createFile("/dir-" + (i % DELTA_DIRS) + "/new-" + i + ".png", new HashMap<>());
+        }
+        String deltaPath = new File(baseDir, "fsimage-delta-" + System.currentTimeMillis()).getAbsolutePath();
+        run("增量保存", () -> fsDirectory.writeDeltaFsImage(deltaPath, fileCount, fileCount + DELTA_FILES));
+        System.out.println("文件大小：" + FileUtil.formatSize(new File(deltaPath).length()));
+        FileUtil.delete(deltaPath);
+    }
+
+    private static Node build(int fileCount) {
+        Node root = new Node("/", NodeType.DIRECTORY.getValue());
+        Node dir = null;
+        for (int i = 0; i < fileCount; i++) {
+            if (i % FILES_PER_DIR == 0) {
+                dir = new Node("dir-" + i / FILES_PER_DIR, NodeType.DIRECTORY.getValue());
+                root.addChildren(dir);
+            }
+            Node file = new Node("file-" + i + ".png", NodeType.FILE.getValue());
+            Map<String, String> attr = file.getAttr();
+            attr.put(Constants.ATTR_FILE_SIZE, String.valueOf(1024 + i));
+            attr.put(Constants.ATTR_REPLICA_NUM, "2");
+            dir.addChildren(file);
+        }
+        return root;
+    }
+
+    private static long writeLegacy(String path, Node root, long maxTxId) throws IOException {
+        byte[] body = Node.toINode(root).toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(12 + body.length);
+        buffer.putInt(12 + body.length);
+        buffer.putLong(maxTxId);
+        buffer.put(body);
+        buffer.flip();
+        FileUtil.saveFile(path, true, buffer);
+        return body.length;
+    }
+
+    private static long load(String path, int threads) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r"); FileChannel channel = raf.getChannel()) {
+            FsImage fsImage = FsImage.parse(channel, path, raf.length(), threads);
+            return fsImage.getRoot().getChildren().size();
+        }
+    }
+
+    private static void run(String name, Task task) throws IOException {
+        System.gc();
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        long before = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.getType() == MemoryType.HEAP) {
+                before += pool.getUsage().getUsed();
+            }
+            pool.resetPeakUsage();
+        }
+        long start = System.currentTimeMillis();
+        task.run();
+        long cost = System.currentTimeMillis() - start;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.println(name + "：[cost=" + cost + " ms, extraPeakHeap=" + ((peak - before) / 1024 / 1024) + " MB]");
+    }
+
+    private interface Task {
+        long run() throws IOException;
+    }
+}
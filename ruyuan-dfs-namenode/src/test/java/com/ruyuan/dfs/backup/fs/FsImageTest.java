@@ -0,0 +1,253 @@
+package com.ruyuan.dfs.backup.fs;
+
+import com.ruyuan.dfs.common.Constants;
+import com.ruyuan.dfs.common.enums.NodeType;
+import com.ruyuan.dfs.model.backup.INode;
+import com.ruyuan.dfs.namenode.fs.FsDirectory;
+import com.ruyuan.dfs.namenode.fs.Node;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Sun Dasheng
+ */
+public class FsImageTest {
+
+    @TempDir
+    File baseDir;
+
+    @Test
+    public void testWriteAndParse() throws Exception {
+        FsDirectory fsDirectory = buildDirectory();
+        String path = new File(baseDir, "fsimage-1").getAbsolutePath();
+        fsDirectory.writeFsImage(path, 100L);
+
+        FsImage fsImage = parse(path);
+        assertNotNull(fsImage);
+        assertEquals(100L, fsImage.getMaxTxId());
+        assertEquals(Node.toINode(fsDirectory.unsafeListFiles("/")), Node.toINode(fsImage.getRoot()));
+        assertEquals(100L, validate(path));
+
+        // 加载之后的目录树可以正常使用
+        FsDirectory loaded = new FsDirectory();
+        loaded.applyFsImage(fsImage);
+        Node file = loaded.unsafeListFiles("/big/file-1500.png");
+        assertNotNull(file);
+        assertEquals(1500, file.getFileSize());
+        assertEquals("/big/file-1500.png", file.getFullPath());
+        assertNotNull(loaded.listFiles("/empty"));
+    }
+
+    @Test
+    public void testParallelRead() throws Exception {
+        // 文件超过多个索引间隔，并且目录跨越多个索引区间
+        Node root = new Node("/", NodeType.DIRECTORY.getValue());
+        for (int i = 0; i < 100; i++) {
+            Node dir = new Node("dir-" + i, NodeType.DIRECTORY.getValue());
+            root.addChildren(dir);
+            Node sub = new Node("sub", NodeType.DIRECTORY.getValue());
+            dir.addChildren(sub);
+            for (int j = 0; j < 2000; j++) {
+                Node file = new Node("file-" + j + ".png", NodeType.FILE.getValue());
+                file.getAttr().put(Constants.ATTR_FILE_SIZE, String.valueOf(j));
+                file.getAttr().put("custom", "value-" + i + "-" + j);
+                (j % 2 == 0 ? dir : sub).addChildren(file);
+            }
+        }
+        root.getAttr().put("owner", "root");
+        String path = new File(baseDir, "fsimage-1").getAbsolutePath();
+        long length = FsImageWriter.write(path, root, 100L);
+        assertTrue(length > FsImage.INDEX_INTERVAL * 2);
+
+        FsImage fsImage;
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r"); FileChannel channel = raf.getChannel()) {
+            fsImage = FsImage.parse(channel, path, raf.length(), 4);
+        }
+        assertNotNull(fsImage);
+        assertEquals(100L, fsImage.getMaxTxId());
+        assertEquals(Node.toINode(root), Node.toINode(fsImage.getRoot()));
+        assertEquals(Node.toINode(parse(path).getRoot()), Node.toINode(fsImage.getRoot()));
+
+        FsDirectory loaded = new FsDirectory();
+        loaded.applyFsImage(fsImage);
+        Node file = loaded.unsafeListFiles("/dir-99/sub/file-1999.png");
+        assertNotNull(file);
+        assertEquals("/dir-99/sub/file-1999.png", file.getFullPath());
+    }
+
+    @Test
+    public void testDeltaChain() throws Exception {
+        FsDirectory fsDirectory = buildDirectory();
+        fsDirectory.enableDirtyTracking();
+        Map<Long, String> timeFsImageMap = new HashMap<>();
+        String base = new File(baseDir, "fsimage-1").getAbsolutePath();
+        fsDirectory.writeFsImage(base, 100L);
+        timeFsImageMap.put(1L, base);
+
+        // 新建目录、删除文件级联删除空目录、修改目录属性、超过一个分段的目录
+        fsDirectory.createFile("/user/0/a/b/c/new-file", new HashMap<>());
+        fsDirectory.createFile("/created/x/y/file", new HashMap<>());
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(fsDirectory.delete("/user/" + (i % 5) + "/a/b/c/file-" + (i * 5 + i % 5)));
+        }
+        Map<String, String> attr = new HashMap<>();
+        attr.put("owner", "admin");
+        fsDirectory.mkdir("/empty", attr);
+        fsDirectory.createFile("/big/file-new.png", new HashMap<>());
+        String delta1 = new File(baseDir, "fsimage-2").getAbsolutePath();
+        assertTrue(fsDirectory.writeDeltaFsImage(delta1, 100L, 150L) < 20);
+        timeFsImageMap.put(2L, delta1);
+        assertTrue(new File(delta1).length() < new File(base).length());
+
+        // 删除整个目录，然后同名重新创建
+        for (int i = 0; i < 50; i++) {
+            fsDirectory.delete("/user/" + (i % 5) + "/a/b/c/file-" + i);
+        }
+        fsDirectory.createFile("/user/3/recreated", new HashMap<>());
+        fsDirectory.delete("/created/x/y/file");
+        String delta2 = new File(baseDir, "fsimage-3").getAbsolutePath();
+        fsDirectory.writeDeltaFsImage(delta2, 150L, 200L);
+        timeFsImageMap.put(3L, delta2);
+
+        FsImageChain chain = FsImageChain.scan(timeFsImageMap);
+        assertEquals(Arrays.asList(base, delta1, delta2), chain.getFiles());
+        assertTrue(chain.getObsoleteFiles().isEmpty());
+        assertEquals(200L, chain.getMaxTxId());
+        FsImage fsImage = chain.load(1);
+        assertEquals(200L, fsImage.getMaxTxId());
+        assertEquals(Node.toINode(fsDirectory.unsafeListFiles("/")), Node.toINode(fsImage.getRoot()));
+
+        // 增量单独加载会失败
+        assertNull(parse(delta1));
+
+        // 接不上的增量和更早的FsImage都不在链上
+        String dangling = new File(baseDir, "fsimage-4").getAbsolutePath();
+        fsDirectory.createFile("/dangling", new HashMap<>());
+        fsDirectory.writeDeltaFsImage(dangling, 300L, 400L);
+        timeFsImageMap.put(4L, dangling);
+        String older = new File(baseDir, "fsimage-0").getAbsolutePath();
+        Files.copy(new File(base).toPath(), new File(older).toPath());
+        timeFsImageMap.put(0L, older);
+        chain = FsImageChain.scan(timeFsImageMap);
+        assertEquals(Arrays.asList(base, delta1, delta2), chain.getFiles());
+        assertEquals(new HashSet<>(Arrays.asList(dangling, older)), new HashSet<>(chain.getObsoleteFiles()));
+        assertEquals(200L, chain.load(4).getMaxTxId());
+
+        // 新的完整FsImage之后，之前的增量都不在链上
+        String newBase = new File(baseDir, "fsimage-5").getAbsolutePath();
+        fsDirectory.writeFsImage(newBase, 400L);
+        timeFsImageMap.put(5L, newBase);
+        chain = FsImageChain.scan(timeFsImageMap);
+        assertEquals(Collections.singletonList(newBase), chain.getFiles());
+        assertEquals(5, chain.getObsoleteFiles().size());
+        assertEquals(Node.toINode(fsDirectory.unsafeListFiles("/")), Node.toINode(chain.load(1).getRoot()));
+    }
+
+    /**
+     * 重命名之后子树中的目录出现在新的路径下，增量FsImage需要包含整个子树
+     */
+    @Test
+    public void testDeltaChainWithRename() throws Exception {
+        FsDirectory fsDirectory = buildDirectory();
+        fsDirectory.enableDirtyTracking();
+        Map<Long, String> timeFsImageMap = new HashMap<>();
+        String base = new File(baseDir, "fsimage-1").getAbsolutePath();
+        fsDirectory.writeFsImage(base, 100L);
+        timeFsImageMap.put(1L, base);
+
+        assertEquals(10, fsDirectory.rename("/user/0/a", "/moved/0/a"));
+        assertEquals(10, fsDirectory.rename("/user/1/a/b", "/user/2/a/b-1"));
+        assertEquals(1, fsDirectory.rename("/big/file-0.png", "/big/file-renamed.png"));
+        String delta = new File(baseDir, "fsimage-2").getAbsolutePath();
+        fsDirectory.writeDeltaFsImage(delta, 100L, 150L);
+        timeFsImageMap.put(2L, delta);
+
+        FsImage fsImage = FsImageChain.scan(timeFsImageMap).load(1);
+        assertNull(fsImage.getRoot().getChildren().get("user").getChildren().get("0"));
+        assertEquals(Node.toINode(fsDirectory.unsafeListFiles("/")), Node.toINode(fsImage.getRoot()));
+    }
+
+    @Test
+    public void testIncompleteOrCorrupt() throws Exception {
+        String path = new File(baseDir, "fsimage-1").getAbsolutePath();
+        buildDirectory().writeFsImage(path, 100L);
+        byte[] data = Files.readAllBytes(new File(path).toPath());
+
+        // 写了一半宕机
+        String truncated = new File(baseDir, "fsimage-2").getAbsolutePath();
+        Files.write(new File(truncated).toPath(), Arrays.copyOf(data, data.length / 2));
+        assertEquals(-1, validate(truncated));
+        assertNull(parse(truncated));
+
+        // 分段中的数据损坏
+        String corrupt = new File(baseDir, "fsimage-3").getAbsolutePath();
+        byte[] corruptData = data.clone();
+        corruptData[data.length / 2] ^= 0xFF;
+        Files.write(new File(corrupt).toPath(), corruptData);
+        assertEquals(100L, validate(corrupt));
+        assertNull(parse(corrupt));
+    }
+
+    @Test
+    public void testParseLegacy() throws Exception {
+        FsDirectory fsDirectory = buildDirectory();
+        INode iNode = Node.toINode(fsDirectory.unsafeListFiles("/"));
+        byte[] body = iNode.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(12 + body.length);
+        buffer.putInt(12 + body.length);
+        buffer.putLong(50L);
+        buffer.put(body);
+        String path = new File(baseDir, "fsimage-1").getAbsolutePath();
+        Files.write(new File(path).toPath(), buffer.array());
+
+        assertEquals(50L, validate(path));
+        FsImage fsImage = parse(path);
+        assertNotNull(fsImage);
+        assertEquals(50L, fsImage.getMaxTxId());
+        assertEquals(iNode, Node.toINode(fsImage.getRoot()));
+    }
+
+    private FsDirectory buildDirectory() {
+        FsDirectory fsDirectory = new FsDirectory();
+        // 孩子数量超过 SECTION_MAX_CHILDREN 的目录会拆分成多个分段
+        for (int i = 0; i < FsImage.SECTION_MAX_CHILDREN * 2 + 10; i++) {
+            Map<String, String> attr = new HashMap<>();
+            attr.put(Constants.ATTR_FILE_SIZE, String.valueOf(i));
+            attr.put("custom", "value-" + i);
+            fsDirectory.createFile("/big/file-" + i + ".png", attr);
+        }
+        for (int i = 0; i < 50; i++) {
+            fsDirectory.createFile("/user/" + (i % 5) + "/a/b/c/file-" + i, new HashMap<>());
+        }
+        Map<String, String> attr = new HashMap<>();
+        attr.put("owner", "root");
+        fsDirectory.mkdir("/empty", attr);
+        return fsDirectory;
+    }
+
+    private FsImage parse(String path) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r"); FileChannel channel = raf.getChannel()) {
+            return FsImage.parse(channel, path, raf.length());
+        }
+    }
+
+    private long validate(String path) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r"); FileChannel channel = raf.getChannel()) {
+            return FsImage.validate(channel, path, raf.length());
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.ruyuan.dfs.namenode.datanode;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Sun Dasheng
+ */
+public class DataNodeInfoTest {
+
+    @Test
+    public void testMatchReportedGeneration() {
+        DataNodeInfo dataNode = new DataNodeInfo("dn1", 5671, 8081, System.currentTimeMillis());
+
+        // 还没有完成全量上报，任何增量上报都拒绝，包括DataNode从来没有被确认过的 -1
+        assertFalse(dataNode.matchReportedGeneration(-1));
+        assertFalse(dataNode.matchReportedGeneration(0));
+
+        // 全量上报完成之后只接受基于这个代数的增量上报
+        dataNode.setReportedGeneration(100);
+        assertTrue(dataNode.matchReportedGeneration(100));
+        assertFalse(dataNode.matchReportedGeneration(99));
+        assertFalse(dataNode.matchReportedGeneration(101));
+        assertFalse(dataNode.matchReportedGeneration(-1));
+
+        // 接受增量上报之后，基于旧代数的上报被拒绝
+        dataNode.setReportedGeneration(105);
+        assertFalse(dataNode.matchReportedGeneration(100));
+        assertTrue(dataNode.matchReportedGeneration(105));
+    }
+}
@@ -0,0 +1,78 @@
+package com.ruyuan.dfs.namenode.datanode;
+
+import com.ruyuan.dfs.common.utils.DefaultScheduler;
+import com.ruyuan.dfs.model.datanode.DataNodeLivenessRequest;
+import com.ruyuan.dfs.model.datanode.DataNodeLivenessResponse;
+import com.ruyuan.dfs.model.datanode.RegisterRequest;
+import com.ruyuan.dfs.model.datanode.ReplicaCommand;
+import com.ruyuan.dfs.namenode.config.NameNodeConfig;
+import com.ruyuan.dfs.namenode.rebalance.RemoveReplicaTask;
+import com.ruyuan.dfs.namenode.rebalance.ReplicaTask;
+import com.ruyuan.dfs.namenode.shard.peer.PeerNameNodes;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Sun Dasheng
+ */
+public class DataNodeLivenessGossipTest {
+
+    @Test
+    public void testGossip() {
+        DefaultScheduler defaultScheduler = new DefaultScheduler("Test-Scheduler-", 2);
+        try {
+            NameNodeConfig nameNodeConfig = NameNodeConfig.builder()
+                    .nameNodeId(1)
+                    .dataNodeHeartbeatTimeout(60000)
+                    .dataNodeAliveCheckInterval(60000)
+                    .dataNodeLivenessGossipInterval(60000)
+                    .build();
+            DataNodeManager dataNodeManager = new DataNodeManager(nameNodeConfig, defaultScheduler, null);
+            DataNodeLivenessGossip gossip = new DataNodeLivenessGossip(nameNodeConfig, dataNodeManager,
+                    new PeerNameNodes(defaultScheduler, nameNodeConfig), defaultScheduler);
+            dataNodeManager.register(RegisterRequest.newBuilder().setHostname("dn1").setNioPort(5671).build());
+            DataNodeInfo dataNode = dataNodeManager.getDataNode("dn1");
+            dataNode.setLatestHeartbeatTime(0);
+            dataNode.addReplicaTask(new ReplicaTask("/user/a.png", "dn2", 5672));
+            dataNode.addRemoveReplicaTask(new RemoveReplicaTask("dn1", "/user/b.png"));
+
+            // 别的NameNode同步过来的心跳更新心跳时间，并带回副本命令
+            DataNodeLivenessResponse response = gossip.onGossip(request(2, 100, "dn1", "unknown"));
+            assertTrue(dataNode.getLatestHeartbeatTime() > 0);
+            assertEquals(1, response.getCommandsCount());
+            List<ReplicaCommand> commands = response.getCommandsMap().get("dn1").getCommandsList();
+            assertEquals(2, commands.size());
+            assertTrue(dataNode.pollReplicaCommands(100).isEmpty());
+
+            // 过期的版本号被丢弃
+            dataNode.setLatestHeartbeatTime(0);
+            assertEquals(0, gossip.onGossip(request(2, 99, "dn1")).getCommandsCount());
+            assertEquals(0, dataNode.getLatestHeartbeatTime());
+            // 版本号按照NameNode分别记录
+            gossip.onGossip(request(3, 1, "dn1"));
+            assertTrue(dataNode.getLatestHeartbeatTime() > 0);
+
+            // 转交回来的命令随下一次心跳下发
+            dataNode.addReplicaCommands(commands);
+            assertEquals(commands, dataNode.pollReplicaCommands(100));
+
+            // 没有别的NameNode的时候直接清空本周期的心跳
+            gossip.onHeartbeat("dn1");
+            gossip.publish();
+        } finally {
+            defaultScheduler.shutdown();
+        }
+    }
+
+    private static DataNodeLivenessRequest request(int nameNodeId, long version, String... hostnames) {
+        return DataNodeLivenessRequest.newBuilder()
+                .setNameNodeId(nameNodeId)
+                .setVersion(version)
+                .addAllHostnames(Arrays.asList(hostnames))
+                .build();
+    }
+}
@@ -0,0 +1,84 @@
+package com.ruyuan.dfs.namenode.datanode;
+
+import com.ruyuan.dfs.common.FileInfo;
+import com.ruyuan.dfs.common.utils.DefaultScheduler;
+import com.ruyuan.dfs.model.datanode.RegisterRequest;
+import com.ruyuan.dfs.namenode.config.NameNodeConfig;
+import com.ruyuan.dfs.namenode.fs.DiskNameSystem;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Sun Dasheng
+ */
+public class DataNodeManagerTest {
+
+    private static final String HOSTNAME = "dn1";
+
+    @TempDir
+    File baseDir;
+
+    @Test
+    public void testFullReportReplacesReplicas() {
+        DefaultScheduler defaultScheduler = new DefaultScheduler("Test-Scheduler-", 2);
+        NameNodeConfig nameNodeConfig = NameNodeConfig.builder()
+                .baseDir(baseDir.getAbsolutePath())
+                .replicaNum(2)
+                .dataNodeHeartbeatTimeout(60000)
+                .dataNodeAliveCheckInterval(60000)
+                .build();
+        DataNodeManager dataNodeManager = new DataNodeManager(nameNodeConfig, defaultScheduler, null);
+        DiskNameSystem diskNameSystem = new DiskNameSystem(nameNodeConfig, defaultScheduler, dataNodeManager, null);
+        try {
+            for (String filename : Arrays.asList("/a", "/b", "/c", "/d")) {
+                assertTrue(diskNameSystem.createFile(filename, new HashMap<>()));
+            }
+            dataNodeManager.register(RegisterRequest.newBuilder().setHostname(HOSTNAME).setNioPort(5671).build());
+            dataNodeManager.applyStorageReport(HOSTNAME, files("/a", "/b", "/c"), Collections.emptyList());
+            assertTrue(dataNodeManager.dataNodeContainsFiles(HOSTNAME, "/b"));
+
+            // DataNode删除了/b，删除的变化随着全量上报的确认被丢弃，NameNode从来没有收到过
+            // 全量上报的两个批次乱序到达，第二个批次处理完的时候还不能删除没有上报的副本
+            long generation = 100;
+            dataNodeManager.applyFullStorageReport(HOSTNAME, generation, files("/c"), 1, 2);
+            assertTrue(dataNodeManager.dataNodeContainsFiles(HOSTNAME, "/b"));
+            // 上报期间DataNode新收到的副本不在全量上报中，也不能被删除
+            dataNodeManager.addReplica(new FileInfo(HOSTNAME, "/d", 10));
+            dataNodeManager.applyFullStorageReport(HOSTNAME, generation, files("/a"), 1, 2);
+            assertFalse(dataNodeManager.dataNodeContainsFiles(HOSTNAME, "/b"));
+            assertTrue(dataNodeManager.dataNodeContainsFiles(HOSTNAME, "/a"));
+            assertTrue(dataNodeManager.dataNodeContainsFiles(HOSTNAME, "/c"));
+            assertTrue(dataNodeManager.dataNodeContainsFiles(HOSTNAME, "/d"));
+
+            // 迟到的旧代数批次只添加副本，不会再删除
+            dataNodeManager.applyFullStorageReport(HOSTNAME, generation - 1, files("/b"), 2, 2);
+            assertTrue(dataNodeManager.dataNodeContainsFiles(HOSTNAME, "/b"));
+
+            // DataNode上已经没有文件的时候，只有一个空的批次
+            dataNodeManager.applyFullStorageReport(HOSTNAME, generation + 1, Collections.emptyList(), 0, 0);
+            for (String filename : Arrays.asList("/a", "/b", "/c", "/d")) {
+                assertFalse(dataNodeManager.dataNodeContainsFiles(HOSTNAME, filename));
+            }
+        } finally {
+            diskNameSystem.shutdown();
+            defaultScheduler.shutdown();
+        }
+    }
+
+    private List<FileInfo> files(String... filenames) {
+        List<FileInfo> files = new ArrayList<>(filenames.length);
+        for (String filename : filenames) {
+            files.add(new FileInfo(HOSTNAME, filename, 10));
+        }
+        return files;
+    }
+}
@@ -0,0 +1,63 @@
+package com.ruyuan.dfs.namenode.datanode;
+
+import com.ruyuan.dfs.common.exception.NameNodeException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Sun Dasheng
+ */
+public class FileReceiveRegistryTest {
+
+    @Test
+    public void testReceive() throws Exception {
+        FileReceiveRegistry registry = new FileReceiveRegistry();
+        try {
+            // 已经上报过的文件直接完成
+            assertTrue(registry.await("/user/a.png", 1000, () -> true).isDone());
+
+            AtomicBoolean received = new AtomicBoolean(false);
+            CompletableFuture<Void> future = registry.await("/user/b.png", 60000, received::get);
+            CompletableFuture<Void> another = registry.await("/user/b.png", 60000, received::get);
+            assertFalse(future.isDone());
+            assertEquals(1, registry.size());
+
+            received.set(true);
+            registry.informReplicaReceived("/user/b.png");
+            future.get(1, TimeUnit.SECONDS);
+            another.get(1, TimeUnit.SECONDS);
+            assertEquals(0, registry.size());
+            // 没有等待者的文件上报不会登记
+            registry.informReplicaReceived("/user/c.png");
+            assertEquals(0, registry.size());
+        } finally {
+            registry.shutdown();
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        FileReceiveRegistry registry = new FileReceiveRegistry();
+        try {
+            CompletableFuture<Void> future = registry.await("/user/a.png", 50, () -> false);
+            ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof NameNodeException);
+            assertEquals(0, registry.size());
+
+            // 超时之后再上报不影响下一次等待
+            registry.informReplicaReceived("/user/a.png");
+            CompletableFuture<Void> next = registry.await("/user/a.png", 60000, () -> false);
+            assertFalse(next.isDone());
+            registry.informReplicaReceived("/user/a.png");
+            next.get(1, TimeUnit.SECONDS);
+        } finally {
+            registry.shutdown();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.ruyuan.dfs.namenode.datanode;
+
+import com.ruyuan.dfs.common.FileInfo;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 对比按照文件名查找和删除副本的耗时
+ *
+ * <pre>
+ * 运行方式：直接执行main方法，建议加上 -Xmx8g
+ *
+ *   第一个参数：DataNode数量，默认200
+ *   第二个参数：副本数量，默认5000000，50000000个副本需要 -Xmx24g 以上
+ *   第三个参数：查找和删除的文件数量，默认100000
+ *
+ * 每个文件3个副本，随机分布在不同的DataNode上：
+ *
+ *   1. 遍历DataNode：每个DataNode一个 文件名 -> 副本 的Map，按照文件名查找和删除需要访问所有DataNode的Map（旧的方式）
+ *   2. 副本索引：文件名 -> 副本数组，查找和删除只访问文件自己的副本
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class ReplicaIndexBenchmark {
+
+    private static final int REPLICAS_PER_FILE = 3;
+
+    private static long checksum = 0;
+
+    public static void main(String[] args) {
+        int dataNodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long replicaCount = args.length > 1 ? Long.parseLong(args[1]) : 5000000L;
+        int sampleCount = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        int fileCount = (int) (replicaCount / REPLICAS_PER_FILE);
+        String[] hostnames = new String[dataNodeCount];
+        for (int i = 0; i < dataNodeCount; i++) {
+            hostnames[i] = "datanode-" + i;
+        }
+
+        Map<String, Map<String, FileInfo>> filesByDataNode = new HashMap<>();
+        ReplicaIndex index = new ReplicaIndex();
+        long start = System.nanoTime();
+        for (int i = 0; i < fileCount; i++) {
+            String filename = "/user-" + (i % 7) + "/dir-" + (i / 1000) + "/file-" + i + ".png";
+            int first = ThreadLocalRandom.current().nextInt(dataNodeCount);
+            for (int r = 0; r < REPLICAS_PER_FILE; r++) {
+                String hostname = hostnames[(first + r) % dataNodeCount];
+                FileInfo fileInfo = new FileInfo(hostname, filename, i);
+                filesByDataNode.computeIfAbsent(hostname, k -> new HashMap<>()).put(filename, fileInfo);
+                index.add(fileInfo, REPLICAS_PER_FILE);
+            }
+        }
+        System.out.printf("构建完成：[dataNodes=%d, files=%d, replicas=%d, cost=%d ms]%n", dataNodeCount, fileCount,
+                (long) fileCount * REPLICAS_PER_FILE, (System.nanoTime() - start) / 1000000);
+
+        String[] samples = new String[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            int file = ThreadLocalRandom.current().nextInt(fileCount);
+            samples[i] = "/user-" + (file % 7) + "/dir-" + (file / 1000) + "/file-" + file + ".png";
+        }
+
+        start = System.nanoTime();
+        for (String filename : samples) {
+            for (Map<String, FileInfo> files : filesByDataNode.values()) {
+                FileInfo fileInfo = files.get(filename);
+                if (fileInfo != null) {
+                    checksum += fileInfo.getFileSize();
+                    break;
+                }
+            }
+        }
+        print("查找-遍历DataNode", start, sampleCount);
+
+        start = System.nanoTime();
+        for (String filename : samples) {
+            FileInfo[] replicas = index.get(filename);
+            if (replicas.length > 0) {
+                checksum += replicas[0].getFileSize();
+            }
+        }
+        print("查找-副本索引", start, sampleCount);
+
+        start = System.nanoTime();
+        for (String filename : samples) {
+            for (Map<String, FileInfo> files : filesByDataNode.values()) {
+                if (files.remove(filename) != null) {
+                    checksum++;
+                }
+            }
+        }
+        print("删除-遍历DataNode", start, sampleCount);
+
+        start = System.nanoTime();
+        for (String filename : samples) {
+            checksum += index.removeFile(filename).length;
+        }
+        print("删除-副本索引", start, sampleCount);
+        System.out.println("checksum=" + checksum);
+    }
+
+    private static void print(String name, long start, int count) {
+        long cost = System.nanoTime() - start;
+        System.out.printf("%s：[files=%d, %.1f ns/file, %.0f ops/s]%n", name, count, (double) cost / count,
+                count / (cost / 1e9));
+    }
+}
@@ -0,0 +1,124 @@
+package com.ruyuan.dfs.namenode.datanode;
+
+import com.ruyuan.dfs.common.FileInfo;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Sun Dasheng
+ */
+public class ReplicaIndexTest {
+
+    @Test
+    public void testAddAndRemove() {
+        ReplicaIndex index = new ReplicaIndex();
+        assertTrue(index.add(new FileInfo("dn1", "/user/a.png", 10), 2));
+        assertTrue(index.add(new FileInfo("dn2", "/user/a.png", 10), 2));
+        // 超过副本数量
+        assertFalse(index.add(new FileInfo("dn3", "/user/a.png", 10), 2));
+        // 同一个DataNode重复上报只更新副本信息
+        assertTrue(index.add(new FileInfo("dn1", "/user/a.png", 20), 2));
+        assertTrue(index.add(new FileInfo("dn1", "/user/b.png", 5), 2));
+
+        assertEquals(2, index.get("/user/a.png").length);
+        assertEquals(20, index.get("/user/a.png")[0].getFileSize());
+        assertTrue(index.contains("/user/a.png", "dn2"));
+        assertFalse(index.contains("/user/a.png", "dn3"));
+        assertEquals(0, index.get("/user/none.png").length);
+        assertEquals(2, index.size("dn1"));
+        assertEquals(0, index.size("dn3"));
+
+        assertEquals("dn2", index.remove("/user/a.png", "dn2").getHostname());
+        assertNull(index.remove("/user/a.png", "dn2"));
+        assertEquals(0, index.size("dn2"));
+        assertEquals(1, index.get("/user/a.png").length);
+
+        List<FileInfo> removed = index.removeDataNode("dn1");
+        assertEquals(new HashSet<>(Arrays.asList("/user/a.png", "/user/b.png")),
+                removed.stream().map(FileInfo::getFileName).collect(HashSet::new, Set::add, Set::addAll));
+        assertEquals(0, index.get("/user/a.png").length);
+        assertEquals(0, index.get("/user/b.png").length);
+        assertTrue(index.removeDataNode("dn1").isEmpty());
+
+        index.add(new FileInfo("dn1", "/user/c.png", 1), 3);
+        index.add(new FileInfo("dn2", "/user/c.png", 1), 3);
+        assertEquals(2, index.removeFile("/user/c.png").length);
+        assertEquals(0, index.removeFile("/user/c.png").length);
+        assertEquals(0, index.size("dn1"));
+        assertEquals(0, index.size("dn2"));
+    }
+
+    @Test
+    public void testConcurrentAdd() throws InterruptedException {
+        ReplicaIndex index = new ReplicaIndex();
+        int threadCount = 8;
+        int fileCount = 2000;
+        int maxReplicas = 3;
+        CountDownLatch latch = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            String hostname = "dn" + t;
+            new Thread(() -> {
+                for (int i = 0; i < fileCount; i++) {
+                    index.add(new FileInfo(hostname, "/user/" + i, i), maxReplicas);
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        int total = 0;
+        for (int i = 0; i < fileCount; i++) {
+            FileInfo[] replicas = index.get("/user/" + i);
+            // 并发上报的时候副本数量也不会超过上限
+            assertEquals(maxReplicas, replicas.length);
+            for (FileInfo replica : replicas) {
+                assertTrue(index.contains("/user/" + i, replica.getHostname()));
+            }
+        }
+        for (int t = 0; t < threadCount; t++) {
+            total += index.size("dn" + t);
+        }
+        assertEquals(fileCount * maxReplicas, total);
+    }
+
+    @Test
+    public void testRemoveDataNodeWhileReporting() throws InterruptedException {
+        int fileCount = 2000;
+        for (int round = 0; round < 20; round++) {
+            ReplicaIndex index = new ReplicaIndex();
+            for (int i = 0; i < fileCount; i++) {
+                index.add(new FileInfo("dn1", "/user/" + i, i), 3);
+            }
+            // DataNode宕机之后马上重新注册并上报，和删除同时进行
+            CountDownLatch latch = new CountDownLatch(1);
+            Thread reporter = new Thread(() -> {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < fileCount; i++) {
+                    index.add(new FileInfo("dn1", "/user/" + i, i), 3);
+                }
+            });
+            reporter.start();
+            latch.countDown();
+            index.removeDataNode("dn1");
+            reporter.join();
+
+            // 两个索引保持一致：DataNode的文件名集合里的文件正好是副本中包含这个DataNode的文件
+            int reported = 0;
+            for (int i = 0; i < fileCount; i++) {
+                if (index.contains("/user/" + i, "dn1")) {
+                    reported++;
+                }
+            }
+            assertEquals(reported, index.size("dn1"));
+            assertEquals(reported, index.removeDataNode("dn1").size());
+            assertEquals(0, index.size("dn1"));
+        }
+    }
+}
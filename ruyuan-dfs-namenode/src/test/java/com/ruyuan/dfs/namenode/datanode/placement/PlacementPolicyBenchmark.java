@@ -0,0 +1,116 @@
+package com.ruyuan.dfs.namenode.datanode.placement;
+
+import com.ruyuan.dfs.namenode.datanode.DataNodeInfo;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * 对比每秒能做多少次副本放置的选择
+ *
+ * <pre>
+ * 运行方式：直接执行main方法
+ *
+ *   第一个参数：DataNode数量，默认200
+ *   第二个参数：每个DataNode所在机架的数量，默认10
+ *   第三个参数：选择的次数，默认1000000
+ *
+ * 每次选择3个DataNode，DataNode的存储大小随机分布在0 ~ 20G之间：
+ *
+ *   1. 每次排序：每次选择都过滤并排序所有DataNode，再从存储大小相差1G以内的DataNode中随机选择（旧的方式）
+ *   2. 各个放置策略：在已经排好序的DataNode数组上选择，不需要每次排序
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class PlacementPolicyBenchmark {
+
+    private static final int REPLICA_NUM = 3;
+    private static final long DELTA = 1024 * 1024 * 1024;
+
+    private static long checksum = 0;
+
+    public static void main(String[] args) {
+        int dataNodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int racks = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+        Map<String, DataNodeInfo> dataNodes = new HashMap<>();
+        for (int i = 0; i < dataNodeCount; i++) {
+            DataNodeInfo dataNode = new DataNodeInfo("datanode-" + i, 5671, 8001, 0);
+            long storedDataSize = ThreadLocalRandom.current().nextLong(20 * DELTA);
+            dataNode.setStoredDataSize(storedDataSize);
+            dataNode.setFreeSpace(100 * DELTA - storedDataSize);
+            dataNode.setRack("/rack-" + (i % racks));
+            dataNode.setStatus(DataNodeInfo.STATUS_READY);
+            dataNodes.put(dataNode.getHostname(), dataNode);
+        }
+        DataNodeInfo[] sorted = dataNodes.values().stream().sorted().toArray(DataNodeInfo[]::new);
+        Predicate<DataNodeInfo> excluded = dataNode -> false;
+
+        for (int round = 0; round < 3; round++) {
+            System.out.printf("第%d轮：%n", round + 1);
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                checksum += legacyChoose(dataNodes, REPLICA_NUM).size();
+            }
+            print("每次排序", count, start);
+            for (String policy : Arrays.asList("available-space", "free-space-weighted", "rack-aware")) {
+                PlacementPolicy placementPolicy = PlacementPolicy.create(policy);
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    checksum += placementPolicy.choose(sorted, REPLICA_NUM, excluded).size();
+                }
+                print(policy, count, start);
+            }
+        }
+        System.out.println("checksum=" + checksum);
+    }
+
+    private static void print(String name, int count, long start) {
+        long cost = System.nanoTime() - start;
+        System.out.printf("  %-20s %12.0f 次/秒, 平均 %.2f us%n", name, count * 1e9 / cost, cost / 1000.0 / count);
+    }
+
+    /**
+     * 旧的选择方式
+     */
+    private static List<DataNodeInfo> legacyChoose(Map<String, DataNodeInfo> dataNodes, int requiredNodeCount) {
+        List<DataNodeInfo> dataNodeList = dataNodes.values().stream()
+                .filter(dataNodeInfo -> dataNodeInfo.getStatus() == DataNodeInfo.STATUS_READY)
+                .sorted()
+                .collect(Collectors.toList());
+        long minStoredDataSize = -1;
+        List<DataNodeInfo> candidateNodes = new ArrayList<>(10);
+        for (DataNodeInfo dataNodeInfo : dataNodeList) {
+            long storedDataSize = dataNodeInfo.getStoredDataSize();
+            if (minStoredDataSize < 0) {
+                minStoredDataSize = storedDataSize;
+            }
+            if (storedDataSize - minStoredDataSize <= DELTA) {
+                candidateNodes.add(dataNodeInfo);
+            }
+        }
+        if (candidateNodes.size() <= requiredNodeCount) {
+            for (DataNodeInfo dataNodeInfo : dataNodeList) {
+                if (candidateNodes.size() >= requiredNodeCount) {
+                    break;
+                }
+                if (!candidateNodes.contains(dataNodeInfo)) {
+                    candidateNodes.add(dataNodeInfo);
+                }
+            }
+            return candidateNodes;
+        }
+        Random random = new Random();
+        List<DataNodeInfo> selectedDataNodes = new ArrayList<>();
+        for (int i = 0; i < requiredNodeCount; i++) {
+            DataNodeInfo dataNodeInfo = candidateNodes.get(random.nextInt(candidateNodes.size()));
+            if (!selectedDataNodes.contains(dataNodeInfo)) {
+                selectedDataNodes.add(dataNodeInfo);
+            }
+        }
+        return selectedDataNodes;
+    }
+}
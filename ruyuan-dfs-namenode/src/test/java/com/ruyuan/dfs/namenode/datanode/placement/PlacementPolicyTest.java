@@ -0,0 +1,102 @@
+package com.ruyuan.dfs.namenode.datanode.placement;
+
+import com.ruyuan.dfs.namenode.datanode.DataNodeInfo;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Sun Dasheng
+ */
+public class PlacementPolicyTest {
+
+    private static final long GB = 1024L * 1024 * 1024;
+
+    @Test
+    public void testAvailableSpace() {
+        // dn0 ~ dn3 相差在1G以内，dn4、dn5存储较多
+        DataNodeInfo[] dataNodes = dataNodes(0, GB / 2, GB / 2, GB, 5 * GB, 6 * GB);
+        PlacementPolicy policy = PlacementPolicy.create(null);
+        assertTrue(policy instanceof AvailableSpacePlacementPolicy);
+        Set<String> chosen = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            List<DataNodeInfo> ret = policy.choose(dataNodes, 2, d -> false);
+            assertEquals(2, ret.size());
+            assertNotEquals(ret.get(0), ret.get(1));
+            for (DataNodeInfo dataNode : ret) {
+                assertTrue(dataNode.getStoredDataSize() <= GB);
+                chosen.add(dataNode.getHostname());
+            }
+        }
+        // 候选的DataNode都会被随机选到
+        assertEquals(4, chosen.size());
+
+        // 候选不够的时候按照存储大小补齐
+        List<DataNodeInfo> ret = policy.choose(dataNodes, 5, d -> false);
+        assertEquals(5, ret.size());
+        assertTrue(ret.contains(dataNodes[4]));
+        ret = policy.choose(dataNodes, 3, d -> d.getStoredDataSize() < 5 * GB);
+        assertEquals(Arrays.asList(dataNodes[4], dataNodes[5]), ret);
+        assertEquals(6, policy.choose(dataNodes, 10, d -> false).size());
+    }
+
+    @Test
+    public void testFreeSpaceWeighted() {
+        DataNodeInfo[] dataNodes = dataNodes(0, 0, 0);
+        dataNodes[0].setFreeSpace(100 * GB);
+        dataNodes[1].setFreeSpace(GB);
+        dataNodes[2].setFreeSpace(0);
+        PlacementPolicy policy = PlacementPolicy.create("free-space-weighted");
+        int first = 0;
+        for (int i = 0; i < 1000; i++) {
+            List<DataNodeInfo> ret = policy.choose(dataNodes, 2, d -> false);
+            assertEquals(2, ret.size());
+            assertNotEquals(ret.get(0), ret.get(1));
+            if (ret.get(0) == dataNodes[0]) {
+                first++;
+            }
+        }
+        assertTrue(first > 900);
+        assertEquals(Collections.singletonList(dataNodes[2]),
+                policy.choose(dataNodes, 2, d -> d != dataNodes[2]));
+    }
+
+    @Test
+    public void testRackAware() {
+        DataNodeInfo[] dataNodes = dataNodes(0, 1, 2, 3 * GB);
+        dataNodes[0].setRack("/rack-1");
+        dataNodes[1].setRack("/rack-1");
+        dataNodes[2].setRack("/rack-1");
+        dataNodes[3].setRack("/rack-2");
+        PlacementPolicy policy = PlacementPolicy.create("rack-aware");
+        for (int i = 0; i < 100; i++) {
+            List<DataNodeInfo> ret = policy.choose(dataNodes, 2, d -> false);
+            assertEquals(2, ret.size());
+            assertTrue(ret.contains(dataNodes[3]));
+        }
+        // 机架数量不够的时候不再要求机架不同
+        List<DataNodeInfo> ret = policy.choose(dataNodes, 3, d -> false);
+        assertEquals(3, new HashSet<>(ret).size());
+        assertTrue(ret.contains(dataNodes[3]));
+    }
+
+    @Test
+    public void testCustomPolicy() {
+        assertTrue(PlacementPolicy.create(FreeSpaceWeightedPlacementPolicy.class.getName())
+                instanceof FreeSpaceWeightedPlacementPolicy);
+        assertThrows(IllegalArgumentException.class, () -> PlacementPolicy.create("none"));
+    }
+
+    static DataNodeInfo[] dataNodes(long... storedDataSizes) {
+        DataNodeInfo[] ret = new DataNodeInfo[storedDataSizes.length];
+        for (int i = 0; i < storedDataSizes.length; i++) {
+            ret[i] = new DataNodeInfo("dn" + i, 5671, 8001, 0);
+            ret[i].setStoredDataSize(storedDataSizes[i]);
+            ret[i].setFreeSpace(100 * GB - storedDataSizes[i]);
+            ret[i].setStatus(DataNodeInfo.STATUS_READY);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,145 @@
+package com.ruyuan.dfs.namenode.editslog;
+
+import com.ruyuan.dfs.common.enums.FsOpType;
+import com.ruyuan.dfs.common.utils.FileUtil;
+import com.ruyuan.dfs.namenode.config.NameNodeConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * 对比回放editlog的速度和内存占用
+ *
+ * <pre>
+ * 运行方式：直接执行main方法，建议加上 -Xmx4g
+ *
+ *   第一个参数：生成的editlog总大小，单位MB，默认2048
+ *   第二个参数：段文件大小，单位MB，默认512
+ *   第三个参数：editlog所在目录，默认在临时目录下生成，已经存在editlog的话直接使用
+ *
+ * 分别统计三种回放方式每秒回放的editlog数量和堆内存的峰值：
+ *   1. 整个文件读到内存中，全部解析成editlog之后再回放（旧的方式）
+ *   2. 流式读取，解析和回放在同一个线程
+ *   3. 流式读取，解析和回放在两个线程并行
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class EditLogReplayBenchmark {
+
+    private static final int BATCH_BYTES = 4 * 1024 * 1024;
+
+    private static long checksum = 0;
+
+    public static void main(String[] args) throws Exception {
+        long totalBytes = (args.length > 0 ? Long.parseLong(args[0]) : 2048) * 1024 * 1024;
+        long segmentSize = (args.length > 1 ? Long.parseLong(args[1]) : 512) * 1024 * 1024;
+        File baseDir = args.length > 2 ? new File(args[2]) :
+                new File(System.getProperty("java.io.tmpdir"), "editlog-replay-benchmark");
+        NameNodeConfig nameNodeConfig = NameNodeConfig.builder()
+                .baseDir(baseDir.getAbsolutePath())
+                .editLogFlushThreshold(BATCH_BYTES)
+                .editLogSyncInterval(1000)
+                .editLogSegmentSize(segmentSize)
+                .editLogSegmentRollInterval(Long.MAX_VALUE)
+                .build();
+        if (!new File(nameNodeConfig.getEditlogIndexFile()).exists()) {
+            generate(nameNodeConfig, totalBytes);
+        }
+
+        run("整个文件读取", nameNodeConfig, () -> replayWholeFile(nameNodeConfig));
+        nameNodeConfig.setEditLogReplayPipeline(false);
+        run("流式读取", nameNodeConfig, () -> replayStreaming(nameNodeConfig));
+        nameNodeConfig.setEditLogReplayPipeline(true);
+        run("流式读取+并行回放", nameNodeConfig, () -> replayStreaming(nameNodeConfig));
+        System.out.println("checksum=" + checksum);
+    }
+
+    private static void generate(NameNodeConfig nameNodeConfig, long totalBytes) throws IOException {
+        Files.createDirectories(new File(nameNodeConfig.getBaseDir()).toPath());
+        EditLogSegmentManager segmentManager = new EditLogSegmentManager(nameNodeConfig);
+        segmentManager.load();
+        ByteBuffer buffer = ByteBuffer.allocate(BATCH_BYTES + 1024);
+        long txId = 0;
+        long written = 0;
+        long start = System.currentTimeMillis();
+        while (written < totalBytes) {
+            long startTxId = txId + 1;
+            int count = 0;
+            buffer.clear();
+            while (buffer.position() < BATCH_BYTES) {
+                EditLogWrapper editLog = new EditLogWrapper(FsOpType.CREATE.getValue(),
+                        "/user/benchmark/dir-" + (txId / 1000) + "/file-" + txId + ".png");
+                editLog.setTxId(++txId);
+                buffer.put(editLog.toByteArray());
+                count++;
+            }
+            buffer.flip();
+            written += buffer.remaining();
+            segmentManager.append(startTxId, txId, count, buffer);
+        }
+        segmentManager.close();
+        System.out.println("生成editlog：[records=" + txId + ", bytes=" + written + ", cost="
+                + (System.currentTimeMillis() - start) + " ms]");
+    }
+
+    private static long replayWholeFile(NameNodeConfig nameNodeConfig) throws IOException {
+        EditLogSegmentManager segmentManager = new EditLogSegmentManager(nameNodeConfig);
+        segmentManager.load();
+        long count = 0;
+        for (EditslogInfo info : segmentManager.getSortedEditLogFiles(0)) {
+            ByteBuffer buffer = FileUtil.readBuffer(info.getName());
+            EditLogFormat.readHeader(buffer);
+            List<EditLogWrapper> editLogs = EditLogWrapper.parseFrom(buffer);
+            for (EditLogWrapper editLog : editLogs) {
+                apply(editLog);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static long replayStreaming(NameNodeConfig nameNodeConfig) throws IOException {
+        long[] count = {0};
+        FsEditLog fsEditLog = new FsEditLog(nameNodeConfig);
+        fsEditLog.playbackEditLog(0, editLog -> {
+            apply(editLog);
+            count[0]++;
+        });
+        fsEditLog.close();
+        return count[0];
+    }
+
+    private static void apply(EditLogWrapper editLog) {
+        checksum += editLog.getEditLog().getPath().hashCode();
+    }
+
+    private static void run(String name, NameNodeConfig nameNodeConfig, Replay replay) throws IOException {
+        System.gc();
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        for (MemoryPoolMXBean pool : pools) {
+            pool.resetPeakUsage();
+        }
+        long start = System.currentTimeMillis();
+        long count = replay.replay();
+        long cost = Math.max(1, System.currentTimeMillis() - start);
+        long peak = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.println(name + "：[records=" + count + ", cost=" + cost + " ms, speed="
+                + (count * 1000 / cost) + " records/s, peakHeap=" + (peak / 1024 / 1024) + " MB]");
+    }
+
+    private interface Replay {
+        long replay() throws IOException;
+    }
+}
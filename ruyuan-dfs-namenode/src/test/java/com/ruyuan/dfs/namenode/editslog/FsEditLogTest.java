@@ -0,0 +1,411 @@
+package com.ruyuan.dfs.namenode.editslog;
+
+import com.ruyuan.dfs.common.enums.FsOpType;
+import com.ruyuan.dfs.namenode.config.NameNodeConfig;
+import com.ruyuan.dfs.namenode.tools.EditLogVerifier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Sun Dasheng
+ */
+public class FsEditLogTest {
+
+    @TempDir
+    File baseDir;
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        NameNodeConfig nameNodeConfig = NameNodeConfig.builder()
+                .baseDir(baseDir.getAbsolutePath())
+                .editLogFlushThreshold(64 * 1024)
+                .editLogSyncInterval(20)
+                .build();
+        FsEditLog fsEditLog = new FsEditLog(nameNodeConfig);
+        int threadCount = 16;
+        int count = 2000;
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        CountDownLatch latch = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            int threadIndex = i;
+            List<CompletableFuture<Long>> threadFutures = new ArrayList<>();
+            new Thread(() -> {
+                for (int j = 0; j < count; j++) {
+                    threadFutures.add(fsEditLog.logEdit(new EditLogWrapper(FsOpType.CREATE.getValue(),
+                            "/user/" + threadIndex + "/" + j)));
+                }
+                synchronized (futures) {
+                    futures.addAll(threadFutures);
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        long total = (long) threadCount * count;
+        assertEquals(total, fsEditLog.getSyncTxid());
+
+        // 磁盘上的editlog是按照txid连续写入的
+        long expectTxId = 1;
+        for (EditslogInfo info : fsEditLog.getSortedEditLogFiles(0)) {
+            for (EditLogWrapper editLog : fsEditLog.readEditLogFromFile(info.getName())) {
+                assertEquals(expectTxId++, editLog.getTxId());
+            }
+        }
+        assertEquals(total + 1, expectTxId);
+
+        // 没有达到阈值的editlog在close的时候刷到磁盘
+        CompletableFuture<Long> last = fsEditLog.logEdit(new EditLogWrapper(FsOpType.MKDIR.getValue(), "/last"));
+        fsEditLog.close();
+        assertEquals(total + 1, last.get(1, TimeUnit.SECONDS));
+        assertEquals(total + 1, fsEditLog.getSyncTxid());
+    }
+
+    @Test
+    public void testBatchLogEdits() throws Exception {
+        NameNodeConfig nameNodeConfig = NameNodeConfig.builder()
+                .baseDir(baseDir.getAbsolutePath())
+                .editLogFlushThreshold(64 * 1024)
+                .editLogSyncInterval(20)
+                .build();
+        FsEditLog fsEditLog = new FsEditLog(nameNodeConfig);
+        int threadCount = 8;
+        int batches = 200;
+        int batchSize = 10;
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        CountDownLatch latch = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            int threadIndex = i;
+            new Thread(() -> {
+                List<CompletableFuture<Long>> threadFutures = new ArrayList<>();
+                for (int j = 0; j < batches; j++) {
+                    // 单条写入和批量写入交替进行
+                    threadFutures.add(fsEditLog.logEdit(new EditLogWrapper(FsOpType.MKDIR.getValue(),
+                            "/user/" + threadIndex + "/" + j)));
+                    List<EditLogWrapper> editLogs = new ArrayList<>();
+                    for (int k = 0; k < batchSize; k++) {
+                        editLogs.add(new EditLogWrapper(FsOpType.CREATE.getValue(),
+                                "/user/" + threadIndex + "/" + j + "/" + k));
+                    }
+                    CompletableFuture<Long> future = fsEditLog.logEdits(editLogs);
+                    // 一批editlog的txid是连续的
+                    for (int k = 0; k < batchSize; k++) {
+                        assertEquals(editLogs.get(0).getTxId() + k, editLogs.get(k).getTxId());
+                    }
+                    threadFutures.add(future.thenApply(txId -> {
+                        assertEquals(editLogs.get(batchSize - 1).getTxId(), txId);
+                        return txId;
+                    }));
+                }
+                synchronized (futures) {
+                    futures.addAll(threadFutures);
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        long total = (long) threadCount * batches * (batchSize + 1);
+        assertEquals(total, fsEditLog.getSyncTxid());
+        assertEquals(total, (long) fsEditLog.logEdits(new ArrayList<>()).get());
+
+        long expectTxId = 1;
+        for (EditslogInfo info : fsEditLog.getSortedEditLogFiles(0)) {
+            for (EditLogWrapper editLog : fsEditLog.readEditLogFromFile(info.getName())) {
+                assertEquals(expectTxId++, editLog.getTxId());
+            }
+        }
+        assertEquals(total + 1, expectTxId);
+        fsEditLog.close();
+    }
+
+    @Test
+    public void testRejectAfterClose() throws Exception {
+        NameNodeConfig nameNodeConfig = NameNodeConfig.builder()
+                .baseDir(baseDir.getAbsolutePath())
+                .editLogFlushThreshold(64 * 1024)
+                .editLogSyncInterval(20)
+                .build();
+        FsEditLog fsEditLog = new FsEditLog(nameNodeConfig);
+        CompletableFuture<Long> first = fsEditLog.logEdit(new EditLogWrapper(FsOpType.MKDIR.getValue(), "/first"));
+        fsEditLog.close();
+        assertEquals(1L, first.get(1, TimeUnit.SECONDS));
+
+        // 关闭之后的写入直接失败，不会分配txid，也不会一直等待
+        CompletableFuture<Long> rejected = fsEditLog.logEdit(new EditLogWrapper(FsOpType.MKDIR.getValue(), "/late"));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> rejected.get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        List<EditLogWrapper> editLogs = new ArrayList<>();
+        editLogs.add(new EditLogWrapper(FsOpType.MKDIR.getValue(), "/late/batch"));
+        assertTrue(fsEditLog.logEdits(editLogs).isCompletedExceptionally());
+        fsEditLog.flush();
+        assertEquals(1L, fsEditLog.getSyncTxid());
+    }
+
+    @Test
+    public void testCompletionOffSyncThread() throws Exception {
+        NameNodeConfig nameNodeConfig = NameNodeConfig.builder()
+                .baseDir(baseDir.getAbsolutePath())
+                .editLogFlushThreshold(64 * 1024)
+                .editLogSyncInterval(20)
+                .build();
+        FsEditLog fsEditLog = new FsEditLog(nameNodeConfig);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> first = fsEditLog.logEdit(new EditLogWrapper(FsOpType.MKDIR.getValue(), "/first"))
+                .thenApply(txId -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return Thread.currentThread().getName();
+                });
+
+        // 回调阻塞的时候后面的editlog照样刷盘
+        CompletableFuture<Long> second = fsEditLog.logEdit(new EditLogWrapper(FsOpType.MKDIR.getValue(), "/second"));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (fsEditLog.getSyncTxid() < 2) {
+            assertTrue(System.currentTimeMillis() < deadline, "等待刷盘超时");
+            Thread.sleep(10);
+        }
+        assertFalse(second.isDone());
+
+        // 回调按照txid的顺序在回调线程中执行
+        release.countDown();
+        assertTrue(first.get(1, TimeUnit.SECONDS).startsWith("FsEditLog-Completion-"));
+        assertEquals(2L, second.get(1, TimeUnit.SECONDS));
+        fsEditLog.close();
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        NameNodeConfig nameNodeConfig = NameNodeConfig.builder()
+                .baseDir(baseDir.getAbsolutePath())
+                .editLogFlushThreshold(4 * 1024)
+                .editLogSyncInterval(20)
+                .editLogSegmentSize(64 * 1024)
+                .editLogSegmentRollInterval(3600000)
+                .build();
+        FsEditLog fsEditLog = new FsEditLog(nameNodeConfig);
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            fsEditLog.logEdit(new EditLogWrapper(FsOpType.CREATE.getValue(), "/user/a/" + i));
+        }
+        fsEditLog.flush();
+        List<EditslogInfo> segments = fsEditLog.getSortedEditLogFiles(0);
+        assertTrue(segments.size() > 1);
+        assertEquals(count, segments.get(segments.size() - 1).getEnd());
+        assertTrue(new File(nameNodeConfig.getEditlogIndexFile()).exists());
+
+        // 模拟宕机：正在写入的段文件末尾有一条没写完整的editlog
+        EditslogInfo inProgress = segments.get(segments.size() - 1);
+        try (RandomAccessFile raf = new RandomAccessFile(inProgress.getName(), "rw")) {
+            long length = new File(inProgress.getName()).length();
+            assertTrue(length > 0);
+            byte[] torn = new EditLogWrapper(FsOpType.CREATE.getValue(), "/torn").toByteArray();
+            raf.seek(findDataLength(fsEditLog, inProgress));
+            raf.write(torn, 0, torn.length - 3);
+        }
+
+        FsEditLog recovered = new FsEditLog(nameNodeConfig);
+        List<Long> txIds = new ArrayList<>();
+        recovered.playbackEditLog(0, editLog -> txIds.add(editLog.getTxId()));
+        assertEquals(count, txIds.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i + 1, txIds.get(i));
+        }
+
+        // 回放之后继续写入
+        CompletableFuture<Long> next = recovered.logEdit(new EditLogWrapper(FsOpType.MKDIR.getValue(), "/next"));
+        recovered.close();
+        assertEquals(count + 1, next.get(1, TimeUnit.SECONDS));
+
+        long cleanTxId = recovered.getSortedEditLogFiles(0).get(0).getEnd();
+        String cleanFile = recovered.getSortedEditLogFiles(0).get(0).getName();
+        recovered.cleanEditLogByTxId(cleanTxId);
+        assertFalse(new File(cleanFile).exists());
+        assertEquals(cleanTxId + 1, new FsEditLog(nameNodeConfig).getSortedEditLogFiles(0).get(0).getStart());
+    }
+
+    @Test
+    public void testCorruptSegment() throws Exception {
+        NameNodeConfig nameNodeConfig = NameNodeConfig.builder()
+                .baseDir(baseDir.getAbsolutePath())
+                .editLogFlushThreshold(4 * 1024)
+                .editLogSyncInterval(20)
+                .editLogSegmentSize(64 * 1024)
+                .editLogSegmentRollInterval(3600000)
+                .editLogReplayPipeline(true)
+                .build();
+        FsEditLog fsEditLog = new FsEditLog(nameNodeConfig);
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            fsEditLog.logEdit(new EditLogWrapper(FsOpType.CREATE.getValue(), "/user/a/" + i));
+        }
+        fsEditLog.close();
+        List<EditslogInfo> segments = fsEditLog.getSortedEditLogFiles(0);
+        assertTrue(segments.size() > 2);
+        for (EditslogInfo segment : segments) {
+            EditLogVerifier.VerifyResult result = EditLogVerifier.verify(new File(segment.getName()));
+            assertEquals(EditLogFormat.Status.FOOTER, result.getStatus());
+        }
+
+        // 修改第二个段文件中间一条editlog的文件名，只改记录内容，不改记录头中的长度，否则会被识别为没有写完整
+        EditslogInfo corrupt = segments.get(1);
+        long validLength = EditLogVerifier.verify(new File(corrupt.getName())).getValidLength();
+        byte[] data = Files.readAllBytes(new File(corrupt.getName()).toPath());
+        int position = indexOf(data, "/user/a/".getBytes(StandardCharsets.UTF_8), (int) validLength / 2);
+        assertTrue(position > 0);
+        try (RandomAccessFile raf = new RandomAccessFile(corrupt.getName(), "rw")) {
+            raf.seek(position);
+            raf.write(data[position] ^ 0xFF);
+        }
+        assertEquals(EditLogFormat.Status.CORRUPT, EditLogVerifier.verify(new File(corrupt.getName())).getStatus());
+
+        FsEditLog recovered = new FsEditLog(nameNodeConfig);
+        List<Long> txIds = new ArrayList<>();
+        recovered.playbackEditLog(0, editLog -> txIds.add(editLog.getTxId()));
+        assertTrue(txIds.size() > segments.get(0).getEnd());
+        assertTrue(txIds.size() < corrupt.getEnd());
+        for (int i = 0; i < txIds.size(); i++) {
+            assertEquals(i + 1, txIds.get(i));
+        }
+        assertTrue(new File(corrupt.getName() + ".corrupt").exists());
+        assertTrue(new File(segments.get(2).getName() + ".corrupt").exists());
+        assertEquals(txIds.size(), recovered.getSortedEditLogFiles(0).get(1).getEnd());
+
+        // 之后写入的editlog接着最后一条合法的editlog
+        long lastTxId = txIds.size();
+        CompletableFuture<Long> next = recovered.logEdit(new EditLogWrapper(FsOpType.MKDIR.getValue(), "/next"));
+        recovered.close();
+        assertEquals(lastTxId + 1, next.get(1, TimeUnit.SECONDS));
+        txIds.clear();
+        new FsEditLog(nameNodeConfig).playbackEditLog(0, editLog -> txIds.add(editLog.getTxId()));
+        assertEquals(lastTxId + 1, txIds.size());
+    }
+
+    @Test
+    public void testStreamingRead() throws Exception {
+        NameNodeConfig nameNodeConfig = NameNodeConfig.builder()
+                .baseDir(baseDir.getAbsolutePath())
+                .editLogFlushThreshold(4 * 1024)
+                .editLogSyncInterval(20)
+                .editLogSegmentSize(1024 * 1024)
+                .editLogSegmentRollInterval(3600000)
+                .editLogReplayPipeline(true)
+                .build();
+        FsEditLog fsEditLog = new FsEditLog(nameNodeConfig);
+        StringBuilder longPath = new StringBuilder("/user/long");
+        for (int i = 0; i < 100; i++) {
+            longPath.append("/directory-").append(i);
+        }
+        int count = 5000;
+        for (int i = 0; i < count; i++) {
+            String path = i % 100 == 0 ? longPath.toString() + "/" + i : "/user/a/" + i;
+            fsEditLog.logEdit(new EditLogWrapper(FsOpType.CREATE.getValue(), path));
+        }
+        fsEditLog.close();
+        EditslogInfo segment = fsEditLog.getSortedEditLogFiles(0).get(0);
+
+        // 缓冲区比单条editlog还小，读取的时候需要扩容和搬移数据
+        try (EditLogReader reader = EditLogReader.open(segment.getName(), -1, 64)) {
+            EditLogWrapper editLog;
+            long expectTxId = 1;
+            while ((editLog = reader.next()) != null) {
+                assertEquals(expectTxId, editLog.getTxId());
+                if (expectTxId % 100 == 1) {
+                    assertTrue(editLog.getEditLog().getPath().startsWith(longPath.toString()));
+                }
+                expectTxId++;
+            }
+            assertEquals(EditLogFormat.Status.FOOTER, reader.getResult().getStatus());
+            assertEquals(count, reader.getResult().getCount());
+            assertEquals(new File(segment.getName()).length() - EditLogFormat.FOOTER_SIZE,
+                    reader.getResult().getValidLength());
+        }
+
+        List<Long> txIds = new ArrayList<>();
+        new FsEditLog(nameNodeConfig).playbackEditLog(0, editLog -> txIds.add(editLog.getTxId()));
+        assertEquals(count, txIds.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i + 1, txIds.get(i));
+        }
+    }
+
+    @Test
+    public void testReadSyncedEditLogs() throws Exception {
+        NameNodeConfig nameNodeConfig = NameNodeConfig.builder()
+                .baseDir(baseDir.getAbsolutePath())
+                .editLogFlushThreshold(4 * 1024)
+                .editLogSyncInterval(20)
+                .editLogSegmentSize(64 * 1024)
+                .editLogSegmentRollInterval(3600000)
+                .editLogCacheCapacity(1000)
+                .build();
+        FsEditLog fsEditLog = new FsEditLog(nameNodeConfig);
+        int count = 5000;
+        CompletableFuture<Long> last = null;
+        for (int i = 0; i < count; i++) {
+            last = fsEditLog.logEdit(new EditLogWrapper(FsOpType.CREATE.getValue(), "/user/a/" + i));
+        }
+        last.get(10, TimeUnit.SECONDS);
+        assertTrue(fsEditLog.getSortedEditLogFiles(0).size() > 1);
+
+        // 最近的1024条在缓存中，之前的从段文件中读取，跨越多个段文件的时候接着读下一个段文件
+        EditLogSegmentCursor cursor = new EditLogSegmentCursor(fsEditLog);
+        for (long txId : new long[]{0, 1234, count - 1024, count - 10}) {
+            long expectTxId = txId + 1;
+            List<EditLogWrapper> editLogs;
+            while (!(editLogs = fsEditLog.readSyncedEditLogs(expectTxId - 1, 300, Integer.MAX_VALUE,
+                    cursor)).isEmpty()) {
+                assertTrue(editLogs.size() <= 300);
+                for (EditLogWrapper editLog : editLogs) {
+                    assertEquals(expectTxId, editLog.getTxId());
+                    assertEquals("/user/a/" + (expectTxId - 1), editLog.getEditLog().getPath());
+                    expectTxId++;
+                }
+            }
+            assertEquals(count + 1, expectTxId);
+        }
+
+        // 字节数达到上限的时候至少返回一条
+        assertEquals(1, fsEditLog.readSyncedEditLogs(count - 5, 300, 1, cursor).size());
+        assertEquals(1, fsEditLog.readSyncedEditLogs(5, 300, 1, cursor).size());
+        cursor.close();
+        fsEditLog.close();
+    }
+
+    private int indexOf(byte[] data, byte[] target, int from) {
+        for (int i = from; i <= data.length - target.length; i++) {
+            int j = 0;
+            while (j < target.length && data[i + j] == target[j]) {
+                j++;
+            }
+            if (j == target.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private long findDataLength(FsEditLog fsEditLog, EditslogInfo info) throws Exception {
+        long length = EditLogFormat.HEADER_SIZE;
+        for (EditLogWrapper editLog : fsEditLog.readEditLogFromFile(info.getName())) {
+            length += editLog.getSerializedSize();
+        }
+        return length;
+    }
+}
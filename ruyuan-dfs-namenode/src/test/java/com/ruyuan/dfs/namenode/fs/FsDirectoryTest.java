@@ -1,16 +1,28 @@
 package com.ruyuan.dfs.namenode.fs;
 
+import com.ruyuan.dfs.backup.fs.FsImage;
+import com.ruyuan.dfs.backup.fs.FsImageWriter;
+import com.ruyuan.dfs.common.Constants;
+import com.ruyuan.dfs.common.enums.FsLockMode;
+import com.ruyuan.dfs.common.enums.FsOpType;
 import com.ruyuan.dfs.common.enums.NodeType;
 import com.ruyuan.dfs.common.utils.PrettyCodes;
+import com.ruyuan.dfs.common.utils.StringUtils;
+import com.ruyuan.dfs.model.backup.EditLog;
+import com.ruyuan.dfs.model.backup.INode;
+import com.ruyuan.dfs.model.namenode.Metadata;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Queue;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -21,6 +33,9 @@ import static org.junit.jupiter.api.Assertions.*;
  */
 public class FsDirectoryTest {
 
+    @TempDir
+    File baseDir;
+
     @Test
     public void mkdir() {
         FsDirectory fsDirectory = new FsDirectory();
@@ -127,4 +142,681 @@ public class FsDirectoryTest {
         assertTrue(filenames.contains(file2));
         assertFalse(filenames.contains(file3));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testHierarchicalLockStress() throws InterruptedException {
+        FsDirectory global = new FsDirectory(FsLockMode.GLOBAL);
+        FsDirectory hierarchical = new FsDirectory(FsLockMode.HIERARCHICAL);
+        Set<String> expected = runStressWorkload(global);
+        assertEquals(expected, runStressWorkload(hierarchical));
+
+        assertTreeInvariants(global.unsafeListFiles("/"));
+        assertTreeInvariants(hierarchical.unsafeListFiles("/"));
+        assertEquals(expected, new HashSet<>(global.findAllFiles("/")));
+        assertEquals(expected, new HashSet<>(hierarchical.findAllFiles("/")));
+        assertEquals(Node.toINode(global.unsafeListFiles("/")), Node.toINode(hierarchical.unsafeListFiles("/")));
+        // 并发更新同一个上层目录的统计值不会丢失
+        assertEquals(expected.size(), hierarchical.calculate("/").getFileCount());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(global.calculate("/tenant" + i), hierarchical.calculate("/tenant" + i));
+        }
+    }
+
+    @Test
+    public void testApplyEditLogs() {
+        List<EditLog> editLogs = new ArrayList<>();
+        long txId = 0;
+        for (int i = 0; i < 3000; i++) {
+            String dir = "/user/" + (i % 7) + "/" + (i / 100);
+            Map<String, String> attr = new HashMap<>();
+            attr.put("index", String.valueOf(i));
+            if (i % 100 == 0) {
+                editLogs.add(editLog(++txId, FsOpType.MKDIR, dir + "/", attr));
+            }
+            editLogs.add(editLog(++txId, FsOpType.CREATE, dir + "/" + i + ".jpg", attr));
+            // 删除之后父目录可能变成空目录被删除，后续的操作需要重新创建父目录
+            if (i % 3 == 0) {
+                editLogs.add(editLog(++txId, FsOpType.DELETE, dir + "/" + i + ".jpg", attr));
+            }
+            if (i % 250 == 0) {
+                editLogs.add(editLog(++txId, FsOpType.DELETE, dir, attr));
+            }
+        }
+        editLogs.add(editLog(++txId, FsOpType.CREATE, "/user/0/0/1.jpg", new HashMap<>()));
+        editLogs.add(editLog(++txId, FsOpType.MKDIR, "/", Collections.singletonMap("root", "true")));
+
+        for (FsLockMode lockMode : FsLockMode.values()) {
+            FsDirectory expected = new FsDirectory(lockMode);
+            for (EditLog editLog : editLogs) {
+                if (FsOpType.MKDIR.getValue() == editLog.getOpType()) {
+                    expected.mkdir(editLog.getPath(), editLog.getAttrMap());
+                } else if (FsOpType.CREATE.getValue() == editLog.getOpType()) {
+                    expected.createFile(editLog.getPath(), editLog.getAttrMap());
+                } else {
+                    expected.delete(editLog.getPath());
+                }
+            }
+            FsDirectory actual = new FsDirectory(lockMode);
+            for (int i = 0; i < editLogs.size(); i += 1024) {
+                actual.applyEditLogs(editLogs.subList(i, Math.min(editLogs.size(), i + 1024)));
+            }
+            assertEquals(describe(expected.listFiles("/")), describe(actual.listFiles("/")));
+        }
+    }
+
+    private EditLog editLog(long txId, FsOpType opType, String path, Map<String, String> attr) {
+        return EditLog.newBuilder()
+                .setTxId(txId)
+                .setOpType(opType.getValue())
+                .setPath(path)
+                .putAllAttr(attr)
+                .build();
+    }
+
+    private List<String> describe(Node node) {
+        List<String> ret = new ArrayList<>();
+        ret.add(node.getFullPath() + ":" + node.getType() + ":" + new TreeMap<>(node.getAttr()));
+        for (Node child : node.getChildren().values()) {
+            ret.addAll(describe(child));
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    @Test
+    public void testFindAllFileBySlot() throws IOException {
+        for (FsLockMode lockMode : FsLockMode.values()) {
+            FsDirectory fsDirectory = new FsDirectory(lockMode);
+            for (int i = 0; i < 2000; i++) {
+                fsDirectory.createFile("/slot/" + (i % 13) + "/" + i + ".jpg", new HashMap<>());
+            }
+            assertSlotIndex(fsDirectory);
+
+            // 建立索引之后的创建、删除和批量回放都需要更新索引
+            for (int i = 0; i < 2000; i += 3) {
+                assertNotNull(fsDirectory.delete("/slot/" + (i % 13) + "/" + i + ".jpg"));
+            }
+            for (int i = 2000; i < 3000; i++) {
+                fsDirectory.createFile("/slot/" + (i % 17) + "/" + i + ".jpg", new HashMap<>());
+            }
+            List<EditLog> editLogs = new ArrayList<>();
+            for (int i = 3000; i < 4000; i++) {
+                editLogs.add(editLog(i, FsOpType.CREATE, "/replay/" + (i % 7) + "/" + i + ".jpg", new HashMap<>()));
+                if (i % 2 == 0) {
+                    editLogs.add(editLog(i, FsOpType.DELETE, "/slot/" + (i % 17) + "/" + (i - 1000) + ".jpg",
+                            new HashMap<>()));
+                }
+            }
+            fsDirectory.applyEditLogs(editLogs);
+            assertSlotIndex(fsDirectory);
+
+            // 加载FsImage之后重新建立索引
+            String path = new File(baseDir, "slot-" + lockMode + ".fsimage").getAbsolutePath();
+            fsDirectory.writeFsImage(path, 0);
+            FsDirectory loaded = new FsDirectory(lockMode);
+            loaded.findAllFileBySlot(0);
+            loaded.applyFsImage(parse(path));
+            assertSlotIndex(loaded);
+        }
+    }
+
+    private void assertSlotIndex(FsDirectory fsDirectory) {
+        Map<Integer, Set<String>> expected = new HashMap<>();
+        collectFilesBySlot(fsDirectory.unsafeListFiles("/"), expected);
+        for (int slot = 0; slot < Constants.SLOTS_COUNT; slot++) {
+            Set<String> actual = new HashSet<>();
+            for (Metadata metadata : fsDirectory.findAllFileBySlot(slot)) {
+                actual.add(metadata.getFileName());
+            }
+            assertEquals(expected.getOrDefault(slot, Collections.emptySet()), actual);
+        }
+    }
+
+    private void collectFilesBySlot(Node node, Map<Integer, Set<String>> filesBySlot) {
+        for (Node child : node.getChildren().values()) {
+            if (child.isFile()) {
+                String fullPath = child.getFullPath();
+                filesBySlot.computeIfAbsent(StringUtils.hash(fullPath, Constants.SLOTS_COUNT), k -> new HashSet<>())
+                        .add(fullPath);
+            } else {
+                collectFilesBySlot(child, filesBySlot);
+            }
+        }
+    }
+
+    @Test
+    public void testListFilesPage() {
+        for (FsLockMode lockMode : FsLockMode.values()) {
+            FsDirectory fsDirectory = new FsDirectory(lockMode);
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 2500; i++) {
+                fsDirectory.createFile("/page/" + i + ".jpg", new HashMap<>());
+                expected.add(i + ".jpg");
+            }
+            fsDirectory.createFile("/page/sub/a.jpg", new HashMap<>());
+            expected.add("sub");
+            Collections.sort(expected);
+
+            List<String> actual = new ArrayList<>();
+            String startAfter = "";
+            Node page;
+            do {
+                page = fsDirectory.listFiles("/page", startAfter, 1000);
+                for (Node child : page.getChildren().values()) {
+                    // 只拷贝这一页的孩子节点，不拷贝孙子节点
+                    assertTrue(child.getChildren().isEmpty());
+                    actual.add(child.getPath());
+                    startAfter = child.getPath();
+                }
+            } while (page.getChildren().size() == 1000);
+            assertEquals(expected, actual);
+
+            // startAfter不存在的时候从第一个大于它的文件开始
+            page = fsDirectory.listFiles("/page", "1000.jpf", 2);
+            assertEquals(Arrays.asList("1000.jpg", "1001.jpg"), new ArrayList<>(page.getChildren().keySet()));
+
+            assertNull(fsDirectory.listFiles("/page/none", "", 10));
+            assertNull(fsDirectory.listFiles("/page/none", 1));
+        }
+    }
+
+    @Test
+    public void testTrashIndex() throws IOException {
+        for (FsLockMode lockMode : FsLockMode.values()) {
+            FsDirectory fsDirectory = new FsDirectory(lockMode);
+            for (int i = 0; i < 100; i++) {
+                Map<String, String> attr = new HashMap<>();
+                attr.put(Constants.ATTR_FILE_SIZE, String.valueOf(i));
+                fsDirectory.createFile("/user" + (i % 3) + "/dir/" + i + ".jpg", attr);
+            }
+            // 倒序删除，删除时间越晚的文件编号越小
+            for (int i = 99; i >= 0; i--) {
+                Map<String, String> attr = new HashMap<>();
+                attr.put(Constants.ATTR_FILE_DEL_TIME, String.valueOf(1000 - i));
+                assertTrue(fsDirectory.moveToTrash("/user" + (i % 3) + "/dir/" + i + ".jpg", attr));
+            }
+            assertNull(fsDirectory.unsafeListFiles("/user0/dir"));
+            Node trashFile = fsDirectory.unsafeListFiles("/user1/.Trash/dir/1.jpg");
+            assertEquals(1, trashFile.getFileSize());
+            assertEquals(999, trashFile.getDelTime());
+            assertFalse(fsDirectory.moveToTrash("/user1/dir/1.jpg", new HashMap<>()));
+            assertEquals(Arrays.asList("/user0/.Trash/dir/99.jpg", "/user2/.Trash/dir/98.jpg"),
+                    fsDirectory.findExpiredTrashFiles(903, 10));
+            assertEquals(3, fsDirectory.findExpiredTrashFiles(1000, 3).size());
+
+            // 同名文件再次删除的时候替换垃圾箱中的文件
+            fsDirectory.createFile("/user0/dir/99.jpg", new HashMap<>());
+            Map<String, String> attr = new HashMap<>();
+            attr.put(Constants.ATTR_FILE_DEL_TIME, "2000");
+            assertTrue(fsDirectory.moveToTrash("/user0/dir/99.jpg", attr));
+            assertEquals(Collections.singletonList("/user2/.Trash/dir/98.jpg"),
+                    fsDirectory.findExpiredTrashFiles(903, 10));
+            assertEquals("/user0/.Trash/dir/99.jpg", fsDirectory.findExpiredTrashFiles(2001, 100).get(99));
+
+            // 从垃圾箱删除之后不再出现在索引中，带有删除时间但是不在垃圾箱中的文件不会被索引
+            assertNotNull(fsDirectory.delete("/user2/.Trash/dir/98.jpg"));
+            fsDirectory.createFile("/user2/dir/restore.jpg", attr);
+            List<String> expired = fsDirectory.findExpiredTrashFiles(Long.MAX_VALUE, Integer.MAX_VALUE);
+            assertEquals(99, expired.size());
+            assertFalse(expired.contains("/user2/.Trash/dir/98.jpg"));
+
+            // 加载FsImage之后重建索引
+            String path = new File(baseDir, "fsimage-" + lockMode).getAbsolutePath();
+            fsDirectory.writeFsImage(path, 1L);
+            FsDirectory loaded = new FsDirectory(lockMode);
+            loaded.applyFsImage(parse(path));
+            assertEquals(new HashSet<>(expired),
+                    new HashSet<>(loaded.findExpiredTrashFiles(Long.MAX_VALUE, Integer.MAX_VALUE)));
+            assertEquals(fsDirectory.findExpiredTrashFiles(960, 100), loaded.findExpiredTrashFiles(960, 100));
+        }
+    }
+
+    @Test
+    public void testRename() {
+        for (FsLockMode lockMode : FsLockMode.values()) {
+            FsDirectory fsDirectory = new FsDirectory(lockMode);
+            for (int i = 0; i < 1000; i++) {
+                Map<String, String> attr = new HashMap<>();
+                attr.put(Constants.ATTR_FILE_SIZE, String.valueOf(i));
+                fsDirectory.createFile("/user/src/" + (i % 10) + "/" + i + ".jpg", attr);
+            }
+            fsDirectory.createFile("/user/other.jpg", new HashMap<>());
+            assertSlotIndex(fsDirectory);
+            Node moved = fsDirectory.unsafeListFiles("/user/src");
+
+            // 不存在的源路径、已经存在的目标路径、移动到自己的子目录、目标路径上有文件
+            assertEquals(-1, fsDirectory.rename("/user/none", "/user/dst"));
+            assertEquals(-1, fsDirectory.rename("/user/src", "/user/other.jpg"));
+            assertEquals(-1, fsDirectory.rename("/user/src", "/user/src/0/sub"));
+            assertEquals(-1, fsDirectory.rename("/user/src", "/user/other.jpg/sub"));
+
+            // 整个子树被移动，不是重新创建，源目录变成空目录之后被删除
+            assertEquals(1000, fsDirectory.rename("/user/src", "/tenant/a/dst"));
+            assertSame(moved, fsDirectory.unsafeListFiles("/tenant/a/dst"));
+            assertNull(fsDirectory.unsafeListFiles("/user/src"));
+            assertEquals(999, fsDirectory.unsafeListFiles("/tenant/a/dst/9/999.jpg").getFileSize());
+            assertEquals("/tenant/a/dst/9/999.jpg", fsDirectory.unsafeListFiles("/tenant/a/dst/9/999.jpg")
+                    .getFullPath());
+            assertSlotIndex(fsDirectory);
+
+            // 移出垃圾箱的文件去掉删除时间，并且不再出现在垃圾箱索引中
+            Map<String, String> attr = new HashMap<>();
+            attr.put(Constants.ATTR_FILE_DEL_TIME, "100");
+            assertTrue(fsDirectory.moveToTrash("/tenant/a/dst/0/0.jpg", attr));
+            assertTrue(fsDirectory.moveToTrash("/tenant/a/dst/0/10.jpg", attr));
+            assertEquals(2, fsDirectory.findExpiredTrashFiles(Long.MAX_VALUE, 10).size());
+            assertEquals(1, fsDirectory.rename("/tenant/.Trash/a/dst/0/0.jpg", "/tenant/.Trash/a/dst/0/1.jpg"));
+            assertEquals(new HashSet<>(Arrays.asList("/tenant/.Trash/a/dst/0/1.jpg", "/tenant/.Trash/a/dst/0/10.jpg")),
+                    new HashSet<>(fsDirectory.findExpiredTrashFiles(Long.MAX_VALUE, 10)));
+            assertEquals(-1, fsDirectory.rename("/tenant/.Trash/a/dst/0/1.jpg", "/tenant/a/dst/0/20.jpg"));
+            assertEquals(2, fsDirectory.rename("/tenant/.Trash/a/dst/0", "/tenant/a/restored"));
+            assertTrue(fsDirectory.findExpiredTrashFiles(Long.MAX_VALUE, 10).isEmpty());
+            assertEquals(-1, fsDirectory.unsafeListFiles("/tenant/a/restored/1.jpg").getDelTime());
+            assertNull(fsDirectory.unsafeListFiles("/tenant/.Trash"));
+            assertSlotIndex(fsDirectory);
+            assertTreeInvariants(fsDirectory.unsafeListFiles("/"));
+
+            // 批量回放的结果和逐条执行一致
+            List<EditLog> editLogs = new ArrayList<>();
+            long txId = 0;
+            for (int i = 0; i < 100; i++) {
+                editLogs.add(editLog(++txId, FsOpType.CREATE, "/replay/" + (i % 3) + "/" + i + ".jpg", attr));
+            }
+            editLogs.add(EditLog.newBuilder().setTxId(++txId).setOpType(FsOpType.RENAME.getValue())
+                    .setPath("/replay/0").setDstPath("/replay/3/0").build());
+            for (int i = 0; i < 100; i++) {
+                editLogs.add(editLog(++txId, FsOpType.CREATE, "/replay/" + (i % 4) + "/new-" + i + ".jpg", attr));
+            }
+            FsDirectory expected = new FsDirectory(lockMode);
+            for (EditLog editLog : editLogs) {
+                expected.applyEditLogs(Collections.singletonList(editLog));
+            }
+            FsDirectory actual = new FsDirectory(lockMode);
+            actual.applyEditLogs(editLogs);
+            assertEquals(describe(expected.unsafeListFiles("/")), describe(actual.unsafeListFiles("/")));
+            assertEquals(34, actual.unsafeListFiles("/replay/3/0").getChildren().size());
+        }
+    }
+
+    @Test
+    public void testCalculate() throws IOException {
+        for (FsLockMode lockMode : FsLockMode.values()) {
+            FsDirectory fsDirectory = new FsDirectory(lockMode);
+            Random random = new Random(lockMode.ordinal());
+            List<String> files = new ArrayList<>();
+            for (int i = 0; i < 3000; i++) {
+                String filename = "/user" + (i % 3) + "/" + random.nextInt(5) + "/" + random.nextInt(5) + "/" + i;
+                Map<String, String> attr = new HashMap<>();
+                attr.put(Constants.ATTR_FILE_SIZE, String.valueOf(random.nextInt(10000)));
+                assertTrue(fsDirectory.createFile(filename, attr));
+                files.add(filename);
+            }
+            Collections.shuffle(files, random);
+            for (int i = 0; i < 1000; i++) {
+                String filename = files.get(i);
+                if (i % 2 == 0) {
+                    assertNotNull(fsDirectory.delete(filename));
+                } else {
+                    Map<String, String> attr = new HashMap<>();
+                    attr.put(Constants.ATTR_FILE_DEL_TIME, String.valueOf(i));
+                    assertTrue(fsDirectory.moveToTrash(filename, attr));
+                }
+            }
+            assertTrue(fsDirectory.rename("/user0/1", "/user1/moved/1") >= 0);
+            assertTrue(fsDirectory.rename("/user2/.Trash/3", "/user2/3/restored") >= 0);
+            assertCalculate(fsDirectory, fsDirectory.unsafeListFiles("/"), "");
+
+            // 加载FsImage之后重建统计值
+            String path = new File(baseDir, "fsimage-" + lockMode).getAbsolutePath();
+            fsDirectory.writeFsImage(path, 1L);
+            FsDirectory loaded = new FsDirectory(lockMode);
+            loaded.applyFsImage(parse(path));
+            assertCalculate(loaded, loaded.unsafeListFiles("/"), "");
+            assertEquals(fsDirectory.calculate("/"), loaded.calculate("/"));
+            assertEquals(new CalculateResult(0, 0), loaded.calculate("/none/dir"));
+        }
+    }
+
+    /**
+     * 遍历子树计算用量，和增量维护的统计值对比
+     */
+    @Test
+    public void testBatchOperations() {
+        for (FsLockMode lockMode : FsLockMode.values()) {
+            FsDirectory fsDirectory = new FsDirectory(lockMode);
+            assertTrue(fsDirectory.createFile("/user/a/exists.png", new HashMap<>()));
+            List<String> filenames = Arrays.asList("/user/a/1.png", "/user/a/exists.png", "/user/b/c/2.png",
+                    "/user/a/1.png");
+            List<Map<String, String>> attrs = new ArrayList<>();
+            for (int i = 0; i < filenames.size(); i++) {
+                Map<String, String> attr = new HashMap<>();
+                attr.put(Constants.ATTR_FILE_SIZE, String.valueOf(i + 1));
+                attrs.add(attr);
+            }
+            // 已经存在的文件和同一批中重复的文件创建失败
+            List<int[]> journal = new ArrayList<>();
+            assertArrayEquals(new boolean[]{true, false, true, false},
+                    fsDirectory.createFiles(filenames, attrs, journal::add));
+            assertEquals(new CalculateResult(3, 4), fsDirectory.calculate("/user"));
+            // 全局锁模式下整批只调用一次journal，分层锁模式下每个文件在自己的锁中调用
+            if (lockMode == FsLockMode.GLOBAL) {
+                assertEquals(1, journal.size());
+                assertArrayEquals(new int[]{0, 2}, journal.get(0));
+            } else {
+                assertEquals(2, journal.size());
+                assertArrayEquals(new int[]{0}, journal.get(0));
+                assertArrayEquals(new int[]{2}, journal.get(1));
+            }
+
+            List<Map<String, String>> read = fsDirectory.getAttrs(Arrays.asList("/user/a/1.png", "/user/none.png",
+                    "/user/b/c/2.png", "/user/b"));
+            assertEquals("1", read.get(0).get(Constants.ATTR_FILE_SIZE));
+            assertNull(read.get(1));
+            assertEquals("3", read.get(2).get(Constants.ATTR_FILE_SIZE));
+            assertNotNull(read.get(3));
+            // 返回的是副本
+            read.get(0).put(Constants.ATTR_FILE_SIZE, "100");
+            assertEquals("1", fsDirectory.getAttrs(Collections.singletonList("/user/a/1.png")).get(0)
+                    .get(Constants.ATTR_FILE_SIZE));
+            // 查询不会创建目录
+            assertNull(fsDirectory.getAttrs(Collections.singletonList("/user/none/x.png")).get(0));
+            assertNull(fsDirectory.unsafeListFiles("/user/none"));
+
+            Map<String, String> attr = new HashMap<>();
+            attr.put(Constants.ATTR_FILE_DEL_TIME, "1");
+            journal.clear();
+            assertArrayEquals(new boolean[]{true, false, true, false}, fsDirectory.moveToTrash(
+                    Arrays.asList("/user/a/1.png", "/user/none.png", "/user/b/c/2.png", "/user/a/1.png"), attr,
+                    journal::add));
+            assertEquals(1, journal.size());
+            assertArrayEquals(new int[]{0, 2}, journal.get(0));
+            assertEquals(new HashSet<>(Arrays.asList("/user/.Trash/a/1.png", "/user/.Trash/b/c/2.png")),
+                    new HashSet<>(fsDirectory.findExpiredTrashFiles(2, 10)));
+            assertNull(fsDirectory.unsafeListFiles("/user/b"));
+        }
+    }
+
+    private CalculateResult assertCalculate(FsDirectory fsDirectory, Node node, String path) {
+        CalculateResult expected = new CalculateResult(0, 0);
+        if (node.isFile()) {
+            expected.addFileCount();
+            expected.addTotalSize(node.getFileSize());
+        } else {
+            for (Node child : node.getChildren().values()) {
+                CalculateResult result = assertCalculate(fsDirectory, child, path + "/" + child.getPath());
+                expected.addFileCount(result.getFileCount());
+                expected.addTotalSize(result.getTotalSize());
+            }
+        }
+        assertEquals(expected, fsDirectory.calculate(path.isEmpty() ? "/" : path), path);
+        return expected;
+    }
+
+    /**
+     * 并发修改的时候按照journal调用的顺序回放，得到相同的目录树
+     */
+    @Test
+    public void testJournalOrder() throws Exception {
+        for (FsLockMode lockMode : FsLockMode.values()) {
+            FsDirectory fsDirectory = new FsDirectory(lockMode);
+            List<String[]> journal = Collections.synchronizedList(new ArrayList<>());
+            Map<String, String> attr = new HashMap<>();
+            attr.put(Constants.ATTR_FILE_DEL_TIME, "1");
+            int threadCount = 4;
+            int count = 500;
+            CountDownLatch latch = new CountDownLatch(threadCount);
+            Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+            for (int t = 0; t < threadCount; t++) {
+                int threadIndex = t;
+                new Thread(() -> {
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            if (threadIndex == 0) {
+                                String[] op = i % 2 == 0 ? new String[]{"rename", "/user/a", "/user/b"}
+                                        : new String[]{"rename", "/user/b", "/user/a"};
+                                fsDirectory.rename(op[1], op[2], files -> journal.add(op));
+                                continue;
+                            }
+                            String filename = "/user/a/" + threadIndex + "-" + i;
+                            fsDirectory.createFile(filename, new HashMap<>(),
+                                    () -> journal.add(new String[]{"create", filename}));
+                            if (i % 3 == 0) {
+                                fsDirectory.moveToTrash(filename, attr,
+                                        () -> journal.add(new String[]{"trash", filename}));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }).start();
+            }
+            latch.await();
+            assertTrue(errors.isEmpty(), () -> "并发修改出现异常: " + errors.peek());
+
+            FsDirectory replay = new FsDirectory();
+            for (String[] op : journal) {
+                if ("create".equals(op[0])) {
+                    assertTrue(replay.createFile(op[1], new HashMap<>()), op[1]);
+                } else if ("trash".equals(op[0])) {
+                    assertTrue(replay.moveToTrash(op[1], attr), op[1]);
+                } else {
+                    assertTrue(replay.rename(op[1], op[2]) >= 0, op[1]);
+                }
+            }
+            assertEquals(Node.toINode(fsDirectory.unsafeListFiles("/")), Node.toINode(replay.unsafeListFiles("/")),
+                    lockMode.name());
+        }
+    }
+
+    @Test
+    public void testSnapshotIsolation() throws Exception {
+        FsDirectory fsDirectory = new FsDirectory(FsLockMode.HIERARCHICAL);
+        for (int i = 0; i < 100; i++) {
+            Map<String, String> attr = new HashMap<>();
+            attr.put(Constants.ATTR_REPLICA_NUM, "2");
+            fsDirectory.createFile("/user/" + (i % 10) + "/file-" + i, attr);
+        }
+        fsDirectory.createFile("/tmp/a/b/c.png", new HashMap<>());
+        INode expected = Node.toINode(fsDirectory.unsafeListFiles("/"));
+
+        String path = new File(baseDir, "fsimage-1").getAbsolutePath();
+        try (NamespaceSnapshot snapshot = fsDirectory.createSnapshot()) {
+            // 快照创建之后的修改不会出现在快照中
+            fsDirectory.createFile("/user/0/new-file", new HashMap<>());
+            fsDirectory.createFile("/new/dir/file", new HashMap<>());
+            assertNotNull(fsDirectory.delete("/tmp/a/b/c.png"));
+            assertNotNull(fsDirectory.delete("/user/1/file-1"));
+            fsDirectory.unsafeListFiles("/user/2/file-2").getAttr().put(Constants.ATTR_REPLICA_NUM, "3");
+            Map<String, String> attr = new HashMap<>();
+            attr.put("owner", "root");
+            fsDirectory.mkdir("/user", attr);
+            FsImageWriter.write(path, snapshot, 1L);
+        }
+        assertEquals(expected, Node.toINode(parse(path).getRoot()));
+        assertNull(fsDirectory.unsafeListFiles("/tmp"));
+        assertEquals(3, fsDirectory.unsafeListFiles("/user/2/file-2").getReplicaNum(0));
+
+        // 快照关闭之后生成的FsImage包含所有修改
+        fsDirectory.writeFsImage(path, 2L);
+        assertEquals(Node.toINode(fsDirectory.unsafeListFiles("/")), Node.toINode(parse(path).getRoot()));
+    }
+
+    @Test
+    public void testSnapshotPerDirectory() throws Exception {
+        FsDirectory first = new FsDirectory();
+        first.createFile("/user/a.png", new HashMap<>());
+        String path = new File(baseDir, "fsimage-1").getAbsolutePath();
+        first.writeFsImage(path, 1L);
+        FsDirectory second = new FsDirectory(FsLockMode.HIERARCHICAL);
+        second.applyFsImage(parse(path));
+        INode expected = Node.toINode(second.unsafeListFiles("/"));
+
+        String secondPath = new File(baseDir, "fsimage-2").getAbsolutePath();
+        try (NamespaceSnapshot snapshot = first.createSnapshot()) {
+            // 另一个目录树的快照不需要等待，也不会受到这个快照的影响
+            try (NamespaceSnapshot secondSnapshot = second.createSnapshot()) {
+                second.createFile("/user/b.png", new HashMap<>());
+                assertNotNull(second.delete("/user/a.png"));
+                FsImageWriter.write(secondPath, secondSnapshot, 2L);
+            }
+            first.createFile("/user/c.png", new HashMap<>());
+            assertTrue(snapshot.view(snapshot.getRoot(), true).getChildren().containsKey("user"));
+        }
+        assertEquals(expected, Node.toINode(parse(secondPath).getRoot()));
+        assertNull(second.unsafeListFiles("/user/a.png"));
+        assertNotNull(second.unsafeListFiles("/user/b.png"));
+    }
+
+    /**
+     * 生成FsImage的过程中并发创建文件，写操作只会在创建快照的时候被短暂阻塞，不会被整个序列化过程阻塞
+     */
+    @Test
+    public void testWriteLatencyDuringCheckpoint() throws Exception {
+        FsDirectory fsDirectory = new FsDirectory();
+        for (int i = 0; i < 300000; i++) {
+            Map<String, String> attr = new HashMap<>();
+            attr.put(Constants.ATTR_FILE_SIZE, String.valueOf(i));
+            fsDirectory.createFile("/data/" + (i % 300) + "/file-" + i, attr);
+        }
+        INode expected = Node.toINode(fsDirectory.unsafeListFiles("/"));
+        String path = new File(baseDir, "fsimage-1").getAbsolutePath();
+
+        AtomicBoolean checkpointing = new AtomicBoolean(true);
+        List<long[]> writes = new ArrayList<>();
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; checkpointing.get(); i++) {
+                    long start = System.nanoTime();
+                    fsDirectory.createFile("/data/" + (i % 300) + "/new-" + i, new HashMap<>());
+                    writes.add(new long[]{start, System.nanoTime()});
+                    LockSupport.parkNanos(100000);
+                }
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        });
+        writer.start();
+        Thread.sleep(50);
+        long start = System.nanoTime();
+        try (NamespaceSnapshot snapshot = fsDirectory.createSnapshot()) {
+            FsImageWriter.write(path, snapshot, 1L);
+        }
+        long end = System.nanoTime();
+        checkpointing.set(false);
+        writer.join();
+        assertTrue(errors.isEmpty(), () -> "并发写入出现异常: " + errors.peek());
+
+        long maxLatency = 0;
+        int overlapped = 0;
+        for (long[] write : writes) {
+            if (write[0] >= start && write[1] <= end) {
+                overlapped++;
+                maxLatency = Math.max(maxLatency, write[1] - write[0]);
+            }
+        }
+        long checkpointCost = end - start;
+        System.out.println("生成FsImage耗时：" + checkpointCost / 1000000 + " ms，期间完成写操作："
+                + overlapped + " 次，最大写延迟：" + maxLatency / 1000 + " us");
+        assertTrue(overlapped > 0, "生成FsImage期间没有完成任何写操作");
+        assertTrue(maxLatency < checkpointCost / 2, "写操作被生成FsImage的过程阻塞");
+        // 去掉并发写入的文件之后，FsImage中的目录树和生成之前一致
+        Node loaded = parse(path).getRoot();
+        for (Node dir : loaded.getChildren().get("data").getChildren().values()) {
+            dir.getChildren().keySet().removeIf(name -> name.startsWith("new-"));
+        }
+        assertTrue(expected.equals(Node.toINode(loaded)), "FsImage中的目录树不完整");
+    }
+
+    private FsImage parse(String path) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r"); FileChannel channel = raf.getChannel()) {
+            return FsImage.parse(channel, path, raf.length());
+        }
+    }
+
+    /**
+     * 多个线程在共享的租户目录和私有目录下并发创建、删除文件，同时有线程并发读取目录树
+     *
+     * @return 最终应该存在的文件
+     */
+    private Set<String> runStressWorkload(FsDirectory fsDirectory) throws InterruptedException {
+        int writerNum = 16;
+        int readerNum = 4;
+        int filesPerWriter = 1000;
+        Set<String> expected = Collections.synchronizedSet(new HashSet<>());
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        CountDownLatch writerLatch = new CountDownLatch(writerNum);
+        CountDownLatch readerLatch = new CountDownLatch(readerNum);
+        for (int i = 0; i < writerNum; i++) {
+            int writer = i;
+            new Thread(() -> {
+                try {
+                    String tenant = "/tenant" + (writer % 4);
+                    List<String> created = new ArrayList<>();
+                    for (int j = 0; j < filesPerWriter; j++) {
+                        String filename = j % 5 == 0
+                                ? tenant + "/private" + writer + "/" + j + ".jpg"
+                                : tenant + "/shared" + (j % 8) + "/" + writer + "_" + j + ".jpg";
+                        Map<String, String> attr = new HashMap<>();
+                        attr.put("writer", String.valueOf(writer));
+                        assertTrue(fsDirectory.createFile(filename, attr));
+                        created.add(filename);
+                    }
+                    for (int j = 0; j < created.size(); j++) {
+                        String filename = created.get(j);
+                        // 私有目录下的文件全部删除，验证空目录会被级联删除
+                        if (j % 5 == 0 || j % 3 == 0) {
+                            assertNotNull(fsDirectory.delete(filename));
+                        } else {
+                            expected.add(filename);
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                } finally {
+                    writerLatch.countDown();
+                }
+            }).start();
+        }
+        for (int i = 0; i < readerNum; i++) {
+            int reader = i;
+            new Thread(() -> {
+                try {
+                    for (int round = 0; writing.get(); round++) {
+                        fsDirectory.listFiles("/tenant" + reader, 2);
+                        fsDirectory.findAllFiles("/tenant" + ((reader + 1) % 4));
+                        if (round % 50 == 0) {
+                            fsDirectory.findAllFileBySlot(reader);
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                } finally {
+                    readerLatch.countDown();
+                }
+            }).start();
+        }
+        writerLatch.await();
+        writing.set(false);
+        readerLatch.await();
+        assertTrue(errors.isEmpty(), () -> "并发操作出现异常: " + errors.peek());
+        return new HashSet<>(expected);
+    }
+
+    private void assertTreeInvariants(Node node) {
+        for (Map.Entry<String, Node> entry : node.getChildren().entrySet()) {
+            Node child = entry.getValue();
+            assertEquals(entry.getKey(), child.getPath());
+            assertSame(node, child.getParent());
+            if (child.isFile()) {
+                assertTrue(child.getChildren().isEmpty());
+            } else {
+                assertFalse(child.getChildren().isEmpty(), "存在没有被删除的空目录：" + child.getFullPath());
+                assertTreeInvariants(child);
+            }
+        }
+    }
+}
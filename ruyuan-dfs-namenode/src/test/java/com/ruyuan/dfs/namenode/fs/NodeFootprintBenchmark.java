@@ -0,0 +1,108 @@
+package com.ruyuan.dfs.namenode.fs;
+
+import com.ruyuan.dfs.common.Constants;
+import com.ruyuan.dfs.common.enums.NodeType;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 对比内存目录树节点的内存占用
+ *
+ * <pre>
+ * 运行方式：直接执行main方法，建议加上 -Xmx4g，可以通过第一个参数指定文件数量
+ *
+ * 每个目录下放1000个文件，每个文件带上 FILE_SIZE 和 REPLICA_NUM 两个属性，
+ * 分别统计旧的节点结构(TreeMap + HashMap)和现在的节点结构每个文件平均占用的内存
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class NodeFootprintBenchmark {
+
+    private static final int FILES_PER_DIR = 1000;
+
+    public static void main(String[] args) {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        long before = usedMemory();
+        LegacyNode legacyRoot = buildLegacy(fileCount);
+        long legacyBytes = usedMemory() - before;
+        System.out.println("旧节点结构：" + (legacyBytes / fileCount) + " bytes/file, root children=" + legacyRoot.children.size());
+        legacyRoot = null;
+
+        before = usedMemory();
+        Node root = build(fileCount);
+        long bytes = usedMemory() - before;
+        System.out.println("新节点结构：" + (bytes / fileCount) + " bytes/file, root children=" + root.getChildren().size());
+    }
+
+    private static Node build(int fileCount) {
+        Node root = new Node("", NodeType.DIRECTORY.getValue());
+        Node dir = null;
+        for (int i = 0; i < fileCount; i++) {
+            if (i % FILES_PER_DIR == 0) {
+                dir = new Node("dir-" + i / FILES_PER_DIR, NodeType.DIRECTORY.getValue());
+                root.addChildren(dir);
+            }
+            Node file = new Node("file-" + i + ".png", NodeType.FILE.getValue());
+            Map<String, String> attr = file.getAttr();
+            attr.put(new String(Constants.ATTR_FILE_SIZE), String.valueOf(1024 + i));
+            attr.put(new String(Constants.ATTR_REPLICA_NUM), "2");
+            dir.addChildren(file);
+        }
+        return root;
+    }
+
+    private static LegacyNode buildLegacy(int fileCount) {
+        LegacyNode root = new LegacyNode("", NodeType.DIRECTORY.getValue());
+        LegacyNode dir = null;
+        for (int i = 0; i < fileCount; i++) {
+            if (i % FILES_PER_DIR == 0) {
+                dir = new LegacyNode("dir-" + i / FILES_PER_DIR, NodeType.DIRECTORY.getValue());
+                root.addChildren(dir);
+            }
+            LegacyNode file = new LegacyNode("file-" + i + ".png", NodeType.FILE.getValue());
+            // 模拟从网络或者FsImage反序列化出来的属性，key不是同一个字符串实例
+            file.attr.put(new String(Constants.ATTR_FILE_SIZE), String.valueOf(1024 + i));
+            file.attr.put(new String(Constants.ATTR_REPLICA_NUM), "2");
+            dir.addChildren(file);
+        }
+        return root;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * 旧的节点结构
+     */
+    private static class LegacyNode {
+        private String path;
+        private int type;
+        private final TreeMap<String, LegacyNode> children = new TreeMap<>();
+        private final Map<String, String> attr = new HashMap<>();
+        private LegacyNode parent;
+
+        LegacyNode(String path, int type) {
+            this.path = path;
+            this.type = type;
+        }
+
+        void addChildren(LegacyNode child) {
+            child.parent = this;
+            children.put(child.path, child);
+        }
+    }
+}
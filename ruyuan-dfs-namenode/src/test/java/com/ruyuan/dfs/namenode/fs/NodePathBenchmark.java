@@ -0,0 +1,106 @@
+package com.ruyuan.dfs.namenode.fs;
+
+import com.ruyuan.dfs.common.Constants;
+import com.ruyuan.dfs.common.enums.NodeType;
+import com.ruyuan.dfs.common.utils.StringUtils;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 对比扫描目录树时计算文件全路径和槽位的耗时和内存分配
+ *
+ * <pre>
+ * 运行方式：直接执行main方法，可以通过第一个参数指定文件数量，默认1000000
+ *
+ * 目录树的深度是5层：/user-x/2021/01/dir-x/file-x.png，每个目录下1000个文件，统计每个文件平均的耗时和分配的字节数：
+ *
+ *   1. 全路径：递归到根节点逐层拼接字符串（旧的方式），和一次计算长度之后只拼接一次
+ *   2. 槽位：每次都拼接全路径再计算哈希（旧的方式），和使用节点上缓存的槽位
+ *
+ * 内存分配通过 com.sun.management.ThreadMXBean 统计当前线程分配的字节数，每种方式先预热再统计。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class NodePathBenchmark {
+
+    private static final int FILES_PER_DIR = 1000;
+    private static final int ROUNDS = 5;
+
+    private static long checksum = 0;
+
+    public static void main(String[] args) {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        List<Node> files = build(fileCount);
+        for (int round = 0; round < ROUNDS; round++) {
+            boolean print = round == ROUNDS - 1;
+            run("全路径-逐层拼接", files, print, node -> checksum += legacyFullPath(node).length());
+            run("全路径-一次拼接", files, print, node -> checksum += node.getFullPath().length());
+            run("槽位-每次计算", files, print,
+                    node -> checksum += StringUtils.hash(legacyFullPath(node), Constants.SLOTS_COUNT));
+            run("槽位-节点缓存", files, print, node -> checksum += node.getSlot());
+        }
+        System.out.println("checksum=" + checksum);
+    }
+
+    private static List<Node> build(int fileCount) {
+        Node root = new Node("/", NodeType.DIRECTORY.getValue());
+        List<Node> files = new ArrayList<>(fileCount);
+        Node dir = null;
+        for (int i = 0; i < fileCount; i++) {
+            if (i % FILES_PER_DIR == 0) {
+                dir = root;
+                for (String p : new String[]{"user-" + (i % 7), "2021", "01", "dir-" + i / FILES_PER_DIR}) {
+                    Node child = dir.getChildren(p);
+                    if (child == null) {
+                        child = new Node(p, NodeType.DIRECTORY.getValue());
+                        dir.addChildren(child);
+                    }
+                    dir = child;
+                }
+            }
+            Node file = new Node("file-" + i + ".png", NodeType.FILE.getValue());
+            dir.addChildren(file);
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * 原来的实现：递归到根节点，每一层拼接一次字符串
+     */
+    private static String legacyFullPath(Node node) {
+        if (node == null) {
+            return null;
+        }
+        String parentPath = legacyFullPath(node.getParent());
+        if (parentPath == null) {
+            return "";
+        }
+        return parentPath + "/" + node.getPath();
+    }
+
+    private static void run(String name, List<Node> files, boolean print, Operation operation) {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (Node file : files) {
+            operation.apply(file);
+        }
+        long cost = System.nanoTime() - start;
+        allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+        if (print) {
+            System.out.printf("%s：[files=%d, %.1f ns/file, %.1f bytes/file, %.0f MB/s]%n", name, files.size(),
+                    (double) cost / files.size(), (double) allocated / files.size(),
+                    allocated / 1024.0 / 1024.0 / (cost / 1e9));
+        }
+    }
+
+    private interface Operation {
+        void apply(Node node);
+    }
+}
@@ -1,7 +1,15 @@
 package com.ruyuan.dfs.namenode.fs;
 
+import com.ruyuan.dfs.common.Constants;
+import com.ruyuan.dfs.common.utils.StringUtils;
+import com.ruyuan.dfs.model.backup.INode;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -19,4 +27,67 @@ public class NodeTests {
         assertEquals("/bbb/ccc", c.getFullPath());
     }
 
+    @Test
+    public void testGetSlot() {
+        Node root = new Node("/", 1);
+        Node dir = new Node("dir", 1);
+        Node file = new Node("a.png", 2);
+        root.addChildren(dir);
+        dir.addChildren(file);
+        assertEquals(StringUtils.hash("/dir/a.png", Constants.SLOTS_COUNT), file.getSlot());
+
+        file.setPath("b.png");
+        assertEquals(StringUtils.hash("/dir/b.png", Constants.SLOTS_COUNT), file.getSlot());
+
+        // 目录移动之后需要清空子树中缓存的槽位
+        Node other = new Node("other", 1);
+        root.addChildren(other);
+        root.removeChildren("dir");
+        other.addChildren(dir);
+        Node.invalidateSlots(dir);
+        assertEquals("/other/dir/b.png", file.getFullPath());
+        assertEquals(StringUtils.hash("/other/dir/b.png", Constants.SLOTS_COUNT), file.getSlot());
+    }
+
+    @Test
+    public void testChildrenSorted() {
+        Node dir = new Node("dir", 1);
+        for (String name : Arrays.asList("d", "a", "c", "e", "b", "f")) {
+            dir.addChildren(new Node(name, 2));
+        }
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f"), new ArrayList<>(dir.getChildren().keySet()));
+        assertNotNull(dir.removeChildren("c"));
+        assertNull(dir.getChildren("c"));
+        assertEquals(dir, dir.getChildren("d").getParent());
+        dir.getChildren().entrySet().removeIf(entry -> !entry.getKey().equals("e"));
+        assertEquals(1, dir.getChildren().size());
+        assertTrue(dir.getChildren().containsKey("e"));
+    }
+
+    @Test
+    public void testAttr() {
+        Map<String, String> attr = new HashMap<>();
+        attr.put(Constants.ATTR_FILE_SIZE, "1024");
+        attr.put(Constants.ATTR_REPLICA_NUM, "02");
+        attr.put(Constants.ATTR_FILE_DEL_TIME, "1620000000000");
+        attr.put("custom", "value");
+        Node node = new Node("a.png", 2);
+        node.putAllAttr(attr);
+        assertEquals(attr, node.getAttr());
+        assertEquals(1024L, node.getFileSize());
+        assertEquals(2, node.getReplicaNum(3));
+        assertEquals(1620000000000L, node.getDelTime());
+
+        node.getAttr().remove(Constants.ATTR_FILE_DEL_TIME);
+        node.getAttr().put(Constants.ATTR_REPLICA_NUM, "3");
+        assertEquals(-1L, node.getDelTime());
+        assertEquals(3, node.getReplicaNum(1));
+        assertNull(node.getAttr().get(Constants.ATTR_FILE_DEL_TIME));
+
+        INode iNode = Node.toINode(node);
+        Node copy = Node.parseINode(iNode);
+        assertEquals(node.getAttr(), copy.getAttr());
+        assertEquals(node.getAttr(), Node.deepCopy(node, 0).getAttr());
+    }
+
 }
@@ -0,0 +1,84 @@
+package com.ruyuan.dfs.namenode.fs;
+
+import com.ruyuan.dfs.common.Constants;
+import com.ruyuan.dfs.common.enums.FsOpType;
+import com.ruyuan.dfs.model.backup.EditLog;
+import com.ruyuan.dfs.model.namenode.Metadata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 对比迁移槽位时按照槽位提取元数据的耗时
+ *
+ * <pre>
+ * 运行方式：直接执行main方法，建议加上 -Xmx4g
+ *
+ *   第一个参数：文件数量，默认10000000
+ *   第二个参数：遍历目录树的方式抽样的槽位数量，默认4
+ *
+ * 每个目录下1000个文件，每个文件带上 FILE_SIZE 和 REPLICA_NUM 两个属性：
+ *
+ *   1. 遍历目录树：每个槽位遍历一次整棵树（旧的方式），只抽样几个槽位，按照槽位数量推算提取所有槽位的耗时
+ *   2. 槽位索引：第一次查询时建立索引，之后逐个提取所有槽位的元数据
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class SlotIndexBenchmark {
+
+    private static final int FILES_PER_DIR = 1000;
+    private static final int BATCH_SIZE = 1024;
+
+    public static void main(String[] args) {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        int samples = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        FsDirectory fsDirectory = build(fileCount);
+        Node root = fsDirectory.unsafeListFiles("/");
+
+        long start = System.nanoTime();
+        long count = 0;
+        for (int i = 0; i < samples; i++) {
+            count += fsDirectory.findAllFilesFilterBySlot(root, i).size();
+        }
+        double perSlotMs = (System.nanoTime() - start) / 1e6 / samples;
+        System.out.printf("遍历目录树：[slots=%d, files=%d, %.0f ms/slot, 推算全部槽位 %.0f s]%n", samples, count,
+                perSlotMs, perSlotMs * Constants.SLOTS_COUNT / 1000);
+
+        start = System.nanoTime();
+        fsDirectory.findAllFileBySlot(0);
+        double buildMs = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        count = 0;
+        for (int slot = 0; slot < Constants.SLOTS_COUNT; slot++) {
+            Set<Metadata> files = fsDirectory.findAllFileBySlot(slot);
+            count += files.size();
+        }
+        double extractMs = (System.nanoTime() - start) / 1e6;
+        System.out.printf("槽位索引：[slots=%d, files=%d, 建立索引 %.0f ms, 提取全部槽位 %.0f ms, %.3f ms/slot]%n",
+                Constants.SLOTS_COUNT, count, buildMs, extractMs, extractMs / Constants.SLOTS_COUNT);
+    }
+
+    private static FsDirectory build(int fileCount) {
+        FsDirectory fsDirectory = new FsDirectory();
+        List<EditLog> batch = new ArrayList<>(BATCH_SIZE);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < fileCount; i++) {
+            batch.add(EditLog.newBuilder()
+                    .setTxId(i + 1)
+                    .setOpType(FsOpType.CREATE.getValue())
+                    .setPath("/benchmark/dir-" + (i / FILES_PER_DIR) + "/file-" + i + ".png")
+                    .putAttr(Constants.ATTR_FILE_SIZE, String.valueOf(1024 + i))
+                    .putAttr(Constants.ATTR_REPLICA_NUM, "2")
+                    .build());
+            if (batch.size() == BATCH_SIZE) {
+                fsDirectory.applyEditLogs(batch);
+                batch.clear();
+            }
+        }
+        fsDirectory.applyEditLogs(batch);
+        System.out.println("生成目录树：[files=" + fileCount + ", cost=" + (System.currentTimeMillis() - start) + " ms]");
+        return fsDirectory;
+    }
+}
@@ -0,0 +1,81 @@
+package com.ruyuan.dfs.namenode.fs;
+
+import com.ruyuan.dfs.common.Constants;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 对比定时清理垃圾箱时查找过期文件的耗时
+ *
+ * <pre>
+ * 运行方式：直接执行main方法，建议加上 -Xmx4g
+ *
+ *   第一个参数：垃圾箱中的文件数量，默认2000000
+ *   第二个参数：每次清理时过期的文件数量，默认1000
+ *
+ * 文件平均分布在10个用户的垃圾箱中，删除时间各不相同：
+ *
+ *   1. 遍历垃圾箱：拷贝整棵目录树，遍历所有用户的垃圾箱找出过期的文件（旧的方式）
+ *   2. 垃圾箱索引：按照删除时间从索引中取出过期的文件
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class TrashPurgeBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int expiredCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        FsDirectory fsDirectory = new FsDirectory();
+        for (int i = 0; i < fileCount; i++) {
+            String filename = "/user-" + (i % 10) + "/dir-" + (i / 10000) + "/file-" + i + ".png";
+            fsDirectory.createFile(filename, new HashMap<>());
+            Map<String, String> attr = new HashMap<>();
+            attr.put(Constants.ATTR_FILE_DEL_TIME, String.valueOf(i));
+            fsDirectory.moveToTrash(filename, attr);
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            List<String> expired = scan(fsDirectory.listFiles("/"), expiredCount);
+            double scanMs = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            List<String> indexed = fsDirectory.findExpiredTrashFiles(expiredCount, Integer.MAX_VALUE);
+            double indexMs = (System.nanoTime() - start) / 1e6;
+            System.out.printf("[files=%d, expired=%d/%d] 遍历垃圾箱 %.1f ms，垃圾箱索引 %.3f ms%n", fileCount,
+                    expired.size(), indexed.size(), scanMs, indexMs);
+        }
+    }
+
+    /**
+     * 原来的实现：拷贝整棵目录树之后遍历每个用户的垃圾箱
+     */
+    private static List<String> scan(Node root, long expireBefore) {
+        List<String> ret = new ArrayList<>();
+        for (Map.Entry<String, Node> entry : root.getChildren().entrySet()) {
+            Node trash = entry.getValue().getChildren(Constants.TRASH_DIR);
+            if (trash != null) {
+                scan("/" + entry.getKey(), trash, expireBefore, ret);
+            }
+        }
+        return ret;
+    }
+
+    private static void scan(String path, Node node, long expireBefore, List<String> ret) {
+        if (node.getChildren().isEmpty()) {
+            long delTime = node.getDelTime();
+            if (delTime >= 0 && delTime < expireBefore && node.isFile()) {
+                ret.add(path + "/" + node.getPath());
+            }
+        } else {
+            String basePath = path + "/" + node.getPath();
+            for (Node child : node.getChildren().values()) {
+                scan(basePath, child, expireBefore, ret);
+            }
+        }
+    }
+}
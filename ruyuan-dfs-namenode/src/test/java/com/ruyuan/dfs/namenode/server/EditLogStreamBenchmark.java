@@ -0,0 +1,211 @@
+package com.ruyuan.dfs.namenode.server;
+
+import com.ruyuan.dfs.backup.config.BackupNodeConfig;
+import com.ruyuan.dfs.backup.fs.EditsLogSubscriber;
+import com.ruyuan.dfs.backup.fs.InMemoryNameSystem;
+import com.ruyuan.dfs.common.NettyPacket;
+import com.ruyuan.dfs.common.enums.FsOpType;
+import com.ruyuan.dfs.common.enums.PacketType;
+import com.ruyuan.dfs.common.network.AbstractChannelHandler;
+import com.ruyuan.dfs.common.network.NetClient;
+import com.ruyuan.dfs.common.network.NetServer;
+import com.ruyuan.dfs.common.network.RequestWrapper;
+import com.ruyuan.dfs.common.utils.DefaultScheduler;
+import com.ruyuan.dfs.model.backup.EditLogPushAck;
+import com.ruyuan.dfs.model.backup.SubscribeEditLogRequest;
+import com.ruyuan.dfs.namenode.config.NameNodeConfig;
+import com.ruyuan.dfs.namenode.editslog.EditLogWrapper;
+import com.ruyuan.dfs.namenode.editslog.FsEditLog;
+import io.netty.channel.ChannelHandlerContext;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试NameNode往BackupNode推送editlog的持续吞吐量和延迟
+ *
+ * <pre>
+ * 运行方式：直接执行main方法，建议加上 -Xmx4g
+ *
+ *   第一个参数：写入的editlog数量，默认2000000
+ *   第二个参数：写入线程数量，默认4
+ *   第三个参数：推送窗口大小，默认8192
+ *
+ * NameNode和BackupNode在同一个进程中，通过本地端口通讯，分两个阶段：
+ *   1. 实时跟随：BackupNode先订阅，写入线程持续写入editlog，每100ms采样一次BackupNode落后的txid数量，
+ *      统计写入和回放的速度、落后的最大值和平均值，以及写入结束之后BackupNode追上需要的时间。
+ *   2. 追赶：新的BackupNode从txid=0订阅，不在缓存中的editlog需要从段文件中读取，统计追上需要的时间。
+ *
+ * 作为对比，原来的拉取方式每隔 fetch.editslog.interval 拉取一次，每次只有攒够 BACKUP_NODE_FETCH_SIZE 条的时候才返回。
+ * </pre>
+ *
+ * @author Sun Dasheng
+ */
+public class EditLogStreamBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int total = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int window = args.length > 2 ? Integer.parseInt(args[2]) : 8192;
+        File baseDir = Files.createTempDirectory("editlog-stream-benchmark").toFile();
+        NameNodeConfig nameNodeConfig = NameNodeConfig.builder()
+                .baseDir(baseDir.getAbsolutePath())
+                .editLogFlushThreshold(512 * 1024)
+                .editLogSyncInterval(10)
+                .editLogCacheCapacity(65536)
+                .build();
+        FsEditLog fsEditLog = new FsEditLog(nameNodeConfig);
+        EditLogStreamer streamer = new EditLogStreamer(fsEditLog);
+        DefaultScheduler defaultScheduler = new DefaultScheduler("EditLog-Stream-Benchmark-");
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+        NetServer netServer = new NetServer("NameNode", defaultScheduler);
+        netServer.addHandlers(Collections.singletonList(new StreamHandler(streamer)));
+        netServer.bindAsync(port);
+        try {
+            System.out.printf("editlog=%d, threads=%d, window=%d%n", total, threads, window);
+            follow(fsEditLog, defaultScheduler, port, total, threads, window);
+            catchUp(fsEditLog, defaultScheduler, port, window);
+        } finally {
+            streamer.shutdown();
+            netServer.shutdown();
+            defaultScheduler.shutdown();
+            fsEditLog.close();
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    private static void follow(FsEditLog fsEditLog, DefaultScheduler defaultScheduler, int port, int total,
+                               int threads, int window) throws Exception {
+        NetClient netClient = new NetClient("BackupNode-follow", defaultScheduler);
+        InMemoryNameSystem nameSystem = new InMemoryNameSystem(new BackupNodeConfig());
+        EditsLogSubscriber subscriber = subscribe(netClient, nameSystem, port, window);
+
+        long start = System.nanoTime();
+        CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            int threadIndex = i;
+            new Thread(() -> {
+                CompletableFuture<Long> last = null;
+                for (int j = 0; j < total / threads; j++) {
+                    last = fsEditLog.logEdit(new EditLogWrapper(FsOpType.CREATE.getValue(),
+                            "/benchmark/" + threadIndex + "/" + (j / 1000) + "/file-" + j));
+                    if (j % 10000 == 0) {
+                        // 避免写入太快导致等待刷盘的editlog占用太多内存
+                        last.join();
+                    }
+                }
+                if (last != null) {
+                    last.join();
+                }
+                latch.countDown();
+            }).start();
+        }
+        long samples = 0;
+        long lagSum = 0;
+        long maxLag = 0;
+        while (!latch.await(100, TimeUnit.MILLISECONDS)) {
+            long lag = Math.max(0, fsEditLog.getSyncTxid() - nameSystem.getMaxTxId());
+            maxLag = Math.max(maxLag, lag);
+            lagSum += lag;
+            samples++;
+        }
+        long writeEnd = System.nanoTime();
+        long syncTxId = fsEditLog.getSyncTxid();
+        while (nameSystem.getMaxTxId() < syncTxId) {
+            Thread.sleep(1);
+        }
+        long applyEnd = System.nanoTime();
+        double writeSeconds = (writeEnd - start) / 1e9;
+        System.out.printf("实时跟随：写入 %d 条, 写入速度 %.0f 条/s, 回放速度 %.0f 条/s, 落后最大 %d 条, 平均 %d 条, "
+                        + "写入结束之后 %.1f ms 追上%n", syncTxId, syncTxId / writeSeconds,
+                syncTxId / ((applyEnd - start) / 1e9), maxLag, samples == 0 ? 0 : lagSum / samples,
+                (applyEnd - writeEnd) / 1e6);
+        subscriber.shutdown();
+        netClient.shutdown();
+    }
+
+    private static void catchUp(FsEditLog fsEditLog, DefaultScheduler defaultScheduler, int port,
+                                int window) throws Exception {
+        NetClient netClient = new NetClient("BackupNode-catchUp", defaultScheduler);
+        InMemoryNameSystem nameSystem = new InMemoryNameSystem(new BackupNodeConfig());
+        long syncTxId = fsEditLog.getSyncTxid();
+        long start = System.nanoTime();
+        EditsLogSubscriber subscriber = subscribe(netClient, nameSystem, port, window);
+        while (nameSystem.getMaxTxId() < syncTxId) {
+            Thread.sleep(1);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("从段文件追赶：%d 条, 耗时 %.2f s, 速度 %.0f 条/s%n", syncTxId, seconds, syncTxId / seconds);
+        subscriber.shutdown();
+        netClient.shutdown();
+    }
+
+    private static EditsLogSubscriber subscribe(NetClient netClient, InMemoryNameSystem nameSystem, int port,
+                                                int window) throws Exception {
+        EditsLogSubscriber subscriber = new EditsLogSubscriber(netClient, nameSystem, window);
+        netClient.addNettyPackageListener(requestWrapper -> {
+            if (requestWrapper.getRequest().getPacketType() == PacketType.EDIT_LOG_PUSH.getValue()) {
+                subscriber.onPush(requestWrapper.getRequest());
+            }
+        });
+        netClient.connect("localhost", port);
+        netClient.ensureConnected();
+        subscriber.subscribe();
+        return subscriber;
+    }
+
+    /**
+     * 只处理订阅和确认请求的NameNode
+     */
+    private static class StreamHandler extends AbstractChannelHandler {
+
+        private final EditLogStreamer streamer;
+
+        StreamHandler(EditLogStreamer streamer) {
+            this.streamer = streamer;
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            streamer.unsubscribe(ctx.channel());
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        protected boolean handlePackage(ChannelHandlerContext ctx, NettyPacket request) throws Exception {
+            if (request.getPacketType() == PacketType.SUBSCRIBE_EDIT_LOG.getValue()) {
+                SubscribeEditLogRequest subscribeRequest = SubscribeEditLogRequest.parseFrom(request.getBody());
+                streamer.subscribe(ctx.channel(), subscribeRequest.getTxId(), subscribeRequest.getWindow());
+                new RequestWrapper(ctx, request).sendResponse();
+                return true;
+            }
+            if (request.getPacketType() == PacketType.EDIT_LOG_PUSH_ACK.getValue()) {
+                streamer.ack(ctx.channel(), EditLogPushAck.parseFrom(request.getBody()).getTxId());
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected Set<Integer> interestPackageTypes() {
+            return new HashSet<>();
+        }
+
+        @Override
+        protected Executor getExecutor() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.ruyuan.dfs.namenode.server;
+
+import com.ruyuan.dfs.common.NettyPacket;
+import com.ruyuan.dfs.common.enums.FsOpType;
+import com.ruyuan.dfs.model.backup.EditLog;
+import com.ruyuan.dfs.model.backup.EditLogPush;
+import com.ruyuan.dfs.namenode.config.NameNodeConfig;
+import com.ruyuan.dfs.namenode.editslog.EditLogWrapper;
+import com.ruyuan.dfs.namenode.editslog.FsEditLog;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Sun Dasheng
+ */
+public class EditLogStreamerTest {
+
+    @TempDir
+    File baseDir;
+
+    private FsEditLog fsEditLog;
+    private EditLogStreamer streamer;
+
+    @AfterEach
+    public void tearDown() {
+        if (streamer != null) {
+            streamer.shutdown();
+        }
+        if (fsEditLog != null) {
+            fsEditLog.close();
+        }
+    }
+
+    @Test
+    public void testWindow() throws Exception {
+        init(NameNodeConfig.builder()
+                .baseDir(baseDir.getAbsolutePath())
+                .editLogFlushThreshold(64 * 1024)
+                .editLogSyncInterval(20)
+                .build());
+        logEdits(0, 100);
+        CaptureChannel channel = new CaptureChannel();
+        streamer.subscribe(channel, 0, 10);
+
+        // 没有确认之前最多推送一个窗口
+        waitFor(() -> channel.txIds().size() == 10);
+        Thread.sleep(300);
+        assertEquals(10, channel.txIds().size());
+
+        // 确认一部分之后只补齐窗口
+        streamer.ack(channel, 5);
+        waitFor(() -> channel.txIds().size() == 15);
+        Thread.sleep(300);
+        assertEquals(15, channel.txIds().size());
+
+        streamer.ack(channel, 15);
+        waitFor(() -> channel.txIds().size() == 25);
+        assertContinuous(channel.txIds(), 1);
+        channel.unsafe().closeForcibly();
+    }
+
+    @Test
+    public void testCatchUpFromSegments() throws Exception {
+        init(NameNodeConfig.builder()
+                .baseDir(baseDir.getAbsolutePath())
+                .editLogFlushThreshold(4 * 1024)
+                .editLogSyncInterval(20)
+                .editLogSegmentSize(64 * 1024)
+                .editLogSegmentRollInterval(3600000)
+                .editLogCacheCapacity(1000)
+                .build());
+        int count = 5000;
+        logEdits(0, count);
+        assertTrue(fsEditLog.getSortedEditLogFiles(0).size() > 1);
+
+        // 前面的editlog已经不在缓存中，需要从段文件中读取，之后接着推送缓存中和新写入的editlog
+        CaptureChannel channel = new CaptureChannel();
+        streamer.subscribe(channel, 0, 10000);
+        waitFor(() -> channel.txIds().size() == count);
+        logEdits(count, 10);
+        waitFor(() -> channel.txIds().size() == count + 10);
+        assertContinuous(channel.txIds(), 1);
+        List<EditLog> editLogs = channel.editLogs();
+        for (int i = 0; i < editLogs.size(); i++) {
+            assertEquals("/user/a/" + i, editLogs.get(i).getPath());
+        }
+        channel.unsafe().closeForcibly();
+    }
+
+    @Test
+    public void testUnsubscribe() throws Exception {
+        init(NameNodeConfig.builder()
+                .baseDir(baseDir.getAbsolutePath())
+                .editLogFlushThreshold(64 * 1024)
+                .editLogSyncInterval(20)
+                .build());
+        logEdits(0, 100);
+        CaptureChannel channel = new CaptureChannel();
+        streamer.subscribe(channel, 50, 1000);
+        waitFor(() -> channel.txIds().size() == 50);
+        assertContinuous(channel.txIds(), 51);
+
+        // 其他连接断开不影响当前的订阅
+        CaptureChannel other = new CaptureChannel();
+        streamer.unsubscribe(other);
+        logEdits(100, 10);
+        waitFor(() -> channel.txIds().size() == 60);
+
+        // 连接断开之后不再推送，确认也会被忽略
+        streamer.unsubscribe(channel);
+        logEdits(110, 10);
+        streamer.ack(channel, 120);
+        Thread.sleep(300);
+        assertEquals(60, channel.txIds().size());
+        channel.unsafe().closeForcibly();
+        other.unsafe().closeForcibly();
+    }
+
+    private void init(NameNodeConfig nameNodeConfig) {
+        fsEditLog = new FsEditLog(nameNodeConfig);
+        streamer = new EditLogStreamer(fsEditLog);
+    }
+
+    private void logEdits(int from, int count) throws Exception {
+        CompletableFuture<Long> last = null;
+        for (int i = from; i < from + count; i++) {
+            last = fsEditLog.logEdit(new EditLogWrapper(FsOpType.CREATE.getValue(), "/user/a/" + i));
+        }
+        last.get(10, TimeUnit.SECONDS);
+    }
+
+    private void assertContinuous(List<Long> txIds, long from) {
+        for (int i = 0; i < txIds.size(); i++) {
+            assertEquals(from + i, txIds.get(i));
+        }
+    }
+
+    private void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "等待推送超时");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * 不注册到EventLoop，直接记录推送的editlog
+     */
+    private static class CaptureChannel extends NioSocketChannel {
+
+        private final List<EditLogPush> pushes = new CopyOnWriteArrayList<>();
+
+        @Override
+        public ChannelFuture writeAndFlush(Object msg) {
+            try {
+                pushes.add(EditLogPush.parseFrom(((NettyPacket) msg).getBody()));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            return newSucceededFuture();
+        }
+
+        @Override
+        public boolean isWritable() {
+            return true;
+        }
+
+        List<EditLog> editLogs() {
+            List<EditLog> editLogs = new ArrayList<>();
+            for (EditLogPush push : pushes) {
+                editLogs.addAll(push.getEditLogsList());
+            }
+            return editLogs;
+        }
+
+        List<Long> txIds() {
+            List<Long> txIds = new ArrayList<>();
+            for (EditLog editLog : editLogs()) {
+                txIds.add(editLog.getTxId());
+            }
+            return txIds;
+        }
+    }
+}